@@ -0,0 +1,227 @@
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class that represents one change recorded in the audit log: when it happened, what kind of change it was,
+ * the ISBN of the book that changed, the column that changed, and the old and new values.
+ * 
+ * An entry is written as one line of tab separated fields:
+ * "timestamp	operation	ISBN	column	old value	new value", where the timestamp is in ISO-8601 format (for
+ * example "2016-07-01T14:03:22.519Z"). Tabs, line breaks and backslashes in the values are escaped with a
+ * backslash, so that every entry stays on a single line. A missing value is written as an empty field.
+ * 
+ * Added and deleted rows record the entire row, with "*" as the column, and the values of the row separated
+ * by "::" in the same order as the input file.
+ * 
+ * A batch of deleted rows is recorded as a single BATCH_DELETE entry, with no ISBN, "ISBN" as the column, and
+ * the ISBNs of the deleted rows separated by "::" as the old value.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class AuditEntry {
+	
+	static final String MODIFY = "MODIFY", ADD = "ADD", DELETE = "DELETE", BATCH_DELETE = "BATCH_DELETE";
+	static final String ALL_COLUMNS = "*";
+	
+	private final long timestamp;
+	private final String operation, isbn, column, oldValue, newValue;
+	
+	/**
+	 * Constructor for AuditEntry.
+	 * 
+	 * @param nTimestamp : Time of the change, in milliseconds since the epoch
+	 * @param nOperation : MODIFY, ADD or DELETE
+	 * @param nIsbn : ISBN of the book that changed
+	 * @param nColumn : Column that changed, or "*" for the entire row
+	 * @param nOldValue : Value before the change, or null if there was none
+	 * @param nNewValue : Value after the change, or null if there is none
+	 */
+	public AuditEntry(long nTimestamp, String nOperation, String nIsbn, String nColumn, String nOldValue, String nNewValue){
+		timestamp = nTimestamp;
+		operation = nOperation;
+		isbn = nIsbn;
+		column = nColumn;
+		oldValue = nOldValue;
+		newValue = nNewValue;
+	}
+	
+	/**
+	 * Creates an entry for a modified cell, timestamped now.
+	 */
+	public static AuditEntry modify(String isbn, String column, String oldValue, String newValue){
+		return new AuditEntry(System.currentTimeMillis(), MODIFY, isbn, column, oldValue, newValue);
+	}
+	
+	/**
+	 * Creates an entry for an added row, timestamped now.
+	 * 
+	 * @param row : Values of the row, in table column order
+	 */
+	public static AuditEntry add(Object[] row){
+		return new AuditEntry(System.currentTimeMillis(), ADD, String.valueOf(row[0]), ALL_COLUMNS, null, joinRow(row));
+	}
+	
+	/**
+	 * Creates an entry for a deleted row, timestamped now.
+	 * 
+	 * @param row : Values of the row, in table column order
+	 */
+	public static AuditEntry delete(Object[] row){
+		return new AuditEntry(System.currentTimeMillis(), DELETE, String.valueOf(row[0]), ALL_COLUMNS, joinRow(row), null);
+	}
+	
+	/**
+	 * Creates a single entry for a batch of deleted rows, timestamped now.
+	 * 
+	 * @param isbns : ISBNs of the deleted rows
+	 */
+	public static AuditEntry deleteBatch(List<String> isbns){
+		return new AuditEntry(System.currentTimeMillis(), BATCH_DELETE, null, "ISBN", joinRow(isbns.toArray()), null);
+	}
+	
+	private static String joinRow(Object[] row){
+		StringBuilder joined = new StringBuilder();
+		for(int i = 0; i < row.length; i++){
+			if(i > 0)
+				joined.append("::");
+			joined.append(row[i]);
+		}
+		return joined.toString();
+	}
+	
+	/**
+	 * Writes the entry as a line of the audit log, without a line separator.
+	 * 
+	 * @param line : Where the line is written
+	 */
+	public void format(StringBuilder line){
+		line.append(Instant.ofEpochMilli(timestamp)).append('\t');
+		line.append(operation).append('\t');
+		escape(isbn, line);
+		line.append('\t');
+		escape(column, line);
+		line.append('\t');
+		escape(oldValue, line);
+		line.append('\t');
+		escape(newValue, line);
+	}
+	
+	@Override
+	public String toString(){
+		StringBuilder line = new StringBuilder(96);
+		format(line);
+		return line.toString();
+	}
+	
+	/**
+	 * Reads an entry from a line of the audit log.
+	 * 
+	 * @param line : A line of the audit log
+	 * @return The entry, or null if the line isn't a structured entry (for example a line written by an older
+	 * version, or a line that was only partly written)
+	 */
+	public static AuditEntry parse(String line){
+		String[] fields = new String[6];
+		int count = 0, start = 0;
+		for(int i = 0; i <= line.length(); i++){
+			if(i == line.length() || line.charAt(i) == '\t'){
+				if(count == fields.length)
+					return null;
+				fields[count++] = line.substring(start, i);
+				start = i + 1;
+			}
+		}
+		if(count != fields.length)
+			return null;
+		
+		try{
+			long time = Instant.parse(fields[0]).toEpochMilli();
+			return new AuditEntry(time, fields[1], unescape(fields[2]), unescape(fields[3]),
+					unescape(fields[4]), unescape(fields[5]));
+		} catch (DateTimeParseException e){
+			return null;
+		}
+	}
+	
+	private static void escape(String value, StringBuilder out){
+		if(value == null)
+			return;
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+			case '\t': out.append("\\t"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\\': out.append("\\\\"); break;
+			default: out.append(c);
+			}
+		}
+	}
+	
+	private static String unescape(String value){
+		if(value.isEmpty())
+			return null;
+		if(value.indexOf('\\') < 0)
+			return value;
+		StringBuilder out = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			if(c == '\\' && i + 1 < value.length()){
+				char next = value.charAt(++i);
+				out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			}
+			else
+				out.append(c);
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Returns the ISBNs of every book this entry is about: the ISBNs listed by a BATCH_DELETE entry, or the
+	 * entry's ISBN otherwise.
+	 */
+	public List<String> getIsbns(){
+		if(BATCH_DELETE.equals(operation))
+			return oldValue == null ? Collections.<String>emptyList() : Arrays.asList(oldValue.split("::"));
+		return isbn == null ? Collections.<String>emptyList() : Collections.singletonList(isbn);
+	}
+	
+	/**
+	 * Returns whether this entry is about the book with the given ISBN.
+	 */
+	public boolean concerns(String isbnToFind){
+		if(BATCH_DELETE.equals(operation))
+			return getIsbns().contains(isbnToFind);
+		return isbnToFind.equals(isbn);
+	}
+	
+	// GETTERS
+	
+	public long getTimestamp(){
+		return timestamp;
+	}
+	
+	public String getOperation(){
+		return operation;
+	}
+	
+	public String getIsbn(){
+		return isbn;
+	}
+	
+	public String getColumn(){
+		return column;
+	}
+	
+	public String getOldValue(){
+		return oldValue;
+	}
+	
+	public String getNewValue(){
+		return newValue;
+	}
+}
@@ -0,0 +1,272 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Class that keeps a small index of the closed segments of an audit log, so that a lookup only reads the
+ * segments that can contain what it is looking for.
+ * 
+ * For each segment the index records the time of its first and last entries, its number of entries, and a
+ * Bloom filter of the ISBNs it contains. A Bloom filter can tell for certain that an ISBN is not in a segment,
+ * and only rarely claims that an ISBN is in a segment when it isn't. The filter is folded in half as long as it
+ * stays accurate before being stored, so small segments only take a few bytes in the index.
+ * 
+ * The index is a text file with one line per segment:
+ * "segment file	first time	last time	entries	filter (Base64)", and segments are only ever added to the end.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class AuditIndex {
+	
+	// Number of bits set per ISBN in a segment's filter
+	static final int HASHES = 5;
+	// A filter is folded while less than this fraction of its bits would be set, which keeps false positives under 1%
+	private static final double MAX_FOLDED_FILL = 0.35;
+	
+	private final Path indexFile;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	
+	/**
+	 * Constructor for AuditIndex. Reads the index file, if it exists.
+	 * 
+	 * @param nIndexFile : The index file
+	 * @throws IOException : if the index file could not be read
+	 */
+	public AuditIndex(Path nIndexFile) throws IOException {
+		indexFile = nIndexFile;
+		if(Files.exists(indexFile)){
+			try(BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)){
+				String line;
+				while((line = reader.readLine()) != null){
+					Segment segment = Segment.parse(line);
+					// A line that was only partly written when the application stopped is ignored
+					if(segment != null)
+						segments.add(segment);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a closed segment to the index, and appends it to the index file.
+	 * 
+	 * @param segment : The segment, whose file is already in place
+	 * @throws IOException : if the index file could not be written
+	 */
+	public synchronized void add(Segment segment) throws IOException {
+		segment.compact();
+		byte[] line = (segment.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+		try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+			ByteBuffer buffer = ByteBuffer.wrap(line);
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		}
+		segments.add(segment);
+	}
+	
+	/**
+	 * Returns the segments that may contain entries for the given ISBN within the given time range.
+	 * 
+	 * @param isbn : ISBN to look for, or null for entries of any ISBN
+	 * @param from : Start of the time range, in milliseconds since the epoch
+	 * @param to : End of the time range (inclusive), in milliseconds since the epoch
+	 * @return The segments to be read, oldest first
+	 */
+	public synchronized List<Segment> find(String isbn, long from, long to){
+		List<Segment> found = new ArrayList<Segment>();
+		for(Segment segment : segments){
+			if(segment.overlaps(from, to) && (isbn == null || segment.mayContain(isbn)))
+				found.add(segment);
+		}
+		return found;
+	}
+	
+	/**
+	 * Returns whether the index has a segment stored in the given file.
+	 */
+	public synchronized boolean contains(String fileName){
+		for(Segment segment : segments){
+			if(segment.getFileName().equals(fileName))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns every segment in the index, oldest first.
+	 */
+	public synchronized List<Segment> getSegments(){
+		return new ArrayList<Segment>(segments);
+	}
+	
+	/**
+	 * Returns a 64 bit hash of an ISBN, from which the bits of the Bloom filters are picked.
+	 */
+	static long hash(String isbn){
+		// FNV-1a, followed by a final mix so that every bit depends on every character
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < isbn.length(); i++){
+			h ^= isbn.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * Class that describes one segment of the audit log: its file, the time range of its entries, and a Bloom
+	 * filter of its ISBNs. The filter of the active segment is filled in as entries are written.
+	 */
+	static class Segment {
+		private volatile String fileName;
+		private long firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+		private long entries;
+		private volatile long[] filter; // the number of bits is always a power of two
+		
+		/**
+		 * Constructor for an empty Segment.
+		 * 
+		 * @param nFileName : Name of the segment's file, in the directory of the audit log
+		 * @param filterBits : Number of bits in the Bloom filter, rounded up to a power of two
+		 */
+		Segment(String nFileName, int filterBits){
+			fileName = nFileName;
+			int words = Integer.highestOneBit(Math.max(64, filterBits) - 1) * 2 / 64;
+			filter = new long[Math.max(1, words)];
+		}
+		
+		private Segment(String nFileName, long nFirstTime, long nLastTime, long nEntries, long[] nFilter){
+			fileName = nFileName;
+			firstTime = nFirstTime;
+			lastTime = nLastTime;
+			entries = nEntries;
+			filter = nFilter;
+		}
+		
+		/**
+		 * Records an entry written to this segment.
+		 */
+		void add(AuditEntry entry){
+			entries++;
+			firstTime = Math.min(firstTime, entry.getTimestamp());
+			lastTime = Math.max(lastTime, entry.getTimestamp());
+			// A batch entry is about several books, and is found through each of them
+			long[] filter = this.filter;
+			int mask = filter.length * 64 - 1;
+			for(String isbn : entry.getIsbns()){
+				long h = hash(isbn);
+				int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+				for(int i = 0; i < HASHES; i++){
+					int bit = (h1 + i * h2) & mask;
+					filter[bit >>> 6] |= 1L << bit;
+				}
+			}
+		}
+		
+		/**
+		 * Returns whether the segment may contain entries for the ISBN. False means it certainly doesn't.
+		 */
+		boolean mayContain(String isbn){
+			// Read once, as the filter may be folded by another thread
+			long[] filter = this.filter;
+			long h = hash(isbn);
+			int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+			int mask = filter.length * 64 - 1;
+			for(int i = 0; i < HASHES; i++){
+				int bit = (h1 + i * h2) & mask;
+				if((filter[bit >>> 6] & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Returns whether the segment has entries within the time range.
+		 */
+		boolean overlaps(long from, long to){
+			return entries > 0 && firstTime <= to && lastTime >= from;
+		}
+		
+		/**
+		 * Folds the filter in half for as long as it stays accurate. Since bits are picked with a mask, folding
+		 * a filter gives the same filter as if it had been half the size from the start.
+		 */
+		void compact(){
+			long[] filter = this.filter;
+			while(filter.length > 1){
+				int half = filter.length / 2;
+				long[] folded = new long[half];
+				long setBits = 0;
+				for(int i = 0; i < half; i++){
+					folded[i] = filter[i] | filter[i + half];
+					setBits += Long.bitCount(folded[i]);
+				}
+				if(setBits > MAX_FOLDED_FILL * half * 64)
+					break;
+				filter = folded;
+			}
+			this.filter = filter;
+		}
+		
+		String toLine(){
+			ByteBuffer bytes = ByteBuffer.allocate(filter.length * 8);
+			bytes.asLongBuffer().put(filter);
+			return fileName + "\t" + firstTime + "\t" + lastTime + "\t" + entries + "\t"
+					+ Base64.getEncoder().encodeToString(bytes.array());
+		}
+		
+		static Segment parse(String line){
+			String[] fields = line.split("\t");
+			if(fields.length != 5)
+				return null;
+			try{
+				byte[] bytes = Base64.getDecoder().decode(fields[4]);
+				if(bytes.length == 0 || bytes.length % 8 != 0 || Integer.bitCount(bytes.length / 8) != 1)
+					return null;
+				long[] filter = new long[bytes.length / 8];
+				ByteBuffer.wrap(bytes).asLongBuffer().get(filter);
+				return new Segment(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+						Long.parseLong(fields[3]), filter);
+			} catch (IllegalArgumentException e){
+				return null;
+			}
+		}
+		
+		// GETTERS
+		
+		String getFileName(){
+			return fileName;
+		}
+		
+		long getFirstTime(){
+			return firstTime;
+		}
+		
+		long getLastTime(){
+			return lastTime;
+		}
+		
+		long getEntries(){
+			return entries;
+		}
+		
+		// SETTERS
+		
+		void setFileName(String nFileName){
+			fileName = nFileName;
+		}
+	}
+}
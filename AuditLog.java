@@ -0,0 +1,563 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class that appends the record of each change made to the database (modified cells, added rows and deleted
+ * rows) to the output file, as structured AuditEntry lines.
+ * 
+ * Rather than opening the file for every change, each output file has one AuditLog that keeps the file open.
+ * Entries are put on a bounded queue and written by a background thread, which writes every entry waiting in
+ * the queue with a single write. The file is forced to disk once a number of entries have been written since
+ * the last time, or once some time has passed, whichever comes first. If the disk can't keep up and the queue
+ * fills, adding an entry waits until there is room for it.
+ * 
+ * The output file only holds the active segment of the log. Once it grows past a size, or its first entry is
+ * older than a time limit, it is closed and renamed (for example "outputFileBooks.txt.000001"), compressed in
+ * the background to "outputFileBooks.txt.000001.gz", and added to an AuditIndex stored in
+ * "outputFileBooks.txt.index". Lookups use the index to only read the segments that can contain what they are
+ * looking for.
+ * 
+ * The queue size, how often the file is forced to disk and when segments are closed can be changed with the
+ * "bookstore.audit.queueSize", "bookstore.audit.syncEveryRecords", "bookstore.audit.syncIntervalMillis",
+ * "bookstore.audit.maxSegmentBytes", "bookstore.audit.maxSegmentMillis" and "bookstore.audit.filterBits"
+ * system properties.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class AuditLog {
+	
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final long POLL_MILLIS = 100;
+	// Time taken to queue an entry, to write a batch of entries, and to force the file to disk
+	private static final Metrics.Histogram APPEND_TIME = Metrics.timer("audit.append"),
+			WRITE_TIME = Metrics.timer("audit.write"), SYNC_TIME = Metrics.timer("audit.sync");
+	// One log per output file, shared by everything that records changes to it
+	private static final Map<Path, AuditLog> LOGS = new HashMap<Path, AuditLog>();
+	private static boolean shutdownHookAdded;
+	
+	// Closed segments are compressed one at a time on a background thread shared by every log
+	private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "audit-log-compressor");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private final Path path, directory;
+	private final String baseName;
+	private final AuditIndex index;
+	private final BlockingQueue<AuditEntry> queue;
+	private final int syncEveryRecords, filterBits;
+	private final long syncIntervalMillis, maxSegmentBytes, maxSegmentMillis;
+	private final Thread flusher;
+	
+	// Guards the active segment's file while it is rotated or read by a lookup
+	private final Object segmentLock = new Object();
+	private FileChannel channel;
+	private AuditIndex.Segment activeSegment;
+	private long segmentBytes;
+	private int nextSegmentNumber;
+	// Closed segments that are waiting to be compressed and added to the index
+	private final List<AuditIndex.Segment> compressing = new CopyOnWriteArrayList<AuditIndex.Segment>();
+	
+	private final AtomicLong appended = new AtomicLong();
+	private final Object writtenLock = new Object();
+	private long written; // guarded by writtenLock
+	private volatile long writes, syncs, rotations; // only changed by the flusher thread
+	private volatile boolean closed;
+	
+	/**
+	 * Constructor for AuditLog. Opens the active segment for appending, finishes compressing any segments that
+	 * weren't compressed when the application last stopped, and starts the background thread.
+	 * 
+	 * @param nPath : Output file, which holds the active segment
+	 * @param queueSize : Number of entries that can wait to be written before adding an entry waits
+	 * @param nSyncEveryRecords : Number of entries written after which the file is forced to disk
+	 * @param nSyncIntervalMillis : Time after which written entries are forced to disk
+	 * @param nMaxSegmentBytes : Size after which the active segment is closed
+	 * @param nMaxSegmentMillis : Age of its first entry after which the active segment is closed
+	 * @param nFilterBits : Number of bits in the ISBN filter of each segment, before it is folded
+	 * @throws IOException : if the file could not be opened
+	 */
+	public AuditLog(Path nPath, int queueSize, int nSyncEveryRecords, long nSyncIntervalMillis,
+			long nMaxSegmentBytes, long nMaxSegmentMillis, int nFilterBits) throws IOException {
+		path = nPath;
+		directory = path.getParent();
+		baseName = path.getFileName().toString();
+		queue = new ArrayBlockingQueue<AuditEntry>(Math.max(1, queueSize));
+		syncEveryRecords = Math.max(1, nSyncEveryRecords);
+		syncIntervalMillis = Math.max(1, nSyncIntervalMillis);
+		maxSegmentBytes = Math.max(1, nMaxSegmentBytes);
+		maxSegmentMillis = Math.max(1, nMaxSegmentMillis);
+		filterBits = nFilterBits;
+		
+		index = new AuditIndex(directory.resolve(baseName + ".index"));
+		recoverSegments();
+		openActiveSegment();
+		
+		flusher = new Thread(new Runnable(){
+			public void run() {
+				runFlusher();
+			}
+		}, "audit-log-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Returns the log shared by everything that records changes to the given file, opening it the first time.
+	 * 
+	 * @param outputPath : The output file
+	 * @return The AuditLog of the file
+	 * @throws IOException : if the file could not be opened
+	 */
+	public static synchronized AuditLog forPath(Path outputPath) throws IOException {
+		Path key = outputPath.toAbsolutePath().normalize();
+		AuditLog log = LOGS.get(key);
+		if(log == null || log.closed){
+			log = new AuditLog(key,
+					Integer.getInteger("bookstore.audit.queueSize", 4096),
+					Integer.getInteger("bookstore.audit.syncEveryRecords", 256),
+					Long.getLong("bookstore.audit.syncIntervalMillis", 1000),
+					Long.getLong("bookstore.audit.maxSegmentBytes", 16L * 1024 * 1024),
+					Long.getLong("bookstore.audit.maxSegmentMillis", TimeUnit.DAYS.toMillis(1)),
+					Integer.getInteger("bookstore.audit.filterBits", 1 << 20));
+			LOGS.put(key, log);
+			
+			// Writes out the remaining entries when the application exits
+			if(!shutdownHookAdded){
+				shutdownHookAdded = true;
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+					public void run() {
+						closeAll();
+					}
+				}, "audit-log-shutdown"));
+			}
+		}
+		return log;
+	}
+	
+	/**
+	 * Closes every open log, writing out the entries still waiting in their queues.
+	 */
+	public static synchronized void closeAll(){
+		for(AuditLog log : LOGS.values())
+			log.close();
+		LOGS.clear();
+	}
+	
+	/**
+	 * Adds an entry to the log. The entry is written by the background thread, so this only waits if the queue
+	 * is full because the disk can't keep up.
+	 * 
+	 * @param entry : The entry to be added
+	 */
+	public void append(AuditEntry entry){
+		if(closed){
+			System.err.println("Audit log " + path + " is closed, change not recorded: " + entry);
+			return;
+		}
+		try{
+			long start = System.nanoTime();
+			queue.put(entry);
+			appended.incrementAndGet();
+			APPEND_TIME.recordSince(start);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			System.err.println("Interrupted, change not recorded: " + entry);
+		}
+	}
+	
+	/**
+	 * Waits until every entry added so far has been written, and then forces the file to disk.
+	 * 
+	 * @throws IOException : if the file could not be forced to disk
+	 */
+	public void flush() throws IOException {
+		long target = appended.get();
+		synchronized(writtenLock){
+			while(written < target && flusher.isAlive()){
+				try{
+					writtenLock.wait(100);
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		synchronized(segmentLock){
+			if(channel.isOpen())
+				channel.force(false);
+		}
+	}
+	
+	/**
+	 * Returns the entries for an ISBN within a time range, oldest first. Only the segments whose index entry
+	 * says they may contain the ISBN within that range are read.
+	 * 
+	 * @param isbn : ISBN to look for, or null for the entries of every ISBN
+	 * @param from : Start of the time range, in milliseconds since the epoch
+	 * @param to : End of the time range (inclusive), in milliseconds since the epoch
+	 * @return The matching entries
+	 * @throws IOException : if a segment could not be read
+	 */
+	public List<AuditEntry> find(String isbn, long from, long to) throws IOException {
+		flush();
+		List<AuditEntry> found = new ArrayList<AuditEntry>();
+		synchronized(segmentLock){
+			List<AuditIndex.Segment> segments = index.find(isbn, from, to);
+			// A segment that was indexed after the index was searched is read from the list of segments being
+			// compressed instead, and one that is in both is only read once
+			for(AuditIndex.Segment segment : compressing){
+				if(!segments.contains(segment) && segment.overlaps(from, to) && (isbn == null || segment.mayContain(isbn)))
+					segments.add(segment);
+			}
+			for(AuditIndex.Segment segment : segments)
+				readSegment(segment.getFileName(), isbn, from, to, found);
+			
+			if(activeSegment.overlaps(from, to) && (isbn == null || activeSegment.mayContain(isbn)))
+				readSegment(baseName, isbn, from, to, found);
+		}
+		return found;
+	}
+	
+	/**
+	 * Writes the entries still waiting in the queue, forces them to disk and closes the file. Entries added
+	 * afterwards are not recorded.
+	 */
+	public void close(){
+		if(closed)
+			return;
+		closed = true;
+		// The flusher isn't interrupted, as an interrupted write would close the file. It notices the flag within
+		// POLL_MILLIS instead.
+		try{
+			flusher.join(5000);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Loop of the background thread. Waits for entries, writes every waiting entry at once, forces the file to
+	 * disk according to the configured limits, and closes the active segment once it is full or old enough.
+	 */
+	private void runFlusher(){
+		List<AuditEntry> batch = new ArrayList<AuditEntry>();
+		StringBuilder text = new StringBuilder(8192);
+		long unsynced = 0;
+		long lastSync = System.currentTimeMillis();
+		
+		try{
+			while(true){
+				AuditEntry first = null;
+				if(!closed){
+					try{
+						first = queue.poll(Math.min(syncIntervalMillis, POLL_MILLIS), TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e){
+						// Nothing interrupts the flusher, the remaining entries are written below
+					}
+				}
+				if(first != null)
+					batch.add(first);
+				queue.drainTo(batch);
+				
+				if(!batch.isEmpty()){
+					text.setLength(0);
+					for(AuditEntry entry : batch){
+						entry.format(text);
+						text.append(LINE_SEPARATOR);
+					}
+					synchronized(segmentLock){
+						write(text);
+						for(AuditEntry entry : batch)
+							activeSegment.add(entry);
+					}
+					unsynced += batch.size();
+					synchronized(writtenLock){
+						written += batch.size();
+						writtenLock.notifyAll();
+					}
+					batch.clear();
+				}
+				
+				long now = System.currentTimeMillis();
+				if(unsynced > 0 && (unsynced >= syncEveryRecords || now - lastSync >= syncIntervalMillis || closed)){
+					sync();
+					unsynced = 0;
+					lastSync = now;
+				}
+				
+				if(activeSegment.getEntries() > 0 && (segmentBytes >= maxSegmentBytes
+						|| now - activeSegment.getFirstTime() >= maxSegmentMillis))
+					rotate();
+				
+				if(closed && queue.isEmpty())
+					break;
+			}
+		} finally {
+			synchronized(segmentLock){
+				try{
+					channel.close();
+				} catch (IOException e){
+					e.printStackTrace();
+				}
+			}
+			synchronized(writtenLock){
+				writtenLock.notifyAll();
+			}
+		}
+	}
+	
+	private void write(CharSequence text){
+		try{
+			long start = System.nanoTime();
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+			segmentBytes += bytes.remaining();
+			while(bytes.hasRemaining())
+				channel.write(bytes);
+			writes++;
+			WRITE_TIME.recordSince(start);
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+	
+	private void sync(){
+		try{
+			long start = System.nanoTime();
+			synchronized(segmentLock){
+				channel.force(false);
+			}
+			syncs++;
+			SYNC_TIME.recordSince(start);
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Closes the active segment, renames its file, and starts a new active segment. The closed segment is
+	 * compressed and added to the index in the background.
+	 */
+	private void rotate(){
+		final AuditIndex.Segment closedSegment;
+		final Path closedFile;
+		synchronized(segmentLock){
+			try{
+				channel.force(false);
+				channel.close();
+				closedFile = directory.resolve(String.format("%s.%06d", baseName, nextSegmentNumber++));
+				Files.move(path, closedFile, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e){
+				// Keeps writing to the same segment, the rotation is tried again after the next write
+				e.printStackTrace();
+				reopenQuietly();
+				return;
+			}
+			closedSegment = activeSegment;
+			closedSegment.setFileName(closedFile.getFileName().toString());
+			compressing.add(closedSegment);
+			reopenQuietly();
+			activeSegment = new AuditIndex.Segment(baseName, filterBits);
+			segmentBytes = 0;
+		}
+		rotations++;
+		
+		COMPRESSOR.execute(new Runnable(){
+			public void run() {
+				compress(closedSegment, closedFile);
+			}
+		});
+	}
+	
+	private void reopenQuietly(){
+		try{
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			segmentBytes = channel.size();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Compresses a closed segment, then adds it to the index and deletes the uncompressed file. Runs on the
+	 * compressor thread.
+	 */
+	private void compress(AuditIndex.Segment segment, Path file){
+		Path compressed = directory.resolve(file.getFileName() + ".gz");
+		Path partial = directory.resolve(file.getFileName() + ".gz.tmp");
+		try{
+			try(InputStream in = Files.newInputStream(file);
+					OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial), 65536)){
+				byte[] buffer = new byte[65536];
+				int read;
+				while((read = in.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+			}
+			try(FileChannel written = FileChannel.open(partial, StandardOpenOption.WRITE)){
+				written.force(true);
+			}
+			Files.move(partial, compressed, StandardCopyOption.ATOMIC_MOVE);
+			
+			segment.setFileName(compressed.getFileName().toString());
+			index.add(segment);
+			compressing.remove(segment);
+			Files.delete(file);
+		} catch (IOException e){
+			// The uncompressed file is kept, and compressed again the next time the log is opened
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Finds the number of the next segment, and compresses segments that were closed but not yet compressed
+	 * when the application last stopped.
+	 */
+	private void recoverSegments() throws IOException {
+		String prefix = baseName + ".";
+		List<Path> uncompressed = new ArrayList<Path>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, baseName + ".*")){
+			for(Path file : files){
+				String name = file.getFileName().toString();
+				String suffix = name.substring(prefix.length());
+				String digits = suffix.endsWith(".gz") ? suffix.substring(0, suffix.length() - 3) : suffix;
+				if(suffix.endsWith(".gz.tmp")){
+					Files.delete(file);
+					continue;
+				}
+				if(digits.isEmpty() || !digits.matches("\\d+"))
+					continue;
+				nextSegmentNumber = Math.max(nextSegmentNumber, Integer.parseInt(digits) + 1);
+				if(!suffix.endsWith(".gz"))
+					uncompressed.add(file);
+			}
+		}
+		
+		for(Path file : uncompressed){
+			if(index.contains(file.getFileName() + ".gz")){
+				// Stopped after the segment was indexed, but before its uncompressed file was deleted
+				Files.delete(file);
+				continue;
+			}
+			AuditIndex.Segment segment = new AuditIndex.Segment(file.getFileName().toString(), filterBits);
+			scanSegment(file, segment);
+			compress(segment, file);
+		}
+	}
+	
+	/**
+	 * Opens the active segment, rebuilding its time range and ISBN filter from the entries it already holds.
+	 */
+	private void openActiveSegment() throws IOException {
+		activeSegment = new AuditIndex.Segment(baseName, filterBits);
+		if(Files.exists(path))
+			scanSegment(path, activeSegment);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segmentBytes = channel.size();
+	}
+	
+	private static void scanSegment(Path file, AuditIndex.Segment segment) throws IOException {
+		try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+			String line;
+			while((line = reader.readLine()) != null){
+				// Lines written before the log was structured are skipped
+				AuditEntry entry = AuditEntry.parse(line);
+				if(entry != null)
+					segment.add(entry);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the matching entries of one segment, which is compressed if its file name ends with ".gz".
+	 */
+	private void readSegment(String fileName, String isbn, long from, long to, List<AuditEntry> found) throws IOException {
+		Path file = directory.resolve(fileName);
+		InputStream in;
+		try{
+			in = Files.newInputStream(file);
+		} catch (NoSuchFileException e){
+			// The segment was compressed while this lookup was running
+			if(fileName.endsWith(".gz"))
+				throw e;
+			file = directory.resolve(fileName + ".gz");
+			in = Files.newInputStream(file);
+		}
+		if(file.getFileName().toString().endsWith(".gz"))
+			in = new GZIPInputStream(in, 65536);
+		
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536)){
+			String line;
+			while((line = reader.readLine()) != null){
+				// Only lines mentioning the ISBN are parsed
+				if(isbn != null && !line.contains(isbn))
+					continue;
+				AuditEntry entry = AuditEntry.parse(line);
+				if(entry != null && entry.getTimestamp() >= from && entry.getTimestamp() <= to
+						&& (isbn == null || entry.concerns(isbn)))
+					found.add(entry);
+			}
+		}
+	}
+	
+	// GETTERS
+	
+	public Path getPath(){
+		return path;
+	}
+	
+	public AuditIndex getIndex(){
+		return index;
+	}
+	
+	public long getAppended(){
+		return appended.get();
+	}
+	
+	public long getWritten(){
+		synchronized(writtenLock){
+			return written;
+		}
+	}
+	
+	public long getWrites(){
+		return writes;
+	}
+	
+	public long getSyncs(){
+		return syncs;
+	}
+	
+	public long getRotations(){
+		return rotations;
+	}
+}
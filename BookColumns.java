@@ -0,0 +1,292 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Class that stores rows of BOOKSTORE.BOOKS column by column, which is how the table models keep the rows
+ * they display once they've been read from the database.
+ * 
+ * Each column is kept in its own array. The numeric columns use primitive arrays (int[] for YEAR_PUBLISHED,
+ * PAGES, CUR_STOCK and AMOUNT_SOLD, long[] for the PRICE in cents, and int[] for LAST_SHIP_RECEIVED as an epoch
+ * day), so a row costs a few bytes per number rather than a boxed object per cell like a ResultSet row does.
+ * 
+ * The text displayed for a numeric cell is created the first time the cell is displayed, and then kept, so
+ * repainting the JTable doesn't create any new objects.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BookColumns {
+	
+	// Column numbers, in table order
+	static final int ISBN = 0, BOOK_NAME = 1, YEAR_PUBLISHED = 2, AUTHOR = 3, PAGES = 4,
+			CUR_STOCK = 5, PRICE = 6, AMOUNT_SOLD = 7, LAST_SHIP_RECEIVED = 8;
+	static final int COLUMN_COUNT = 9;
+	
+	// Time taken to copy the rows of a ResultSet into a new BookColumns, the rows of a new table model
+	private static final Metrics.Histogram BUILD_TIME = Metrics.timer("tableModel.build");
+	
+	private int size;
+	private String[] isbn, bookName, author;
+	private int[] yearPublished, pages, curStock, amountSold, lastShipEpochDay;
+	private long[] priceCents;
+	// Text of the numeric cells that have been displayed, one array per column, created on first use
+	private final String[][] rendered = new String[COLUMN_COUNT][];
+	
+	/**
+	 * Constructor for BookColumns.
+	 * 
+	 * @param capacity : Number of rows to make room for, more room is made as rows are added
+	 */
+	public BookColumns(int capacity){
+		capacity = Math.max(capacity, 4);
+		isbn = new String[capacity];
+		bookName = new String[capacity];
+		author = new String[capacity];
+		yearPublished = new int[capacity];
+		pages = new int[capacity];
+		curStock = new int[capacity];
+		amountSold = new int[capacity];
+		lastShipEpochDay = new int[capacity];
+		priceCents = new long[capacity];
+	}
+	
+	/**
+	 * Reads every remaining row of a ResultSet over BOOKSTORE.BOOKS into a new BookColumns.
+	 * 
+	 * @param rs : ResultSet to be read, positioned before the first row to be read
+	 * @return The rows of the ResultSet
+	 * @throws SQLException
+	 */
+	public static BookColumns fromResultSet(ResultSet rs) throws SQLException {
+		long start = System.nanoTime();
+		BookColumns columns = new BookColumns(64);
+		while(rs.next())
+			columns.add(rs);
+		BUILD_TIME.recordSince(start);
+		return columns;
+	}
+	
+	/**
+	 * Adds the current row of a ResultSet over BOOKSTORE.BOOKS, reading each column straight into its array.
+	 * 
+	 * @param rs : ResultSet positioned on a row
+	 * @throws SQLException
+	 */
+	public void add(ResultSet rs) throws SQLException {
+		ensureCapacity(size + 1);
+		int row = size++;
+		isbn[row] = rs.getString("ISBN");
+		bookName[row] = rs.getString("BOOK_NAME");
+		yearPublished[row] = rs.getInt("YEAR_PUBLISHED");
+		author[row] = rs.getString("AUTHOR");
+		pages[row] = rs.getInt("PAGES");
+		curStock[row] = rs.getInt("CUR_STOCK");
+		priceCents[row] = BookRecord.toCents(rs.getBigDecimal("PRICE"));
+		amountSold[row] = rs.getInt("AMOUNT_SOLD");
+		lastShipEpochDay[row] = (int) rs.getDate("LAST_SHIP_RECEIVED").toLocalDate().toEpochDay();
+	}
+	
+	/**
+	 * Adds a book as a new row.
+	 * 
+	 * @param record : The book to be added
+	 */
+	public void add(BookRecord record){
+		ensureCapacity(size + 1);
+		set(size++, record);
+	}
+	
+	/**
+	 * Adds a copy of a row of another BookColumns, without creating a BookRecord for it.
+	 * 
+	 * @param source : Where the row is copied from
+	 * @param row : Row of the source to be copied, starting from zero
+	 */
+	public void add(BookColumns source, int row){
+		ensureCapacity(size + 1);
+		int copy = size++;
+		isbn[copy] = source.isbn[row];
+		bookName[copy] = source.bookName[row];
+		yearPublished[copy] = source.yearPublished[row];
+		author[copy] = source.author[row];
+		pages[copy] = source.pages[row];
+		curStock[copy] = source.curStock[row];
+		priceCents[copy] = source.priceCents[row];
+		amountSold[copy] = source.amountSold[row];
+		lastShipEpochDay[copy] = source.lastShipEpochDay[row];
+	}
+	
+	/**
+	 * Replaces the values of a row with those of the given book.
+	 * 
+	 * @param row : Row to be replaced, starting from zero
+	 * @param record : The book's new values
+	 */
+	public void set(int row, BookRecord record){
+		isbn[row] = record.getIsbn();
+		bookName[row] = record.getBookName();
+		yearPublished[row] = record.getYearPublished();
+		author[row] = record.getAuthor();
+		pages[row] = record.getPages();
+		curStock[row] = record.getCurStock();
+		priceCents[row] = record.getPriceCents();
+		amountSold[row] = record.getAmountSold();
+		lastShipEpochDay[row] = record.getLastShipEpochDay();
+		
+		// The row's displayed text is out of date
+		for(String[] text : rendered){
+			if(text != null && row < text.length)
+				text[row] = null;
+		}
+	}
+	
+	/**
+	 * Removes a row, moving the rows after it up by one.
+	 * 
+	 * @param row : Row to be removed, starting from zero
+	 */
+	public void remove(int row){
+		int moved = size - row - 1;
+		System.arraycopy(isbn, row + 1, isbn, row, moved);
+		System.arraycopy(bookName, row + 1, bookName, row, moved);
+		System.arraycopy(yearPublished, row + 1, yearPublished, row, moved);
+		System.arraycopy(author, row + 1, author, row, moved);
+		System.arraycopy(pages, row + 1, pages, row, moved);
+		System.arraycopy(curStock, row + 1, curStock, row, moved);
+		System.arraycopy(priceCents, row + 1, priceCents, row, moved);
+		System.arraycopy(amountSold, row + 1, amountSold, row, moved);
+		System.arraycopy(lastShipEpochDay, row + 1, lastShipEpochDay, row, moved);
+		for(String[] text : rendered){
+			if(text != null && row < text.length){
+				System.arraycopy(text, row + 1, text, row, text.length - row - 1);
+				text[text.length - 1] = null;
+			}
+		}
+		size--;
+		isbn[size] = bookName[size] = author[size] = null;
+	}
+	
+	/**
+	 * Returns the text displayed for a cell, the same text the JDBC driver gives for the column (for example
+	 * "19.99" for a price and "2015-12-12" for a date). The text of numeric cells is only created once.
+	 * 
+	 * @param row : Row of the cell, starting from zero
+	 * @param col : Column of the cell, starting from zero
+	 * @return The text of the cell
+	 */
+	public String getText(int row, int col){
+		switch(col){
+		case ISBN: return isbn[row];
+		case BOOK_NAME: return bookName[row];
+		case AUTHOR: return author[row];
+		}
+		
+		String[] text = rendered[col];
+		if(text == null || text.length <= row){
+			text = text == null ? new String[size] : Arrays.copyOf(text, Math.max(size, text.length * 2));
+			rendered[col] = text;
+		}
+		String value = text[row];
+		if(value == null){
+			value = render(row, col);
+			text[row] = value;
+		}
+		return value;
+	}
+	
+	private String render(int row, int col){
+		switch(col){
+		case YEAR_PUBLISHED: return Integer.toString(yearPublished[row]);
+		case PAGES: return Integer.toString(pages[row]);
+		case CUR_STOCK: return Integer.toString(curStock[row]);
+		case PRICE: return BookRecord.formatCents(priceCents[row]);
+		case AMOUNT_SOLD: return Integer.toString(amountSold[row]);
+		case LAST_SHIP_RECEIVED: return LocalDate.ofEpochDay(lastShipEpochDay[row]).toString();
+		default: return null;
+		}
+	}
+	
+	/**
+	 * Returns the values of a row as a BookRecord.
+	 * 
+	 * @param row : Row to be returned, starting from zero
+	 * @return The book at the given row
+	 */
+	public BookRecord getRecord(int row){
+		return new BookRecord(isbn[row], bookName[row], yearPublished[row], author[row], pages[row],
+				curStock[row], priceCents[row], amountSold[row], lastShipEpochDay[row]);
+	}
+	
+	/**
+	 * Returns the row of the book with the given ISBN, or -1 if it isn't one of the rows.
+	 * 
+	 * @param isbnToFind : ISBN of the book
+	 * @return The row of the book, starting from zero
+	 */
+	public int indexOfIsbn(String isbnToFind){
+		for(int row = 0; row < size; row++){
+			if(isbn[row].equals(isbnToFind))
+				return row;
+		}
+		return -1;
+	}
+	
+	private void ensureCapacity(int capacity){
+		if(capacity <= isbn.length)
+			return;
+		int newCapacity = Math.max(capacity, isbn.length * 2);
+		isbn = Arrays.copyOf(isbn, newCapacity);
+		bookName = Arrays.copyOf(bookName, newCapacity);
+		author = Arrays.copyOf(author, newCapacity);
+		yearPublished = Arrays.copyOf(yearPublished, newCapacity);
+		pages = Arrays.copyOf(pages, newCapacity);
+		curStock = Arrays.copyOf(curStock, newCapacity);
+		amountSold = Arrays.copyOf(amountSold, newCapacity);
+		lastShipEpochDay = Arrays.copyOf(lastShipEpochDay, newCapacity);
+		priceCents = Arrays.copyOf(priceCents, newCapacity);
+	}
+	
+	// GETTERS
+	
+	public int size(){
+		return size;
+	}
+	
+	public String getIsbn(int row){
+		return isbn[row];
+	}
+	
+	public String getBookName(int row){
+		return bookName[row];
+	}
+	
+	public String getAuthor(int row){
+		return author[row];
+	}
+	
+	public int getYearPublished(int row){
+		return yearPublished[row];
+	}
+	
+	public int getPages(int row){
+		return pages[row];
+	}
+	
+	public int getCurStock(int row){
+		return curStock[row];
+	}
+	
+	public long getPriceCents(int row){
+		return priceCents[row];
+	}
+	
+	public int getAmountSold(int row){
+		return amountSold[row];
+	}
+	
+	public int getLastShipEpochDay(int row){
+		return lastShipEpochDay[row];
+	}
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+
+/**
+ * Class that exports every book to a file (or any other channel) as CSV, JSON lines, or the "::" input file
+ * format, using the same amount of memory whatever the size of the table.
+ * 
+ * The rows are read with a scan of the BookRepository, which in MySQL streams them from the server one at a
+ * time (through a ResultSet with a fetch size of Integer.MIN_VALUE) instead of reading every row into the heap
+ * first. Each row is formatted into a reused StringBuilder, encoded as UTF-8 into a direct ByteBuffer, and the
+ * buffer is written to the channel whenever it fills up. So the memory used is one row and one buffer.
+ * 
+ * The rows are exported in ISBN order, which MySQL reads straight from the primary key.
+ * 
+ * The buffer size can be changed with the "bookstore.export.bufferSize" system property (default 1 MB).
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BookExporter {
+	
+	/**
+	 * The formats a book can be exported in.
+	 */
+	public enum Format {
+		/** Comma separated values, with a header row of column names */
+		CSV,
+		/** One JSON object per line, see BookRecord.toJson */
+		JSON_LINES,
+		/** The "::" delimited format of the input file, which can be imported again */
+		LINES;
+		
+		/**
+		 * Returns the format a file's name suggests: CSV for ".csv", JSON lines for ".jsonl" or ".json", and the
+		 * input file format otherwise.
+		 * 
+		 * @param file : The file to be exported to
+		 */
+		public static Format forFile(Path file){
+			String name = file.getFileName().toString().toLowerCase();
+			if(name.endsWith(".csv"))
+				return CSV;
+			if(name.endsWith(".jsonl") || name.endsWith(".json"))
+				return JSON_LINES;
+			return LINES;
+		}
+		
+		/**
+		 * Returns the format with the given name ("csv", "jsonl" or "lines"), ignoring case.
+		 * 
+		 * @param name : Name of the format
+		 * @throws IllegalArgumentException : if there is no such format
+		 */
+		public static Format forName(String name){
+			if(name.equalsIgnoreCase("csv"))
+				return CSV;
+			if(name.equalsIgnoreCase("jsonl") || name.equalsIgnoreCase("json"))
+				return JSON_LINES;
+			if(name.equalsIgnoreCase("lines"))
+				return LINES;
+			throw new IllegalArgumentException("Unknown export format \"" + name + "\", use csv, jsonl or lines");
+		}
+	}
+	
+	private final ConnectionPool pool;
+	private final Format format;
+	private final ByteBuffer buffer;
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final StringBuilder line = new StringBuilder(256);
+	private char[] chars = new char[256];
+	private WritableByteChannel channel;
+	private long rows, bytes, elapsedNanos;
+	
+	/**
+	 * Constructor for BookExporter.
+	 * 
+	 * @param nPool : Connection pool from which the export borrows its connection, when the books are kept in MySQL
+	 * @param nFormat : Format the books are written in
+	 */
+	public BookExporter(ConnectionPool nPool, Format nFormat){
+		this(nPool, nFormat, Integer.getInteger("bookstore.export.bufferSize", 1 << 20));
+	}
+	
+	/**
+	 * Constructor for BookExporter.
+	 * 
+	 * @param nPool : Connection pool from which the export borrows its connection, when the books are kept in MySQL
+	 * @param nFormat : Format the books are written in
+	 * @param bufferSize : Number of bytes written to the channel at a time
+	 */
+	public BookExporter(ConnectionPool nPool, Format nFormat, int bufferSize){
+		pool = nPool;
+		format = nFormat;
+		buffer = ByteBuffer.allocateDirect(Math.max(1024, bufferSize));
+	}
+	
+	/**
+	 * Exports every book to a file, replacing the file if it already exists.
+	 * 
+	 * @param file : File to be written
+	 * @return The number of books exported
+	 * @throws SQLException : if the books could not be read
+	 * @throws IOException : if the file could not be written
+	 */
+	public long export(Path file) throws SQLException, IOException {
+		try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+			return export(fileChannel);
+		}
+	}
+	
+	/**
+	 * Exports every book to a channel, which is left open.
+	 * 
+	 * @param nChannel : Channel the books are written to
+	 * @return The number of books exported
+	 * @throws SQLException : if the books could not be read
+	 * @throws IOException : if the channel could not be written
+	 */
+	public long export(WritableByteChannel nChannel) throws SQLException, IOException {
+		long start = System.nanoTime();
+		channel = nChannel;
+		rows = bytes = 0;
+		buffer.clear();
+		encoder.reset();
+		
+		if(format == Format.CSV){
+			for(int col = 0; col < BooksTableModel.COLUMN_NAMES.length; col++)
+				line.append(col > 0 ? "," : "").append(BooksTableModel.COLUMN_NAMES[col]);
+			writeLine();
+		}
+		
+		BookRepository.getRepository(pool).scan(new BookRepository.Visitor(){
+			public void visit(BookRecord book) throws IOException {
+				if(format == Format.CSV)
+					appendCsv(book);
+				else if(format == Format.JSON_LINES)
+					book.appendJson(line);
+				else
+					book.appendLine(line);
+				writeLine();
+				rows++;
+			}
+		});
+		
+		encoder.encode(CharBuffer.allocate(0), buffer, true);
+		encoder.flush(buffer);
+		drain();
+		channel = null;
+		elapsedNanos = System.nanoTime() - start;
+		return rows;
+	}
+	
+	private void appendCsv(BookRecord book){
+		for(int col = 0; col < BooksTableModel.COLUMN_NAMES.length; col++){
+			if(col > 0)
+				line.append(',');
+			String text = book.getColumnText(col);
+			//Only text that contains a separator, a quote or a line break needs quotes, with its quotes doubled
+			boolean quote = false;
+			for(int i = 0; i < text.length() && !quote; i++){
+				char c = text.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if(quote)
+				line.append('"').append(text.replace("\"", "\"\"")).append('"');
+			else
+				line.append(text);
+		}
+	}
+	
+	/**
+	 * Ends the line being built, encodes it into the buffer, and empties the StringBuilder for the next one.
+	 */
+	private void writeLine() throws IOException {
+		line.append('\n');
+		int length = line.length();
+		if(chars.length < length)
+			chars = new char[Math.max(length, chars.length * 2)];
+		line.getChars(0, length, chars, 0);
+		line.setLength(0);
+		
+		CharBuffer text = CharBuffer.wrap(chars, 0, length);
+		while(true){
+			CoderResult result = encoder.encode(text, buffer, false);
+			if(result.isUnderflow())
+				break;
+			if(result.isOverflow())
+				drain();
+			else
+				result.throwException();
+		}
+	}
+	
+	/**
+	 * Writes the contents of the buffer to the channel, and empties it.
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			bytes += channel.write(buffer);
+		buffer.clear();
+	}
+	
+	/**
+	 * Returns a one line summary of the last export: the number of books and bytes written, and how many of
+	 * each were written per second.
+	 */
+	public String getSummary(){
+		double seconds = elapsedNanos / 1e9;
+		return String.format("Exported %d books (%.1f MB) in %.2f s: %.0f rows/sec, %.1f MB/sec.", rows, bytes / 1048576.0,
+				seconds, seconds > 0 ? rows / seconds : 0, seconds > 0 ? bytes / 1048576.0 / seconds : 0);
+	}
+	
+	// GETTERS
+	
+	public long getRows(){
+		return rows;
+	}
+	
+	public long getBytes(){
+		return bytes;
+	}
+	
+	public long getElapsedMillis(){
+		return elapsedNanos / 1000000;
+	}
+}
@@ -0,0 +1,436 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class that parses input files in the "::" delimited book format, for example:
+ * 
+ * 1111111111111::test1::2000::Aaron Doe::300::1::19.99::32::2015/12/12
+ * 
+ * The file is split into chunks that end on line boundaries. Each chunk is memory-mapped and parsed on a
+ * ForkJoinPool, so large files are parsed on every core at once. The parsed books are still handed to the
+ * Handler one chunk at a time in file order, and only a few chunks are parsed ahead of the Handler, so memory
+ * use doesn't grow with the size of the file.
+ * 
+ * Fields are split on the two character "::" delimiter (a single ":" inside a title is kept as part of the title),
+ * and the numbers, price and date are parsed straight from the mapped bytes into a BookRecord. Lines that can't
+ * be parsed are passed to the Handler as rejects instead of stopping the parse. Blank lines are skipped.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BookFileParser {
+	
+	static final int FIELDS = 9;
+	static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	
+	/**
+	 * Receives the results of a parse, in file order.
+	 */
+	public interface Handler {
+		/**
+		 * Called for every line that was parsed into a book.
+		 * @param record : The parsed book
+		 * @param lineNumber : Line of the file the book came from, starting from one
+		 */
+		void record(BookRecord record, int lineNumber) throws SQLException;
+		
+		/**
+		 * Called for every line that couldn't be parsed.
+		 * @param lineNumber : Line of the file, starting from one
+		 * @param isbn : The first field of the line, which should have been the ISBN
+		 * @param reason : Why the line couldn't be parsed
+		 */
+		void reject(int lineNumber, String isbn, String reason) throws SQLException;
+	}
+	
+	private final ForkJoinPool forkJoinPool;
+	private final int chunkSize;
+	
+	/**
+	 * Constructor for a BookFileParser that parses on the common ForkJoinPool.
+	 */
+	public BookFileParser(){
+		this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Constructor for BookFileParser.
+	 * 
+	 * @param nForkJoinPool : Pool on which the chunks are parsed
+	 * @param nChunkSize : Approximate size, in bytes, of each chunk
+	 */
+	public BookFileParser(ForkJoinPool nForkJoinPool, int nChunkSize){
+		forkJoinPool = nForkJoinPool;
+		chunkSize = Math.max(1024, nChunkSize);
+	}
+	
+	/**
+	 * Parses a file, handing every book and every rejected line to the handler.
+	 * 
+	 * @param file : File to be parsed
+	 * @param handler : Receives the parsed books and rejected lines
+	 * @return The number of lines in the file
+	 * @throws IOException : if the file can't be read
+	 * @throws SQLException : if the handler fails
+	 */
+	public long parse(Path file, Handler handler) throws IOException, SQLException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			long size = channel.size();
+			
+			// Only a few chunks are parsed ahead of the handler
+			int window = Math.max(2, forkJoinPool.getParallelism() * 2);
+			ArrayDeque<ForkJoinTask<ChunkResult>> inFlight = new ArrayDeque<ForkJoinTask<ChunkResult>>();
+			long nextChunkStart = 0;
+			int linesBefore = 0;
+			
+			while(nextChunkStart < size || !inFlight.isEmpty()){
+				// Keeps the window full
+				while(nextChunkStart < size && inFlight.size() < window){
+					long end = chunkEnd(channel, nextChunkStart, size);
+					inFlight.add(forkJoinPool.submit(new ChunkTask(channel, nextChunkStart, end)));
+					nextChunkStart = end;
+				}
+				
+				ChunkResult result = join(inFlight.poll());
+				for(int i = 0; i < result.records.size(); i++)
+					handler.record(result.records.get(i), linesBefore + result.recordLines[i]);
+				for(Reject reject : result.rejects)
+					handler.reject(linesBefore + reject.line, reject.isbn, reject.reason);
+				linesBefore += result.lineCount;
+			}
+			return linesBefore;
+		}
+	}
+	
+	/**
+	 * Waits for a chunk to be parsed, turning a failure inside the task back into an IOException.
+	 */
+	private static ChunkResult join(ForkJoinTask<ChunkResult> task) throws IOException {
+		try{
+			return task.join();
+		} catch (UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Finds where the chunk starting at the given position should end: the start of the first line
+	 * that begins at or after start + chunkSize.
+	 */
+	private long chunkEnd(FileChannel channel, long start, long size) throws IOException {
+		long position = Math.min(Math.min(start + chunkSize, size), start + Integer.MAX_VALUE - 1);
+		if(position >= size)
+			return size;
+		
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		position--; // The chunk can end right after a newline that is its last byte
+		while(position < size){
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if(read <= 0)
+				break;
+			for(int i = 0; i < read; i++){
+				if(buffer.get(i) == '\n')
+					return position + i + 1;
+			}
+			position += read;
+		}
+		return size;
+	}
+	
+	/**
+	 * Task that maps one chunk of the file and parses every line in it.
+	 */
+	private static class ChunkTask extends RecursiveTask<ChunkResult> {
+		private static final long serialVersionUID = 1L;
+		
+		private final transient FileChannel channel;
+		private final long start, end;
+		
+		ChunkTask(FileChannel nChannel, long nStart, long nEnd){
+			channel = nChannel;
+			start = nStart;
+			end = nEnd;
+		}
+		
+		@Override
+		protected ChunkResult compute() {
+			MappedByteBuffer buffer;
+			try{
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			} catch (IOException e){
+				throw new UncheckedIOException(e);
+			}
+			return parseChunk(buffer);
+		}
+	}
+	
+	/**
+	 * Parses every line in a chunk.
+	 */
+	static ChunkResult parseChunk(ByteBuffer buffer){
+		ChunkResult result = new ChunkResult();
+		FieldSplitter splitter = new FieldSplitter(buffer);
+		int[] lines = new int[1024];
+		int limit = buffer.limit();
+		int position = 0;
+		int line = 0;
+		
+		while(position < limit){
+			// Finds the end of the line
+			int lineEnd = position;
+			while(lineEnd < limit && buffer.get(lineEnd) != '\n')
+				lineEnd++;
+			int next = lineEnd + 1;
+			if(lineEnd > position && buffer.get(lineEnd - 1) == '\r')
+				lineEnd--;
+			line++;
+			
+			if(!splitter.isBlank(position, lineEnd)){
+				try{
+					BookRecord record = splitter.parse(position, lineEnd);
+					if(result.records.size() == lines.length)
+						lines = Arrays.copyOf(lines, lines.length * 2);
+					lines[result.records.size()] = line;
+					result.records.add(record);
+				} catch (IllegalArgumentException e){
+					result.rejects.add(new Reject(line, splitter.firstField(position, lineEnd), e.getMessage()));
+				}
+			}
+			position = next;
+		}
+		
+		result.lineCount = line;
+		result.recordLines = lines;
+		return result;
+	}
+	
+	/**
+	 * Splits a line on the "::" delimiter and parses its fields straight from the buffer. Reuses the same
+	 * arrays for every line, so the only objects created per line are the three Strings and the BookRecord.
+	 */
+	static class FieldSplitter {
+		private final ByteBuffer buffer;
+		// Second view of the buffer, used to bulk copy the text fields without moving the position of the first
+		private final ByteBuffer textView;
+		private final int[] fieldStart = new int[FIELDS];
+		private final int[] fieldEnd = new int[FIELDS];
+		private final int[] dateParts = new int[3];
+		private byte[] text = new byte[256];
+		
+		FieldSplitter(ByteBuffer nBuffer){
+			buffer = nBuffer;
+			textView = nBuffer.duplicate();
+		}
+		
+		/**
+		 * Parses the line between start (inclusive) and end (exclusive) into a BookRecord.
+		 * @throws IllegalArgumentException : if the line is not in the expected format
+		 */
+		BookRecord parse(int start, int end){
+			int fields = split(start, end);
+			if(fields != FIELDS)
+				throw new IllegalArgumentException("Expected " + FIELDS + " fields separated by \"::\" but found " + fields);
+			
+			return new BookRecord(
+					string(0),
+					string(1),
+					integer(2, "YEAR_PUBLISHED"),
+					string(3),
+					integer(4, "PAGES"),
+					integer(5, "CUR_STOCK"),
+					price(6),
+					integer(7, "AMOUNT_SOLD"),
+					date(8));
+		}
+		
+		/**
+		 * Records where each field starts and ends. Returns the number of fields found, which is more
+		 * than FIELDS if the line has too many.
+		 */
+		int split(int start, int end){
+			int fields = 0;
+			int fieldBegin = start;
+			int i = start;
+			while(i < end){
+				if(buffer.get(i) == ':' && i + 1 < end && buffer.get(i + 1) == ':'){
+					if(fields == FIELDS)
+						return fields + 1;
+					fieldStart[fields] = fieldBegin;
+					fieldEnd[fields] = i;
+					fields++;
+					i += 2;
+					fieldBegin = i;
+				}
+				else{
+					i++;
+				}
+			}
+			if(fields == FIELDS)
+				return fields + 1;
+			fieldStart[fields] = fieldBegin;
+			fieldEnd[fields] = end;
+			return fields + 1;
+		}
+		
+		boolean isBlank(int start, int end){
+			for(int i = start; i < end; i++){
+				byte b = buffer.get(i);
+				if(b != ' ' && b != '\t')
+					return false;
+			}
+			return true;
+		}
+		
+		String firstField(int start, int end){
+			int i = start;
+			while(i < end && !(buffer.get(i) == ':' && i + 1 < end && buffer.get(i + 1) == ':'))
+				i++;
+			return decode(start, i);
+		}
+		
+		private String string(int field){
+			return decode(fieldStart[field], fieldEnd[field]);
+		}
+		
+		private String decode(int start, int end){
+			int length = end - start;
+			if(length > text.length)
+				text = new byte[Math.max(length, text.length * 2)];
+			textView.position(start);
+			textView.get(text, 0, length);
+			return new String(text, 0, length, StandardCharsets.UTF_8);
+		}
+		
+		private int integer(int field, String column){
+			int start = trimStart(field), end = trimEnd(field);
+			if(start == end || end - start > 9)
+				throw new IllegalArgumentException(column + " must be a whole number");
+			int value = 0;
+			for(int i = start; i < end; i++){
+				int digit = buffer.get(i) - '0';
+				if(digit < 0 || digit > 9)
+					throw new IllegalArgumentException(column + " must be a whole number");
+				value = value * 10 + digit;
+			}
+			return value;
+		}
+		
+		/**
+		 * Parses a price such as "19.99" into cents, rounding half up past the second decimal place
+		 * like the DECIMAL(10,2) column does.
+		 */
+		private long price(int field){
+			int start = trimStart(field), end = trimEnd(field);
+			long cents = 0;
+			int decimals = -1; // -1 until the decimal point is seen
+			boolean roundUp = false;
+			int digits = 0;
+			for(int i = start; i < end; i++){
+				byte b = buffer.get(i);
+				if(b == '.' && decimals < 0){
+					decimals = 0;
+				}
+				else if(b >= '0' && b <= '9'){
+					if(decimals < 2){
+						cents = cents * 10 + (b - '0');
+						digits++;
+						if(decimals >= 0)
+							decimals++;
+					}
+					else if(decimals == 2){
+						roundUp = b >= '5';
+						decimals++;
+					}
+				}
+				else{
+					throw new IllegalArgumentException("PRICE must be a number such as 19.99");
+				}
+			}
+			if(digits == 0 || digits - Math.max(decimals, 0) > 8)
+				throw new IllegalArgumentException("PRICE must be a number such as 19.99");
+			for(int d = Math.max(decimals, 0); d < 2; d++)
+				cents *= 10;
+			return roundUp ? cents + 1 : cents;
+		}
+		
+		/**
+		 * Parses a date in the YYYY/MM/DD format (a "-" separator is also accepted) into an epoch day.
+		 */
+		private int date(int field){
+			int start = trimStart(field), end = trimEnd(field);
+			int[] parts = dateParts;
+			parts[0] = parts[1] = parts[2] = 0;
+			int part = 0, partDigits = 0;
+			for(int i = start; i < end; i++){
+				byte b = buffer.get(i);
+				if(b >= '0' && b <= '9' && partDigits < 4){
+					parts[part] = parts[part] * 10 + (b - '0');
+					partDigits++;
+				}
+				else if((b == '/' || b == '-') && partDigits > 0 && part < 2){
+					part++;
+					partDigits = 0;
+				}
+				else{
+					throw new IllegalArgumentException("LAST_SHIP_RECEIVED must use the format YYYY/MM/DD");
+				}
+			}
+			if(part != 2 || partDigits == 0 || !BookRecord.isValidDate(parts[0], parts[1], parts[2]))
+				throw new IllegalArgumentException("LAST_SHIP_RECEIVED must use the format YYYY/MM/DD");
+			return BookRecord.toEpochDay(parts[0], parts[1], parts[2]);
+		}
+		
+		private int trimStart(int field){
+			int i = fieldStart[field];
+			while(i < fieldEnd[field] && buffer.get(i) == ' ')
+				i++;
+			return i;
+		}
+		
+		private int trimEnd(int field){
+			int i = fieldEnd[field];
+			while(i > fieldStart[field] && buffer.get(i - 1) == ' ')
+				i--;
+			return i;
+		}
+	}
+	
+	/**
+	 * The books and rejects of one chunk, with line numbers relative to the start of the chunk.
+	 */
+	static class ChunkResult {
+		final List<BookRecord> records = new ArrayList<BookRecord>();
+		final List<Reject> rejects = new ArrayList<Reject>();
+		int[] recordLines;
+		int lineCount;
+	}
+	
+	/**
+	 * A line that couldn't be parsed.
+	 */
+	static class Reject {
+		final int line;
+		final String isbn, reason;
+		
+		Reject(int nLine, String nIsbn, String nReason){
+			line = nLine;
+			isbn = nIsbn;
+			reason = nReason;
+		}
+	}
+}
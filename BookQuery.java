@@ -0,0 +1,279 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that combines any of the searches of the "Search by" menu into a single search, such as "books by a
+ * given author, in stock, under 20.00, published in or after 2005".
+ * 
+ * Each criterion is set with its own method, which returns the BookQuery so that calls can be chained:
+ * "new BookQuery().author("X").stock("in").price("lesser", new BigDecimal("20")).year("greater", 2005)".
+ * A criterion that isn't set matches every book. Comparisons are "lesser", "during" (equal to) and "greater",
+ * all inclusive, like the searches of the menu.
+ * 
+ * A BookQuery can be compiled into one parameterized statement, whose criteria are always in the same order
+ * so that queries with the same criteria share one cached PreparedStatement, or checked against rows kept in
+ * memory, which is how RangeIndex answers it.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BookQuery {
+	
+	private String isbn, title, author, stock;
+	private String yearComparison, pagesComparison, priceComparison;
+	private int year, pages;
+	private BigDecimal price;
+	// The price criterion in whole cents, for comparing to rows kept in memory
+	private long priceBound;
+	
+	/**
+	 * Only books with this ISBN.
+	 */
+	public BookQuery isbn(String nIsbn){
+		isbn = nIsbn;
+		return this;
+	}
+	
+	/**
+	 * Only books with exactly this title.
+	 */
+	public BookQuery title(String nTitle){
+		title = nTitle;
+		return this;
+	}
+	
+	/**
+	 * Only books with exactly this author.
+	 */
+	public BookQuery author(String nAuthor){
+		author = nAuthor;
+		return this;
+	}
+	
+	/**
+	 * Only books published before, during or after this year.
+	 * 
+	 * @param comparison : "lesser", "during" or "greater"
+	 * @param nYear : The year
+	 */
+	public BookQuery year(String comparison, int nYear){
+		yearComparison = checkComparison(comparison);
+		year = nYear;
+		return this;
+	}
+	
+	/**
+	 * Only books with at most, exactly or at least this number of pages.
+	 * 
+	 * @param comparison : "lesser", "during" or "greater"
+	 * @param nPages : The number of pages
+	 */
+	public BookQuery pages(String comparison, int nPages){
+		pagesComparison = checkComparison(comparison);
+		pages = nPages;
+		return this;
+	}
+	
+	/**
+	 * Only books in stock ("in") or out of stock ("out").
+	 */
+	public BookQuery stock(String stockChoice){
+		if(!stockChoice.equalsIgnoreCase("in") && !stockChoice.equalsIgnoreCase("out"))
+			throw new IllegalArgumentException("Stock must be \"in\" or \"out\", not " + stockChoice);
+		stock = stockChoice.toLowerCase();
+		return this;
+	}
+	
+	/**
+	 * Only books whose price is at most, exactly or at least this price.
+	 * 
+	 * @param comparison : "lesser", "during" or "greater"
+	 * @param nPrice : The price
+	 */
+	public BookQuery price(String comparison, BigDecimal nPrice){
+		priceComparison = checkComparison(comparison);
+		price = nPrice;
+		priceBound = toCents(priceComparison, price);
+		return this;
+	}
+	
+	private static String checkComparison(String comparison){
+		if(!comparison.equalsIgnoreCase("lesser") && !comparison.equalsIgnoreCase("during") && !comparison.equalsIgnoreCase("greater"))
+			throw new IllegalArgumentException("Comparison must be \"lesser\", \"during\" or \"greater\", not " + comparison);
+		return comparison.toLowerCase();
+	}
+	
+	/**
+	 * Returns whether no criteria are set, in which case every book matches.
+	 */
+	public boolean isEmpty(){
+		return isbn == null && title == null && author == null && stock == null
+				&& yearComparison == null && pagesComparison == null && priceComparison == null;
+	}
+	
+	/**
+	 * Returns whether the query has an ISBN criterion, which the database finds through its primary key.
+	 */
+	public boolean hasIsbn(){
+		return isbn != null;
+	}
+	
+	/**
+	 * Returns whether the query has a criterion that RangeIndex can search by (year, pages or price).
+	 */
+	public boolean hasRange(){
+		return yearComparison != null || pagesComparison != null || priceComparison != null;
+	}
+	
+	/**
+	 * Compiles the query into one parameterized statement. The values of its "?" placeholders are given by
+	 * getParameters, in the same order.
+	 * 
+	 * @return The SQL of the statement
+	 */
+	public String toSql(){
+		StringBuilder sql = new StringBuilder("SELECT * FROM BOOKSTORE.BOOKS");
+		String separator = " WHERE ";
+		// The criteria most likely to be found through an index come first
+		if(isbn != null){
+			sql.append(separator).append("ISBN = ?");
+			separator = " AND ";
+		}
+		if(title != null){
+			sql.append(separator).append("BOOK_NAME = ?");
+			separator = " AND ";
+		}
+		if(author != null){
+			sql.append(separator).append("AUTHOR = ?");
+			separator = " AND ";
+		}
+		if(yearComparison != null){
+			sql.append(separator).append("YEAR_PUBLISHED ").append(operator(yearComparison)).append(" ?");
+			separator = " AND ";
+		}
+		if(pagesComparison != null){
+			sql.append(separator).append("PAGES ").append(operator(pagesComparison)).append(" ?");
+			separator = " AND ";
+		}
+		if(priceComparison != null){
+			sql.append(separator).append("PRICE ").append(operator(priceComparison)).append(" ?");
+			separator = " AND ";
+		}
+		if(stock != null)
+			sql.append(separator).append(stock.equals("in") ? "CUR_STOCK > 0" : "CUR_STOCK = 0");
+		return sql.toString();
+	}
+	
+	/**
+	 * Returns the values of the "?" placeholders of the statement given by toSql, in order.
+	 */
+	public List<Object> getParameters(){
+		List<Object> parameters = new ArrayList<Object>();
+		if(isbn != null)
+			parameters.add(isbn);
+		if(title != null)
+			parameters.add(title);
+		if(author != null)
+			parameters.add(author);
+		if(yearComparison != null)
+			parameters.add(year);
+		if(pagesComparison != null)
+			parameters.add(pages);
+		if(priceComparison != null)
+			parameters.add(price);
+		return parameters;
+	}
+	
+	private static String operator(String comparison){
+		return comparison.equals("lesser") ? "<=" : comparison.equals("greater") ? ">=" : "=";
+	}
+	
+	/**
+	 * Returns whether a row kept in memory matches every criterion of the query.
+	 * 
+	 * @param books : The rows
+	 * @param row : The row to be checked, starting from zero
+	 */
+	public boolean matches(BookColumns books, int row){
+		return matches(books.getIsbn(row), books.getBookName(row), books.getAuthor(row), books.getYearPublished(row),
+				books.getPages(row), books.getPriceCents(row), books.getCurStock(row));
+	}
+	
+	/**
+	 * Returns whether a book matches every criterion of the query.
+	 * 
+	 * @param book : The book to be checked
+	 */
+	public boolean matches(BookRecord book){
+		return matches(book.getIsbn(), book.getBookName(), book.getAuthor(), book.getYearPublished(),
+				book.getPages(), book.getPriceCents(), book.getCurStock());
+	}
+	
+	private boolean matches(String bookIsbn, String bookName, String bookAuthor, int bookYear, int bookPages,
+			long bookPriceCents, int bookStock){
+		if(isbn != null && !isbn.equals(bookIsbn))
+			return false;
+		// The database compares text without regard to case, and so does the query
+		if(title != null && !title.equalsIgnoreCase(bookName))
+			return false;
+		if(author != null && !author.equalsIgnoreCase(bookAuthor))
+			return false;
+		if(yearComparison != null && !compare(bookYear, yearComparison, year))
+			return false;
+		if(pagesComparison != null && !compare(bookPages, pagesComparison, pages))
+			return false;
+		if(priceComparison != null && !compare(bookPriceCents, priceComparison, priceBound))
+			return false;
+		if(stock != null && (bookStock > 0) != stock.equals("in"))
+			return false;
+		return true;
+	}
+	
+	private static boolean compare(long value, String comparison, long bound){
+		return comparison.equals("lesser") ? value <= bound : comparison.equals("greater") ? value >= bound : value == bound;
+	}
+	
+	/**
+	 * Converts a price criterion to whole cents. A fraction of a cent is rounded down for "lesser" and up
+	 * otherwise, which matches the same books as the price itself.
+	 */
+	private static long toCents(String comparison, BigDecimal price){
+		if(comparison.equals("during") && price.stripTrailingZeros().scale() > 2)
+			// No price in cents is equal to a price with a fraction of a cent
+			return Long.MIN_VALUE;
+		return price.setScale(2, comparison.equals("lesser") ? RoundingMode.FLOOR : RoundingMode.CEILING)
+				.unscaledValue().longValue();
+	}
+	
+	// GETTERS
+	
+	String getIsbn(){
+		return isbn;
+	}
+	
+	String getYearComparison(){
+		return yearComparison;
+	}
+	
+	int getYear(){
+		return year;
+	}
+	
+	String getPagesComparison(){
+		return pagesComparison;
+	}
+	
+	int getPages(){
+		return pages;
+	}
+	
+	String getPriceComparison(){
+		return priceComparison;
+	}
+	
+	long getPriceBound(){
+		return priceBound;
+	}
+}
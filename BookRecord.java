@@ -0,0 +1,269 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * Class that holds the values of a single book (one row of BOOKSTORE.BOOKS) in typed form.
+ * 
+ * The numeric columns are kept as primitives. The price is kept in fixed-point form as a whole number of
+ * cents, and the date of the last shipment as a number of days since 1970-01-01 (an "epoch day"), so that
+ * neither needs an object of its own.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BookRecord {
+	
+	private final String isbn, bookName, author;
+	private final int yearPublished, pages, curStock, amountSold;
+	private final long priceCents;
+	private final int lastShipEpochDay;
+	
+	/**
+	 * Constructor for BookRecord. The values are given in table column order.
+	 * 
+	 * @param nIsbn : ISBN of the book
+	 * @param nBookName : Title of the book
+	 * @param nYearPublished : Year in which the book was published
+	 * @param nAuthor : Author of the book
+	 * @param nPages : Number of pages in the book
+	 * @param nCurStock : Amount currently in stock
+	 * @param nPriceCents : Price of the book, in cents
+	 * @param nAmountSold : Quantity sold of this book
+	 * @param nLastShipEpochDay : Date of the last received shipment, as days since 1970-01-01
+	 */
+	public BookRecord(String nIsbn, String nBookName, int nYearPublished, String nAuthor, int nPages,
+			int nCurStock, long nPriceCents, int nAmountSold, int nLastShipEpochDay){
+		isbn = nIsbn;
+		bookName = nBookName;
+		yearPublished = nYearPublished;
+		author = nAuthor;
+		pages = nPages;
+		curStock = nCurStock;
+		priceCents = nPriceCents;
+		amountSold = nAmountSold;
+		lastShipEpochDay = nLastShipEpochDay;
+	}
+	
+	/**
+	 * Reads the book at the current row of a ResultSet over BOOKSTORE.BOOKS.
+	 * 
+	 * @param rs : ResultSet positioned on a row
+	 * @return The book at the current row
+	 * @throws SQLException
+	 */
+	public static BookRecord fromResultSet(ResultSet rs) throws SQLException {
+		return new BookRecord(
+				rs.getString("ISBN"),
+				rs.getString("BOOK_NAME"),
+				rs.getInt("YEAR_PUBLISHED"),
+				rs.getString("AUTHOR"),
+				rs.getInt("PAGES"),
+				rs.getInt("CUR_STOCK"),
+				toCents(rs.getBigDecimal("PRICE")),
+				rs.getInt("AMOUNT_SOLD"),
+				(int) rs.getDate("LAST_SHIP_RECEIVED").toLocalDate().toEpochDay());
+	}
+	
+	/**
+	 * Returns the value of one of the columns as it is displayed in the JTable, which is the same text that
+	 * the JDBC driver gives for the column (for example "19.99" for the price and "2015-12-12" for the date).
+	 * 
+	 * @param col : Column number, in table order starting from zero
+	 * @return The text of the column
+	 */
+	public String getColumnText(int col){
+		switch(col){
+		case 0: return isbn;
+		case 1: return bookName;
+		case 2: return Integer.toString(yearPublished);
+		case 3: return author;
+		case 4: return Integer.toString(pages);
+		case 5: return Integer.toString(curStock);
+		case 6: return formatCents(priceCents);
+		case 7: return Integer.toString(amountSold);
+		case 8: return LocalDate.ofEpochDay(lastShipEpochDay).toString();
+		default: return null;
+		}
+	}
+	
+	/**
+	 * Returns the book as a line of the "::" delimited input file format, which BookFileParser can read back.
+	 * 
+	 * @return The line, without a line break
+	 */
+	public String toLine(){
+		return appendLine(new StringBuilder(96)).toString();
+	}
+	
+	/**
+	 * Appends the book as a line of the "::" delimited input file format, without a line break.
+	 * 
+	 * @param line : Where the line is appended
+	 * @return The same StringBuilder
+	 */
+	public StringBuilder appendLine(StringBuilder line){
+		for(int col = 0; col < BookFileParser.FIELDS; col++){
+			if(col > 0)
+				line.append("::");
+			line.append(getColumnText(col));
+		}
+		return line;
+	}
+	
+	/**
+	 * Returns the book as a JSON object, with the column names as keys. Numbers (including the price) are
+	 * written as JSON numbers, and the date as a "YYYY-MM-DD" string.
+	 * 
+	 * @return The JSON object
+	 */
+	public String toJson(){
+		return appendJson(new StringBuilder(192)).toString();
+	}
+	
+	/**
+	 * Appends the book as a JSON object, see toJson.
+	 * 
+	 * @param json : Where the object is appended
+	 * @return The same StringBuilder
+	 */
+	public StringBuilder appendJson(StringBuilder json){
+		json.append('{');
+		for(int col = 0; col < BooksTableModel.COLUMN_NAMES.length; col++){
+			if(col > 0)
+				json.append(',');
+			json.append('"').append(BooksTableModel.COLUMN_NAMES[col]).append("\":");
+			if(col == BookColumns.ISBN || col == BookColumns.BOOK_NAME || col == BookColumns.AUTHOR
+					|| col == BookColumns.LAST_SHIP_RECEIVED)
+				appendJsonString(json, getColumnText(col));
+			else
+				json.append(getColumnText(col));
+		}
+		return json.append('}');
+	}
+	
+	/**
+	 * Appends a string to a JSON document, in quotes and with the characters JSON requires escaped.
+	 */
+	static void appendJsonString(StringBuilder json, String value){
+		json.append('"');
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+			case '"': json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if(c < 0x20)
+					json.append(String.format("\\u%04x", (int) c));
+				else
+					json.append(c);
+			}
+		}
+		json.append('"');
+	}
+	
+	/**
+	 * Converts a price to a whole number of cents, rounding half up like the DECIMAL(10,2) column does.
+	 */
+	public static long toCents(BigDecimal price){
+		return price.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue();
+	}
+	
+	/**
+	 * Formats a number of cents as a price with two decimal places, such as "19.99".
+	 */
+	public static String formatCents(long cents){
+		StringBuilder text = new StringBuilder(12);
+		if(cents < 0){
+			text.append('-');
+			cents = -cents;
+		}
+		long fraction = cents % 100;
+		text.append(cents / 100).append('.');
+		if(fraction < 10)
+			text.append('0');
+		return text.append(fraction).toString();
+	}
+	
+	/**
+	 * Converts a calendar date to the number of days since 1970-01-01, without creating any objects.
+	 * The date is assumed to be valid (see isValidDate).
+	 */
+	public static int toEpochDay(int year, int month, int day){
+		// Counts years from March, so that the leap day falls at the end of the year
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+	
+	/**
+	 * Returns whether the given year, month and day make up a real calendar date.
+	 */
+	public static boolean isValidDate(int year, int month, int day){
+		if(month < 1 || month > 12 || day < 1)
+			return false;
+		int daysInMonth;
+		if(month == 2)
+			daysInMonth = (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		else if(month == 4 || month == 6 || month == 9 || month == 11)
+			daysInMonth = 30;
+		else
+			daysInMonth = 31;
+		return day <= daysInMonth;
+	}
+	
+	// GETTERS
+	
+	public String getIsbn(){
+		return isbn;
+	}
+	
+	public String getBookName(){
+		return bookName;
+	}
+	
+	public int getYearPublished(){
+		return yearPublished;
+	}
+	
+	public String getAuthor(){
+		return author;
+	}
+	
+	public int getPages(){
+		return pages;
+	}
+	
+	public int getCurStock(){
+		return curStock;
+	}
+	
+	public long getPriceCents(){
+		return priceCents;
+	}
+	
+	public BigDecimal getPrice(){
+		return BigDecimal.valueOf(priceCents, 2);
+	}
+	
+	public int getAmountSold(){
+		return amountSold;
+	}
+	
+	public int getLastShipEpochDay(){
+		return lastShipEpochDay;
+	}
+	
+	public Date getLastShipReceived(){
+		return Date.valueOf(LocalDate.ofEpochDay(lastShipEpochDay));
+	}
+}
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Interface through which the application reads and changes the books, whatever stores them. Queries,
+ * Utilities, the table models, the EditBuffer, the importer, the exporter and the search indexes all go
+ * through it, so they work the same whichever implementation is chosen.
+ * 
+ * There are two implementations:
+ * MySqlBookRepository keeps the books in the BOOKSTORE.BOOKS table of a MySQL server, through the shared
+ * ConnectionPool. This is the default.
+ * EmbeddedBookRepository keeps the books in the application's own memory, and makes each change durable in a
+ * write-ahead log on the local disk. No server is needed, so a single-store kiosk (or a test run) starts in
+ * milliseconds and its searches never cross the network. It is chosen with "-Dbookstore.storage=embedded",
+ * and its files are kept in the directory named by "bookstore.storage.dir" (default "bookstore-data").
+ * 
+ * Values that are entered by the user (such as a new price) are given as text, and each implementation
+ * converts them the way the MySQL server does. A value that can't be stored is rejected with a DataTruncation.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public interface BookRepository {
+	
+	/**
+	 * Receives the books of a scan, one at a time.
+	 */
+	interface Visitor {
+		void visit(BookRecord book) throws IOException;
+	}
+	
+	/**
+	 * Returns the repository shared by the whole application: the embedded store when the "bookstore.storage"
+	 * system property is "embedded", and the MySQL database behind the given pool otherwise.
+	 * 
+	 * @param pool : Connection pool of the MySQL database, not used by the embedded store
+	 * @return The shared BookRepository
+	 */
+	static BookRepository getRepository(ConnectionPool pool){
+		return isEmbedded() ? EmbeddedBookRepository.getShared() : MySqlBookRepository.forPool(pool);
+	}
+	
+	/**
+	 * Returns whether the books are kept in the embedded store rather than in MySQL.
+	 */
+	static boolean isEmbedded(){
+		return "embedded".equalsIgnoreCase(System.getProperty("bookstore.storage", "mysql"));
+	}
+	
+	/**
+	 * Reads a single book through its ISBN.
+	 * 
+	 * @param isbn : ISBN of the book
+	 * @return The book, or null if there is no book with that ISBN
+	 * @throws SQLException : if the book could not be read
+	 */
+	BookRecord find(String isbn) throws SQLException;
+	
+	/**
+	 * Reads the books with the given ISBNs, and returns them in the same order. ISBNs of books that don't
+	 * exist are skipped.
+	 * 
+	 * @param isbns : ISBNs of the books to be read
+	 * @return The books that were found
+	 * @throws SQLException : if the books could not be read
+	 */
+	BookColumns find(List<String> isbns) throws SQLException;
+	
+	/**
+	 * Returns every book matching every criterion of a query.
+	 * 
+	 * @param query : The criteria
+	 * @return The books found
+	 * @throws SQLException : if the search could not be run
+	 */
+	BookColumns search(BookQuery query) throws SQLException;
+	
+	/**
+	 * Returns the number of books.
+	 * 
+	 * @throws SQLException : if the books could not be counted
+	 */
+	int count() throws SQLException;
+	
+	/**
+	 * Returns the books that come after the given ISBN, in ISBN order.
+	 * 
+	 * @param afterIsbn : ISBN the page starts after, or null to start from the first book
+	 * @param limit : Maximum number of books returned
+	 * @return The books of the page
+	 * @throws SQLException : if the books could not be read
+	 */
+	BookColumns page(String afterIsbn, int limit) throws SQLException;
+	
+	/**
+	 * Returns the ISBN at the given position in ISBN order.
+	 * 
+	 * @param offset : Position of the book, starting from zero
+	 * @return The ISBN, or null if there are not that many books
+	 * @throws SQLException : if the ISBN could not be read
+	 */
+	String isbnAt(int offset) throws SQLException;
+	
+	/**
+	 * Hands every book to a Visitor, in ISBN order, without holding every book in memory at once.
+	 * 
+	 * @param visitor : Receives the books
+	 * @throws SQLException : if the books could not be read
+	 * @throws IOException : if the visitor failed, which stops the scan
+	 */
+	void scan(Visitor visitor) throws SQLException, IOException;
+	
+	/**
+	 * Adds a new book.
+	 * 
+	 * @param items : The values of the book, in table column order
+	 * @throws SQLException : if a value was rejected (DataTruncation), or a book with the same ISBN exists
+	 * (an SQLException with an SQLState starting with "23")
+	 */
+	void insert(Object[] items) throws SQLException;
+	
+	/**
+	 * Changes one column of a book, found through its ISBN. Does nothing if there is no such book.
+	 * 
+	 * @param isbn : ISBN of the book
+	 * @param col : Column to be changed, starting from zero
+	 * @param value : The new value of the column
+	 * @throws SQLException : if the value was rejected (DataTruncation for an incorrect format)
+	 */
+	void update(String isbn, int col, Object value) throws SQLException;
+	
+	/**
+	 * Starts a transaction, whose changes are only seen by others (and are only durable) once it is committed.
+	 * 
+	 * @return The transaction, which must be closed
+	 * @throws SQLException : if the transaction could not be started
+	 */
+	Transaction begin() throws SQLException;
+	
+	/**
+	 * Returns a token that marks the present point in the history of changes, from which changesSince can
+	 * later tell what changed.
+	 * 
+	 * @return The token
+	 * @throws SQLException : if the token could not be read
+	 */
+	long changeToken() throws SQLException;
+	
+	/**
+	 * Returns the books added or changed, and the ISBNs of the books deleted, since a token was taken, so that
+	 * a copy of the books kept in memory can be brought up to date without reading every book again. The
+	 * changes may also include some made shortly before the token, which are simply applied again.
+	 * 
+	 * @param token : Token returned by changeToken, or by an earlier call to changesSince
+	 * @return The changes, with the token to give to the next call, or null if the token is too old for the
+	 * changes since it to be known (in MySQL, older than "bookstore.refresh.tombstoneHours"), in which case
+	 * every book must be read again
+	 * @throws SQLException : if the changes could not be read (in MySQL, when the schema predates migration 3)
+	 */
+	Changes changesSince(long token) throws SQLException;
+	
+	/**
+	 * The changes made to the books since a token was taken (see changesSince). A book that was deleted and then
+	 * added again is in both lists, so the deletions are applied first.
+	 */
+	final class Changes {
+		
+		private final List<BookRecord> changed;
+		private final List<String> deleted;
+		private final long token;
+		
+		Changes(List<BookRecord> nChanged, List<String> nDeleted, long nToken){
+			changed = nChanged;
+			deleted = nDeleted;
+			token = nToken;
+		}
+		
+		/**
+		 * Returns whether nothing changed.
+		 */
+		public boolean isEmpty(){
+			return changed.isEmpty() && deleted.isEmpty();
+		}
+		
+		// GETTERS
+		
+		public List<BookRecord> getChanged(){
+			return changed;
+		}
+		
+		public List<String> getDeleted(){
+			return deleted;
+		}
+		
+		public long getToken(){
+			return token;
+		}
+	}
+	
+	/**
+	 * A series of changes that are stored together or not at all. The transaction sees its own changes.
+	 * Closing a transaction rolls back whatever wasn't committed.
+	 */
+	interface Transaction extends AutoCloseable {
+		
+		/**
+		 * Reads the books with the given ISBNs, see BookRepository.find.
+		 */
+		BookColumns find(List<String> isbns) throws SQLException;
+		
+		/**
+		 * Applies cell edits. Edits of books that don't exist are skipped.
+		 * 
+		 * @param edits : The edits
+		 * @throws SQLException : if an edit was rejected, with a message naming it
+		 */
+		void update(List<EditBuffer.Edit> edits) throws SQLException;
+		
+		/**
+		 * Deletes a book, which stays locked until the transaction ends.
+		 * 
+		 * @param isbn : ISBN of the book
+		 * @return The deleted book, or null if there was no such book
+		 * @throws SQLException : if the book could not be deleted
+		 */
+		BookRecord delete(String isbn) throws SQLException;
+		
+		/**
+		 * Deletes the books with the given ISBNs. ISBNs of books that don't exist are skipped.
+		 * 
+		 * @param isbns : ISBNs of the books, without duplicates
+		 * @return The ISBNs of the books that were deleted, in the given order
+		 * @throws SQLException : if the books could not be deleted
+		 */
+		List<String> delete(List<String> isbns) throws SQLException;
+		
+		/**
+		 * Adds the given books, or replaces them if they exist. Either every book is written or, if one is
+		 * rejected, none of them are (and the rest of the transaction is kept).
+		 * 
+		 * @param books : The books, without duplicate ISBNs
+		 * @throws SQLException : if a book was rejected
+		 */
+		void upsert(List<BookRecord> books) throws SQLException;
+		
+		/**
+		 * Commits the changes made so far. The transaction can go on being used, for a new series of changes.
+		 * 
+		 * @throws SQLException : if the changes could not be committed, in which case none of them are stored
+		 */
+		void commit() throws SQLException;
+		
+		/**
+		 * Rolls back the changes that weren't committed, and ends the transaction.
+		 */
+		void close();
+	}
+}
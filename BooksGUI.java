@@ -1,21 +1,37 @@
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
 import java.awt.GridLayout;
 import java.awt.HeadlessException;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.table.DefaultTableCellRenderer;
 
 /**
  * Class that deals with the GUI that displays a JTable containing the database information.
@@ -27,23 +43,42 @@ import javax.swing.JTable;
  */
 public class BooksGUI {
 	
+	private static final Color PENDING_EDIT_COLOR = new Color(255, 240, 170);
+	
 	private BooksTableModel btm;
 	private JFrame frame;
 	private JTable table;
 	private JMenuBar menuBar = new JMenuBar();
+	private Queries queries;
+	private ConnectionPool pool;
+	private QueryExecutor executor; // Runs the database work of the menus off the event dispatch thread
+	private EditBuffer editBuffer; // Holds the cell edits of an edit session until they are committed
+	private ChangeTracker changeTracker; // Reads only what changed in the database since the last refresh
+	private JLabel statusLabel = new JLabel(" ");
+	private JProgressBar progressBar = new JProgressBar();
+	private JButton cancelButton = new JButton("Cancel");
+	private boolean started; // Whether the entire table was displayed once. Only touched on the event dispatch thread.
 	Path outputFilePath;
 	Utilities ut;
 	
 	/**
 	 * Constructor for BooksGUI. Creates a new JFrame to house the JTable that will display the data.
-	 * Also creates the JTable, and connects it to the BooksTableModel class.
+	 * Also creates the JTable, and connects it to a PagedBooksTableModel that displays the entire table. The
+	 * window is shown before any row is read, and the first rows are read in the background. Once they are
+	 * displayed, the search indexes are built in the background as well.
+	 * 
+	 * Searches and other changes to the displayed data run in the background through a QueryExecutor, and
+	 * a status bar at the bottom of the window shows their progress and lets the user cancel them.
 	 * 
-	 * @param rs : ResultSet containing the data to be displayed
+	 * @param nPool : Connection pool used to retrieve the data to be displayed
 	 * @param outputFile : Output file to which changes to the table will be recorded in.
 	 */
-	public BooksGUI(ResultSet rs, Path outputFile){
+	public BooksGUI(ConnectionPool nPool, Path outputFile){
+		pool = nPool;
+		changeTracker = new ChangeTracker(pool);
 		outputFilePath = outputFile; // Instantiates the outputFilePath variable.
-		ut = new Utilities(outputFilePath); // Instantiates new Utilities instance.
+		ut = new Utilities(outputFilePath, pool); // Instantiates new Utilities instance.
+		Metrics.watchEventDispatchThread(); // Records how long events wait for the event dispatch thread
 		frame = new JFrame("Books");
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE); // Allows user to exit window
 		frame.setSize(1000, 500); // Sets the size of the window
@@ -51,34 +86,93 @@ public class BooksGUI {
 		
 		
 		table = new JTable();	
+		editBuffer = new EditBuffer(pool, outputFile);
+		
+		// Highlights the cells whose edits haven't been committed yet
+		table.setDefaultRenderer(String.class, new DefaultTableCellRenderer(){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+					boolean hasFocus, int row, int column) {
+				super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+				if(!isSelected)
+					setBackground(btm.isPending(table.convertRowIndexToModel(row), table.convertColumnIndexToModel(column))
+							? PENDING_EDIT_COLOR : table.getBackground());
+				return this;
+			}
+		});
 		
-		// Connects the JTable to the BooksTableModel class, which contains information needed by the JTable
-		try{
-			btm = new BooksTableModel(rs, outputFile);
-			table.setModel(btm);
-		}catch(SQLException e){
-			e.printStackTrace();
-		}
+		// Starts with an empty table, so that the window is shown straight away. The PagedBooksTableModel that
+		// displays the entire table is created in the background, once the window is visible.
+		btm = new BooksTableModel(new BookColumns(0), outputFile, pool);
+		table.setModel(btm);
 		
 		JScrollPane scrollPane = new JScrollPane(table, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 		
+		// Creates the executor that runs database work in the background, and the status bar that shows its progress
+		executor = new QueryExecutor(new QueryExecutor.ProgressListener(){
+			public void started(String description) {
+				statusLabel.setText(description + "...");
+				progressBar.setIndeterminate(true);
+				progressBar.setVisible(true);
+				cancelButton.setEnabled(true);
+			}
+			
+			public void finished(String message) {
+				statusLabel.setText(message);
+				progressBar.setIndeterminate(false);
+				progressBar.setVisible(false);
+				cancelButton.setEnabled(false);
+			}
+		});
+		btm.setExecutor(executor);
+		JPanel statusBar = createStatusBar();
+		
 		// Methods that create the Utilities and Search By menus, which users will use to interact with the data.
-		createUtilitiesMenu(rs);
-		createSearchByMenu(rs);
+		createUtilitiesMenu();
+		createSearchByMenu();
 		
 		table.setFillsViewportHeight(true);
-		frame.getContentPane().add(scrollPane);
+		frame.getContentPane().add(scrollPane, BorderLayout.CENTER);
+		frame.getContentPane().add(statusBar, BorderLayout.SOUTH);
 		frame.setVisible(true);
+		StartupTimer.mark("frameVisible");
+		
+		displayEntireTable();
+	}
+	
+	/**
+	 * Method that creates the status bar displayed at the bottom of the JFrame, which contains a label describing
+	 * the database work that is running (or last ran), a progress bar, and a button that cancels the work.
+	 * 
+	 * @return The status bar
+	 */
+	private JPanel createStatusBar(){
+		JPanel statusBar = new JPanel(new BorderLayout(5, 0));
+		progressBar.setVisible(false);
+		cancelButton.setEnabled(false);
+		cancelButton.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				//Stops the running search, its results won't be displayed
+				executor.cancel();
+			}
+		});
+		
+		JPanel controls = new JPanel(new BorderLayout(5, 0));
+		controls.add(progressBar, BorderLayout.CENTER);
+		controls.add(cancelButton, BorderLayout.EAST);
+		statusBar.add(statusLabel, BorderLayout.CENTER);
+		statusBar.add(controls, BorderLayout.EAST);
+		return statusBar;
 	}
 	
 	/**
 	 * Method that creates and adds the Utilities Menu to the JFrame. The Utilities Menu contains
 	 * ways for the user to make changes to the database. Including a sign-in option, an option to add
 	 * rows, an option to delete rows, and an option to refresh the data being displayed.
-	 * 
-	 * @param rs : The ResultSet whose data will be modified by the utility options.
 	 */
-	private void createUtilitiesMenu(ResultSet rs){
+	private void createUtilitiesMenu(){
 		JMenuItem item;
 		JMenu fileMenu = new JMenu("Utilities");
 		
@@ -94,15 +188,82 @@ public class BooksGUI {
 		
 		fileMenu.addSeparator();
 		
+		// Creates the Edit Session option, which keeps cell edits until they are committed, and adds it to the Utilities FileMenu
+		final JCheckBoxMenuItem editSessionItem = new JCheckBoxMenuItem("Edit Session");
+		editSessionItem.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				if(editSessionItem.isSelected()){
+					//Checks privileges of the user
+					if(!btm.getAdmin()){
+						editSessionItem.setSelected(false);
+						JOptionPane.showMessageDialog(null,
+							    "Only admins can modify data. Please log in (found under 'Utilities' tab).",
+							    "Not Admin",
+							    JOptionPane.ERROR_MESSAGE);
+						return;
+					}
+					btm.setEditBuffer(editBuffer);
+				}
+				//The session can only end once its edits are committed or rolled back
+				else if(!editBuffer.isEmpty()){
+					editSessionItem.setSelected(true);
+					JOptionPane.showMessageDialog(frame,
+							"There are " + editBuffer.size() + " uncommitted edits. Commit or roll them back to end the edit session.",
+							"Edit Session", JOptionPane.WARNING_MESSAGE);
+				}
+				else
+					btm.setEditBuffer(null);
+			}	
+		});
+		fileMenu.add(editSessionItem);
+		
+		// Creates the Commit Edits option and adds it to the Utilities FileMenu
+		item = new JMenuItem("Commit Edits");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				commitEdits();
+			}	
+		});
+		fileMenu.add(item);
+		
+		// Creates the Rollback Edits option and adds it to the Utilities FileMenu
+		item = new JMenuItem("Rollback Edits");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				//Discards the edits, and displays the stored values again. Edits that are already being committed are
+				//stored anyway, so they are kept.
+				editBuffer.clear();
+				btm.fireTableDataChanged();
+				if(editBuffer.isCommitting())
+					JOptionPane.showMessageDialog(frame,
+							"The " + editBuffer.size() + " edits already being committed can no longer be rolled back.",
+							"Rollback Edits", JOptionPane.WARNING_MESSAGE);
+			}	
+		});
+		fileMenu.add(item);
+		
+		fileMenu.addSeparator();
+		
 		// Creates the Add Row option and adds it to the Utilities FileMenu
 		item = new JMenuItem("Add Row");
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {
 				
-				// Calls the retriveNewRowItems method from the Utilities class, which also calls the addNewRow method in the
-				// Utilities class. The return value of the Utilities methods is passed into to the updateJTable method to
-				// refresh the data in the JTable to reflect the new changes.
-				updateJTable(ut.retrieveNewRowItems(rs));
+				// Calls the retriveNewRowItems method from the Utilities class, then adds the row in the background through
+				// the addRow method. If the row was added, the entire table is displayed again to reflect the new changes.
+				final Object[] items = ut.retrieveNewRowItems();
+				if(items == null)
+					return;
+				executor.enqueue("Adding book " + items[0], new Callable<Boolean>(){
+					public Boolean call() {
+						return ut.addRow(items);
+					}
+				}, new QueryExecutor.Callback<Boolean>(){
+					public void done(Boolean added) {
+						if(added)
+							displayEntireTable();
+					}
+				});
 			}	
 		});
 		fileMenu.add(item);
@@ -117,8 +278,9 @@ public class BooksGUI {
 					if(btm.getAdmin()){
 						//Obtains the ISBN of the book that the user wishes to remove, and then calls the appropriate Utility
 						//methods to remove it and refresh the table.
-						String deletedISBN = JOptionPane.showInputDialog(null, "Enter the ISBN of the book to be removed.");
-						updateJTable(ut.deleteRow(rs, deletedISBN));
+						final String deletedISBN = JOptionPane.showInputDialog(null, "Enter the ISBN of the book to be removed.");
+						if(deletedISBN != null)
+							deleteBook(deletedISBN);
 					}
 					//In case of insufficient privileges, no deletions are made and the user is informed they must sign in. 
 					else{
@@ -134,13 +296,74 @@ public class BooksGUI {
 		
 		fileMenu.addSeparator();
 		
+		// Creates the Delete Rows option, which deletes a list of books at once, and adds it to the Utilities FileMenu
+		item = new JMenuItem("Delete Rows (Batch)");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+					//Checks privileges of the user
+					if(btm.getAdmin())
+						deleteBooks();
+					else{
+						JOptionPane.showMessageDialog(null,
+							    "Only admins can delete data. Please log in (found under 'Utilities' tab).",
+							    "Not Admin",
+							    JOptionPane.ERROR_MESSAGE);
+					}
+			}	
+		});
+		fileMenu.add(item);
+		
+		fileMenu.addSeparator();
+		
+		// Creates the Import Catalog Updates option, which adds or updates the books listed in a file, and adds it to the Utilities FileMenu
+		item = new JMenuItem("Import Catalog Updates");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+					//Checks privileges of the user
+					if(btm.getAdmin())
+						importBooks();
+					else{
+						JOptionPane.showMessageDialog(null,
+							    "Only admins can change data. Please log in (found under 'Utilities' tab).",
+							    "Not Admin",
+							    JOptionPane.ERROR_MESSAGE);
+					}
+			}	
+		});
+		fileMenu.add(item);
+		
+		// Creates the Export Catalog option, which writes every book to a file, and adds it to the Utilities FileMenu
+		item = new JMenuItem("Export Catalog");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				exportBooks();
+			}	
+		});
+		fileMenu.add(item);
+		
+		fileMenu.addSeparator();
+		
 		// Creates the Refresh Database option and adds it to the Utilities FileMenu
 		item = new JMenuItem("Refresh Database");
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {
 				//Allows the user to refresh the table, to reflect any changes made, or to re-obtain a view of the entire
 				//table, rather than the results of a more specific query.
-				updateJTable(retrieveNewResultSet(rs));
+				displayEntireTable();
+			}	
+		});
+		fileMenu.add(item);
+		
+		fileMenu.addSeparator();
+		
+		// Creates the Book History option and adds it to the Utilities FileMenu
+		item = new JMenuItem("Book History");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				//Looks up every recorded change to the book with the given ISBN in the output file's audit log
+				final String historyISBN = JOptionPane.showInputDialog(null, "Enter the ISBN of the book whose changes should be displayed.");
+				if(historyISBN != null)
+					displayHistory(historyISBN.trim());
 			}	
 		});
 		fileMenu.add(item);
@@ -154,10 +377,8 @@ public class BooksGUI {
 	 * Method that creates and adds various query options to a "Search By" menu in the JFrame.
 	 * Makes the appropriate calls to the Queries class to display the correct ResultSet given the
 	 * requested query from the user.
-	 * 
-	 * @param rs : ResultSet that will display the data requested from the user
 	 */
-	private void createSearchByMenu(ResultSet rs){
+	private void createSearchByMenu(){
 		
 		//Calls the Initialization constructor that doesn't create a new table/schema etc. but rather just gives access to
 		//the Initialization methods.
@@ -170,18 +391,51 @@ public class BooksGUI {
 		String nPassword = init.getPassword();
 		
 		//Queries class makes queries to the database, and as such, needs appropriate information to make connections and execute queries.
-		Queries queries = new Queries(nURL, nUsername, nPassword, rs);
+		queries = new Queries(nURL, nUsername, nPassword);
 		
 		JMenuItem item;
 		JMenu fileMenu = new JMenu("Search by");
 		
+		// Creates the Combined Search option, which combines any of the other searches, and adds it to the Search By FileMenu
+		item = new JMenuItem("Combined Search...");
+		item.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+					//Runs every criterion the user filled in as one search
+					final BookQuery query = queries.combinedQueryPanel();
+					if(query == null)
+						return;
+					displayRows("Searching by several criteria", new Callable<BookColumns>(){
+						public BookColumns call() throws SQLException {
+							return queries.search(query);
+						}
+					});
+			}	
+		});
+		fileMenu.add(item);
+		
+		fileMenu.addSeparator();
+		
 		// Creates the ISBN option and adds it to the Search By FileMenu
 		item = new JMenuItem("ISBN");
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {
-					//Makes appropriate method calls to query for desired ISBN and update the displayed table
-					String desiredISBN = queries.isbnQueryPanel();
-					updateJTable(queries.searchForDesiredISBN(desiredISBN));
+					//Looks up the desired ISBN, usually answered from the IsbnCache, and displays the book found (if any)
+					final String desiredISBN = queries.isbnQueryPanel();
+					if(desiredISBN == null)
+						return;
+					executor.submit("Searching by ISBN", new Callable<BooksTableModel>(){
+						public BooksTableModel call() throws SQLException {
+							BookColumns rows = new BookColumns(1);
+							BookRecord book = queries.lookupISBN(desiredISBN.trim());
+							if(book != null)
+								rows.add(book);
+							return new BooksTableModel(rows, outputFilePath, pool);
+						}
+					}, new QueryExecutor.Callback<BooksTableModel>(){
+						public void done(BooksTableModel model) {
+							displayModel(model);
+						}
+					});
 			}	
 		});
 		fileMenu.add(item);
@@ -192,9 +446,9 @@ public class BooksGUI {
 		item = new JMenuItem("Title");
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {		
-					//Makes the appropriate method calls to query for desired Title and update the displayed table
-					String desiredTitle = queries.titleQueryPanel();
-					updateJTable(queries.searchForDesiredTitle(desiredTitle));
+					//Searches for the desired Title, through the TextSearchIndex unless an exact match was requested
+					String[] titleSpecs = queries.titleQueryPanel();
+					searchByText("Searching by title", TextSearchIndex.Field.TITLE, titleSpecs);
 			}	
 		});
 		fileMenu.add(item);
@@ -205,9 +459,9 @@ public class BooksGUI {
 		item = new JMenuItem("Author");
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {
-					//Makes the appropriate method calls to query for the desired Author and update the displayed table
-					String desiredAuthor = queries.authorQueryPanel();
-					updateJTable(queries.searchForDesiredAuthor(desiredAuthor));
+					//Searches for the desired Author, through the TextSearchIndex unless an exact match was requested
+					String[] authorSpecs = queries.authorQueryPanel();
+					searchByText("Searching by author", TextSearchIndex.Field.AUTHOR, authorSpecs);
 			}	
 		});
 		fileMenu.add(item);
@@ -219,8 +473,12 @@ public class BooksGUI {
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {		
 					//Makes the appropriate method calls to query for the desired year and update the displayed table	
-					String[] desiredYearSpecs = queries.yearQueryPanel();
-					updateJTable(queries.searchForDesiredYear(desiredYearSpecs));
+					final String[] desiredYearSpecs = queries.yearQueryPanel();
+					displayRows("Searching by year published", new Callable<BookColumns>(){
+						public BookColumns call() throws SQLException {
+							return queries.searchForDesiredYear(desiredYearSpecs);
+						}
+					});
 			}	
 		});
 		fileMenu.add(item);
@@ -232,8 +490,12 @@ public class BooksGUI {
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {		
 					//Makes the appropriate method calls to query for the desired number of pages and update the displayed table
-					String[] desiredPageSpecs = queries.pageQueryPanel();
-					updateJTable(queries.searchForDesiredPage(desiredPageSpecs));
+					final String[] desiredPageSpecs = queries.pageQueryPanel();
+					displayRows("Searching by pages", new Callable<BookColumns>(){
+						public BookColumns call() throws SQLException {
+							return queries.searchForDesiredPage(desiredPageSpecs);
+						}
+					});
 			}	
 		});
 		fileMenu.add(item);
@@ -245,8 +507,12 @@ public class BooksGUI {
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {		
 					//Makes the appropriate method calls to query for books that are in stock, and update the displayed table
-					String desiredStockChoice = "in";
-					updateJTable(queries.searchByStock(desiredStockChoice));
+					final String desiredStockChoice = "in";
+					displayRows("Searching for books in stock", new Callable<BookColumns>(){
+						public BookColumns call() throws SQLException {
+							return queries.searchByStock(desiredStockChoice);
+						}
+					});
 			}	
 		});
 		fileMenu.add(item);
@@ -256,8 +522,12 @@ public class BooksGUI {
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {	
 					//Makes the appropriate method calls to query for books that are out of stock, and update the displayed table
-					String desiredStockChoice = "out";
-					updateJTable(queries.searchByStock(desiredStockChoice));
+					final String desiredStockChoice = "out";
+					displayRows("Searching for books out of stock", new Callable<BookColumns>(){
+						public BookColumns call() throws SQLException {
+							return queries.searchByStock(desiredStockChoice);
+						}
+					});
 			}	
 		});
 		fileMenu.add(item);
@@ -269,8 +539,12 @@ public class BooksGUI {
 		item.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {	
 					//Makes the appropriate method calls to query for books given a specific price, and update the displayed table
-					String[] desiredPrice = queries.priceQueryPanel() ;
-					updateJTable(queries.searchForDesiredPrice(desiredPrice));
+					final String[] desiredPrice = queries.priceQueryPanel() ;
+					displayRows("Searching by price", new Callable<BookColumns>(){
+						public BookColumns call() throws SQLException {
+							return queries.searchForDesiredPrice(desiredPrice);
+						}
+					});
 			}	
 		});
 		fileMenu.add(item);
@@ -282,44 +556,339 @@ public class BooksGUI {
 	}
 	
 	/**
-	 * Method that retrieves a fresh ResultSet that contains all the data in the stored table.
+	 * Method that displays the entire stored table again, through a new PagedBooksTableModel.
 	 * Used for refreshing the table to display the entirety of the data again after the user is
-	 * finished viewing the results of a query.
-	 *  
-	 * @param oldRS : The old ResultSet which will be overwritten by a fresh ResultSet of the entire stored table
-	 * @return : The new ResultSet containing data from the entire stored table
+	 * finished viewing the results of a query, or after rows were added or deleted.
+	 * 
+	 * Only the books changed or deleted since the last refresh are read (see ChangeTracker), and applied to the
+	 * caches and search indexes. When the entire table is already displayed and no book was added or deleted,
+	 * the changed books are patched into its rows and no other row is read again. Otherwise the rows are counted
+	 * and the first window of rows is read in the background, and the new model is only displayed once that is
+	 * done. The ChangeTracker's token is committed once the rows are displayed, so changes read by a refresh that
+	 * was superseded are read again by the next one. The first time, this ends the startup (see StartupTimer).
 	 */
-	private ResultSet retrieveNewResultSet(ResultSet oldRS){
-		Connection conn = null;
-		ResultSet rs = oldRS;
-		Initialization init = new Initialization(conn);
-		
-		//Retrieves a fresh ResultSet
-		rs = init.createResultSet();
-		
-		return rs; 
+	private void displayEntireTable(){
+		final BooksTableModel displayed = btm;
+		final BookRepository.Changes[] patch = new BookRepository.Changes[1];
+		//Token to commit once the rows are displayed, or null if there is none
+		final Long[] token = new Long[1];
+		executor.submit("Loading the entire table", new Callable<BooksTableModel>(){
+			public BooksTableModel call() throws SQLException {
+				BookRepository.Changes changes = null;
+				try{
+					changes = changeTracker.refresh();
+				} catch (SQLException e){
+					//Without the changes (for example in a schema that doesn't track them yet), every row is read again
+					e.printStackTrace();
+				}
+				
+				//Rows can only be patched in place while they keep their positions
+				if(changes != null && displayed instanceof PagedBooksTableModel && changes.getDeleted().isEmpty()
+						&& (changes.getChanged().isEmpty() || BookRepository.getRepository(pool).count() == displayed.getRowCount())){
+					patch[0] = changes;
+					token[0] = changes.getToken();
+					return displayed;
+				}
+				
+				//The rows read from here on are at least as recent as the token
+				if(changes != null)
+					token[0] = changes.getToken();
+				else{
+					try{
+						token[0] = changeTracker.changeToken();
+					} catch (SQLException e){
+						e.printStackTrace();
+					}
+				}
+				PagedBooksTableModel model = new PagedBooksTableModel(pool, outputFilePath);
+				model.prefetch(0);
+				return model;
+			}
+		}, new QueryExecutor.Callback<BooksTableModel>(){
+			public void done(BooksTableModel model) {
+				if(model != displayed)
+					displayModel(model);
+				else if(!patch[0].isEmpty())
+					model.booksStored(patch[0].getChanged());
+				//Only now are the changes displayed, so if this is dropped for a newer task, they are read again
+				if(token[0] != null)
+					changeTracker.commit(token[0]);
+				if(!started){
+					started = true;
+					StartupTimer.firstRowsDisplayed();
+					warmIndexes();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Method that builds the search indexes in parallel in the background, so that the first title, author, year,
+	 * pages or price search doesn't wait for them. Can be turned off with "-Dbookstore.startup.warmIndexes=false".
+	 */
+	private void warmIndexes(){
+		if(!Boolean.parseBoolean(System.getProperty("bookstore.startup.warmIndexes", "true")))
+			return;
+		final AtomicInteger building = new AtomicInteger(2);
+		for(final boolean textIndex : new boolean[]{true, false}){
+			Thread thread = new Thread(new Runnable(){
+				public void run() {
+					try{
+						if(textIndex)
+							TextSearchIndex.getIndex(pool).prepare();
+						else
+							RangeIndex.getIndex(pool).prepare();
+						if(building.decrementAndGet() == 0)
+							StartupTimer.mark("indexesWarm");
+					} catch (SQLException e){
+						//The index is built again by the first search that needs it
+						e.printStackTrace();
+					}
+				}
+			}, textIndex ? "text-index-warmer" : "range-index-warmer");
+			thread.setDaemon(true);
+			thread.start();
+		}
 	}
 	
 	/**
-	 * Method that refreshes the data being displayed in the JTable.
-	 * Will be used to actually implement the results of retrieveNewResultSet or any of the 
-	 * Utilities methods that update the table, and Queries methods that should change the data
-	 * that is displayed.
+	 * Method that runs a search that returns its rows already read (for example from the RangeIndex) in the
+	 * background, and then displays them.
 	 * 
-	 * @param rs : The new ResultSet that will be displayed in the JTable
+	 * @param description : Description of the search, displayed while it runs
+	 * @param search : Runs the search and returns its rows, if it returns null the displayed data is left as is
 	 */
-	private void updateJTable(ResultSet rs){
-		try{
-			boolean tempAdmin = btm.getAdmin();
-			//Gets a new BooksTableModel to reflect the new ResultSet
-			btm = new BooksTableModel(rs, outputFilePath);
-			//Retrieving a new BooksTableModel resets the user's admin status. So we carry over their
-			//status from the previous BooksTableModel instance.
-			btm.setAdmin(tempAdmin);
-			table.setModel(btm);
-		}catch(SQLException e){
-			e.printStackTrace();
+	private void displayRows(String description, final Callable<BookColumns> search){
+		executor.submit(description, new Callable<BooksTableModel>(){
+			public BooksTableModel call() throws Exception {
+				BookColumns rows = search.call();
+				return rows == null ? null : new BooksTableModel(rows, outputFilePath, pool);
+			}
+		}, new QueryExecutor.Callback<BooksTableModel>(){
+			public void done(BooksTableModel model) {
+				if(model != null)
+					displayModel(model);
+			}
+		});
+	}
+	
+	/**
+	 * Method that searches the titles or authors of the books in the background, and then displays the books
+	 * found, best matches first.
+	 * 
+	 * @param description : Description of the search, displayed while it runs
+	 * @param field : Whether titles or authors are searched
+	 * @param textSpecs : The text to be searched for and the kind of search, as returned by the query panel
+	 */
+	private void searchByText(String description, final TextSearchIndex.Field field, final String[] textSpecs){
+		if(textSpecs[0] == null)
+			return;
+		displayRows(description, new Callable<BookColumns>(){
+			public BookColumns call() throws SQLException {
+				return queries.searchByText(field, textSpecs);
+			}
+		});
+	}
+	
+	/**
+	 * Method that deletes a book from the database in the background, and then removes it from the displayed data.
+	 * 
+	 * @param isbn : ISBN of the book to be deleted
+	 */
+	private void deleteBook(final String isbn){
+		executor.enqueue("Deleting book " + isbn, new Callable<Boolean>(){
+			public Boolean call() {
+				//Deletes the book through its primary key, whether or not it is displayed
+				return ut.deleteRow(isbn);
+			}
+		}, new QueryExecutor.Callback<Boolean>(){
+			public void done(Boolean deleted) {
+				if(!deleted)
+					return;
+				//Search results drop the deleted row in place, the entire table is fetched again
+				if(btm instanceof PagedBooksTableModel)
+					displayEntireTable();
+				else
+					btm.removeBook(isbn);
+			}
+		});
+	}
+	
+	/**
+	 * Method that asks the user for a list of ISBNs, either typed in or read from a file, and then deletes those
+	 * books in the background in one transaction (see Utilities.deleteRows).
+	 */
+	private void deleteBooks(){
+		String[] options = {"From File", "Enter List", "Cancel"};
+		int choice = JOptionPane.showOptionDialog(frame, "Delete the books whose ISBNs are listed in a file, or in a list you enter?",
+				"Delete Rows", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+		
+		final Path isbnFile;
+		final String isbnList;
+		if(choice == 0){
+			//A file with one ISBN per line (or separated by spaces, commas or semicolons)
+			JFileChooser chooser = new JFileChooser();
+			if(chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+				return;
+			isbnFile = chooser.getSelectedFile().toPath();
+			isbnList = null;
 		}
+		else if(choice == 1){
+			JTextArea text = new JTextArea(15, 30);
+			int entered = JOptionPane.showConfirmDialog(frame, new JScrollPane(text), "ISBNs of the books to be removed",
+					JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+			if(entered != JOptionPane.OK_OPTION)
+				return;
+			isbnFile = null;
+			isbnList = text.getText();
+		}
+		else
+			return;
+		
+		executor.enqueue("Deleting books", new Callable<int[]>(){
+			public int[] call() throws IOException, SQLException {
+				String text = isbnList != null ? isbnList : new String(Files.readAllBytes(isbnFile), StandardCharsets.UTF_8);
+				List<String> isbns = Utilities.parseIsbns(text);
+				return new int[]{ut.deleteRows(isbns), isbns.size()};
+			}
+		}, new QueryExecutor.Callback<int[]>(){
+			public void done(int[] counts) {
+				JOptionPane.showMessageDialog(frame, "Deleted " + counts[0] + " of the " + counts[1] + " books listed.",
+						"Delete Rows", JOptionPane.INFORMATION_MESSAGE);
+				displayEntireTable();
+			}
+		});
+	}
+	
+	/**
+	 * Method that commits the edits of the edit session in the background, in one transaction (see
+	 * EditBuffer.commit), and then displays the books as they were stored. If an edit is rejected, nothing is
+	 * stored and the edits are kept, so that the rejected one can be corrected.
+	 * 
+	 * Only one commit is queued at a time, so that the same edits are never stored (and audited) twice.
+	 */
+	private void commitEdits(){
+		final List<EditBuffer.Edit> edits = editBuffer.startCommit();
+		if(edits == null || edits.isEmpty())
+			return;
+		
+		executor.enqueue("Committing " + edits.size() + " edits", new Callable<List<BookRecord>>(){
+			public List<BookRecord> call() {
+				try{
+					return editBuffer.commit(edits);
+				} catch (SQLException e){
+					e.printStackTrace();
+					QueryExecutor.showErrorDialog(e.getMessage() + ". No edits were committed.", "Error During Commit");
+					return null;
+				}
+			}
+		}, new QueryExecutor.Callback<List<BookRecord>>(){
+			public void done(List<BookRecord> books) {
+				if(books == null){
+					editBuffer.commitFailed(edits);
+					btm.fireTableDataChanged();
+					return;
+				}
+				editBuffer.remove(edits);
+				btm.booksStored(books);
+			}
+		});
+	}
+	
+	/**
+	 * Method that asks the user for a file of new and changed books, in the same format as the input file, and
+	 * then imports it in the background (see Utilities.importBooks).
+	 */
+	private void importBooks(){
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+			return;
+		final Path importFile = chooser.getSelectedFile().toPath();
+		
+		executor.enqueue("Importing " + importFile.getFileName(), new Callable<BulkUpserter>(){
+			public BulkUpserter call() throws IOException, SQLException {
+				return ut.importBooks(importFile);
+			}
+		}, new QueryExecutor.Callback<BulkUpserter>(){
+			public void done(BulkUpserter upserter) {
+				JOptionPane.showMessageDialog(frame, upserter.getSummary(),
+						"Import Catalog Updates", JOptionPane.INFORMATION_MESSAGE);
+				displayEntireTable();
+			}
+		});
+	}
+	
+	/**
+	 * Method that asks the user for a file, and then writes every book to it in the background, as CSV, JSON
+	 * lines or the input file format depending on the file's extension (see BookExporter).
+	 */
+	private void exportBooks(){
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+			return;
+		final Path exportFile = chooser.getSelectedFile().toPath();
+		
+		executor.enqueue("Exporting to " + exportFile.getFileName(), new Callable<BookExporter>(){
+			public BookExporter call() throws IOException, SQLException {
+				BookExporter exporter = new BookExporter(pool, BookExporter.Format.forFile(exportFile));
+				exporter.export(exportFile);
+				return exporter;
+			}
+		}, new QueryExecutor.Callback<BookExporter>(){
+			public void done(BookExporter exporter) {
+				JOptionPane.showMessageDialog(frame, exporter.getSummary(),
+						"Export Catalog", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+	}
+	
+	/**
+	 * Method that looks up the recorded changes to a book in the background, and displays them in a dialog.
+	 * Only the segments of the audit log that may contain the book are read.
+	 * 
+	 * @param isbn : ISBN of the book
+	 */
+	private void displayHistory(final String isbn){
+		executor.submit("Looking up the history of book " + isbn, new Callable<List<AuditEntry>>(){
+			public List<AuditEntry> call() throws IOException {
+				return AuditLog.forPath(outputFilePath).find(isbn, Long.MIN_VALUE, Long.MAX_VALUE);
+			}
+		}, new QueryExecutor.Callback<List<AuditEntry>>(){
+			public void done(List<AuditEntry> entries) {
+				StringBuilder history = new StringBuilder();
+				for(AuditEntry entry : entries){
+					history.append(Instant.ofEpochMilli(entry.getTimestamp())).append("  ").append(entry.getOperation());
+					//A batch entry lists every book of the batch, which is summarized instead
+					if(entry.getOperation().equals(AuditEntry.BATCH_DELETE))
+						history.append("  (one of " + entry.getIsbns().size() + " books deleted together)");
+					else if(entry.getOldValue() != null || entry.getNewValue() != null)
+						history.append("  ").append(entry.getColumn()).append(": ").append(entry.getOldValue())
+								.append(" -> ").append(entry.getNewValue());
+					history.append('\n');
+				}
+				if(entries.isEmpty())
+					history.append("No changes were recorded for the book with ISBN: " + isbn);
+				
+				JTextArea text = new JTextArea(history.toString(), 20, 80);
+				text.setEditable(false);
+				JOptionPane.showMessageDialog(frame, new JScrollPane(text), "History of " + isbn, JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+	}
+	
+	/**
+	 * Method that displays a new BooksTableModel in the JTable. Must be called on the event dispatch thread.
+	 * 
+	 * @param model : The model to be displayed
+	 */
+	private void displayModel(BooksTableModel model){
+		//Retrieving a new BooksTableModel resets the user's admin status. So we carry over their
+		//status from the previous BooksTableModel instance.
+		model.setAdmin(btm.getAdmin());
+		model.setEditBuffer(btm.getEditBuffer());
+		model.setExecutor(executor);
+		btm = model;
+		table.setModel(btm);
 	}
 	
 	
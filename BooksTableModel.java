@@ -1,16 +1,16 @@
-import javax.sql.rowset.CachedRowSet;
 import javax.swing.*;
-import javax.swing.event.TableModelEvent;
-import javax.swing.event.TableModelListener;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Class that extends AbstractTableModel, and contains methods that deal with data that
@@ -21,45 +21,47 @@ import java.sql.*;
  */
 public class BooksTableModel extends AbstractTableModel {
 	
+	// Columns of BOOKSTORE.BOOKS, in table order
+	static final String[] COLUMN_NAMES = {"ISBN", "BOOK_NAME", "YEAR_PUBLISHED", "AUTHOR", "PAGES",
+			"CUR_STOCK", "PRICE", "AMOUNT_SOLD", "LAST_SHIP_RECEIVED"};
+	
 	Path outputFilePath;
-	private ResultSet booksResultSet;
-	private ResultSetMetaData metadata;
+	// Rows displayed by this model
+	private BookColumns columns;
+	protected final ConnectionPool pool;
 	int numCols, numRows;
 	private boolean admin;
+	// Edits not yet committed, or null if edits are stored as soon as they are made
+	private EditBuffer editBuffer;
+	// Queue that stores the edited cells in the background, set by BooksGUI
+	private QueryExecutor executor;
 	
 	/**
-	 * Constructor for BooksTableModel.
+	 * Constructor for a BooksTableModel that displays rows that were already read.
 	 * 
-	 * Determines how many rows are in the resultSet argument, and also adds a Listener to this
-	 * TableModel.
+	 * @param rows : The rows to be displayed
+	 * @param outputPath : outputFile, passed into constructor for instantiation of instance variable
+	 * @param nPool : Connection pool used to store modified cells in the database
+	 */
+	public BooksTableModel(BookColumns rows, Path outputPath, ConnectionPool nPool){
+		outputFilePath = outputPath;
+		pool = nPool;
+		numCols = COLUMN_NAMES.length;
+		columns = rows;
+		numRows = columns.size();
+	}
+	
+	/**
+	 * Constructor used by subclasses that don't display a fixed set of rows, and instead override the methods
+	 * that read and store cell values.
 	 * 
-	 * @param resultSet : the resultSet containing the data from the table
 	 * @param outputPath : outputFile, passed into constructor for instantiation of instance variable
-	 * @throws SQLException
+	 * @param nPool : Connection pool used to store modified cells in the database
 	 */
-	public BooksTableModel(ResultSet resultSet, Path outputPath) throws SQLException {
-		
-		// Instantiates variables
+	protected BooksTableModel(Path outputPath, ConnectionPool nPool){
 		outputFilePath = outputPath;
-		booksResultSet = resultSet;
-		metadata = booksResultSet.getMetaData();
-		numCols = metadata.getColumnCount();
-		
-		// Counts the rows in the result set
-		booksResultSet.beforeFirst();
-		numRows = 0;
-		while(booksResultSet.next()){
-			numRows++;
-		}
-		booksResultSet.beforeFirst();
-		
-		// Adds TableModel Listener to this TableModel to detect when the user attempts to make a change on the table
-		this.addTableModelListener(new TableModelListener(){
-
-			public void tableChanged(TableModelEvent e) {	
-				
-			}
-		});
+		pool = nPool;
+		numCols = COLUMN_NAMES.length;
 	}
 	
 	/**
@@ -73,7 +75,7 @@ public class BooksTableModel extends AbstractTableModel {
 	}
 	
 	/**
-	 * Returns the number of columns in the ResultSet
+	 * Returns the number of columns in the table
 	 */
 	@Override
 	public int getColumnCount() {
@@ -85,12 +87,7 @@ public class BooksTableModel extends AbstractTableModel {
 	 */
 	@Override
 	public String getColumnName(int col) {
-		try {
-			  // Note: have to use "col + 1" because JTable starts 
-		      return metadata.getColumnLabel(col + 1);
-		    } catch (SQLException e) {
-		    	return e.toString();
-		    }
+		return COLUMN_NAMES[col];
 	}
 	
 	/**
@@ -102,24 +99,43 @@ public class BooksTableModel extends AbstractTableModel {
 	}
 	
 	/**
-	 * Returns whatever object is in the given row/column coordinate
+	 * Returns whatever object is in the given row/column coordinate. The text of a cell is only created the
+	 * first time the cell is displayed, so repainting the table doesn't create any new objects.
 	 */
 	@Override
 	public Object getValueAt(int row, int col) {
-		try {
-			//Moves the cursor to the appropriate row in the ResultSet
-			booksResultSet.absolute(row+1);
-			//Retrieves item from the appropriate cell in the ResultSet
-			Object cellItem = booksResultSet.getObject(col+1);
-			
-			if (cellItem == null)
-				return null;
-			else
-				//Again, we convert our cell items to String for simplicity
-				return cellItem.toString();
-		} catch(SQLException e){
-			return e.toString();
-		}
+		//An edit that hasn't been committed is displayed in place of the stored value
+		String pending = getPendingValue(columns.getIsbn(row), col);
+		return pending != null ? pending : columns.getText(row, col);
+	}
+	
+	/**
+	 * Returns the value entered for a cell during an edit session, or null if the cell has no uncommitted edit.
+	 * 
+	 * @param isbn : ISBN of the cell's book
+	 * @param col : Column of the cell, starting from zero
+	 */
+	protected String getPendingValue(String isbn, int col){
+		return editBuffer == null || isbn == null ? null : editBuffer.getPendingValue(isbn, col);
+	}
+	
+	/**
+	 * Returns whether a cell has an edit that hasn't been committed yet, which the JTable highlights.
+	 * 
+	 * @param row : Row of the cell, starting from zero
+	 * @param col : Column of the cell, starting from zero
+	 */
+	public boolean isPending(int row, int col){
+		return editBuffer != null && !editBuffer.isEmpty() && getPendingValue(getIsbnAt(row), col) != null;
+	}
+	
+	/**
+	 * Returns the ISBN of the book at the given row.
+	 * 
+	 * @param row : Row of the book, starting from zero
+	 */
+	protected String getIsbnAt(int row){
+		return columns.getIsbn(row);
 	}
 	
 	/**
@@ -151,14 +167,13 @@ public class BooksTableModel extends AbstractTableModel {
 	 * to be editable, the user will enter a value, press enter, and this method will be called.
 	 * 
 	 * It takes an attribute of type Object, which is the new value which the user wishes to insert into the modified cell.
-	 * The method then takes that attribute and inserts it into the cell, at row "row" and column "col".
-	 * 
-	 * Also writes to the output file with information regarding the modification.
-	 * 
-	 * Contains some measures to prevent invalid input, such as an invalid date format, by notifying the user that an
-	 * incorrect format was used, and not allowing the change.
+	 * The method then takes that attribute and stores it in the cell, at row "row" and column "col", in the background
+	 * (see storeValue).
 	 * 
 	 * Finally, disallows any changes if the User is not currently "signed in". Also notifies the user that they must sign in.
+	 * 
+	 * During an edit session, the new value is only added to the EditBuffer, and is stored (and written to the
+	 * output file) when the session's edits are committed.
 	 */
 	@Override
 	public void setValueAt(Object attribute, int row, int col) {
@@ -167,24 +182,24 @@ public class BooksTableModel extends AbstractTableModel {
 			//If it's determined that the user has signed in with legitimate credentials
 			if(getAdmin()){
 				
-				//Moves the cursor to the appropriate row in the ResultSet
-				booksResultSet.absolute(row+1);
+				//A row that isn't in memory yet (or no longer exists) can't be edited
+				String isbn = getStoredValue(row, 0), oldValue = getStoredValue(row, col);
+				if(isbn == null || oldValue == null){
+					JOptionPane.showMessageDialog(null,
+						    "This book is still being read from the database, please try again once it is displayed.",
+						    "Input error",
+						    JOptionPane.ERROR_MESSAGE);
+					return;
+				}
 				
-				//Wrties to the output file details about the newly updated cell and what modification took place.
-				try (BufferedWriter writer = new BufferedWriter( new FileWriter(outputFilePath.toString(), true))) {
-				    writer.write("MODIFY - value at row: "+row+" (starting from zero)"+
-				    		 " under column: "+getColumnName(col)+": "+booksResultSet.getString(col+1)+
-				    		 " was changed to: "+attribute.toString()+"."); 
-				    writer.write(System.getProperty( "line.separator" ));
-				} catch (IOException x) {
-				    x.printStackTrace();;
+				//During an edit session the edit is kept until it is committed or rolled back
+				if(editBuffer != null){
+					editBuffer.put(isbn, col, oldValue, attribute.toString());
+					fireTableCellUpdated(row, col);
+					return;
 				}
 				
-				//Updates the cell
-				booksResultSet.updateObject(getColumnName(col), attribute);
-				booksResultSet.updateRow();
-			
-				fireTableCellUpdated(row+1, col+1);
+				storeValue(attribute, isbn, col, oldValue);
 			}
 			//Notifies the user that they can't make any changes unless they're signed in.
 			else
@@ -193,24 +208,6 @@ public class BooksTableModel extends AbstractTableModel {
 					    "Not Admin",
 					    JOptionPane.ERROR_MESSAGE);
 		
-			//Various Catches to prevent incorrect formats depending on the cell in which data is being entered. Notifies the user of the error.
-		} catch (DataTruncation dt){
-			
-			if(getColumnName(col).equals("LAST_SHIP_RECEIVED")){
-				
-				JOptionPane.showMessageDialog(null,
-					    "Incorrect format. NOTE: Date format is: YYYY/MM/DD",
-					    "Input error",
-					    JOptionPane.ERROR_MESSAGE);
-				
-			} else {
-				JOptionPane.showMessageDialog(null,
-					    "Incorrect format.",
-					    "Input error",
-					    JOptionPane.ERROR_MESSAGE);
-			}
-			
-			// Also catches SQL errors, in case there was some kind of error in the update that was caused by the input
 		} catch (SQLException e){
 			
 			JOptionPane.showMessageDialog(null,
@@ -220,6 +217,130 @@ public class BooksTableModel extends AbstractTableModel {
 		} 
 	}
 	
+	/**
+	 * Returns the value currently stored in the database for the given cell, which is recorded in the output
+	 * file as the old value when the cell is modified.
+	 * 
+	 * @param row : Row of the cell, starting from zero
+	 * @param col : Column of the cell, starting from zero
+	 * @return The stored value of the cell, or null if the row isn't in memory
+	 * @throws SQLException
+	 */
+	protected String getStoredValue(int row, int col) throws SQLException {
+		return columns.getText(row, col);
+	}
+	
+	/**
+	 * Stores a new value for a cell in the database through the QueryExecutor's queue, so that the event dispatch
+	 * thread never waits for the database. Once it is stored, the change is written to the output file, and the
+	 * book's row is read back and displayed as the database stored it.
+	 * 
+	 * Contains some measures to prevent invalid input, such as an invalid date format, by notifying the user that an
+	 * incorrect format was used, and not allowing the change.
+	 * 
+	 * @param attribute : The new value of the cell
+	 * @param isbn : ISBN of the cell's book
+	 * @param col : Column of the cell, starting from zero
+	 * @param oldValue : Value of the cell before the change, for the output file
+	 */
+	private void storeValue(final Object attribute, final String isbn, final int col, final String oldValue){
+		executor.enqueue("Storing the " + getColumnName(col) + " of book " + isbn, new Callable<BookRecord>(){
+			public BookRecord call() throws SQLException {
+				try{
+					updateBook(isbn, col, attribute);
+				} catch (DataTruncation dt){
+					//Various messages for incorrect formats depending on the cell in which data is being entered.
+					if(getColumnName(col).equals("LAST_SHIP_RECEIVED"))
+						QueryExecutor.showErrorDialog("Incorrect format. NOTE: Date format is: YYYY/MM/DD", "Input error");
+					else
+						QueryExecutor.showErrorDialog("Incorrect format.", "Input error");
+					return null;
+				} catch (SQLException e){
+					// Also catches SQL errors, in case there was some kind of error in the update that was caused by the input
+					e.printStackTrace();
+					QueryExecutor.showErrorDialog("Incorrect format.", "Input error");
+					return null;
+				}
+				
+				//Wrties to the output file details about the newly updated cell and what modification took place.
+				try {
+					AuditLog.forPath(outputFilePath).append(AuditEntry.modify(isbn, getColumnName(col), oldValue, attribute.toString()));
+				} catch (IOException x) {
+				    x.printStackTrace();
+				}
+				return findBook(isbn);
+			}
+		}, new QueryExecutor.Callback<BookRecord>(){
+			public void done(BookRecord stored) {
+				if(stored != null)
+					booksStored(Collections.singletonList(stored));
+			}
+		});
+	}
+	
+	/**
+	 * Updates one column of a book's row, found through its ISBN (the primary key of the table).
+	 * 
+	 * @param isbn : ISBN of the book to be updated
+	 * @param col : Column to be updated, starting from zero
+	 * @param attribute : The new value of the column
+	 * @throws SQLException : if the value is rejected by the database (DataTruncation for an incorrect format)
+	 */
+	protected void updateBook(String isbn, int col, Object attribute) throws SQLException {
+		BookRepository.getRepository(pool).update(isbn, col, attribute);
+		IsbnCache.getCache(pool).invalidate(isbn);
+		//Reads the book back (which caches it for the caller), so that the indexes see its new values
+		BookRecord updated = findBook(isbn);
+		if(updated != null){
+			TextSearchIndex.getIndex(pool).update(updated, COLUMN_NAMES[col]);
+			RangeIndex.getIndex(pool).put(updated);
+		}
+	}
+	
+	/**
+	 * Reads a single book through its ISBN, from the IsbnCache if it is cached and from the database otherwise.
+	 * 
+	 * @param isbn : ISBN of the book
+	 * @return The book, or null if there is no book with that ISBN
+	 * @throws SQLException
+	 */
+	protected BookRecord findBook(String isbn) throws SQLException {
+		return IsbnCache.getCache(pool).get(isbn);
+	}
+	
+	/**
+	 * Method that removes the row of a book that was deleted from the database, without reading the rows
+	 * again. Does nothing if the book isn't one of the displayed rows.
+	 * 
+	 * @param isbn : ISBN of the deleted book
+	 */
+	public void removeBook(String isbn){
+		int row = columns.indexOfIsbn(isbn);
+		if(row >= 0){
+			columns.remove(row);
+			numRows--;
+			fireTableRowsDeleted(row, row);
+		}
+	}
+	
+	/**
+	 * Method that replaces the displayed rows of books whose edits were committed with the books as the
+	 * database stored them.
+	 * 
+	 * @param books : The committed books
+	 */
+	public void booksStored(List<BookRecord> books){
+		Map<String, BookRecord> byIsbn = new HashMap<String, BookRecord>();
+		for(BookRecord book : books)
+			byIsbn.put(book.getIsbn(), book);
+		for(int row = 0; row < columns.size(); row++){
+			BookRecord book = byIsbn.get(columns.getIsbn(row));
+			if(book != null)
+				columns.set(row, book);
+		}
+		fireTableDataChanged();
+	}
+	
 	/**
 	 * Method that asks a user to enter a password. If the user enters the correct pass, "root", then
 	 * the setAdmin flag is set to true. If the user entered the wrong password, the setAdmin flag is set to false.
@@ -245,4 +366,16 @@ public class BooksTableModel extends AbstractTableModel {
 	public void setAdmin(boolean a){
 		admin = a;
 	}
+	public EditBuffer getEditBuffer(){
+		return editBuffer;
+	}
+	public void setEditBuffer(EditBuffer buffer){
+		editBuffer = buffer;
+	}
+	public QueryExecutor getExecutor(){
+		return executor;
+	}
+	public void setExecutor(QueryExecutor nExecutor){
+		executor = nExecutor;
+	}
 }
@@ -0,0 +1,244 @@
+import java.sql.Connection;
+import java.sql.DataTruncation;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that loads books into BOOKSTORE.BOOKS in bulk. Used by Initialization.readFile to seed the table
+ * from an input file, with the books coming from a BookFileParser (which is why this class is a
+ * BookFileParser.Handler).
+ * 
+ * The whole load runs on one pooled connection inside one transaction. Rows are buffered and sent to the
+ * server as multi-row INSERT statements of up to batchSize rows each, instead of one statement per book.
+ * 
+ * If a batch is rejected by the server, it is rolled back to a savepoint and its rows are inserted one at a
+ * time, so that only the rows that are actually bad get rejected. Rejected rows are reported (along with
+ * the reason) rather than stopping the load.
+ * 
+ * Usage: begin(), then addRow() for every book, then finish() to commit and print a summary. If the load
+ * has to be abandoned part way, abort() rolls it back. Lines of the input file that couldn't be parsed can
+ * be counted as rejects with reject().
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BulkLoader implements BookFileParser.Handler {
+	
+	// Number of columns in BOOKSTORE.BOOKS
+	static final int COLUMNS = 9;
+	// MySQL allows at most 65535 placeholders in a single statement
+	static final int MAX_BATCH_SIZE = 65535 / COLUMNS;
+	
+	private final ConnectionPool pool;
+	private final int batchSize;
+	
+	private Connection conn;
+	private final List<BookRecord> pendingRows = new ArrayList<BookRecord>();
+	private final List<Integer> pendingLines = new ArrayList<Integer>();
+	private final List<String> rejects = new ArrayList<String>();
+	private long rowsLoaded, startNanos, elapsedNanos;
+	
+	/**
+	 * Constructor for BulkLoader.
+	 * 
+	 * @param nPool : Connection pool from which the load borrows its connection
+	 * @param nBatchSize : Number of rows sent to the server in each INSERT statement
+	 */
+	public BulkLoader(ConnectionPool nPool, int nBatchSize){
+		pool = nPool;
+		batchSize = Math.max(1, Math.min(nBatchSize, MAX_BATCH_SIZE));
+	}
+	
+	/**
+	 * Borrows a connection and starts the transaction the load runs in.
+	 * @throws SQLException : if the connection could not be obtained
+	 */
+	public void begin() throws SQLException {
+		conn = pool.getConnection();
+		conn.setAutoCommit(false);
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Adds a book to the load. The row is sent to the server once enough rows are buffered to fill a batch.
+	 * 
+	 * @param record : The book to be added
+	 * @param lineNumber : Line of the input file the book came from, used when reporting rejects
+	 * @throws SQLException : if the connection to the server fails
+	 */
+	public void addRow(BookRecord record, int lineNumber) throws SQLException {
+		pendingRows.add(record);
+		pendingLines.add(lineNumber);
+		if(pendingRows.size() >= batchSize)
+			flush();
+	}
+	
+	/**
+	 * Adds a parsed book to the load, see addRow.
+	 */
+	@Override
+	public void record(BookRecord record, int lineNumber) throws SQLException {
+		addRow(record, lineNumber);
+	}
+	
+	/**
+	 * Records a line of the input file that couldn't be loaded, and prints it.
+	 * 
+	 * @param lineNumber : Line of the input file
+	 * @param isbn : ISBN of the rejected book, if known
+	 * @param reason : Why the book was rejected
+	 */
+	@Override
+	public void reject(int lineNumber, String isbn, String reason){
+		String reject = "Line " + lineNumber + " (ISBN " + isbn + "): " + reason;
+		rejects.add(reject);
+		System.out.println("Rejected " + reject);
+	}
+	
+	/**
+	 * Sends any buffered rows, commits the transaction, hands the connection back to the pool and prints
+	 * a summary of the load.
+	 * @throws SQLException : if the final batch or the commit fails, in which case the load is rolled back
+	 */
+	public void finish() throws SQLException {
+		try{
+			flush();
+			conn.commit();
+			elapsedNanos = System.nanoTime() - startNanos;
+		} catch (SQLException e){
+			abort();
+			throw e;
+		}
+		pool.release(conn);
+		conn = null;
+		
+		printSummary();
+	}
+	
+	/**
+	 * Rolls back everything loaded so far and hands the connection back to the pool.
+	 */
+	public void abort(){
+		pendingRows.clear();
+		pendingLines.clear();
+		if(conn == null)
+			return;
+		try{
+			conn.rollback();
+		} catch (SQLException e){
+			e.printStackTrace();
+		}
+		pool.release(conn);
+		conn = null;
+	}
+	
+	/**
+	 * Sends the buffered rows as one multi-row INSERT. If the server rejects the statement, the batch is
+	 * rolled back to a savepoint and retried row by row to find the bad rows.
+	 */
+	private void flush() throws SQLException {
+		if(pendingRows.isEmpty())
+			return;
+		
+		Savepoint savepoint = conn.setSavepoint();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, insertStatement(pendingRows.size()),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			int parameter = 1;
+			for(BookRecord record : pendingRows)
+				parameter = bind(statement, parameter, record);
+			statement.executeUpdate();
+			rowsLoaded += pendingRows.size();
+		} catch (SQLException e){
+			conn.rollback(savepoint);
+			insertRowByRow();
+		}
+		conn.releaseSavepoint(savepoint);
+		
+		pendingRows.clear();
+		pendingLines.clear();
+	}
+	
+	/**
+	 * Inserts the buffered rows one at a time, recording the rows the server rejects.
+	 */
+	private void insertRowByRow() throws SQLException {
+		PreparedStatement statement = pool.prepareStatement(conn, insertStatement(1),
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		
+		for(int row = 0; row < pendingRows.size(); row++){
+			BookRecord record = pendingRows.get(row);
+			Savepoint savepoint = conn.setSavepoint();
+			try{
+				bind(statement, 1, record);
+				statement.executeUpdate();
+				rowsLoaded++;
+			} catch (DataTruncation dt){
+				conn.rollback(savepoint);
+				reject(pendingLines.get(row), record.getIsbn(),
+						"Error processing book with ISBN: " + record.getIsbn() + " , ensure correct format.");
+			} catch (SQLException e){
+				conn.rollback(savepoint);
+				reject(pendingLines.get(row), record.getIsbn(), e.getMessage());
+			}
+			conn.releaseSavepoint(savepoint);
+		}
+	}
+	
+	/**
+	 * Binds the columns of a book to the nine parameters starting at the given index.
+	 * @return The index of the parameter after the book's last column
+	 */
+	static int bind(PreparedStatement statement, int parameter, BookRecord record) throws SQLException {
+		statement.setString(parameter++, record.getIsbn());
+		statement.setString(parameter++, record.getBookName());
+		statement.setInt(parameter++, record.getYearPublished());
+		statement.setString(parameter++, record.getAuthor());
+		statement.setInt(parameter++, record.getPages());
+		statement.setInt(parameter++, record.getCurStock());
+		statement.setBigDecimal(parameter++, record.getPrice());
+		statement.setInt(parameter++, record.getAmountSold());
+		statement.setDate(parameter++, record.getLastShipReceived());
+		return parameter;
+	}
+	
+	/**
+	 * Builds an INSERT statement with placeholders for the given number of rows. The columns are named, since
+	 * the table has columns (such as UPDATED_AT) that the server fills in itself.
+	 */
+	static String insertStatement(int rows){
+		StringBuilder sql = new StringBuilder("insert into BOOKSTORE.BOOKS (")
+				.append(String.join(", ", BooksTableModel.COLUMN_NAMES)).append(") values ");
+		for(int row = 0; row < rows; row++){
+			if(row > 0)
+				sql.append(", ");
+			sql.append("(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		}
+		return sql.toString();
+	}
+	
+	private void printSummary(){
+		double seconds = elapsedNanos / 1e9;
+		long rowsPerSecond = seconds > 0 ? (long) (rowsLoaded / seconds) : rowsLoaded;
+		System.out.println(String.format("Loaded %d books in %.2f s (%d rows/sec), %d rejected.",
+				rowsLoaded, seconds, rowsPerSecond, rejects.size()));
+	}
+	
+	// GETTERS
+	
+	public long getRowsLoaded(){
+		return rowsLoaded;
+	}
+	
+	public List<String> getRejects(){
+		return rejects;
+	}
+	
+	public long getElapsedMillis(){
+		return elapsedNanos / 1000000;
+	}
+}
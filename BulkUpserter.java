@@ -0,0 +1,323 @@
+import java.sql.DataTruncation;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that imports a file of new and changed books into the BookRepository: books that aren't in the table
+ * are inserted, books that are have their row replaced, and books whose row is already the same are skipped.
+ * Used by Utilities.importBooks, with the books coming from a BookFileParser (which is why this class is a
+ * BookFileParser.Handler), so the file is streamed rather than read into memory.
+ * 
+ * Books are buffered into batches of batchSize books. For each batch, the rows already in the table are read
+ * with one search, and a 64 bit hash of each book's values is compared with the hash of its row, so that
+ * unchanged books are never written. The remaining books are written together (in MySQL, as one multi-row
+ * "INSERT ... ON DUPLICATE KEY UPDATE" statement). The import commits every transactionSize books, so a large
+ * file doesn't hold its locks until the end.
+ * 
+ * As in BulkLoader, a batch that is rejected is rolled back and retried one book at a time, so that only the
+ * bad books are rejected. Every inserted book, and every changed column of an updated book,
+ * is recorded in the audit log once its transaction is committed.
+ * 
+ * Usage: begin(), then addRow() for every book, then finish() to commit and print a summary. abort() rolls
+ * back the transaction in progress (the transactions already committed stay committed).
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class BulkUpserter implements BookFileParser.Handler {
+	
+	private final ConnectionPool pool;
+	private final AuditLog auditLog;
+	private final int batchSize, transactionSize;
+	
+	private BookRepository.Transaction transaction;
+	private final List<BookRecord> pendingRows = new ArrayList<BookRecord>();
+	private final List<Integer> pendingLines = new ArrayList<Integer>();
+	// ISBNs of the buffered books, so that a book listed twice in the file is written in order
+	private final Map<String, Integer> pendingIsbns = new HashMap<String, Integer>();
+	// Changes made by the transaction in progress, recorded in the audit log once it is committed
+	private final List<AuditEntry> pendingEntries = new ArrayList<AuditEntry>();
+	private final List<String> rejects = new ArrayList<String>();
+	private long inserted, updated, unchanged, uncommitted, startNanos, elapsedNanos;
+	
+	/**
+	 * Constructor for BulkUpserter.
+	 * 
+	 * @param nPool : Connection pool from which the import borrows its connection, when the books are kept in MySQL
+	 * @param nAuditLog : Audit log in which the changes are recorded, or null if they aren't recorded
+	 * @param nBatchSize : Number of books looked up and written by each statement
+	 * @param nTransactionSize : Number of books after which the transaction is committed
+	 */
+	public BulkUpserter(ConnectionPool nPool, AuditLog nAuditLog, int nBatchSize, int nTransactionSize){
+		pool = nPool;
+		auditLog = nAuditLog;
+		batchSize = Math.max(1, Math.min(nBatchSize, BulkLoader.MAX_BATCH_SIZE));
+		transactionSize = Math.max(batchSize, nTransactionSize);
+	}
+	
+	/**
+	 * Starts the first transaction.
+	 * @throws SQLException : if the transaction could not be started
+	 */
+	public void begin() throws SQLException {
+		transaction = BookRepository.getRepository(pool).begin();
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Adds a book to the import. The book is written once enough books are buffered to fill a batch.
+	 * 
+	 * @param record : The book to be inserted or updated
+	 * @param lineNumber : Line of the input file the book came from, used when reporting rejects
+	 * @throws SQLException : if the connection to the server fails
+	 */
+	public void addRow(BookRecord record, int lineNumber) throws SQLException {
+		// The same book twice in one batch would be looked up before either is written, so the batch is sent first
+		if(pendingIsbns.containsKey(record.getIsbn()))
+			flush();
+		pendingIsbns.put(record.getIsbn(), pendingRows.size());
+		pendingRows.add(record);
+		pendingLines.add(lineNumber);
+		if(pendingRows.size() >= batchSize)
+			flush();
+	}
+	
+	/**
+	 * Adds a parsed book to the import, see addRow.
+	 */
+	@Override
+	public void record(BookRecord record, int lineNumber) throws SQLException {
+		addRow(record, lineNumber);
+	}
+	
+	/**
+	 * Records a line of the input file that couldn't be imported, and prints it.
+	 * 
+	 * @param lineNumber : Line of the input file
+	 * @param isbn : ISBN of the rejected book, if known
+	 * @param reason : Why the book was rejected
+	 */
+	@Override
+	public void reject(int lineNumber, String isbn, String reason){
+		String reject = "Line " + lineNumber + " (ISBN " + isbn + "): " + reason;
+		rejects.add(reject);
+		System.out.println("Rejected " + reject);
+	}
+	
+	/**
+	 * Writes any buffered books, commits the last transaction, ends it and prints a summary of the import.
+	 * @throws SQLException : if the final batch or the commit fails, in which case the last transaction is rolled back
+	 */
+	public void finish() throws SQLException {
+		try{
+			flush();
+			commit();
+			elapsedNanos = System.nanoTime() - startNanos;
+		} catch (SQLException e){
+			abort();
+			throw e;
+		}
+		transaction.close();
+		transaction = null;
+		
+		System.out.println(getSummary());
+	}
+	
+	/**
+	 * Rolls back the transaction in progress and ends it.
+	 */
+	public void abort(){
+		pendingRows.clear();
+		pendingLines.clear();
+		pendingIsbns.clear();
+		pendingEntries.clear();
+		if(transaction == null)
+			return;
+		transaction.close();
+		transaction = null;
+	}
+	
+	/**
+	 * Looks up the buffered books, and writes the ones that are new or changed.
+	 */
+	private void flush() throws SQLException {
+		if(pendingRows.isEmpty())
+			return;
+		
+		Map<String, BookRecord> existing = findExisting();
+		List<BookRecord> changed = new ArrayList<BookRecord>();
+		List<Integer> changedLines = new ArrayList<Integer>();
+		for(int i = 0; i < pendingRows.size(); i++){
+			BookRecord record = pendingRows.get(i);
+			BookRecord old = existing.get(record.getIsbn());
+			if(old != null && contentHash(old) == contentHash(record)){
+				unchanged++;
+				continue;
+			}
+			changed.add(record);
+			changedLines.add(pendingLines.get(i));
+		}
+		
+		if(!changed.isEmpty()){
+			try{
+				transaction.upsert(changed);
+				for(BookRecord record : changed)
+					written(record, existing.get(record.getIsbn()));
+			} catch (SQLException e){
+				upsertRowByRow(changed, changedLines, existing);
+			}
+		}
+		
+		uncommitted += pendingRows.size();
+		pendingRows.clear();
+		pendingLines.clear();
+		pendingIsbns.clear();
+		if(uncommitted >= transactionSize)
+			commit();
+	}
+	
+	/**
+	 * Reads the rows of the buffered books that are already in the table, with one search.
+	 */
+	private Map<String, BookRecord> findExisting() throws SQLException {
+		List<String> isbns = new ArrayList<String>(pendingRows.size());
+		for(BookRecord record : pendingRows)
+			isbns.add(record.getIsbn());
+		BookColumns found = transaction.find(isbns);
+		Map<String, BookRecord> existing = new HashMap<String, BookRecord>(found.size() * 2);
+		for(int row = 0; row < found.size(); row++)
+			existing.put(found.getIsbn(row), found.getRecord(row));
+		return existing;
+	}
+	
+	/**
+	 * Writes the given books one at a time, recording the books that are rejected.
+	 */
+	private void upsertRowByRow(List<BookRecord> rows, List<Integer> lines, Map<String, BookRecord> existing) throws SQLException {
+		for(int row = 0; row < rows.size(); row++){
+			BookRecord record = rows.get(row);
+			try{
+				transaction.upsert(Collections.singletonList(record));
+				written(record, existing.get(record.getIsbn()));
+			} catch (DataTruncation dt){
+				reject(lines.get(row), record.getIsbn(),
+						"Error processing book with ISBN: " + record.getIsbn() + " , ensure correct format.");
+			} catch (SQLException e){
+				reject(lines.get(row), record.getIsbn(), e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Counts a book that was written, and prepares its audit entries.
+	 * 
+	 * @param record : The book's new values
+	 * @param old : The book's previous values, or null if it was inserted
+	 */
+	private void written(BookRecord record, BookRecord old){
+		if(old == null){
+			inserted++;
+			if(auditLog != null){
+				Object[] row = new Object[BulkLoader.COLUMNS];
+				for(int col = 0; col < row.length; col++)
+					row[col] = record.getColumnText(col);
+				pendingEntries.add(AuditEntry.add(row));
+			}
+			return;
+		}
+		updated++;
+		if(auditLog != null){
+			for(int col = 1; col < BulkLoader.COLUMNS; col++){
+				String oldText = old.getColumnText(col), newText = record.getColumnText(col);
+				if(!oldText.equals(newText))
+					pendingEntries.add(AuditEntry.modify(record.getIsbn(), BooksTableModel.COLUMN_NAMES[col], oldText, newText));
+			}
+		}
+	}
+	
+	/**
+	 * Commits the transaction in progress, and records its changes in the audit log.
+	 */
+	private void commit() throws SQLException {
+		transaction.commit();
+		uncommitted = 0;
+		if(auditLog != null){
+			for(AuditEntry entry : pendingEntries)
+				auditLog.append(entry);
+		}
+		pendingEntries.clear();
+	}
+	
+	/**
+	 * Returns a 64 bit hash of every value of a book, in the form the table stores it (the price in cents, the
+	 * date as a day), so that a book read from the file and the same book read from the table hash the same.
+	 */
+	static long contentHash(BookRecord record){
+		// FNV-1a over the values, with a separator between them so that moving text between columns changes the hash
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, record.getIsbn());
+		h = hash(h, record.getBookName());
+		h = hash(h, record.getAuthor());
+		h = hash(h, record.getYearPublished());
+		h = hash(h, record.getPages());
+		h = hash(h, record.getCurStock());
+		h = hash(h, record.getPriceCents());
+		h = hash(h, record.getAmountSold());
+		return hash(h, record.getLastShipEpochDay());
+	}
+	
+	private static long hash(long h, String value){
+		for(int i = 0; i < value.length(); i++){
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= 0xffff;
+		return h * 0x100000001b3L;
+	}
+	
+	private static long hash(long h, long value){
+		for(int i = 0; i < 8; i++){
+			h ^= (value >>> (i * 8)) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+	
+	/**
+	 * Returns a one line summary of the import: the number of books inserted, updated, unchanged and rejected,
+	 * and the number of books read per second.
+	 */
+	public String getSummary(){
+		double seconds = elapsedNanos / 1e9;
+		long total = inserted + updated + unchanged + rejects.size();
+		long rowsPerSecond = seconds > 0 ? (long) (total / seconds) : total;
+		return String.format("Imported %d books in %.2f s (%d rows/sec): %d inserted, %d updated, %d unchanged, %d rejected.",
+				total, seconds, rowsPerSecond, inserted, updated, unchanged, rejects.size());
+	}
+	
+	// GETTERS
+	
+	public long getInserted(){
+		return inserted;
+	}
+	
+	public long getUpdated(){
+		return updated;
+	}
+	
+	public long getUnchanged(){
+		return unchanged;
+	}
+	
+	public List<String> getRejects(){
+		return rejects;
+	}
+	
+	public long getElapsedMillis(){
+		return elapsedNanos / 1000000;
+	}
+}
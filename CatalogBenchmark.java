@@ -0,0 +1,371 @@
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stand-alone benchmark suite for the three paths whose speed the user notices: loading an input file, the
+ * searches of the Queries class, and BooksTableModel.getValueAt, which the JTable calls for every cell it paints.
+ * 
+ * No database is needed. Each catalog size gets a synthetic input file (see ParserBenchmark), which is parsed
+ * by BookFileParser, the same parser Initialization.readFile uses, into an InMemoryCatalog. The catalog stands in
+ * for the database: it keeps the books in a BookColumns, with the IsbnCache, TextSearchIndex and RangeIndex built
+ * over them, and the Queries methods are run against it through a subclass of Queries. The searches that are
+ * always sent to the database as SQL (the exact ISBN, title, author and stock searches) are measured by
+ * QueryBenchmark against a MySQL server instead.
+ * 
+ * Every measurement is warmed up by running it as many times as it is then measured. For each one, the average
+ * time, the median and 99th percentile of a single run, and the bytes allocated per operation are printed. The
+ * allocations are counted by the JVM for each thread (com.sun.management.ThreadMXBean), so no profiler is needed.
+ * 
+ * Usage: "java -Xmx12g CatalogBenchmark [sizes] [runs]", where sizes is a comma separated list of catalog sizes
+ * (default 10000,1000000,10000000) and runs the number of measured runs of each search (default 1000). A size
+ * that doesn't fit in the heap is skipped: 10 million books need a heap of about 10 GB.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class CatalogBenchmark {
+	
+	// Rows of a JTable painted at once, and the number of times a catalog is loaded to measure ingestion
+	private static final int VISIBLE_ROWS = 40, INGEST_ROUNDS = 3;
+	// Rough heap needed per book while the benchmarks run, from the heap used after loading one million books
+	private static final long BYTES_PER_BOOK = 900;
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	// Results of the operations, kept so that the JIT can't skip computing them
+	private static volatile long consumed;
+	
+	/**
+	 * An operation being measured.
+	 */
+	interface Operation {
+		/**
+		 * @param run : Number of the run, used to pick the operation's input
+		 * @return The result of the operation
+		 */
+		Object run(int run) throws Exception;
+	}
+	
+	/**
+	 * Runs the benchmark suite.
+	 * @param args : optionally, the catalog sizes (default 10000,1000000,10000000) and the number of measured
+	 * runs of each search (default 1000)
+	 */
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "10000,1000000,10000000").split(",");
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		if(!THREADS.isThreadAllocatedMemorySupported())
+			System.out.println("This JVM doesn't count allocations, B/op is left empty");
+		else
+			THREADS.setThreadAllocatedMemoryEnabled(true);
+		
+		for(String sizeText : sizes){
+			int size = Integer.parseInt(sizeText.trim());
+			long needed = size * BYTES_PER_BOOK;
+			if(needed > Runtime.getRuntime().maxMemory()){
+				System.out.println(String.format("%n%d books: skipped, needs a heap of about %d MB (-Xmx)", size, needed >> 20));
+				continue;
+			}
+			System.out.println(String.format("%n%d books", size));
+			System.out.println(String.format("%-32s %12s %12s %12s %12s", "Benchmark", "ns/op", "p50 us", "p99 us", "B/op"));
+			
+			InMemoryCatalog catalog = ingest(size);
+			searches(catalog, runs);
+			tableModel(catalog, runs);
+			catalog = null;
+			System.gc();
+		}
+	}
+	
+	/**
+	 * Measures the loading of an input file into a catalog, and returns the last catalog loaded.
+	 */
+	private static InMemoryCatalog ingest(int size) throws Exception {
+		Path file = Files.createTempFile("books", ".txt");
+		try{
+			ParserBenchmark.writeSyntheticFile(file, size);
+			InMemoryCatalog catalog = null;
+			// The first round warms up, unless the catalog is too large to be loaded more than once in reasonable time
+			int rounds = size > 1000000 ? 1 : INGEST_ROUNDS;
+			for(int round = 1; round <= rounds; round++){
+				catalog = null;
+				System.gc();
+				
+				// The parser runs on a ForkJoinPool, so the allocations of every thread are counted
+				long allocated = allocatedBytes(true);
+				long start = System.nanoTime();
+				catalog = new InMemoryCatalog(size);
+				new BookFileParser().parse(file, catalog);
+				catalog.finish();
+				long nanos = System.nanoTime() - start;
+				allocated = allocatedBytes(true) - allocated;
+				
+				System.out.println(String.format("%-32s %12.0f %12s %12s %12s   (%.0f rows/sec%s)", "ingest (per row)",
+						nanos / (double) size, "", "", allocated < 0 ? "" : String.valueOf(allocated / size),
+						size / (nanos / 1e9), round == 1 && rounds > 1 ? ", warm-up" : ""));
+			}
+			if(catalog.rejects > 0)
+				throw new IllegalStateException(catalog.rejects + " lines of the synthetic file were rejected");
+			return catalog;
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Measures each search of the Queries class that the catalog can answer.
+	 */
+	private static void searches(InMemoryCatalog catalog, int runs) throws Exception {
+		final Queries queries = new InMemoryQueries(catalog);
+		int size = catalog.books.size();
+		
+		// The inputs are picked up front, twice as many as the measured runs since the warm-up uses the first half
+		Random random = new Random(42);
+		final String[] isbns = new String[runs * 2], titles = new String[runs * 2], typos = new String[runs * 2],
+				authors = new String[runs * 2], years = new String[runs * 2], pages = new String[runs * 2],
+				prices = new String[runs * 2];
+		for(int i = 0; i < runs * 2; i++){
+			int row = random.nextInt(size);
+			isbns[i] = catalog.books.getIsbn(row);
+			String title = catalog.books.getBookName(row);
+			titles[i] = title.substring(title.indexOf(' ') + 1);
+			typos[i] = title.replace("Title", "Titel");
+			authors[i] = catalog.books.getAuthor(row);
+			years[i] = String.valueOf(catalog.books.getYearPublished(row));
+			pages[i] = String.valueOf(catalog.books.getPages(row));
+			prices[i] = BigDecimal.valueOf(catalog.books.getPriceCents(row), 2).toPlainString();
+		}
+		
+		measure("lookupISBN", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.lookupISBN(isbns[run]);
+			}
+		});
+		measure("searchByText title contains", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchByText(TextSearchIndex.Field.TITLE, new String[]{titles[run], "contains"});
+			}
+		});
+		measure("searchByText title prefix", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchByText(TextSearchIndex.Field.TITLE, new String[]{titles[run], "prefix"});
+			}
+		});
+		measure("searchByText title similar", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchByText(TextSearchIndex.Field.TITLE, new String[]{typos[run], "similar"});
+			}
+		});
+		measure("searchByText author contains", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchByText(TextSearchIndex.Field.AUTHOR, new String[]{authors[run], "contains"});
+			}
+		});
+		measure("searchForDesiredYear during", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchForDesiredYear(new String[]{years[run], "during"});
+			}
+		});
+		measure("searchForDesiredPage lesser", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchForDesiredPage(new String[]{pages[run], "lesser"});
+			}
+		});
+		measure("searchForDesiredPrice lesser", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.searchForDesiredPrice(new String[]{prices[run], "lesser"});
+			}
+		});
+		measure("search year + pages + price", runs, 1, new Operation(){
+			public Object run(int run) throws SQLException {
+				return queries.search(new BookQuery().year("during", Integer.parseInt(years[run]))
+						.pages("greater", Integer.parseInt(pages[run])).price("lesser", new BigDecimal(prices[run])));
+			}
+		});
+	}
+	
+	/**
+	 * Measures getValueAt per cell, both for cells painted for the first time and for cells painted again.
+	 */
+	private static void tableModel(InMemoryCatalog catalog, int runs) throws Exception {
+		// A copy of the books, so that the text cached by the searches' BookColumns doesn't make cells look painted
+		BookColumns rows = new BookColumns(catalog.books.size());
+		for(int row = 0; row < catalog.books.size(); row++)
+			rows.add(catalog.books, row);
+		final BooksTableModel model = new BooksTableModel(rows, null, null);
+		final int cells = VISIBLE_ROWS * model.getColumnCount();
+		
+		// Each run paints rows no run painted before, as scrolling through the table does
+		int firstPaintRuns = Math.min(runs, rows.size() / VISIBLE_ROWS / 2);
+		measure("getValueAt first paint (cell)", firstPaintRuns, cells, new Operation(){
+			public Object run(int run) {
+				return paint(model, run * VISIBLE_ROWS);
+			}
+		});
+		// The same few screens painted over and over, as when the window is resized or uncovered
+		measure("getValueAt repaint (cell)", runs, cells, new Operation(){
+			public Object run(int run) {
+				return paint(model, (run % 8) * VISIBLE_ROWS);
+			}
+		});
+	}
+	
+	/**
+	 * Reads every cell of VISIBLE_ROWS rows, as the JTable does when painting them.
+	 */
+	private static Object paint(BooksTableModel model, int firstRow){
+		Object last = null;
+		for(int row = firstRow; row < firstRow + VISIBLE_ROWS; row++){
+			for(int col = 0; col < model.getColumnCount(); col++)
+				last = model.getValueAt(row, col);
+		}
+		return last;
+	}
+	
+	/**
+	 * Runs an operation to warm it up, then runs it again as many times while measuring it, and prints a line
+	 * with the results.
+	 * 
+	 * @param name : Name printed for the operation
+	 * @param runs : Number of measured runs
+	 * @param operationsPerRun : Number of operations each run performs, the times and allocations being per operation
+	 * @param operation : The operation, called with run numbers 0 to runs - 1 to warm up, then runs to 2 * runs - 1
+	 */
+	private static void measure(String name, int runs, int operationsPerRun, Operation operation) throws Exception {
+		if(runs == 0)
+			return;
+		long results = 0;
+		for(int run = 0; run < runs; run++)
+			results += operation.run(run) == null ? 0 : 1;
+		
+		long[] times = new long[runs];
+		long allocated = allocatedBytes(false);
+		long start = System.nanoTime();
+		for(int run = 0; run < runs; run++){
+			long runStart = System.nanoTime();
+			results += operation.run(runs + run) == null ? 0 : 1;
+			times[run] = System.nanoTime() - runStart;
+		}
+		long nanos = System.nanoTime() - start;
+		allocated = allocatedBytes(false) - allocated;
+		consumed += results;
+		
+		Arrays.sort(times);
+		double operations = (double) runs * operationsPerRun;
+		System.out.println(String.format("%-32s %12.1f %12.2f %12.2f %12s", name, nanos / operations,
+				times[runs / 2] / 1e3, times[Math.min(runs - 1, (int) (runs * 0.99))] / 1e3,
+				allocated < 0 ? "" : String.format("%.0f", allocated / operations)));
+	}
+	
+	/**
+	 * Returns the number of bytes allocated so far by the calling thread, or by every live thread, or -1 if the JVM
+	 * doesn't count them.
+	 */
+	private static long allocatedBytes(boolean allThreads){
+		if(!THREADS.isThreadAllocatedMemorySupported())
+			return -1;
+		if(!allThreads)
+			return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+		long total = 0;
+		for(long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds()))
+			total += Math.max(0, bytes);
+		return total;
+	}
+	
+	/**
+	 * Class that stands in for the database: the books loaded from an input file, kept in memory with the same
+	 * IsbnCache, TextSearchIndex and RangeIndex that the application builds over the database.
+	 */
+	static class InMemoryCatalog implements BookFileParser.Handler {
+		
+		final BookColumns books;
+		final Map<String, Integer> rowOf;
+		final TextSearchIndex textIndex = new TextSearchIndex(null);
+		final RangeIndex rangeIndex = new RangeIndex(null);
+		final IsbnCache isbnCache;
+		long rejects;
+		
+		InMemoryCatalog(int capacity){
+			books = new BookColumns(capacity);
+			rowOf = new HashMap<String, Integer>(capacity * 2);
+			//The cache reads the books it doesn't hold from the catalog, as it would from the database
+			isbnCache = new IsbnCache(new IsbnCache.Loader(){
+				public BookRecord load(String isbn) {
+					Integer row = rowOf.get(isbn);
+					return row == null ? null : books.getRecord(row);
+				}
+			}, Integer.getInteger("bookstore.cache.maxEntries", 100000), System.getProperty("bookstore.cache.policy", IsbnCache.LRU));
+		}
+		
+		public void record(BookRecord record, int lineNumber) {
+			if(rowOf.containsKey(record.getIsbn())){
+				rejects++;
+				return;
+			}
+			rowOf.put(record.getIsbn(), books.size());
+			books.add(record);
+			textIndex.add(record.getIsbn(), record.getBookName(), record.getAuthor());
+		}
+		
+		public void reject(int lineNumber, String isbn, String reason) {
+			rejects++;
+		}
+		
+		/**
+		 * Sorts the range indexes once every book is loaded.
+		 */
+		void finish(){
+			rangeIndex.load(books);
+		}
+		
+		/**
+		 * Returns the books with the given ISBNs, in the same order, as Queries.fetchBooks reads them from the database.
+		 */
+		BookColumns fetch(List<String> isbns){
+			BookColumns found = new BookColumns(isbns.size());
+			for(String isbn : isbns){
+				Integer row = rowOf.get(isbn);
+				if(row != null)
+					found.add(books, row);
+			}
+			return found;
+		}
+	}
+	
+	/**
+	 * Queries that searches an InMemoryCatalog instead of the database.
+	 */
+	static class InMemoryQueries extends Queries {
+		
+		private final InMemoryCatalog catalog;
+		
+		InMemoryQueries(InMemoryCatalog nCatalog){
+			super(null, null, null);
+			catalog = nCatalog;
+		}
+		
+		IsbnCache getIsbnCache(){
+			return catalog.isbnCache;
+		}
+		
+		TextSearchIndex getTextSearchIndex(){
+			return catalog.textIndex;
+		}
+		
+		RangeIndex getRangeIndex(){
+			return catalog.rangeIndex;
+		}
+		
+		BookColumns fetchBooks(List<String> isbns){
+			return catalog.fetch(isbns);
+		}
+	}
+}
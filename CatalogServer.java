@@ -0,0 +1,596 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DataTruncation;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Class that serves the catalog over HTTP, so that other programs (such as a web storefront or scanners) can
+ * search and change it with JSON requests instead of through the GUI. Chosen by starting Main with "--server":
+ * 
+ * "java Main --server outputFile.txt [port]"
+ * 
+ * Endpoints (books are JSON objects keyed by column name, see BookRecord.toJson):
+ * 
+ *   GET    /books/{isbn}                   the book, or 404
+ *   GET    /books?criteria                 the books matching every criterion, as a JSON array. The criteria are
+ *                                          isbn, title, author, stock (in or out), and year, pages and price,
+ *                                          each of which can also be given as minYear, maxPrice and so on.
+ *                                          Without criteria, every book is streamed from the database.
+ *   GET    /search?field=title|author&mode=exact|contains|prefix|similar&q=text
+ *                                          the books whose title or author matches the text
+ *   POST   /books                          adds the book in the request body, 201 with the stored book
+ *   PATCH  /books/{isbn}                   changes the columns in the request body (CUR_STOCK, PRICE,
+ *                                          AMOUNT_SOLD, LAST_SHIP_RECEIVED) in one transaction
+ *   DELETE /books/{isbn}                   deletes the book, 204 or 404
+ * 
+ * Errors are answered with {"error": "..."} and 400 (bad request), 401, 403, 404, 405, 409 (duplicate ISBN),
+ * 503 (too many requests waiting) or 500.
+ * 
+ * The server only listens on the loopback address, unless another address is given with
+ * "-Dbookstore.server.host=..." (for example 0.0.0.0 for every interface). Anyone who can connect may search
+ * the catalog, but POST, PATCH, PUT and DELETE need "Authorization: Bearer TOKEN" with the token given by
+ * "-Dbookstore.server.token=...". Without a token, changes are only accepted from this machine.
+ * 
+ * Requests run on a fixed pool of "bookstore.server.threads" threads (default 16) with a queue of
+ * "bookstore.server.queueSize" requests (default 256). When the queue is full, the request is answered
+ * straight away with 503 and a Retry-After header, so a burst of clients is turned away instead of piling up
+ * without bound, and the thread that accepts connections never waits for a slow request. The requests share the application's connection
+ * pool, statement caches, IsbnCache and search indexes, and changes are recorded in the output file as in the GUI.
+ * 
+ * JSON arrays are written to the client as the rows are produced, in chunks, so a large response doesn't
+ * have to be held in memory.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class CatalogServer {
+	
+	private static final int THREADS = Integer.getInteger("bookstore.server.threads", 16);
+	private static final int QUEUE_SIZE = Integer.getInteger("bookstore.server.queueSize", 256);
+	// Token that clients must send to change the catalog, or null to only accept changes from this machine
+	private static final String TOKEN = System.getProperty("bookstore.server.token");
+	// Largest request body that is read, which is far more than one book needs
+	private static final int MAX_BODY_BYTES = 64 * 1024;
+	
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+	private final ConnectionPool pool;
+	private final Queries queries;
+	private final Utilities ut;
+	private final Path outputFilePath;
+	
+	/**
+	 * Constructor for CatalogServer. The server doesn't accept requests until start() is called.
+	 * 
+	 * @param url : URL needed for connection to Database
+	 * @param username : Username needed for connection to Database
+	 * @param password : Password needed for connection to Database
+	 * @param outputFile : Output file to which changes are recorded
+	 * @param address : Address and port to listen on, port 0 picks a free port
+	 * @throws IOException : if the port could not be opened
+	 */
+	public CatalogServer(String url, String username, String password, Path outputFile, InetSocketAddress address) throws IOException {
+		pool = ConnectionPool.getPool(url, username, password);
+		queries = new Queries(url, username, password);
+		ut = new Utilities(outputFile, pool);
+		outputFilePath = outputFile;
+		
+		workers = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, QUEUE_SIZE)), new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "catalog-server-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		//The handlers run on the thread that accepts connections, and only hand each request to the workers
+		server = HttpServer.create(address, QUEUE_SIZE);
+		server.createContext("/books", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				dispatch(exchange, false);
+			}
+		});
+		server.createContext("/search", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				dispatch(exchange, true);
+			}
+		});
+	}
+	
+	/**
+	 * Runs the server until the application is stopped.
+	 * 
+	 * @param args : The output file, optionally followed by the port (default "bookstore.server.port", or 8080)
+	 * @return 0 once the server is started, or 1 if it couldn't be
+	 */
+	public static int run(String[] args){
+		System.setProperty("java.awt.headless", "true");
+		if(args.length == 0){
+			System.err.println("Usage: java Main --server outputFile [port], see CatalogServer for the endpoints");
+			return 1;
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("bookstore.server.port", 8080);
+		String host = System.getProperty("bookstore.server.host", "127.0.0.1");
+		
+		Initialization init = new Initialization((Connection) null);
+		try{
+			final CatalogServer catalogServer = new CatalogServer(init.getURL(), init.getUsername(), init.getPassword(),
+					Paths.get(args[0]), new InetSocketAddress(host, port));
+			if(!BookRepository.isEmbedded())
+				SchemaMigrations.prepareSchema(catalogServer.pool);
+			catalogServer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+				public void run() {
+					catalogServer.stop(1);
+				}
+			}, "catalog-server-shutdown"));
+			System.out.println("Serving the catalog on " + host + ", port " + catalogServer.getPort());
+			return 0;
+		} catch (IOException | SQLException e){
+			e.printStackTrace();
+			return 1;
+		}
+	}
+	
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start(){
+		server.start();
+	}
+	
+	/**
+	 * Stops accepting requests, waits up to the given number of seconds for the ones in progress to finish,
+	 * and then stops the worker threads.
+	 * 
+	 * @param delaySeconds : How long to wait for the requests in progress
+	 */
+	public void stop(int delaySeconds){
+		server.stop(delaySeconds);
+		workers.shutdown();
+	}
+	
+	/**
+	 * Hands a request to the workers, or answers it with 503 if too many requests are already waiting for them.
+	 * 
+	 * @param exchange : The request
+	 * @param search : Whether the request was sent to /search rather than /books
+	 */
+	private void dispatch(final HttpExchange exchange, final boolean search){
+		try{
+			workers.execute(new Runnable(){
+				public void run() {
+					try{
+						serve(exchange, search);
+					} catch (IOException e){
+						//The client went away before the response was sent
+					}
+				}
+			});
+		} catch (RejectedExecutionException e){
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			sendError(exchange, 503, "The server is busy, please try again");
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Answers a request, turning any failure into a JSON error response.
+	 * 
+	 * @param exchange : The request
+	 * @param search : Whether the request was sent to /search rather than /books
+	 */
+	private void serve(HttpExchange exchange, boolean search) throws IOException {
+		try{
+			String method = exchange.getRequestMethod().toUpperCase();
+			String path = exchange.getRequestURI().getRawPath();
+			String context = search ? "/search" : "/books";
+			String isbn = path.length() > context.length() + 1 ? decode(path.substring(context.length() + 1)) : null;
+			Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+			if(!method.equals("GET") && !method.equals("HEAD"))
+				checkMayChange(exchange);
+			
+			if(search){
+				if(!method.equals("GET"))
+					throw new HttpError(405, "Only GET is allowed on /search");
+				searchByText(exchange, parameters);
+			}
+			else if(isbn == null){
+				if(method.equals("GET"))
+					findBooks(exchange, parameters);
+				else if(method.equals("POST"))
+					addBook(exchange);
+				else
+					throw new HttpError(405, method + " is not allowed on /books");
+			}
+			else{
+				if(method.equals("GET"))
+					getBook(exchange, isbn);
+				else if(method.equals("PATCH") || method.equals("PUT"))
+					updateBook(exchange, isbn);
+				else if(method.equals("DELETE"))
+					deleteBook(exchange, isbn);
+				else
+					throw new HttpError(405, method + " is not allowed on /books/{isbn}");
+			}
+		} catch (HttpError e){
+			sendError(exchange, e.status, e.getMessage());
+		} catch (IllegalArgumentException | NullPointerException e){
+			sendError(exchange, 400, e.getMessage());
+		} catch (DataTruncation e){
+			sendError(exchange, 400, "Incorrect format. NOTE: Date format is: YYYY/MM/DD");
+		} catch (SQLException e){
+			//SQLState class 23 is a constraint violation, which for this table means the ISBN is taken
+			if(e.getSQLState() != null && e.getSQLState().startsWith("23"))
+				sendError(exchange, 409, e.getMessage());
+			else{
+				e.printStackTrace();
+				sendError(exchange, 500, e.getMessage());
+			}
+		} catch (RuntimeException e){
+			e.printStackTrace();
+			sendError(exchange, 500, String.valueOf(e));
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Checks that the client may change the catalog: it must send the configured token or, when no token is
+	 * configured, connect from this machine.
+	 */
+	private static void checkMayChange(HttpExchange exchange){
+		if(TOKEN == null || TOKEN.isEmpty()){
+			if(!exchange.getRemoteAddress().getAddress().isLoopbackAddress())
+				throw new HttpError(403, "Changes are only accepted from this machine, unless bookstore.server.token is set");
+			return;
+		}
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		//Compared in constant time, so the response time doesn't tell how much of the token was right
+		if(authorization == null || !MessageDigest.isEqual(authorization.getBytes(StandardCharsets.UTF_8),
+				("Bearer " + TOKEN).getBytes(StandardCharsets.UTF_8))){
+			exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+			throw new HttpError(401, "A valid token is needed to change the catalog");
+		}
+	}
+	
+	private void getBook(HttpExchange exchange, String isbn) throws SQLException, IOException {
+		BookRecord book = IsbnCache.getCache(pool).get(isbn);
+		if(book == null)
+			throw new HttpError(404, "Book with ISBN: " + isbn + " doesn't exist in table.");
+		sendJson(exchange, 200, book.toJson());
+	}
+	
+	/**
+	 * Answers a search by criteria through Queries.search, or streams every book if there are no criteria.
+	 */
+	private void findBooks(HttpExchange exchange, Map<String, String> parameters) throws SQLException, IOException {
+		if(parameters.isEmpty()){
+			sendAllBooks(exchange);
+			return;
+		}
+		
+		//The parameters are turned into the criteria of a headless "search" command, such as "price<=20"
+		List<String> criteria = new ArrayList<String>();
+		for(Map.Entry<String, String> parameter : parameters.entrySet()){
+			String name = parameter.getKey();
+			if(name.startsWith("min") && name.length() > 3)
+				criteria.add(name.substring(3) + ">=" + parameter.getValue());
+			else if(name.startsWith("max") && name.length() > 3)
+				criteria.add(name.substring(3) + "<=" + parameter.getValue());
+			else
+				criteria.add(name + "=" + parameter.getValue());
+		}
+		sendBooks(exchange, queries.search(HeadlessMode.parseQuery(criteria)));
+	}
+	
+	private void searchByText(HttpExchange exchange, Map<String, String> parameters) throws SQLException, IOException {
+		String field = parameters.get("field"), mode = parameters.get("mode"), text = parameters.get("q");
+		if(field == null || text == null)
+			throw new IllegalArgumentException("Usage: /search?field=title|author&mode=exact|contains|prefix|similar&q=text");
+		mode = mode == null ? "contains" : mode.toLowerCase();
+		if(!mode.equals("exact") && !mode.equals("contains") && !mode.equals("prefix") && !mode.equals("similar"))
+			throw new IllegalArgumentException("Unknown kind of search \"" + mode + "\"");
+		sendBooks(exchange, queries.searchByText(TextSearchIndex.Field.valueOf(field.toUpperCase()), new String[]{text, mode}));
+	}
+	
+	private void addBook(HttpExchange exchange) throws SQLException, IOException {
+		Map<String, String> values = parseJsonObject(readBody(exchange));
+		Object[] items = new Object[BooksTableModel.COLUMN_NAMES.length];
+		for(int col = 0; col < items.length; col++){
+			items[col] = values.get(BooksTableModel.COLUMN_NAMES[col]);
+			if(items[col] == null)
+				throw new IllegalArgumentException("Missing " + BooksTableModel.COLUMN_NAMES[col]);
+		}
+		BookRecord added = ut.insertRow(items);
+		sendJson(exchange, 201, added != null ? added.toJson() : "{}");
+	}
+	
+	/**
+	 * Changes the given columns of a book in one transaction, through an EditBuffer of its own.
+	 */
+	private void updateBook(HttpExchange exchange, String isbn) throws SQLException, IOException {
+		Map<String, String> values = parseJsonObject(readBody(exchange));
+		BookRecord book = IsbnCache.getCache(pool).get(isbn);
+		if(book == null)
+			throw new HttpError(404, "Book with ISBN: " + isbn + " doesn't exist in table.");
+		
+		EditBuffer edits = new EditBuffer(pool, outputFilePath);
+		for(Map.Entry<String, String> value : values.entrySet()){
+			if(!HeadlessMode.UPDATABLE_COLUMNS.contains(value.getKey()))
+				throw new IllegalArgumentException("Only " + HeadlessMode.UPDATABLE_COLUMNS + " can be changed");
+			if(value.getValue() == null)
+				throw new IllegalArgumentException(value.getKey() + " can't be null");
+			int col = indexOfColumn(value.getKey());
+			edits.put(isbn, col, book.getColumnText(col), value.getValue());
+		}
+		List<BookRecord> stored = edits.isEmpty() ? Collections.singletonList(book) : edits.commit(edits.getEdits());
+		if(stored.isEmpty())
+			throw new HttpError(404, "Book with ISBN: " + isbn + " doesn't exist in table.");
+		sendJson(exchange, 200, stored.get(0).toJson());
+	}
+	
+	private void deleteBook(HttpExchange exchange, String isbn) throws SQLException, IOException {
+		if(ut.deleteRows(Collections.singletonList(isbn)) == 0)
+			throw new HttpError(404, "Book with ISBN: " + isbn + " doesn't exist in table.");
+		exchange.sendResponseHeaders(204, -1);
+	}
+	
+	/**
+	 * Streams every book to the client, reading them one at a time. The response is only started by the first
+	 * book, so that a scan that can't be started is still reported as an error.
+	 */
+	private void sendAllBooks(final HttpExchange exchange) throws SQLException, IOException {
+		final Writer[] out = new Writer[1];
+		BookRepository.getRepository(pool).scan(new BookRepository.Visitor(){
+			public void visit(BookRecord book) throws IOException {
+				if(out[0] == null)
+					out[0] = startJsonArray(exchange);
+				else
+					out[0].write(',');
+				out[0].write(book.toJson());
+			}
+		});
+		if(out[0] == null)
+			out[0] = startJsonArray(exchange);
+		out[0].write(']');
+		out[0].flush();
+	}
+	
+	private void sendBooks(HttpExchange exchange, BookColumns books) throws IOException {
+		Writer out = startJsonArray(exchange);
+		for(int row = 0; books != null && row < books.size(); row++){
+			if(row > 0)
+				out.write(',');
+			out.write(books.getRecord(row).toJson());
+		}
+		out.write(']');
+		out.flush();
+	}
+	
+	/**
+	 * Starts a chunked 200 response, so that a JSON array can be written without knowing its length.
+	 */
+	private static Writer startJsonArray(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024);
+		out.write('[');
+		return out;
+	}
+	
+	private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+	
+	private static void sendError(HttpExchange exchange, int status, String message){
+		StringBuilder json = new StringBuilder("{\"error\":");
+		BookRecord.appendJsonString(json, String.valueOf(message));
+		try{
+			sendJson(exchange, status, json.append('}').toString());
+		} catch (IOException e){
+			//The response was already started (a stream failed part way), or the client went away
+		}
+	}
+	
+	private static String readBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try(InputStream in = exchange.getRequestBody()){
+			int read;
+			while((read = in.read(buffer)) > 0){
+				body.write(buffer, 0, read);
+				if(body.size() > MAX_BODY_BYTES)
+					throw new HttpError(413, "The request body is too large");
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Reads the parameters of a query string, in order. A parameter given twice keeps its last value.
+	 */
+	static Map<String, String> parseQuery(String rawQuery){
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		if(rawQuery == null || rawQuery.isEmpty())
+			return parameters;
+		for(String pair : rawQuery.split("&")){
+			if(pair.isEmpty())
+				continue;
+			int equals = pair.indexOf('=');
+			String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+			parameters.put(name, equals < 0 ? "" : decode(pair.substring(equals + 1)));
+		}
+		return parameters;
+	}
+	
+	private static String decode(String text){
+		try{
+			return URLDecoder.decode(text, "UTF-8");
+		} catch (UnsupportedEncodingException e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Reads a JSON object whose values are strings, numbers, booleans or null (nested objects and arrays
+	 * aren't needed for a book). Numbers and booleans are returned as their text, and the keys are upper cased
+	 * so that they match the column names.
+	 * 
+	 * @param json : The JSON text
+	 * @return The values by key, in order
+	 * @throws IllegalArgumentException : if the text isn't such an object
+	 */
+	static Map<String, String> parseJsonObject(String json){
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		int[] position = {skipSpaces(json, 0)};
+		expect(json, position, '{');
+		if(peek(json, position) == '}'){
+			position[0]++;
+		}
+		else{
+			while(true){
+				String key = readJsonString(json, position);
+				expect(json, position, ':');
+				values.put(key.toUpperCase(), readJsonValue(json, position));
+				char next = peek(json, position);
+				position[0]++;
+				if(next == '}')
+					break;
+				if(next != ',')
+					throw new IllegalArgumentException("Expected ',' or '}' at character " + position[0] + " of the request body");
+			}
+		}
+		if(skipSpaces(json, position[0]) != json.length())
+			throw new IllegalArgumentException("Unexpected text after the JSON object in the request body");
+		return values;
+	}
+	
+	private static String readJsonValue(String json, int[] position){
+		char c = peek(json, position);
+		if(c == '"')
+			return readJsonString(json, position);
+		int start = position[0];
+		while(position[0] < json.length() && ",}] \t\r\n".indexOf(json.charAt(position[0])) < 0)
+			position[0]++;
+		String literal = json.substring(start, position[0]);
+		if(literal.equals("null"))
+			return null;
+		if(literal.isEmpty() || literal.equals("{") || literal.startsWith("["))
+			throw new IllegalArgumentException("Expected a string, number, true, false or null at character " + start + " of the request body");
+		return literal;
+	}
+	
+	private static String readJsonString(String json, int[] position){
+		expect(json, position, '"');
+		StringBuilder text = new StringBuilder();
+		while(position[0] < json.length()){
+			char c = json.charAt(position[0]++);
+			if(c == '"')
+				return text.toString();
+			if(c != '\\'){
+				text.append(c);
+				continue;
+			}
+			if(position[0] >= json.length())
+				break;
+			char escaped = json.charAt(position[0]++);
+			switch(escaped){
+			case 'n': text.append('\n'); break;
+			case 'r': text.append('\r'); break;
+			case 't': text.append('\t'); break;
+			case 'b': text.append('\b'); break;
+			case 'f': text.append('\f'); break;
+			case 'u':
+				if(position[0] + 4 > json.length())
+					throw new IllegalArgumentException("Incomplete \\u escape in the request body");
+				text.append((char) Integer.parseInt(json.substring(position[0], position[0] + 4), 16));
+				position[0] += 4;
+				break;
+			default: text.append(escaped);
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string in the request body");
+	}
+	
+	private static void expect(String json, int[] position, char expected){
+		if(peek(json, position) != expected)
+			throw new IllegalArgumentException("Expected '" + expected + "' at character " + position[0] + " of the request body");
+		position[0]++;
+	}
+	
+	/**
+	 * Skips any spaces, and returns the next character (or 0 at the end of the text) without consuming it.
+	 */
+	private static char peek(String json, int[] position){
+		position[0] = skipSpaces(json, position[0]);
+		return position[0] < json.length() ? json.charAt(position[0]) : 0;
+	}
+	
+	private static int skipSpaces(String json, int position){
+		while(position < json.length() && Character.isWhitespace(json.charAt(position)))
+			position++;
+		return position;
+	}
+	
+	private static int indexOfColumn(String column){
+		for(int col = 0; col < BooksTableModel.COLUMN_NAMES.length; col++){
+			if(BooksTableModel.COLUMN_NAMES[col].equals(column))
+				return col;
+		}
+		return -1;
+	}
+	
+	// GETTERS
+	
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * Exception that ends a request with the given HTTP status.
+	 */
+	private static class HttpError extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		private final int status;
+		
+		HttpError(int nStatus, String message){
+			super(message);
+			status = nStatus;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-alone load test for a running CatalogServer ("java Main --server outputFile.txt").
+ * 
+ * A sample of ISBNs and titles is read from the server first. Then a number of client threads send requests
+ * as fast as they are answered for a given time: 70% look up a book by ISBN, 20% search titles for a word of
+ * a sampled title, and 10% search by price. The throughput, the latency percentiles and the number of failed
+ * requests are printed at the end.
+ * 
+ * Usage: "java CatalogServerBenchmark [base URL] [clients] [seconds]"
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class CatalogServerBenchmark {
+	
+	private static final int SAMPLE_SIZE = 10000;
+	private static final Pattern ISBN = Pattern.compile("\"ISBN\":\"([^\"]*)\"");
+	private static final Pattern TITLE = Pattern.compile("\"BOOK_NAME\":\"([^\"\\\\]*)\"");
+	
+	/**
+	 * Runs the load test.
+	 * @param args : optionally, the server's URL (default http://localhost:8080), the number of clients (default 16)
+	 * and the number of seconds to run for (default 30)
+	 */
+	public static void main(String[] args) throws Exception {
+		final String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		
+		final List<String> isbns = new ArrayList<String>(), words = new ArrayList<String>();
+		sample(baseUrl, isbns, words);
+		if(isbns.isEmpty())
+			throw new IllegalStateException("The server has no books to look up");
+		System.out.println("Sampled " + isbns.size() + " books, running " + clients + " clients for " + seconds + " s");
+		
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final long[][] latencies = new long[clients][];
+		final int[] counts = new int[clients];
+		final AtomicLong failures = new AtomicLong();
+		Thread[] threads = new Thread[clients];
+		for(int c = 0; c < clients; c++){
+			final int client = c;
+			threads[c] = new Thread(new Runnable(){
+				public void run() {
+					Random random = new Random(client);
+					long[] times = new long[1 << 16];
+					int count = 0;
+					while(System.nanoTime() < deadline){
+						int kind = random.nextInt(10);
+						String path;
+						if(kind < 7)
+							path = "/books/" + isbns.get(random.nextInt(isbns.size()));
+						else if(kind < 9)
+							path = "/search?field=title&mode=contains&q=" + encode(words.get(random.nextInt(words.size())));
+						else
+							path = "/books?maxPrice=" + (1 + random.nextInt(20));
+						
+						long start = System.nanoTime();
+						if(!request(baseUrl + path))
+							failures.incrementAndGet();
+						if(count == times.length)
+							times = Arrays.copyOf(times, count * 2);
+						times[count++] = System.nanoTime() - start;
+					}
+					latencies[client] = times;
+					counts[client] = count;
+				}
+			}, "client-" + c);
+			threads[c].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		
+		int total = 0;
+		for(int count : counts)
+			total += count;
+		long[] all = new long[total];
+		int filled = 0;
+		for(int c = 0; c < clients; c++){
+			System.arraycopy(latencies[c], 0, all, filled, counts[c]);
+			filled += counts[c];
+		}
+		Arrays.sort(all);
+		System.out.println(String.format("%d requests, %.0f requests/s, %d failed", total, total / (double) seconds, failures.get()));
+		if(total > 0)
+			System.out.println(String.format("latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+					percentile(all, 50), percentile(all, 90), percentile(all, 99), all[total - 1] / 1e6));
+	}
+	
+	/**
+	 * Reads the ISBNs and title words of the first books streamed by GET /books, then closes the connection.
+	 */
+	private static void sample(String baseUrl, List<String> isbns, List<String> words) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/books").openConnection();
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))){
+			//Books are separated by "},{", so each one is read as a separate piece
+			StringBuilder book = new StringBuilder();
+			int c;
+			while(isbns.size() < SAMPLE_SIZE && (c = in.read()) >= 0){
+				book.append((char) c);
+				if(c != '}')
+					continue;
+				Matcher isbn = ISBN.matcher(book), title = TITLE.matcher(book);
+				if(isbn.find())
+					isbns.add(isbn.group(1));
+				if(title.find()){
+					for(String word : title.group(1).split("\\W+")){
+						if(word.length() >= 4)
+							words.add(word);
+					}
+				}
+				book.setLength(0);
+			}
+		} finally {
+			connection.disconnect();
+		}
+		if(words.isEmpty())
+			words.add("the");
+	}
+	
+	/**
+	 * Sends a GET request and reads the whole response, returning whether it succeeded. Connections are kept
+	 * alive between requests by HttpURLConnection.
+	 */
+	private static boolean request(String url){
+		try{
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if(in != null){
+				byte[] buffer = new byte[8192];
+				while(in.read(buffer) >= 0){
+				}
+				in.close();
+			}
+			return status < 400 || status == 404;
+		} catch (IOException e){
+			return false;
+		}
+	}
+	
+	private static String encode(String text){
+		try{
+			return URLEncoder.encode(text, "UTF-8");
+		} catch (IOException e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static double percentile(long[] sorted, int percent){
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * (long) percent / 100))] / 1e6;
+	}
+}
@@ -0,0 +1,105 @@
+import java.sql.SQLException;
+
+/**
+ * Class that keeps the copies of the books held in memory (the IsbnCache, the TextSearchIndex and the RangeIndex)
+ * up to date with the changes made by other clients of the database, without reading every book again.
+ * 
+ * The tracker remembers a change token (see BookRepository.changeToken), and each refresh reads only the books
+ * changed or deleted since that token and applies them to the caches and indexes. The changes are handed back, so
+ * that BooksGUI can patch the rows it displays in the same way, and the token only moves forward once BooksGUI
+ * commits it after doing so. Changes that were read but never displayed are therefore read again by the next
+ * refresh, and applying them to the caches and indexes a second time does no harm.
+ * 
+ * The time each refresh takes is recorded in the "refresh.delta" histogram of Metrics, and the number of books
+ * it changed or deleted in "refresh.rows".
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class ChangeTracker {
+	
+	private static final Metrics.Histogram REFRESH_TIME = Metrics.timer("refresh.delta");
+	private static final Metrics.Histogram REFRESH_ROWS = Metrics.histogram("refresh.rows");
+	
+	private final ConnectionPool pool;
+	private boolean started;
+	private long token;
+	
+	/**
+	 * Constructor for ChangeTracker. No token is taken until the first commit.
+	 * 
+	 * @param nPool : Connection pool of the database
+	 */
+	public ChangeTracker(ConnectionPool nPool){
+		pool = nPool;
+	}
+	
+	/**
+	 * Method that reads the changes made since the last committed token, and applies them to the caches and indexes.
+	 * The token is left where it is, see commit.
+	 * 
+	 * @return The changes, or null if no token has been committed yet or the committed one is too old, in which
+	 * case every row should be read again (after taking a token with changeToken)
+	 * @throws SQLException : if the changes could not be read
+	 */
+	public synchronized BookRepository.Changes refresh() throws SQLException {
+		if(!started)
+			return null;
+		
+		long start = System.nanoTime();
+		BookRepository.Changes changes = BookRepository.getRepository(pool).changesSince(token);
+		IsbnCache cache = IsbnCache.getCache(pool);
+		TextSearchIndex textIndex = TextSearchIndex.getIndex(pool);
+		RangeIndex rangeIndex = RangeIndex.getIndex(pool);
+		
+		//Some of the changes are no longer known, so the caches and indexes are read again as well
+		if(changes == null){
+			cache.invalidateAll();
+			textIndex.invalidate();
+			rangeIndex.invalidate();
+			started = false;
+			return null;
+		}
+		
+		//Deletions first, since a book deleted and then added again is in both lists
+		for(String isbn : changes.getDeleted()){
+			cache.invalidate(isbn);
+			textIndex.remove(isbn);
+			rangeIndex.remove(isbn);
+		}
+		for(BookRecord book : changes.getChanged()){
+			cache.invalidate(book.getIsbn());
+			textIndex.add(book.getIsbn(), book.getBookName(), book.getAuthor());
+			rangeIndex.put(book);
+		}
+		
+		REFRESH_TIME.recordSince(start);
+		REFRESH_ROWS.record(changes.getChanged().size() + changes.getDeleted().size());
+		return changes;
+	}
+	
+	/**
+	 * Method that returns a token marking the present point in the history of changes, to be committed once every
+	 * row read after it is displayed.
+	 * 
+	 * @return The token
+	 * @throws SQLException : if the token could not be read
+	 */
+	public long changeToken() throws SQLException {
+		return BookRepository.getRepository(pool).changeToken();
+	}
+	
+	/**
+	 * Method that moves the token forward, once the rows displayed are up to date with it (either patched with the
+	 * changes returned by refresh, or read again after taking the token). The next refresh then only reads the
+	 * changes made since. A token older than the one already committed is ignored.
+	 * 
+	 * @param nToken : The token of the changes returned by refresh, or one returned by changeToken
+	 */
+	public synchronized void commit(long nToken){
+		if(!started || nToken > token){
+			token = nToken;
+			started = true;
+		}
+	}
+}
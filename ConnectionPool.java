@@ -0,0 +1,388 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps a bounded pool of open connections to the MySQL server, so that the queries made
+ * by Queries, Initialization and BooksGUI don't each pay for a new TCP handshake and login.
+ * 
+ * Connections are borrowed with getConnection() and handed back with release(). A connection that has been
+ * sitting idle for a while is checked with Connection.isValid() before it is handed out again, and a background
+ * thread closes connections that have been idle for too long (while keeping a minimum number of them open).
+ * 
+ * Each pooled connection also carries a StatementCache, so that prepared statements survive between borrows
+ * and get reused by prepareStatement().
+ * 
+ * The pool also keeps a handful of counters (active, idle, created, waits, etc.) that can be read through the
+ * getters or printed with getStats(), and the time taken to hand out each connection is recorded in Metrics.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class ConnectionPool {
+	
+	private static ConnectionPool sharedPool;
+	// Time taken to hand out a connection, including any wait for a free one (see Metrics)
+	private static final Metrics.Histogram ACQUIRE_TIME = Metrics.timer("pool.acquire");
+	
+	private final String url, username, password;
+	private final int maxSize, minIdle, statementCacheSize;
+	private final long acquireTimeoutMillis, idleTimeoutMillis, validationIntervalMillis;
+	
+	// Idle connections, most recently used first, so that the "hot" connections are reused and the cold ones age out
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	// Connections currently handed out, keyed by the physical connection
+	private final Map<Connection, PooledConnection> borrowed = new ConcurrentHashMap<Connection, PooledConnection>();
+	// One permit per connection the pool is allowed to have open at once
+	private final Semaphore permits;
+	private final ScheduledExecutorService evictor;
+	// Set by close(), after which connections are no longer handed out or kept
+	private volatile boolean closed;
+	
+	// Metrics
+	private final AtomicInteger peakActive = new AtomicInteger();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong acquireCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong acquireNanos = new AtomicLong();
+	
+	/**
+	 * Constructor for ConnectionPool.
+	 * 
+	 * @param nURL : URL needed for connection to Database
+	 * @param nUsername : Username needed for connection to Database
+	 * @param nPassword : Password needed for connection to Database
+	 * @param nMaxSize : Maximum number of connections that can be open at once
+	 * @param nMinIdle : Number of idle connections that the evictor will leave open
+	 * @param nAcquireTimeoutMillis : How long getConnection() waits for a free connection before giving up
+	 * @param nIdleTimeoutMillis : How long a connection may sit idle before the evictor closes it
+	 * @param nValidationIntervalMillis : Idle time after which a connection is validated before being handed out
+	 * @param nStatementCacheSize : Number of prepared statements kept open per connection
+	 */
+	public ConnectionPool(String nURL, String nUsername, String nPassword, int nMaxSize, int nMinIdle,
+			long nAcquireTimeoutMillis, long nIdleTimeoutMillis, long nValidationIntervalMillis, int nStatementCacheSize){
+		url = nURL;
+		username = nUsername;
+		password = nPassword;
+		maxSize = nMaxSize;
+		minIdle = nMinIdle;
+		acquireTimeoutMillis = nAcquireTimeoutMillis;
+		idleTimeoutMillis = nIdleTimeoutMillis;
+		validationIntervalMillis = nValidationIntervalMillis;
+		statementCacheSize = nStatementCacheSize;
+		permits = new Semaphore(maxSize, true);
+		
+		// Daemon thread that periodically closes connections that have been idle for too long
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "connection-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long evictionPeriod = Math.max(1000, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(new Runnable(){
+			public void run() {
+				evictIdleConnections();
+			}
+		}, evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Returns the pool shared by the whole application, creating it the first time it is requested.
+	 * 
+	 * The size and timeouts of the shared pool can be tuned with the system properties "bookstore.pool.maxSize",
+	 * "bookstore.pool.minIdle", "bookstore.pool.acquireTimeoutMillis", "bookstore.pool.idleTimeoutMillis" and
+	 * "bookstore.pool.statementCacheSize".
+	 * 
+	 * @param nURL : URL needed for connection to Database
+	 * @param nUsername : Username needed for connection to Database
+	 * @param nPassword : Password needed for connection to Database
+	 * @return The shared ConnectionPool
+	 */
+	public static synchronized ConnectionPool getPool(String nURL, String nUsername, String nPassword){
+		if(nURL == null)
+			throw new NullPointerException("URL must be initialized before using the connection pool");
+		
+		if(sharedPool == null){
+			sharedPool = new ConnectionPool(nURL, nUsername, nPassword,
+					Integer.getInteger("bookstore.pool.maxSize", 8),
+					Integer.getInteger("bookstore.pool.minIdle", 1),
+					Long.getLong("bookstore.pool.acquireTimeoutMillis", 10000),
+					Long.getLong("bookstore.pool.idleTimeoutMillis", 300000),
+					5000,
+					Integer.getInteger("bookstore.pool.statementCacheSize", 32));
+			
+			// Closes the pooled connections when the application exits
+			final ConnectionPool pool = sharedPool;
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+				public void run() {
+					pool.close();
+				}
+			}, "connection-pool-shutdown"));
+		}
+		return sharedPool;
+	}
+	
+	/**
+	 * Borrows a connection from the pool. If every connection is in use, waits up to the acquire timeout
+	 * for one to be released. The connection must be handed back with release() once it is no longer needed.
+	 * 
+	 * @return An open connection to the database
+	 * @throws SQLException : if the pool is closed, no connection became available in time, or a new connection
+	 * could not be opened
+	 */
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		if(closed)
+			throw new SQLException("The connection pool is closed");
+		
+		// Waits for a free slot in the pool
+		try{
+			if(!permits.tryAcquire()){
+				waitCount.incrementAndGet();
+				if(!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)){
+					timeoutCount.incrementAndGet();
+					throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for a pooled connection ("
+							+ getActiveCount() + " of " + maxSize + " in use)");
+				}
+			}
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a pooled connection", e);
+		}
+		
+		try{
+			//The pool may have been closed while waiting
+			if(closed)
+				throw new SQLException("The connection pool is closed");
+			PooledConnection pc = takeIdleConnection();
+			if(pc == null)
+				pc = openConnection();
+			
+			borrowed.put(pc.connection, pc);
+			updatePeak();
+			acquireCount.incrementAndGet();
+			acquireNanos.addAndGet(System.nanoTime() - start);
+			ACQUIRE_TIME.recordSince(start);
+			return pc.connection;
+		} catch (SQLException e){
+			permits.release();
+			throw e;
+		} catch (RuntimeException e){
+			permits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns a PreparedStatement for the given SQL from the statement cache of a borrowed connection,
+	 * preparing it on the connection the first time it is used. The returned statement must not be closed
+	 * by the caller, it stays open for the next borrower of the connection.
+	 * 
+	 * @param conn : Connection previously obtained from getConnection()
+	 * @param sql : SQL with "?" placeholders for the parameters
+	 * @param resultSetType : One of the ResultSet.TYPE_* constants
+	 * @param resultSetConcurrency : One of the ResultSet.CONCUR_* constants
+	 * @return A cached PreparedStatement
+	 * @throws SQLException : if the statement could not be prepared
+	 */
+	public PreparedStatement prepareStatement(Connection conn, String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		PooledConnection pc = borrowed.get(conn);
+		if(pc == null)
+			throw new SQLException("Connection is not currently borrowed from this pool");
+		return pc.statements.prepare(sql, resultSetType, resultSetConcurrency);
+	}
+	
+	/**
+	 * Hands a connection back to the pool. Any transaction left open on the connection is rolled back.
+	 * Connections that are closed or broken, or released once the pool is closed, are discarded rather than
+	 * reused. Passing null, or a connection that didn't come from this pool, does nothing.
+	 * 
+	 * @param conn : Connection previously obtained from getConnection()
+	 */
+	public void release(Connection conn){
+		if(conn == null)
+			return;
+		
+		PooledConnection pc = borrowed.remove(conn);
+		if(pc == null)
+			return;
+		
+		try{
+			if(closed || conn.isClosed()){
+				destroy(pc);
+			}
+			else{
+				// Leaves the connection the way the next borrower expects to find it
+				if(!conn.getAutoCommit()){
+					conn.rollback();
+					conn.setAutoCommit(true);
+				}
+				pc.lastUsed = System.currentTimeMillis();
+				idle.offerFirst(pc);
+				//The pool may have been closed meanwhile, after its idle connections were closed
+				if(closed && idle.remove(pc))
+					destroy(pc);
+			}
+		} catch (SQLException e){
+			destroy(pc);
+		} finally {
+			permits.release();
+		}
+	}
+	
+	/**
+	 * Closes every idle connection and stops the evictor. Connections that are still borrowed are closed
+	 * when they are released, and getConnection() fails from now on.
+	 */
+	public void close(){
+		closed = true;
+		evictor.shutdownNow();
+		PooledConnection pc;
+		while((pc = idle.pollFirst()) != null)
+			destroy(pc);
+	}
+	
+	/**
+	 * Takes the most recently used idle connection, validating it first if it has been idle for longer than
+	 * the validation interval. Connections that fail validation are closed and the next one is tried.
+	 * 
+	 * @return A healthy idle connection, or null if there are none
+	 */
+	private PooledConnection takeIdleConnection(){
+		PooledConnection pc;
+		while((pc = idle.pollFirst()) != null){
+			if(System.currentTimeMillis() - pc.lastUsed < validationIntervalMillis)
+				return pc;
+			try{
+				if(pc.connection.isValid(2))
+					return pc;
+			} catch (SQLException e){
+				// Treated the same as a failed validation
+			}
+			validationFailureCount.incrementAndGet();
+			destroy(pc);
+		}
+		return null;
+	}
+	
+	/**
+	 * Opens a new physical connection to the database.
+	 */
+	private PooledConnection openConnection() throws SQLException {
+		Connection conn = DriverManager.getConnection(url, username, password);
+		createdCount.incrementAndGet();
+		return new PooledConnection(conn, statementCacheSize);
+	}
+	
+	/**
+	 * Closes a physical connection, ignoring any error since it is being thrown away anyway.
+	 */
+	private void destroy(PooledConnection pc){
+		destroyedCount.incrementAndGet();
+		pc.statements.close();
+		try{
+			pc.connection.close();
+		} catch (SQLException e){
+			// Nothing else can be done with a connection that fails to close
+		}
+	}
+	
+	/**
+	 * Closes connections that have been idle for longer than the idle timeout, oldest first, while leaving
+	 * at least minIdle connections open.
+	 */
+	private void evictIdleConnections(){
+		long now = System.currentTimeMillis();
+		Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+		while(oldestFirst.hasNext() && idle.size() > minIdle){
+			PooledConnection pc = oldestFirst.next();
+			if(now - pc.lastUsed >= idleTimeoutMillis && idle.remove(pc)){
+				evictedCount.incrementAndGet();
+				destroy(pc);
+			}
+		}
+	}
+	
+	private void updatePeak(){
+		int active = borrowed.size();
+		int peak = peakActive.get();
+		while(active > peak && !peakActive.compareAndSet(peak, active))
+			peak = peakActive.get();
+	}
+	
+	/**
+	 * Returns a one line summary of the pool metrics.
+	 */
+	public String getStats(){
+		return "ConnectionPool[active=" + getActiveCount() + ", idle=" + getIdleCount() + ", max=" + maxSize
+				+ ", peakActive=" + getPeakActiveCount() + ", created=" + getCreatedCount()
+				+ ", destroyed=" + destroyedCount.get() + ", evicted=" + evictedCount.get()
+				+ ", validationFailures=" + validationFailureCount.get() + ", acquired=" + acquireCount.get()
+				+ ", waits=" + getWaitCount() + ", timeouts=" + timeoutCount.get()
+				+ ", avgAcquireMicros=" + getAverageAcquireMicros() + "]";
+	}
+	
+	// GETTERS
+	
+	public int getActiveCount(){
+		return borrowed.size();
+	}
+	
+	public int getIdleCount(){
+		return idle.size();
+	}
+	
+	public int getMaxSize(){
+		return maxSize;
+	}
+	
+	public int getPeakActiveCount(){
+		return peakActive.get();
+	}
+	
+	public long getCreatedCount(){
+		return createdCount.get();
+	}
+	
+	public long getWaitCount(){
+		return waitCount.get();
+	}
+	
+	public long getAverageAcquireMicros(){
+		long count = acquireCount.get();
+		return count == 0 ? 0 : acquireNanos.get() / count / 1000;
+	}
+	
+	/**
+	 * A physical connection along with its statement cache and the bookkeeping the pool needs for it.
+	 */
+	private static class PooledConnection {
+		final Connection connection;
+		final StatementCache statements;
+		volatile long lastUsed;
+		
+		PooledConnection(Connection conn, int statementCacheSize){
+			connection = conn;
+			statements = new StatementCache(conn, statementCacheSize);
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+}
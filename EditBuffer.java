@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that holds the cell edits of an edit session until the user commits or rolls them back.
+ * 
+ * While an edit session is on, BooksTableModel.setValueAt puts each edit here instead of updating the
+ * database, and the table displays (and highlights) the edited value in place of the stored one. Editing a
+ * cell again replaces its edit, and editing it back to its stored value drops the edit.
+ * 
+ * commit() stores every edit in a single transaction of the BookRepository. In MySQL, the edits of each column
+ * are sent as one JDBC batch of "UPDATE ... WHERE ISBN = ?" statements, so repricing hundreds of books costs a
+ * few round trips and one commit. If any edit is rejected, the whole transaction is rolled back and the edits stay in the buffer, so
+ * the user can correct the rejected one and commit again.
+ * 
+ * Edits are made on the event dispatch thread and committed on a background thread, so the methods that
+ * read or change the edits are synchronized. A commit in the background starts with startCommit, and the edits
+ * it takes stay in the buffer until it ends: a rollback keeps them (they are stored anyway), and a cell edited
+ * again meanwhile keeps its newer edit, rebased on the committed value once the commit is done.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class EditBuffer {
+	
+	private final ConnectionPool pool;
+	private final Path outputFilePath;
+	// Edits by ISBN, in the order the books were first edited. Each book has one slot per column.
+	private final Map<String, Edit[]> edits = new LinkedHashMap<String, Edit[]>();
+	private int size;
+	// Edits being committed in the background, or null if no commit is running
+	private List<Edit> committing;
+	
+	/**
+	 * Constructor for EditBuffer.
+	 * 
+	 * @param nPool : Connection pool used to commit the edits
+	 * @param outputFile : Output file to which the committed edits are recorded
+	 */
+	public EditBuffer(ConnectionPool nPool, Path outputFile){
+		pool = nPool;
+		outputFilePath = outputFile;
+	}
+	
+	/**
+	 * Adds an edit of a cell, replacing any earlier edit of the same cell. The cell's stored value is kept
+	 * from the first edit, so that the audit log records the change from the stored value to the last one.
+	 * If the earlier edit is being committed, the new edit is kept even when it matches the stored value,
+	 * since that value is about to change (see remove).
+	 * 
+	 * @param isbn : ISBN of the edited book
+	 * @param col : Edited column, starting from zero
+	 * @param storedValue : Value of the cell in the database
+	 * @param newValue : Value entered by the user
+	 */
+	public synchronized void put(String isbn, int col, String storedValue, String newValue){
+		Edit[] bookEdits = edits.get(isbn);
+		if(bookEdits == null){
+			bookEdits = new Edit[BooksTableModel.COLUMN_NAMES.length];
+			edits.put(isbn, bookEdits);
+		}
+		Edit previous = bookEdits[col];
+		boolean previousCommitting = false;
+		if(previous != null){
+			storedValue = previous.getStoredValue();
+			previousCommitting = isCommitting(previous);
+			size--;
+		}
+		
+		//Editing a cell back to its stored value leaves nothing to commit
+		if(previousCommitting && newValue.equals(previous.getNewValue())){
+			bookEdits[col] = previous;
+			size++;
+		}
+		else if(newValue.equals(storedValue) && !previousCommitting)
+			bookEdits[col] = null;
+		else{
+			bookEdits[col] = new Edit(isbn, col, storedValue, newValue);
+			size++;
+		}
+		if(isEmpty(bookEdits))
+			edits.remove(isbn);
+	}
+	
+	/**
+	 * Returns the value entered for a cell, or null if the cell hasn't been edited.
+	 * 
+	 * @param isbn : ISBN of the book
+	 * @param col : Column of the cell, starting from zero
+	 */
+	public synchronized String getPendingValue(String isbn, int col){
+		if(size == 0)
+			return null;
+		Edit[] bookEdits = edits.get(isbn);
+		return bookEdits == null || bookEdits[col] == null ? null : bookEdits[col].getNewValue();
+	}
+	
+	/**
+	 * Returns a copy of the edits, in the order the books were first edited.
+	 */
+	public synchronized List<Edit> getEdits(){
+		List<Edit> copy = new ArrayList<Edit>(size);
+		for(Edit[] bookEdits : edits.values()){
+			for(Edit edit : bookEdits){
+				if(edit != null)
+					copy.add(edit);
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * Takes the edits to be committed in the background, which are then kept by clear until the commit ends
+	 * with remove (once they are stored) or commitFailed.
+	 * 
+	 * @return The edits, in the order the books were first edited, or null if a commit is already running
+	 */
+	public synchronized List<Edit> startCommit(){
+		if(committing != null)
+			return null;
+		List<Edit> toCommit = getEdits();
+		if(!toCommit.isEmpty())
+			committing = toCommit;
+		return toCommit;
+	}
+	
+	/**
+	 * Removes the given edits once they are stored. A cell that has been edited again since keeps its newer
+	 * edit, whose stored value becomes the value just committed (or which is dropped if it is that value).
+	 * 
+	 * @param committed : Edits returned by getEdits or startCommit
+	 */
+	public synchronized void remove(List<Edit> committed){
+		if(committed == committing)
+			committing = null;
+		for(Edit edit : committed){
+			Edit[] bookEdits = edits.get(edit.getIsbn());
+			Edit current = bookEdits == null ? null : bookEdits[edit.getColumn()];
+			if(current == null)
+				continue;
+			if(current != edit && !current.getNewValue().equals(edit.getNewValue())){
+				bookEdits[edit.getColumn()] = new Edit(edit.getIsbn(), edit.getColumn(), edit.getNewValue(), current.getNewValue());
+				continue;
+			}
+			bookEdits[edit.getColumn()] = null;
+			size--;
+			if(isEmpty(bookEdits))
+				edits.remove(edit.getIsbn());
+		}
+	}
+	
+	/**
+	 * Ends a commit started with startCommit that stored nothing. The edits stay in the buffer, except for those
+	 * made meanwhile that set a cell back to its stored value.
+	 * 
+	 * @param failed : Edits returned by startCommit
+	 */
+	public synchronized void commitFailed(List<Edit> failed){
+		if(failed != committing)
+			return;
+		committing = null;
+		for(Edit edit : failed){
+			Edit[] bookEdits = edits.get(edit.getIsbn());
+			Edit current = bookEdits == null ? null : bookEdits[edit.getColumn()];
+			if(current == null || !current.getNewValue().equals(current.getStoredValue()))
+				continue;
+			bookEdits[edit.getColumn()] = null;
+			size--;
+			if(isEmpty(bookEdits))
+				edits.remove(edit.getIsbn());
+		}
+	}
+	
+	/**
+	 * Discards every edit (the rollback of an edit session), except for those being committed, which are stored
+	 * anyway and so are put back if they had been edited again.
+	 */
+	public synchronized void clear(){
+		edits.clear();
+		size = 0;
+		if(committing == null)
+			return;
+		for(Edit edit : committing){
+			Edit[] bookEdits = edits.get(edit.getIsbn());
+			if(bookEdits == null){
+				bookEdits = new Edit[BooksTableModel.COLUMN_NAMES.length];
+				edits.put(edit.getIsbn(), bookEdits);
+			}
+			bookEdits[edit.getColumn()] = edit;
+			size++;
+		}
+	}
+	
+	private boolean isCommitting(Edit edit){
+		return committing != null && committing.contains(edit);
+	}
+	
+	/**
+	 * Stores the given edits in the database in one transaction, and then records them in the output file.
+	 * The edits are not removed from the buffer, see remove.
+	 * 
+	 * @param toCommit : Edits returned by getEdits
+	 * @return The edited books, as the database stored them
+	 * @throws SQLException : if any edit was rejected, in which case none of them are stored
+	 */
+	public List<BookRecord> commit(List<Edit> toCommit) throws SQLException {
+		try(BookRepository.Transaction transaction = BookRepository.getRepository(pool).begin()){
+			transaction.update(toCommit);
+			transaction.commit();
+		}
+		
+		//The committed books are read back, so that the caches, the search indexes and the displayed rows
+		//see the values as the database stored them
+		List<BookRecord> stored = new ArrayList<BookRecord>();
+		String lastIsbn = null;
+		for(Edit edit : toCommit)
+			IsbnCache.getCache(pool).invalidate(edit.getIsbn());
+		for(Edit edit : toCommit){
+			//Only the first edit of a book reads it, the others find it in the IsbnCache
+			BookRecord book = IsbnCache.getCache(pool).get(edit.getIsbn());
+			if(book == null)
+				continue;
+			TextSearchIndex.getIndex(pool).update(book, BooksTableModel.COLUMN_NAMES[edit.getColumn()]);
+			
+			//The edits of a book are next to each other, so each book is only put in the range indexes once
+			if(edit.getIsbn().equals(lastIsbn))
+				continue;
+			lastIsbn = edit.getIsbn();
+			RangeIndex.getIndex(pool).put(book);
+			stored.add(book);
+		}
+		
+		//Writes the details of each committed edit to the designated output file
+		try {
+			AuditLog log = AuditLog.forPath(outputFilePath);
+			for(Edit edit : toCommit)
+				log.append(AuditEntry.modify(edit.getIsbn(), BooksTableModel.COLUMN_NAMES[edit.getColumn()],
+						edit.getStoredValue(), edit.getNewValue()));
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
+		return stored;
+	}
+	
+	/**
+	 * Builds the error reported when one of the edits being committed is rejected, naming the edit.
+	 * 
+	 * @param edit : The rejected edit
+	 * @param cause : The error that rejected it
+	 */
+	static SQLException rejected(Edit edit, SQLException cause){
+		String message = "The value \"" + edit.getNewValue() + "\" of " + BooksTableModel.COLUMN_NAMES[edit.getColumn()]
+				+ " for the book with ISBN: " + edit.getIsbn() + " was rejected";
+		if(BooksTableModel.COLUMN_NAMES[edit.getColumn()].equals("LAST_SHIP_RECEIVED"))
+			message += ". NOTE: Date format is: YYYY/MM/DD";
+		return new SQLException(message, cause);
+	}
+	
+	private static boolean isEmpty(Edit[] bookEdits){
+		for(Edit edit : bookEdits){
+			if(edit != null)
+				return false;
+		}
+		return true;
+	}
+	
+	// GETTERS
+	
+	public synchronized int size(){
+		return size;
+	}
+	
+	public synchronized boolean isEmpty(){
+		return size == 0;
+	}
+	
+	public synchronized boolean isCommitting(){
+		return committing != null;
+	}
+	
+	/**
+	 * Class that holds a single edit of a cell.
+	 */
+	public static class Edit {
+		
+		private final String isbn, storedValue, newValue;
+		private final int col;
+		
+		Edit(String nIsbn, int nCol, String nStoredValue, String nNewValue){
+			isbn = nIsbn;
+			col = nCol;
+			storedValue = nStoredValue;
+			newValue = nNewValue;
+		}
+		
+		// GETTERS
+		
+		public String getIsbn(){
+			return isbn;
+		}
+		
+		public int getColumn(){
+			return col;
+		}
+		
+		public String getStoredValue(){
+			return storedValue;
+		}
+		
+		public String getNewValue(){
+			return newValue;
+		}
+	}
+}
@@ -0,0 +1,767 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.DataTruncation;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Class that keeps the books in the application's own memory instead of in a database server (see
+ * BookRepository), so that reading a book never leaves the process.
+ * 
+ * The books are kept in a TreeMap in ISBN order, guarded by a read/write lock: any number of threads can read
+ * at once, and a commit waits for them. Books are immutable BookRecords, so a scan copies the references under
+ * the lock and then visits the books without holding it.
+ * 
+ * Every commit is first appended to a write-ahead log ("books.wal") and forced to the disk, and only then
+ * applied to the map. A commit is one frame of the log: its length, a CRC32 of its contents, and the books it
+ * added or changed (whole rows) and the ISBNs it deleted. When the store is opened, the latest snapshot
+ * ("books.snapshot") is read and the frames of the log are applied to it again, in order. A frame that was
+ * only partly written, because the application stopped in the middle of a commit, fails its CRC and is cut
+ * off, so a commit is either entirely in the store or not at all.
+ * 
+ * Once the log grows past "bookstore.storage.checkpointBytes" (64 MB by default), every book is written to a
+ * new snapshot, which replaces the old one with an atomic rename, and the log is emptied. Forcing every commit
+ * to the disk can be turned off with "-Dbookstore.storage.sync=false", in which case the last commits can be
+ * lost if the machine (but not just the application) stops.
+ * 
+ * The store counts its commits, and once a change token is asked for (see BookRepository.changesSince) it
+ * remembers the last commit to change each book, so that a refresh only reads the books changed since then.
+ * 
+ * A store without a directory is kept in memory only, which is handy for tests and benchmarks. The directory
+ * is locked while the store is open, so that two processes can't write to the same log.
+ * 
+ * Values given as text are converted the way MySQL converts them into the columns of BOOKSTORE.BOOKS, and a
+ * value that doesn't fit its column is rejected with a DataTruncation, as in MySQL's strict mode.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class EmbeddedBookRepository implements BookRepository {
+	
+	static final String SNAPSHOT_FILE = "books.snapshot", LOG_FILE = "books.wal";
+	private static final long CHECKPOINT_BYTES = Long.getLong("bookstore.storage.checkpointBytes", 64L << 20);
+	private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("bookstore.storage.sync", "true"));
+	// "BKS1", at the start of a snapshot
+	private static final int SNAPSHOT_MAGIC = 0x424B5331;
+	// Kinds of change in a frame of the log
+	private static final byte PUT = 1, DELETE = 2;
+	// Length and CRC at the start of each frame
+	private static final int FRAME_HEADER = 12;
+	// Largest length of the text columns, as declared in BOOKSTORE.BOOKS
+	private static final int[] MAX_LENGTHS = {13, 255, 0, 40};
+	// Largest price a DECIMAL(10,2) column holds, in cents
+	private static final long MAX_PRICE_CENTS = 9999999999L;
+	private static final Pattern DATE = Pattern.compile("(\\d{4})[-/](\\d{1,2})[-/](\\d{1,2})");
+	
+	// Time taken to write and force each commit to the log
+	private static final Metrics.Histogram COMMIT_TIME = Metrics.timer("storage.commit");
+	
+	private static EmbeddedBookRepository sharedRepository;
+	
+	private final Path directory;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TreeMap<String, BookRecord> books = new TreeMap<String, BookRecord>();
+	private volatile boolean opened;
+	private FileChannel log;
+	private FileLock directoryLock;
+	private long logSize;
+	// Number of commits since the store was opened, and the commit that last changed or deleted each book. Books
+	// are only tracked once a change token was asked for, so a store that is never refreshed doesn't pay for it.
+	private long commits;
+	private HashMap<String, Long> changedAt;
+	
+	/**
+	 * Constructor for EmbeddedBookRepository. The store is opened (and its files read) the first time it is used.
+	 * 
+	 * @param nDirectory : Directory of the snapshot and the log, created if needed, or null to keep the books in memory only
+	 */
+	public EmbeddedBookRepository(Path nDirectory){
+		directory = nDirectory;
+	}
+	
+	/**
+	 * Returns the store shared by the whole application, kept in the directory named by "bookstore.storage.dir"
+	 * (default "bookstore-data").
+	 * 
+	 * @return The shared EmbeddedBookRepository
+	 */
+	static synchronized EmbeddedBookRepository getShared(){
+		if(sharedRepository == null)
+			sharedRepository = new EmbeddedBookRepository(Paths.get(System.getProperty("bookstore.storage.dir", "bookstore-data")));
+		return sharedRepository;
+	}
+	
+	public BookRecord find(String isbn) throws SQLException {
+		ensureOpen();
+		lock.readLock().lock();
+		try{
+			return books.get(isbn);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public BookColumns find(List<String> isbns) throws SQLException {
+		ensureOpen();
+		BookColumns found = new BookColumns(isbns.size());
+		lock.readLock().lock();
+		try{
+			for(String isbn : isbns){
+				BookRecord book = books.get(isbn);
+				if(book != null)
+					found.add(book);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return found;
+	}
+	
+	/**
+	 * Checks every book against the query, in ISBN order, except for a query with an ISBN, which is a single lookup.
+	 */
+	public BookColumns search(BookQuery query) throws SQLException {
+		ensureOpen();
+		BookColumns found = new BookColumns(16);
+		lock.readLock().lock();
+		try{
+			if(query.hasIsbn()){
+				BookRecord book = books.get(query.getIsbn());
+				if(book != null && query.matches(book))
+					found.add(book);
+				return found;
+			}
+			for(BookRecord book : books.values()){
+				if(query.matches(book))
+					found.add(book);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return found;
+	}
+	
+	public int count() throws SQLException {
+		ensureOpen();
+		lock.readLock().lock();
+		try{
+			return books.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public BookColumns page(String afterIsbn, int limit) throws SQLException {
+		ensureOpen();
+		BookColumns page = new BookColumns(limit);
+		lock.readLock().lock();
+		try{
+			Iterator<BookRecord> it = (afterIsbn == null ? books : books.tailMap(afterIsbn, false)).values().iterator();
+			while(page.size() < limit && it.hasNext())
+				page.add(it.next());
+		} finally {
+			lock.readLock().unlock();
+		}
+		return page;
+	}
+	
+	/**
+	 * Walks the ISBNs in order up to the given position, which takes a few milliseconds for a million books.
+	 */
+	public String isbnAt(int offset) throws SQLException {
+		ensureOpen();
+		lock.readLock().lock();
+		try{
+			if(offset < 0 || offset >= books.size())
+				return null;
+			Iterator<String> it = books.keySet().iterator();
+			for(int i = 0; i < offset; i++)
+				it.next();
+			return it.next();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public void scan(Visitor visitor) throws SQLException, IOException {
+		ensureOpen();
+		BookRecord[] snapshot;
+		lock.readLock().lock();
+		try{
+			snapshot = books.values().toArray(new BookRecord[books.size()]);
+		} finally {
+			lock.readLock().unlock();
+		}
+		for(BookRecord book : snapshot)
+			visitor.visit(book);
+	}
+	
+	public void insert(Object[] items) throws SQLException {
+		ensureOpen();
+		BookRecord book = toRecord(items);
+		lock.writeLock().lock();
+		try{
+			if(books.containsKey(book.getIsbn()))
+				throw duplicate(book.getIsbn());
+			apply(Collections.singletonMap(book.getIsbn(), book));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	public void update(String isbn, int col, Object value) throws SQLException {
+		ensureOpen();
+		lock.writeLock().lock();
+		try{
+			BookRecord book = books.get(isbn);
+			if(book != null)
+				apply(Collections.singletonMap(isbn, withColumn(book, col, value)));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	public Transaction begin() throws SQLException {
+		ensureOpen();
+		return new EmbeddedTransaction();
+	}
+	
+	/**
+	 * Returns the number of commits so far, and starts keeping track of which books each commit changes.
+	 */
+	public long changeToken() throws SQLException {
+		ensureOpen();
+		lock.writeLock().lock();
+		try{
+			if(changedAt == null)
+				changedAt = new HashMap<String, Long>();
+			return commits;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the books whose last commit came after the token. The commits are counted under the lock, so no
+	 * change is ever returned twice.
+	 */
+	public Changes changesSince(long token) throws SQLException {
+		//Tracks the changes from now on, for a token that didn't come from this store
+		changeToken();
+		long newToken;
+		List<BookRecord> changed = new ArrayList<BookRecord>();
+		List<String> deleted = new ArrayList<String>();
+		lock.readLock().lock();
+		try{
+			newToken = commits;
+			for(Map.Entry<String, Long> entry : changedAt.entrySet()){
+				if(entry.getValue() <= token)
+					continue;
+				BookRecord book = books.get(entry.getKey());
+				if(book == null)
+					deleted.add(entry.getKey());
+				else
+					changed.add(book);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new Changes(changed, deleted, newToken);
+	}
+	
+	/**
+	 * Transaction that keeps its changes to itself until it is committed. Each change is checked when it is
+	 * made, and the changes are made again at commit time, in order, on the books as they are then, so that an
+	 * edit of one column doesn't undo a change to another column committed in the meantime.
+	 */
+	private class EmbeddedTransaction implements Transaction {
+		
+		// The changes, in order: a book added or replaced, an ISBN deleted (no book), or an edit of one column
+		private final List<Change> changes = new ArrayList<Change>();
+		// The books as this transaction sees them, null for a deleted book
+		private final Map<String, BookRecord> written = new HashMap<String, BookRecord>();
+		
+		public BookColumns find(List<String> isbns) throws SQLException {
+			BookColumns found = new BookColumns(isbns.size());
+			for(String isbn : isbns){
+				BookRecord book = get(isbn);
+				if(book != null)
+					found.add(book);
+			}
+			return found;
+		}
+		
+		public void update(List<EditBuffer.Edit> edits) throws SQLException {
+			for(EditBuffer.Edit edit : edits){
+				BookRecord book = get(edit.getIsbn());
+				if(book == null)
+					continue;
+				try{
+					written.put(edit.getIsbn(), withColumn(book, edit.getColumn(), edit.getNewValue()));
+				} catch (SQLException e){
+					throw EditBuffer.rejected(edit, e);
+				}
+				changes.add(new Change(edit.getIsbn(), null, edit.getColumn(), edit.getNewValue()));
+			}
+		}
+		
+		public BookRecord delete(String isbn) throws SQLException {
+			BookRecord book = get(isbn);
+			if(book != null){
+				written.put(isbn, null);
+				changes.add(new Change(isbn, null, -1, null));
+			}
+			return book;
+		}
+		
+		public List<String> delete(List<String> isbns) throws SQLException {
+			List<String> deleted = new ArrayList<String>();
+			for(String isbn : isbns){
+				if(delete(isbn) != null)
+					deleted.add(isbn);
+			}
+			return deleted;
+		}
+		
+		public void upsert(List<BookRecord> upserted) throws SQLException {
+			//Every book is checked before any is written, so that a rejected book leaves the others unwritten
+			for(BookRecord book : upserted)
+				check(book);
+			for(BookRecord book : upserted){
+				written.put(book.getIsbn(), book);
+				changes.add(new Change(book.getIsbn(), book, -1, null));
+			}
+		}
+		
+		public void commit() throws SQLException {
+			if(changes.isEmpty())
+				return;
+			lock.writeLock().lock();
+			try{
+				Map<String, BookRecord> result = new LinkedHashMap<String, BookRecord>();
+				for(Change change : changes){
+					if(change.col < 0){
+						result.put(change.isbn, change.book);
+						continue;
+					}
+					BookRecord book = result.containsKey(change.isbn) ? result.get(change.isbn) : books.get(change.isbn);
+					if(book != null)
+						result.put(change.isbn, withColumn(book, change.col, change.value));
+				}
+				apply(result);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			changes.clear();
+			written.clear();
+		}
+		
+		public void close(){
+			changes.clear();
+			written.clear();
+		}
+		
+		private BookRecord get(String isbn) throws SQLException {
+			if(written.containsKey(isbn))
+				return written.get(isbn);
+			return EmbeddedBookRepository.this.find(isbn);
+		}
+	}
+	
+	/**
+	 * A change made by a transaction.
+	 */
+	private static class Change {
+		final String isbn;
+		final BookRecord book;
+		final int col;
+		final Object value;
+		
+		Change(String nIsbn, BookRecord nBook, int nCol, Object nValue){
+			isbn = nIsbn;
+			book = nBook;
+			col = nCol;
+			value = nValue;
+		}
+	}
+	
+	/**
+	 * Writes a commit to the log, then applies it to the books. Must be called with the write lock held.
+	 * 
+	 * @param result : The new value of each changed book, or null for a deleted book
+	 */
+	private void apply(Map<String, BookRecord> result) throws SQLException {
+		if(log != null){
+			long start = System.nanoTime();
+			try{
+				append(result);
+			} catch (IOException e){
+				throw new SQLException("Could not write to the log of the embedded store in " + directory, e);
+			}
+			COMMIT_TIME.recordSince(start);
+		}
+		commits++;
+		for(Map.Entry<String, BookRecord> entry : result.entrySet()){
+			if(entry.getValue() == null)
+				books.remove(entry.getKey());
+			else
+				books.put(entry.getKey(), entry.getValue());
+			if(changedAt != null)
+				changedAt.put(entry.getKey(), commits);
+		}
+		
+		if(log != null && logSize > CHECKPOINT_BYTES){
+			try{
+				checkpoint();
+			} catch (IOException e){
+				//The commit is already in the log, so the store is still correct, only its log keeps growing
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Appends one frame to the log and forces it to the disk.
+	 */
+	private void append(Map<String, BookRecord> result) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + result.size() * 96);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeInt(result.size());
+		for(Map.Entry<String, BookRecord> entry : result.entrySet()){
+			if(entry.getValue() == null){
+				payload.writeByte(DELETE);
+				payload.writeUTF(entry.getKey());
+			}
+			else{
+				payload.writeByte(PUT);
+				writeBook(payload, entry.getValue());
+			}
+		}
+		payload.flush();
+		
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		CRC32 crc = new CRC32();
+		crc.update(frame.array(), 0, frame.limit());
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		header.putInt(frame.limit()).putLong(crc.getValue()).flip();
+		try{
+			log.position(logSize);
+			while(frame.hasRemaining())
+				log.write(new ByteBuffer[]{header, frame});
+			if(SYNC)
+				log.force(false);
+		} catch (IOException e){
+			//Whatever part of the frame was written is cut off, so that the next commit follows the last whole one
+			log.truncate(logSize);
+			throw e;
+		}
+		logSize += FRAME_HEADER + frame.limit();
+	}
+	
+	/**
+	 * Writes every book to a new snapshot, and empties the log. Must be called with the write lock held.
+	 */
+	private void checkpoint() throws IOException {
+		long start = System.nanoTime();
+		Path snapshot = directory.resolve(SNAPSHOT_FILE), temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+		try(FileOutputStream file = new FileOutputStream(temporary.toFile())){
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(books.size());
+			for(BookRecord book : books.values())
+				writeBook(out, book);
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		//If the application stops before the log is emptied, its frames are applied to the new snapshot again,
+		//which changes nothing since each one holds whole rows
+		log.truncate(0);
+		log.force(true);
+		logSize = 0;
+		System.out.println(String.format("Checkpointed %d books to %s in %.2f s", books.size(), snapshot, (System.nanoTime() - start) / 1e9));
+	}
+	
+	/**
+	 * Opens the store the first time it is used: reads the snapshot, applies the log to it, and locks the directory.
+	 */
+	private void ensureOpen() throws SQLException {
+		if(opened)
+			return;
+		lock.writeLock().lock();
+		try{
+			if(opened)
+				return;
+			if(directory != null)
+				open();
+			opened = true;
+		} catch (IOException e){
+			books.clear();
+			close();
+			throw new SQLException("Could not open the embedded store in " + directory + ": " + e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	private void open() throws IOException {
+		long start = System.nanoTime();
+		Files.createDirectories(directory);
+		log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		directoryLock = log.tryLock();
+		if(directoryLock == null)
+			throw new IOException("The store is in use by another process");
+		
+		Path snapshot = directory.resolve(SNAPSHOT_FILE);
+		if(Files.exists(snapshot))
+			readSnapshot(snapshot);
+		int commits = replayLog();
+		System.out.println(String.format("Opened the embedded store in %s: %d books, %d commits replayed, in %.0f ms",
+				directory, books.size(), commits, (System.nanoTime() - start) / 1e6));
+	}
+	
+	private void readSnapshot(Path snapshot) throws IOException {
+		try(InputStream file = Files.newInputStream(snapshot)){
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			if(in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException(snapshot + " is not a snapshot of the store");
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				BookRecord book = readBook(in);
+				books.put(book.getIsbn(), book);
+			}
+			long crc = checked.getChecksum().getValue();
+			if(in.readLong() != crc)
+				throw new IOException(snapshot + " is damaged (its CRC doesn't match)");
+		}
+	}
+	
+	/**
+	 * Applies every whole frame of the log, and cuts off whatever follows the last one.
+	 * 
+	 * @return The number of frames applied
+	 */
+	private int replayLog() throws IOException {
+		long size = log.size(), position = 0;
+		int commits = 0;
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		while(position + FRAME_HEADER <= size){
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int length = header.getInt();
+			long crc = header.getLong();
+			if(length < 0 || position + FRAME_HEADER + length > size)
+				break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(payload, position + FRAME_HEADER);
+			CRC32 check = new CRC32();
+			check.update(payload.array(), 0, length);
+			if(check.getValue() != crc)
+				break;
+			
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+			int changes = in.readInt();
+			for(int i = 0; i < changes; i++){
+				if(in.readByte() == DELETE)
+					books.remove(in.readUTF());
+				else{
+					BookRecord book = readBook(in);
+					books.put(book.getIsbn(), book);
+				}
+			}
+			position += FRAME_HEADER + length;
+			commits++;
+		}
+		if(position < size){
+			System.out.println("Discarding " + (size - position) + " bytes of an unfinished commit at the end of "
+					+ directory.resolve(LOG_FILE));
+			log.truncate(position);
+			log.force(true);
+		}
+		logSize = position;
+		return commits;
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()){
+			if(log.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of " + directory.resolve(LOG_FILE));
+		}
+	}
+	
+	/**
+	 * Closes the log and unlocks the directory. The store can't be used afterwards.
+	 */
+	public void close(){
+		try{
+			if(directoryLock != null)
+				directoryLock.release();
+			if(log != null)
+				log.close();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+		directoryLock = null;
+		log = null;
+	}
+	
+	private static void writeBook(DataOutput out, BookRecord book) throws IOException {
+		out.writeUTF(book.getIsbn());
+		out.writeUTF(book.getBookName());
+		out.writeInt(book.getYearPublished());
+		out.writeUTF(book.getAuthor());
+		out.writeInt(book.getPages());
+		out.writeInt(book.getCurStock());
+		out.writeLong(book.getPriceCents());
+		out.writeInt(book.getAmountSold());
+		out.writeInt(book.getLastShipEpochDay());
+	}
+	
+	private static BookRecord readBook(DataInput in) throws IOException {
+		return new BookRecord(in.readUTF(), in.readUTF(), in.readInt(), in.readUTF(), in.readInt(), in.readInt(),
+				in.readLong(), in.readInt(), in.readInt());
+	}
+	
+	/**
+	 * Converts the values of a new book, in table column order, into a BookRecord.
+	 * 
+	 * @throws SQLException : if a value doesn't fit its column (DataTruncation)
+	 */
+	static BookRecord toRecord(Object[] items) throws SQLException {
+		BookRecord book = new BookRecord(text(0, items[0]), text(1, items[1]), integer(2, items[2]), text(3, items[3]),
+				integer(4, items[4]), integer(5, items[5]), price(items[6]), integer(7, items[7]), date(items[8]));
+		check(book);
+		return book;
+	}
+	
+	/**
+	 * Returns a copy of a book with one column changed.
+	 * 
+	 * @throws SQLException : if the value doesn't fit the column (DataTruncation), or the column is the ISBN
+	 */
+	static BookRecord withColumn(BookRecord book, int col, Object value) throws SQLException {
+		if(col == BookColumns.ISBN)
+			throw new SQLException("The ISBN of a book can't be changed");
+		return new BookRecord(book.getIsbn(),
+				col == BookColumns.BOOK_NAME ? text(col, value) : book.getBookName(),
+				col == BookColumns.YEAR_PUBLISHED ? integer(col, value) : book.getYearPublished(),
+				col == BookColumns.AUTHOR ? text(col, value) : book.getAuthor(),
+				col == BookColumns.PAGES ? integer(col, value) : book.getPages(),
+				col == BookColumns.CUR_STOCK ? integer(col, value) : book.getCurStock(),
+				col == BookColumns.PRICE ? price(value) : book.getPriceCents(),
+				col == BookColumns.AMOUNT_SOLD ? integer(col, value) : book.getAmountSold(),
+				col == BookColumns.LAST_SHIP_RECEIVED ? date(value) : book.getLastShipEpochDay());
+	}
+	
+	/**
+	 * Checks that the values of a book fit the columns of BOOKSTORE.BOOKS.
+	 */
+	private static void check(BookRecord book) throws SQLException {
+		text(BookColumns.ISBN, book.getIsbn());
+		text(BookColumns.BOOK_NAME, book.getBookName());
+		text(BookColumns.AUTHOR, book.getAuthor());
+		if(Math.abs(book.getPriceCents()) > MAX_PRICE_CENTS)
+			throw incorrectValue(BookColumns.PRICE, BookRecord.formatCents(book.getPriceCents()), "Out of range value");
+	}
+	
+	private static String text(int col, Object value) throws SQLException {
+		String text = String.valueOf(value);
+		if(text.length() > MAX_LENGTHS[col])
+			throw incorrectValue(col, text, "Data too long");
+		return text;
+	}
+	
+	private static int integer(int col, Object value) throws SQLException {
+		try{
+			// Like MySQL, a number with a fraction is rounded to the nearest whole number
+			return new BigDecimal(String.valueOf(value).trim()).setScale(0, RoundingMode.HALF_UP).intValueExact();
+		} catch (ArithmeticException | NumberFormatException e){
+			throw incorrectValue(col, value, "Incorrect integer value");
+		}
+	}
+	
+	private static long price(Object value) throws SQLException {
+		try{
+			long cents = BookRecord.toCents(new BigDecimal(String.valueOf(value).trim()));
+			if(Math.abs(cents) <= MAX_PRICE_CENTS)
+				return cents;
+		} catch (ArithmeticException | NumberFormatException e){
+			throw incorrectValue(BookColumns.PRICE, value, "Incorrect decimal value");
+		}
+		throw incorrectValue(BookColumns.PRICE, value, "Out of range value");
+	}
+	
+	/**
+	 * Converts a date in the YYYY/MM/DD format (a "-" separator is also accepted) into an epoch day.
+	 */
+	private static int date(Object value) throws SQLException {
+		if(value instanceof java.sql.Date)
+			return (int) ((java.sql.Date) value).toLocalDate().toEpochDay();
+		Matcher matcher = DATE.matcher(String.valueOf(value).trim());
+		if(matcher.matches()){
+			int year = Integer.parseInt(matcher.group(1)), month = Integer.parseInt(matcher.group(2));
+			int day = Integer.parseInt(matcher.group(3));
+			if(BookRecord.isValidDate(year, month, day))
+				return BookRecord.toEpochDay(year, month, day);
+		}
+		throw incorrectValue(BookColumns.LAST_SHIP_RECEIVED, value, "Incorrect date value");
+	}
+	
+	/**
+	 * Builds the DataTruncation MySQL reports for a value that doesn't fit its column, with a message like MySQL's.
+	 */
+	private static SQLException incorrectValue(int col, Object value, String problem){
+		final String message = "Data truncation: " + problem + ": '" + value + "' for column '"
+				+ BooksTableModel.COLUMN_NAMES[col] + "'";
+		return new DataTruncation(col + 1, true, false, -1, -1){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			public String getMessage(){
+				return message;
+			}
+		};
+	}
+	
+	private static SQLException duplicate(String isbn){
+		return new SQLIntegrityConstraintViolationException("Duplicate entry '" + isbn + "' for key 'PRIMARY'", "23000", 1062);
+	}
+}
@@ -0,0 +1,374 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class that runs the application without a GUI, for scripts and scheduled jobs. Chosen by starting Main
+ * with "--headless" as its first argument:
+ * 
+ * "java Main --headless outputFile.txt [command]"
+ * 
+ * The output file is the audit log that changes are recorded in, as in the GUI. A single command can be given
+ * after it, otherwise commands are read from standard input, one per line. Results are written to standard
+ * output, books as lines of the "::" input file format, and errors to standard error. The exit code is the
+ * number of commands that failed (at most 255), so 0 means every command succeeded.
+ * 
+ * Commands (arguments with spaces are put in double quotes):
+ * 
+ *   get ISBN...                          the books with the given ISBNs
+ *   search CRITERION...                  the books matching every criterion, each one of isbn=, title=, author=,
+ *                                        year, pages or price followed by <=, = or >= and a number, stock=in or stock=out
+ *   find title|author exact|contains|prefix|similar TEXT
+ *                                        the books whose title or author matches the text
+ *   update ISBN COLUMN VALUE             changes CUR_STOCK, PRICE, AMOUNT_SOLD or LAST_SHIP_RECEIVED of a book
+ *   commit                               stores the updates made so far
+ *   rollback                             discards the updates made since the last commit
+ *   delete ISBN...                       deletes the books with the given ISBNs in one transaction
+ *   import FILE                          adds or updates the books in a "::" file (see Utilities.importBooks)
+ *   export [FILE] [csv|jsonl|lines]      every book, to standard output or to a file, as CSV, JSON lines or the
+ *                                        input file format (by default the one the file's extension suggests)
+ * 
+ * Updates are kept in an EditBuffer and stored in one transaction every "bookstore.cli.commitEvery" updates
+ * (default 1000), by commit, before any other command (so that it sees them) and at the end of the input.
+ * 
+ * The same shared ConnectionPool, statement caches, IsbnCache and search indexes as the GUI are used, and no
+ * AWT or Swing class is ever displayed, so the program also runs on machines without a display.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class HeadlessMode {
+	
+	private static final int COMMIT_EVERY = Integer.getInteger("bookstore.cli.commitEvery", 1000);
+	
+	// Columns that can be changed, the same ones that can be edited in the JTable
+	static final List<String> UPDATABLE_COLUMNS = Arrays.asList("CUR_STOCK", "PRICE", "AMOUNT_SOLD", "LAST_SHIP_RECEIVED");
+	private static final Pattern CRITERION = Pattern.compile("(\\w+)(<=|>=|=)(.*)");
+	
+	private final ConnectionPool pool;
+	private final Queries queries;
+	private final Utilities ut;
+	private final EditBuffer edits;
+	private final OutputStream stdout;
+	private final Writer out;
+	private final PrintStream err;
+	private int failures;
+	
+	/**
+	 * Constructor for HeadlessMode.
+	 * 
+	 * @param url : URL needed for connection to Database
+	 * @param username : Username needed for connection to Database
+	 * @param password : Password needed for connection to Database
+	 * @param outputFile : Output file to which changes are recorded
+	 * @param nOut : Where results are written, as UTF-8
+	 * @param nErr : Where errors are written
+	 */
+	public HeadlessMode(String url, String username, String password, Path outputFile, OutputStream nOut, PrintStream nErr){
+		pool = ConnectionPool.getPool(url, username, password);
+		queries = new Queries(url, username, password);
+		ut = new Utilities(outputFile, pool);
+		edits = new EditBuffer(pool, outputFile);
+		stdout = nOut;
+		out = new BufferedWriter(new OutputStreamWriter(nOut, StandardCharsets.UTF_8), 1 << 16);
+		err = nErr;
+	}
+	
+	/**
+	 * Runs the headless application.
+	 * 
+	 * @param args : The output file, optionally followed by a single command
+	 * @return The exit code, the number of commands that failed (at most 255)
+	 */
+	public static int run(String[] args){
+		//Makes sure nothing tries to open a window
+		System.setProperty("java.awt.headless", "true");
+		if(args.length == 0){
+			System.err.println("Usage: java Main --headless outputFile [command], see HeadlessMode for the commands");
+			return 1;
+		}
+		
+		//Results go to standard output, and the progress messages the rest of the application prints go to
+		//standard error instead, so that they don't mix with the results
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		
+		Initialization init = new Initialization((Connection) null);
+		HeadlessMode headless = new HeadlessMode(init.getURL(), init.getUsername(), init.getPassword(),
+				Paths.get(args[0]), stdout, System.err);
+		try{
+			if(!BookRepository.isEmbedded())
+				SchemaMigrations.prepareSchema(headless.pool);
+			if(args.length > 1)
+				headless.execute(Arrays.asList(Arrays.copyOfRange(args, 1, args.length)));
+			else
+				headless.runScript(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+			headless.finish();
+			headless.out.flush();
+		} catch (IOException | SQLException e){
+			e.printStackTrace();
+			headless.failures++;
+		}
+		return Math.min(headless.failures, 255);
+	}
+	
+	/**
+	 * Runs every command of a script, one per line. Blank lines and lines starting with "#" are skipped.
+	 * A command that fails is reported, and the script goes on with the next one.
+	 * 
+	 * @param script : The commands
+	 * @throws IOException : if the script or the output can't be read or written
+	 */
+	public void runScript(BufferedReader script) throws IOException {
+		//Output is flushed after each command only when someone is typing the commands
+		boolean interactive = System.console() != null;
+		String line;
+		int lineNumber = 0;
+		while((line = script.readLine()) != null){
+			lineNumber++;
+			List<String> command = tokenize(line);
+			if(command.isEmpty() || command.get(0).startsWith("#"))
+				continue;
+			if(!execute(command))
+				err.println("(line " + lineNumber + ")");
+			if(interactive)
+				out.flush();
+		}
+	}
+	
+	/**
+	 * Runs a single command, reporting it on standard error if it fails.
+	 * 
+	 * @param command : The command's name followed by its arguments
+	 * @return Whether the command succeeded
+	 * @throws IOException : if the output can't be written
+	 */
+	public boolean execute(List<String> command) throws IOException {
+		String name = command.get(0).toLowerCase();
+		List<String> arguments = command.subList(1, command.size());
+		try{
+			//Other commands see the updates made before them
+			if(!name.equals("update") && !name.equals("rollback"))
+				commitUpdates();
+			
+			switch(name){
+			case "get": get(arguments); break;
+			case "search": writeBooks(queries.search(parseQuery(arguments))); break;
+			case "find": find(arguments); break;
+			case "update": update(arguments); break;
+			case "commit": break;
+			case "rollback": edits.clear(); break;
+			case "delete": delete(arguments); break;
+			case "import": importBooks(arguments); break;
+			case "export": export(arguments); break;
+			default: throw new IllegalArgumentException("Unknown command \"" + command.get(0) + "\"");
+			}
+			return true;
+		} catch (SQLException | IllegalArgumentException | IndexOutOfBoundsException e){
+			failures++;
+			err.println("Error in \"" + String.join(" ", command) + "\": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Stores the updates that haven't been committed yet, and hands back the connections.
+	 */
+	void finish() throws IOException {
+		try{
+			commitUpdates();
+		} catch (SQLException e){
+			failures++;
+			err.println("Error committing the last updates: " + e.getMessage());
+		}
+	}
+	
+	private void get(List<String> isbns) throws SQLException, IOException {
+		for(String isbn : isbns){
+			BookRecord book = IsbnCache.getCache(pool).get(isbn);
+			if(book == null)
+				throw new IllegalArgumentException("Book with ISBN: " + isbn + " doesn't exist in table.");
+			writeBook(book);
+		}
+	}
+	
+	private void find(List<String> arguments) throws SQLException, IOException {
+		if(arguments.size() != 3)
+			throw new IllegalArgumentException("Usage: find title|author exact|contains|prefix|similar TEXT");
+		TextSearchIndex.Field field = TextSearchIndex.Field.valueOf(arguments.get(0).toUpperCase());
+		String mode = arguments.get(1).toLowerCase();
+		if(!Arrays.asList("exact", "contains", "prefix", "similar").contains(mode))
+			throw new IllegalArgumentException("Unknown kind of search \"" + arguments.get(1) + "\"");
+		writeBooks(queries.searchByText(field, new String[]{arguments.get(2), mode}));
+	}
+	
+	/**
+	 * Adds an update to the EditBuffer, recording the book's stored value for the audit log.
+	 */
+	private void update(List<String> arguments) throws SQLException {
+		if(arguments.size() != 3)
+			throw new IllegalArgumentException("Usage: update ISBN COLUMN VALUE");
+		String isbn = arguments.get(0), column = arguments.get(1).toUpperCase();
+		if(!UPDATABLE_COLUMNS.contains(column))
+			throw new IllegalArgumentException("Only " + UPDATABLE_COLUMNS + " can be updated");
+		BookRecord book = IsbnCache.getCache(pool).get(isbn);
+		if(book == null)
+			throw new IllegalArgumentException("Book with ISBN: " + isbn + " doesn't exist in table.");
+		
+		int col = Arrays.asList(BooksTableModel.COLUMN_NAMES).indexOf(column);
+		edits.put(isbn, col, book.getColumnText(col), arguments.get(2));
+		if(edits.size() >= COMMIT_EVERY)
+			commitUpdates();
+	}
+	
+	private void commitUpdates() throws SQLException {
+		List<EditBuffer.Edit> pending = edits.getEdits();
+		if(pending.isEmpty())
+			return;
+		try{
+			edits.commit(pending);
+		} finally {
+			//Rejected updates are dropped along with the rest of their transaction, rather than tried again
+			edits.remove(pending);
+		}
+	}
+	
+	private void delete(List<String> isbns) throws SQLException, IOException {
+		int deleted = ut.deleteRows(isbns);
+		out.write("Deleted " + deleted + " of the " + isbns.size() + " books listed.\n");
+	}
+	
+	private void importBooks(List<String> arguments) throws SQLException, IOException {
+		if(arguments.size() != 1)
+			throw new IllegalArgumentException("Usage: import FILE");
+		BulkUpserter upserter = ut.importBooks(Paths.get(arguments.get(0)));
+		out.write(upserter.getSummary() + "\n");
+	}
+	
+	/**
+	 * Writes every book with a BookExporter, which streams the rows from the server one at a time so that
+	 * memory use doesn't grow with the size of the table. The summary goes to standard error.
+	 */
+	private void export(List<String> arguments) throws SQLException, IOException {
+		if(arguments.size() > 2)
+			throw new IllegalArgumentException("Usage: export [FILE] [csv|jsonl|lines]");
+		Path file = arguments.isEmpty() || arguments.get(0).equals("-") ? null : Paths.get(arguments.get(0));
+		BookExporter.Format format = arguments.size() == 2 ? BookExporter.Format.forName(arguments.get(1))
+				: file != null ? BookExporter.Format.forFile(file) : BookExporter.Format.LINES;
+		
+		BookExporter exporter = new BookExporter(pool, format);
+		if(file != null)
+			exporter.export(file);
+		else{
+			//Whatever was written before the books has to come out before them
+			out.flush();
+			exporter.export(Channels.newChannel(stdout));
+			stdout.flush();
+		}
+		err.println(exporter.getSummary());
+	}
+	
+	/**
+	 * Builds a combined search out of criteria such as "author=Aaron Doe", "price<=20" and "stock=in".
+	 */
+	static BookQuery parseQuery(List<String> criteria){
+		if(criteria.isEmpty())
+			throw new IllegalArgumentException("Usage: search CRITERION..., for example: search author=\"Aaron Doe\" price<=20");
+		BookQuery query = new BookQuery();
+		for(String criterion : criteria){
+			Matcher matcher = CRITERION.matcher(criterion);
+			if(!matcher.matches())
+				throw new IllegalArgumentException("Can't read the criterion \"" + criterion + "\"");
+			String column = matcher.group(1).toLowerCase(), operator = matcher.group(2), value = matcher.group(3);
+			String comparison = operator.equals("<=") ? "lesser" : operator.equals(">=") ? "greater" : "during";
+			if(!column.equals("year") && !column.equals("pages") && !column.equals("price") && !operator.equals("="))
+				throw new IllegalArgumentException(column + " can only be compared with \"=\"");
+			
+			try{
+				switch(column){
+				case "isbn": query.isbn(value); break;
+				case "title": query.title(value); break;
+				case "author": query.author(value); break;
+				case "stock": query.stock(value); break;
+				case "year": query.year(comparison, Integer.parseInt(value.trim())); break;
+				case "pages": query.pages(comparison, Integer.parseInt(value.trim())); break;
+				case "price": query.price(comparison, new BigDecimal(value.trim())); break;
+				default: throw new IllegalArgumentException("Unknown criterion \"" + matcher.group(1) + "\"");
+				}
+			} catch (NumberFormatException e){
+				throw new IllegalArgumentException(column + " must be a number, not \"" + value + "\"");
+			}
+		}
+		return query;
+	}
+	
+	/**
+	 * Splits a line of a script into words. Double quotes group words with spaces into one, and a double quote
+	 * or backslash inside quotes is written with a backslash before it.
+	 */
+	static List<String> tokenize(String line){
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		boolean inToken = false, quoted = false;
+		for(int i = 0; i < line.length(); i++){
+			char c = line.charAt(i);
+			if(quoted){
+				if(c == '\\' && i + 1 < line.length())
+					token.append(line.charAt(++i));
+				else if(c == '"')
+					quoted = false;
+				else
+					token.append(c);
+			}
+			else if(c == '"'){
+				quoted = inToken = true;
+			}
+			else if(Character.isWhitespace(c)){
+				if(inToken)
+					tokens.add(token.toString());
+				token.setLength(0);
+				inToken = false;
+			}
+			else{
+				token.append(c);
+				inToken = true;
+			}
+		}
+		if(inToken)
+			tokens.add(token.toString());
+		return tokens;
+	}
+	
+	private void writeBooks(BookColumns books) throws IOException {
+		for(int row = 0; row < books.size(); row++)
+			writeBook(books.getRecord(row));
+	}
+	
+	private void writeBook(BookRecord book) throws IOException {
+		out.write(book.toLine());
+		out.write('\n');
+	}
+	
+	// GETTERS
+	
+	public int getFailures(){
+		return failures;
+	}
+}
@@ -1,9 +1,8 @@
-import java.io.BufferedReader;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
-import java.util.StringTokenizer;
+import java.util.List;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -40,7 +39,7 @@ public class Initialization {
 	 * @param conn
 	 */
 	public Initialization(Connection conn){
-		url = "jdbc:mysql://localhost:3306/?autoReconnect=true&useSSL=false";
+		url = "jdbc:mysql://localhost:3306/?autoReconnect=true&useSSL=false&useServerPrepStmts=true";
 		username = "root";
 		password = "root";
 	}
@@ -59,55 +58,54 @@ public class Initialization {
 	}
 	
 	/**
-	 * Method that calls the connectToDb method to connect to the server, and then
-	 * calls a method to create a new table in the database, as well as calling a method
-	 * to instantiate the GUI.
+	 * Method that connects to the server, creates the schema and the table if they don't exist yet, and then
+	 * instantiates the GUI.
+	 * 
+	 * The schema and the table are looked up in the server's metadata, on a single pooled connection, rather
+	 * than by trying to create them and treating the error as "already exists". The GUI is shown as soon as the
+	 * schema is ready, and reads its first rows in the background (see BooksGUI). Each step is timed by StartupTimer.
 	 */
-	
 	private void connectToServer(){
-		url = "jdbc:mysql://localhost:3306/?autoReconnect=true&useSSL=false";
+		url = "jdbc:mysql://localhost:3306/?autoReconnect=true&useSSL=false&useServerPrepStmts=true";
 		username = "root";
 		password = "root";
 		
-		// Connects to the server
-		connectToDb(url, username, password);
+		// The embedded store needs no server, and is only filled from the input file the first time
+		if(BookRepository.isEmbedded()){
+			try{
+				if(BookRepository.getRepository(getPool()).count() > 0)
+					System.out.println("The embedded store already has books - Initialization Input File is ignored.");
+				else
+					readFile(inputFile);
+			} catch (SQLException e){
+				e.printStackTrace();
+				return;
+			}
+			StartupTimer.mark("schema");
+			new BooksGUI(getPool(), outputFile);
+			return;
+		}
 		
+		System.out.println("Connecting to database...");
+		Connection conn = null;
 		try {
-			// Creates initial table in the database
-			createTable(DriverManager.getConnection(url, username, password));
-			// Instantiates the GUI
-			new BooksGUI(createResultSet(), outputFile);
-			
+			conn = getPool().getConnection();
+			System.out.println("Connected\n\n");
 			
+			// Creates the BOOKSTORE schema and the initial table, if they don't exist yet
+			if(!SchemaMigrations.createSchema(conn))
+				System.out.println("Connecting to pre-existing database.");
+			createTable(conn);
 		} catch (SQLException e) {
 			e.printStackTrace();
+			return;
+		} finally {
+			getPool().release(conn);
 		}
-	}
-	
-	/**
-	 * Method that connects the Java code to the MySQL database via the DriverManager.getConnection method.
-	 * Also creates a new schema within the recently connected to database called "BOOKSTORE."
-	 * @param url : url for connecting to the server
-	 * @param username : username that is used as a credential for connecting to the server
-	 * @param password : password that is used as a credential for connecting to the server
-	 */
-	private void connectToDb(String url, String username, String password){
-		System.out.println("Connecting to database...");
-	
-		// Connects to server and creates new schema, BOOKSTORE
-		try(Connection conn = DriverManager.getConnection(url, username, password)){
-			System.out.println("Connected\n\n");
-		
-			String createBooksSchema = "create schema BOOKSTORE";
-			Statement statement = conn.createStatement();
-			statement.executeUpdate(createBooksSchema);
-			
-			
-		} catch (SQLException e){
-			System.out.println("Connecting to pre-existing database.");
-			//throw new IllegalStateException("cannot connect", e);
-		}
+		StartupTimer.mark("schema");
 		
+		// Instantiates the GUI
+		new BooksGUI(getPool(), outputFile);
 	}
 	
 	/**
@@ -144,123 +142,86 @@ public class Initialization {
 	 * The table name is "Books" and it is designed to contain information about various
 	 * books.
 	 * 
-	 * Also calls the readFile method, to fill the newly created table with data from an input file
+	 * The table and its indexes are created by the versioned migrations of SchemaMigrations, which also bring
+	 * a table created by an older version of the program up to date. If the table is new, it is filled with
+	 * the data from the input file before its secondary indexes are created, since building an index once is
+	 * faster than updating it for every loaded row.
 	 * 
 	 * @param conn : Connection to the MySql server
 	 * @throws SQLException : throws SQLException in case of an error in the SQL statement.
 	 */
 	public void createTable(Connection conn) throws SQLException {
 		
-		// String that will be used to create the table
-	    String createString =
-	        "create table BOOKSTORE.BOOKS " +
-	        "(ISBN varchar(13) NOT NULL, " +
-	        "BOOK_NAME varchar(255) NOT NULL, " +
-	        "YEAR_PUBLISHED integer NOT NULL, " +
-	        "AUTHOR varchar(40) NOT NULL, " +
-	        "PAGES integer NOT NULL, " +
-	        "CUR_STOCK integer NOT NULL, " +
-	        "PRICE decimal(10,2) NOT NULL, " +
-	        "AMOUNT_SOLD integer NOT NULL, " +
-	        "LAST_SHIP_RECEIVED date NOT NULL, " +
-	        "PRIMARY KEY (ISBN))";
-	    
-	    Statement statement = null;
-	    
-	    try {
-	    	//execution of the statement
-	        statement = conn.createStatement();
-	        statement.executeUpdate(createString);
-	        
-	        // Method called to fill newly created table with data from an input file
-	        readFile(inputFile);
-	    
-	    } catch (SQLException e) {
-	    	System.out.println("Table 'books' already exists - Initialization Input File is ignored.");
-	        //System.out.println("Error with SQL statement");
-	        //e.printStackTrace();
-	    } finally {
-	        if (statement != null) { statement.close(); }
-	    }
-	}
-	
-	/**
-	 * Creates a ResultSet that is later used to display the table data. The ResultSet is
-	 * filled via a Query that returns the entire table. Not only is this method used to
-	 * initially fill the table, but it can also be called the update the table when changes occur.
-	 * 
-	 * @return : the ResultSet that contains the table data
-	 */
-	public ResultSet createResultSet() {
-		
-		ResultSet rs = null;
-		
-		try {
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_UPDATABLE);
-			// Query that returns the entire table
-			rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS");
-			return rs;
-			} catch (SQLException e){
-				e.printStackTrace();
-			}
+		if(SchemaMigrations.booksTableExists(conn))
+			System.out.println("Table 'books' already exists - Initialization Input File is ignored.");
+		else{
+			// Creates the table only, and fills it with data from the input file before its indexes are added
+			SchemaMigrations.migrate(conn, 1);
+			readFile(inputFile);
+		}
 		
-		return rs;
+		try{
+			SchemaMigrations.migrate(conn);
+		} catch (SQLException e){
+			//The table can still be used without the migrations that failed, they are tried again on the next start
+			System.out.println("Schema migration failed, using the schema as it is.");
+			e.printStackTrace();
+		}
 	}
 	
 	/**
 	 * Method that takes the contents of an input file and stores it in the table. This is used to take
 	 * data from a text file and instantiate the table with it.
 	 * 
+	 * The file is parsed by a BookFileParser, and the books are handed to a BulkLoader, which inserts them
+	 * in batches within a single transaction. The batch size can be changed with the "bookstore.loader.batchSize"
+	 * system property. Lines that are incorrectly formatted, and books that the server rejects, are reported
+	 * and skipped.
+	 * 
 	 * @param inputFilePath : File that contains the data to be added
 	 */
 	public void readFile(Path inputFilePath){
-		String[] items = new String[9]; // Will temporarily hold the items to be added
 		
-		//Reads in the file contents
-		try (BufferedReader br = new BufferedReader(Files.newBufferedReader(inputFilePath))){
-			
-			String line = br.readLine();
-			
-			//Used to cycle through each line in file
-			while(line != null){
-				
-				//Tokenizer to separate the items on each line
-				StringTokenizer tokenizer = new StringTokenizer(line, "::");
-				int i = 0;
-				//Used to cycle through each item in line
-				while(tokenizer.hasMoreTokens()){
-					items[i] = tokenizer.nextToken();
-					i++;
-				}
-				
-				try {
-					//Executes query that inserts the new data
-					Connection conn = DriverManager.getConnection(url, username, password);
-					Statement statement = conn.createStatement(
-							ResultSet.TYPE_SCROLL_INSENSITIVE,
-							ResultSet.CONCUR_UPDATABLE);
-					statement.executeUpdate("insert into BOOKSTORE.BOOKS values "
-					        + "('"+items[0]+"', '"+items[1]+"', "+items[2]+", '"+items[3]+"', "+
-							items[4]+", "+items[5]+", "+items[6]+", "+items[7]+", '"+items[8]+"')");
-					
-					conn.close();
-					} catch(DataTruncation dt){
-						System.out.println("Error processing book with ISBN: "+items[0]+" , ensure correct format.");
-					}catch (SQLException e){
-						e.printStackTrace();
-					}
-				line = br.readLine();
+		// Loads every book in one transaction, sending the rows in batches. The embedded store goes through a
+		// BulkUpserter instead, whose single transaction is written to the store's log as one commit.
+		int batchSize = Integer.getInteger("bookstore.loader.batchSize", 1000);
+		BulkLoader loader = BookRepository.isEmbedded() ? null : new BulkLoader(getPool(), batchSize);
+		BulkUpserter upserter = loader != null ? null : new BulkUpserter(getPool(), null, batchSize, Integer.MAX_VALUE);
+		
+		try{
+			long loaded;
+			List<String> rejects;
+			//Parses the file contents in parallel, handing each book to the loader in file order
+			if(loader != null){
+				loader.begin();
+				new BookFileParser().parse(inputFilePath, loader);
+				loader.finish();
+				loaded = loader.getRowsLoaded();
+				rejects = loader.getRejects();
+			}
+			else{
+				upserter.begin();
+				new BookFileParser().parse(inputFilePath, upserter);
+				upserter.finish();
+				loaded = upserter.getInserted() + upserter.getUpdated();
+				rejects = upserter.getRejects();
 			}
+			//Cached lookups may have found books missing that the file just added, and the search indexes are
+			//built again the next time they are used
+			IsbnCache.getCache(getPool()).invalidateAll();
+			TextSearchIndex.getIndex(getPool()).invalidate();
+			RangeIndex.getIndex(getPool()).invalidate();
 			
+			//A file in which no line could be read is treated as the wrong file
+			if(loaded == 0 && !rejects.isEmpty())
+				throw new IOException("No books could be read from " + inputFilePath);
+			
+		} catch(SQLException e){
+			e.printStackTrace();
+			abort(loader, upserter);
 		} catch(Exception e){
+			abort(loader, upserter);
 			e.printStackTrace();
-			int i = 0;
-			while(items[i] != null){
-				System.out.println(items[i]);
-			i++;}
 			JOptionPane.showMessageDialog(null,
 					"There was an error with the selected input file",
 				    "Error With Input File",
@@ -286,6 +247,22 @@ public class Initialization {
 		
 	}
 	
+	private static void abort(BulkLoader loader, BulkUpserter upserter){
+		if(loader != null)
+			loader.abort();
+		else
+			upserter.abort();
+	}
+	
+	/**
+	 * Returns the connection pool shared by the whole application.
+	 * 
+	 * @return The shared ConnectionPool
+	 */
+	public ConnectionPool getPool(){
+		return ConnectionPool.getPool(url, username, password);
+	}
+	
 	// GETTERS 
 	
 	public String getURL(){
@@ -0,0 +1,308 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Class that keeps recently looked up books in memory, keyed by ISBN, so that repeated lookups of the same
+ * book don't go to the database.
+ * 
+ * A lookup that isn't cached reads the book from the database and caches it, including books that don't
+ * exist, so that looking up an unknown ISBN again is also answered from memory. Every change to a book must
+ * invalidate its ISBN, which BooksTableModel and Utilities do when they modify, add or delete rows.
+ * 
+ * ISBNs are stored as primitive longs (their digits, length and a flag for an "X" check digit) in an open
+ * addressing hash table, so a cached lookup doesn't create any objects. ISBNs that can't be encoded that way
+ * (longer than 17 characters, or containing other characters) are never cached.
+ * 
+ * Once the cache holds its maximum number of books, a book is evicted to make room for a new one. Eight cached
+ * books are picked at random, and the one used least recently ("LRU") or least often ("LFU") is evicted.
+ * 
+ * The maximum number of books and the eviction policy of the shared cache can be changed with the
+ * "bookstore.cache.maxEntries" and "bookstore.cache.policy" system properties.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class IsbnCache {
+	
+	/**
+	 * Reads a book from wherever the cached books come from.
+	 */
+	public interface Loader {
+		/**
+		 * @return The book with the given ISBN, or null if there is none
+		 */
+		BookRecord load(String isbn) throws SQLException;
+	}
+	
+	static final String LRU = "LRU", LFU = "LFU";
+	private static final int SAMPLES = 8;
+	private static final long EMPTY = 0;
+	// Cached in place of a book when there is no book with the ISBN
+	private static final BookRecord MISSING = new BookRecord("", "", 0, "", 0, 0, 0, 0, 0);
+	
+	private static IsbnCache sharedCache;
+	
+	private final Loader loader;
+	private final boolean lfu;
+	private final int maxEntries;
+	
+	// Hash table of entry numbers + 1 (0 meaning an empty slot), with linear probing
+	private final int[] table;
+	private final int mask;
+	// Entries, kept in the first "size" positions of these arrays
+	private final long[] keys;
+	private final BookRecord[] values;
+	private final long[] lastUsed;
+	private final int[] uses;
+	private final int[] slotOf;
+	private int size;
+	private long clock;
+	private long seed = 0x2545F4914F6CDD1DL;
+	
+	// Incremented by every invalidation, so that a load that overlapped one doesn't cache an outdated book
+	private long invalidations;
+	private long hits, misses, evictions;
+	
+	/**
+	 * Constructor for IsbnCache.
+	 * 
+	 * @param nLoader : Reads the books that aren't cached
+	 * @param nMaxEntries : Maximum number of books kept in memory
+	 * @param policy : "LRU" or "LFU"
+	 */
+	public IsbnCache(Loader nLoader, int nMaxEntries, String policy){
+		loader = nLoader;
+		lfu = LFU.equalsIgnoreCase(policy);
+		maxEntries = Math.max(1, nMaxEntries);
+		
+		// At most half of the table is used, which keeps the probe sequences short
+		int capacity = Integer.highestOneBit(Math.max(2, maxEntries * 2 - 1)) * 2;
+		table = new int[capacity];
+		mask = capacity - 1;
+		keys = new long[maxEntries];
+		values = new BookRecord[maxEntries];
+		lastUsed = new long[maxEntries];
+		uses = new int[maxEntries];
+		slotOf = new int[maxEntries];
+	}
+	
+	/**
+	 * Returns the cache shared by the whole application, which reads books through the given pool.
+	 * 
+	 * @param pool : Connection pool used to read books that aren't cached
+	 * @return The shared IsbnCache
+	 */
+	public static synchronized IsbnCache getCache(final ConnectionPool pool){
+		if(sharedCache == null){
+			final BookRepository repository = BookRepository.getRepository(pool);
+			sharedCache = new IsbnCache(new Loader(){
+				public BookRecord load(String isbn) throws SQLException {
+					return repository.find(isbn);
+				}
+			}, Integer.getInteger("bookstore.cache.maxEntries", 100000), System.getProperty("bookstore.cache.policy", LRU));
+		}
+		return sharedCache;
+	}
+	
+	/**
+	 * Returns the book with the given ISBN, reading it from the database only if it isn't cached.
+	 * 
+	 * @param isbn : ISBN of the book
+	 * @return The book, or null if there is no book with that ISBN
+	 * @throws SQLException : if the book had to be read, and could not be
+	 */
+	public BookRecord get(String isbn) throws SQLException {
+		long key = encode(isbn);
+		long invalidationsBefore;
+		synchronized(this){
+			if(key != EMPTY){
+				int entry = find(key);
+				if(entry >= 0){
+					hits++;
+					lastUsed[entry] = ++clock;
+					if(uses[entry] < Integer.MAX_VALUE)
+						uses[entry]++;
+					BookRecord value = values[entry];
+					return value == MISSING ? null : value;
+				}
+			}
+			misses++;
+			invalidationsBefore = invalidations;
+		}
+		
+		// Read outside of the lock, so that cached lookups aren't held up by the database
+		BookRecord book = loader.load(isbn);
+		
+		synchronized(this){
+			if(key != EMPTY && invalidations == invalidationsBefore && find(key) < 0)
+				put(key, book == null ? MISSING : book);
+		}
+		return book;
+	}
+	
+	/**
+	 * Removes a book from the cache. Must be called whenever the book is modified, added or deleted.
+	 * 
+	 * @param isbn : ISBN of the book
+	 */
+	public synchronized void invalidate(String isbn){
+		invalidations++;
+		long key = encode(isbn);
+		if(key == EMPTY)
+			return;
+		int entry = find(key);
+		if(entry >= 0)
+			remove(entry);
+	}
+	
+	/**
+	 * Removes every book from the cache, for changes that affect many books at once (such as loading a file).
+	 */
+	public synchronized void invalidateAll(){
+		invalidations++;
+		Arrays.fill(table, 0);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+	
+	/**
+	 * Encodes an ISBN as a long: its digits, then 5 bits of length, then a bit that is set if it ends with "X".
+	 * 
+	 * @return The encoded ISBN, or 0 if the ISBN can't be encoded
+	 */
+	static long encode(String isbn){
+		if(isbn == null)
+			return EMPTY;
+		int length = isbn.length();
+		if(length == 0 || length > 17)
+			return EMPTY;
+		
+		long digits = 0;
+		long checkX = 0;
+		for(int i = 0; i < length; i++){
+			char c = isbn.charAt(i);
+			if(c >= '0' && c <= '9')
+				digits = digits * 10 + (c - '0');
+			else if((c == 'X' || c == 'x') && i == length - 1 && length > 1)
+				checkX = 1;
+			else
+				return EMPTY;
+		}
+		return digits << 6 | (long) length << 1 | checkX;
+	}
+	
+	/**
+	 * Returns the entry holding the key, or -1 if the key isn't cached.
+	 */
+	private int find(long key){
+		int slot = slotFor(key);
+		while(true){
+			int entry = table[slot] - 1;
+			if(entry < 0)
+				return -1;
+			if(keys[entry] == key)
+				return entry;
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	private void put(long key, BookRecord value){
+		int entry;
+		if(size == maxEntries){
+			entry = pickVictim();
+			remove(entry);
+			evictions++;
+		}
+		// Entries are kept in the first "size" positions, so the next free one is at "size"
+		entry = size++;
+		
+		int slot = slotFor(key);
+		while(table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = entry + 1;
+		slotOf[entry] = slot;
+		keys[entry] = key;
+		values[entry] = value;
+		lastUsed[entry] = ++clock;
+		uses[entry] = 1;
+	}
+	
+	/**
+	 * Removes an entry, filling its place with the last entry, and closes the gap it leaves in the table by
+	 * moving later entries of the probe sequence back.
+	 */
+	private void remove(int entry){
+		int slot = slotOf[entry];
+		table[slot] = 0;
+		int next = (slot + 1) & mask;
+		while(table[next] != 0){
+			int moved = table[next] - 1;
+			int home = slotFor(keys[moved]);
+			// Moves the entry back if its home slot isn't between the gap and its current slot
+			if(((next - home) & mask) >= ((next - slot) & mask)){
+				table[slot] = moved + 1;
+				slotOf[moved] = slot;
+				table[next] = 0;
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		
+		int last = --size;
+		if(entry != last){
+			keys[entry] = keys[last];
+			values[entry] = values[last];
+			lastUsed[entry] = lastUsed[last];
+			uses[entry] = uses[last];
+			slotOf[entry] = slotOf[last];
+			table[slotOf[entry]] = entry + 1;
+		}
+		values[last] = null;
+	}
+	
+	/**
+	 * Picks the entry to be evicted among a few entries chosen at random.
+	 */
+	private int pickVictim(){
+		int victim = -1;
+		for(int i = 0; i < SAMPLES; i++){
+			// xorshift, which is enough to spread the samples over the entries
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			int candidate = (int) ((seed >>> 1) % size);
+			if(victim < 0 || isColder(candidate, victim))
+				victim = candidate;
+		}
+		return victim;
+	}
+	
+	private boolean isColder(int a, int b){
+		if(lfu && uses[a] != uses[b])
+			return uses[a] < uses[b];
+		return lastUsed[a] < lastUsed[b];
+	}
+	
+	private int slotFor(long key){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+	
+	// GETTERS
+	
+	public synchronized int size(){
+		return size;
+	}
+	
+	public synchronized long getHits(){
+		return hits;
+	}
+	
+	public synchronized long getMisses(){
+		return misses;
+	}
+	
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+}
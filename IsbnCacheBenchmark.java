@@ -0,0 +1,74 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-alone benchmark that measures lookups through the IsbnCache, both when the books are cached and when
+ * most of them have to be loaded.
+ * 
+ * No database is needed. The books are created by a loader that stands in for the database, and counts how
+ * often it is called, so the benchmark only measures the cache itself.
+ * 
+ * Usage: "java IsbnCacheBenchmark [cacheSize] [lookups]"
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class IsbnCacheBenchmark {
+	
+	/**
+	 * Runs the benchmark.
+	 * @param args : optionally, the number of books the cache holds (default 100000) and the number of lookups (default 10000000)
+	 */
+	public static void main(String[] args) throws SQLException {
+		int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+		
+		final AtomicLong loads = new AtomicLong();
+		IsbnCache.Loader loader = new IsbnCache.Loader(){
+			public BookRecord load(String isbn) {
+				loads.incrementAndGet();
+				return new BookRecord(isbn, "Title", 2000, "Author", 300, 5, 1999, 10, 16000);
+			}
+		};
+		
+		// The ISBNs are created up front, so that creating them isn't part of the measurement
+		String[] isbns = new String[cacheSize * 2];
+		for(int i = 0; i < isbns.length; i++)
+			isbns[i] = String.valueOf(9780000000000L + i * 7919L);
+		
+		for(String policy : new String[]{IsbnCache.LRU, IsbnCache.LFU}){
+			IsbnCache cache = new IsbnCache(loader, cacheSize, policy);
+			
+			// Every lookup hits: only the first half of the ISBNs is looked up, and it fits in the cache
+			loads.set(0);
+			run(cache, isbns, cacheSize, lookups / 10);
+			long start = System.nanoTime();
+			run(cache, isbns, cacheSize, lookups);
+			double hitNanos = (System.nanoTime() - start) / (double) lookups;
+			
+			// Twice as many ISBNs as the cache holds, so about half of the lookups are loaded and evict a book
+			loads.set(0);
+			start = System.nanoTime();
+			run(cache, isbns, isbns.length, lookups);
+			double mixedNanos = (System.nanoTime() - start) / (double) lookups;
+			
+			System.out.println(String.format("%s: cached lookup %.0f ns, working set twice the cache %.0f ns "
+					+ "(%.1f%% loaded, %d evictions)", policy, hitNanos, mixedNanos,
+					loads.get() * 100.0 / lookups, cache.getEvictions()));
+		}
+	}
+	
+	/**
+	 * Looks up ISBNs picked from the first "range" ISBNs, skewed towards the first ones like real lookups are.
+	 */
+	private static void run(IsbnCache cache, String[] isbns, int range, int lookups) throws SQLException {
+		long seed = 42;
+		for(int i = 0; i < lookups; i++){
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			int a = (int) ((seed >>> 33) % range);
+			int b = (int) ((seed >>> 1 & 0x7fffffff) % range);
+			if(cache.get(isbns[Math.min(a, b)]) == null)
+				throw new IllegalStateException("Missing book");
+		}
+	}
+}
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * This application is a bookstore database system that allows users to
  * interact with a bookstore-themed database via a GUI.
@@ -20,6 +22,21 @@ public class Main {
 	 */
 	public static void main(String[] args){
 		
+		//Writes the metrics every "bookstore.metrics.dumpSeconds" seconds, if set (see Metrics)
+		Metrics.startDump();
+		
+		//Runs commands without a GUI, see HeadlessMode
+		if(args.length > 0 && args[0].equalsIgnoreCase("--headless")){
+			System.exit(HeadlessMode.run(Arrays.copyOfRange(args, 1, args.length)));
+		}
+		
+		//Serves the catalog over HTTP, see CatalogServer. The server's threads keep the application running.
+		if(args.length > 0 && args[0].equalsIgnoreCase("--server")){
+			int exitCode = CatalogServer.run(Arrays.copyOfRange(args, 1, args.length));
+			if(exitCode != 0)
+				System.exit(exitCode);
+			return;
+		}
 		
 		//Calls the appropriate Initialization constructor depending on if the user provided command line arguments
 		if(args.length == 2){
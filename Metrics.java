@@ -0,0 +1,324 @@
+import java.awt.EventQueue;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Class that keeps the application's metrics: one Histogram per measured thing, such as the time each kind of
+ * search takes, the time spent waiting for a pooled connection, or the number of rows a search returns.
+ * 
+ * Each histogram is registered as an MBean named "Bookstore:type=Metrics,name=...", so it can be read with
+ * jconsole or any other JMX client while the application runs. The histograms can also be written as text
+ * every "bookstore.metrics.dumpSeconds" seconds (default 0, never), to standard error or to the file named by
+ * "bookstore.metrics.dumpFile".
+ * 
+ * Recording a value never takes a lock: it adds to a LongAdder and to one bucket of an AtomicLongArray, so the
+ * threads recording to the same histogram don't wait for each other. Histograms are looked up once, and kept in
+ * static fields by the classes that record to them.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class Metrics {
+	
+	// How often the event dispatch thread is checked for stalls
+	private static final long EDT_PROBE_MILLIS = 100;
+	
+	private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<String, Histogram>();
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "metrics");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final AtomicBoolean watchingEventDispatchThread = new AtomicBoolean(), dumping = new AtomicBoolean();
+	
+	/**
+	 * Returns the histogram of durations with the given name, creating and registering it the first time.
+	 * 
+	 * @param name : Name of the histogram, such as "queries.title"
+	 * @return The histogram, which records nanoseconds
+	 */
+	public static Histogram timer(String name){
+		return histogram(name, true);
+	}
+	
+	/**
+	 * Returns the histogram of plain values (such as row counts) with the given name, creating and registering
+	 * it the first time.
+	 * 
+	 * @param name : Name of the histogram, such as "queries.rows"
+	 * @return The histogram
+	 */
+	public static Histogram histogram(String name){
+		return histogram(name, false);
+	}
+	
+	private static Histogram histogram(String name, boolean timed){
+		Histogram histogram = HISTOGRAMS.get(name);
+		if(histogram != null)
+			return histogram;
+		synchronized(HISTOGRAMS){
+			histogram = HISTOGRAMS.get(name);
+			if(histogram == null){
+				histogram = new Histogram(name, timed);
+				try{
+					MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+					server.registerMBean(histogram, new ObjectName("Bookstore:type=Metrics,name=" + ObjectName.quote(name)));
+				} catch (JMException e){
+					e.printStackTrace();
+				}
+				HISTOGRAMS.put(name, histogram);
+			}
+			return histogram;
+		}
+	}
+	
+	/**
+	 * Starts writing the histograms every "bookstore.metrics.dumpSeconds" seconds, if that property is set.
+	 * Does nothing when the dump is already started.
+	 */
+	public static void startDump(){
+		long seconds = Long.getLong("bookstore.metrics.dumpSeconds", 0);
+		if(seconds <= 0 || !dumping.compareAndSet(false, true))
+			return;
+		final String file = System.getProperty("bookstore.metrics.dumpFile");
+		SCHEDULER.scheduleAtFixedRate(new Runnable(){
+			public void run() {
+				String text = dump();
+				if(file == null){
+					System.err.print(text);
+					return;
+				}
+				try{
+					Files.write(Paths.get(file), text.getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				} catch (IOException e){
+					e.printStackTrace();
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Returns every histogram that recorded a value, one per line, under a line with the current time.
+	 */
+	public static String dump(){
+		StringBuilder text = new StringBuilder(1024).append("Metrics at ").append(Instant.now()).append('\n');
+		for(Histogram histogram : HISTOGRAMS.values()){
+			if(histogram.getCount() > 0)
+				text.append("  ").append(histogram).append('\n');
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * Starts measuring how long events wait for the event dispatch thread, into the "edt.stall" histogram. Every
+	 * 100 ms an empty event is queued, and the time until it runs is recorded. A new event is only queued once
+	 * the last one has run, so a long stall is recorded once instead of queueing an event every 100 ms.
+	 */
+	public static void watchEventDispatchThread(){
+		if(!watchingEventDispatchThread.compareAndSet(false, true))
+			return;
+		final Histogram stalls = timer("edt.stall");
+		final AtomicBoolean queued = new AtomicBoolean();
+		SCHEDULER.scheduleWithFixedDelay(new Runnable(){
+			public void run() {
+				if(!queued.compareAndSet(false, true))
+					return;
+				final long start = System.nanoTime();
+				EventQueue.invokeLater(new Runnable(){
+					public void run() {
+						stalls.recordSince(start);
+						queued.set(false);
+					}
+				});
+			}
+		}, EDT_PROBE_MILLIS, EDT_PROBE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Attributes of a Histogram that can be read through JMX. Durations are in microseconds.
+	 */
+	public interface HistogramMBean {
+		long getCount();
+		double getMean();
+		double getMax();
+		double getP50();
+		double getP90();
+		double getP99();
+		String getUnit();
+		void reset();
+	}
+	
+	/**
+	 * Class that counts values into buckets whose width grows with the values: each power of two is split into
+	 * four buckets, so a percentile is known to within 25% of its value, from one nanosecond to centuries. The
+	 * count, sum and maximum are kept exactly.
+	 */
+	public static class Histogram implements HistogramMBean {
+		
+		// Values 0 to 3 have their own bucket, then four buckets per power of two up to Long.MAX_VALUE
+		private static final int BUCKETS = 248;
+		
+		private final String name;
+		private final boolean timed;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder(), sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+		
+		Histogram(String nName, boolean nTimed){
+			name = nName;
+			timed = nTimed;
+		}
+		
+		/**
+		 * Records a value. Negative values are recorded as 0.
+		 * 
+		 * @param value : The value, in nanoseconds for a timer
+		 */
+		public void record(long value){
+			value = Math.max(0, value);
+			buckets.incrementAndGet(bucketOf(value));
+			count.increment();
+			sum.add(value);
+			long current = max.get();
+			while(value > current && !max.compareAndSet(current, value))
+				current = max.get();
+		}
+		
+		/**
+		 * Records the time since the given start.
+		 * 
+		 * @param start : The start, as returned by System.nanoTime()
+		 */
+		public void recordSince(long start){
+			record(System.nanoTime() - start);
+		}
+		
+		static int bucketOf(long value){
+			if(value < 4)
+				return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return (exponent - 1) * 4 + (int) ((value >>> (exponent - 2)) & 3);
+		}
+		
+		/**
+		 * Returns the smallest value that falls in the given bucket.
+		 */
+		static long lowerBound(int bucket){
+			if(bucket < 4)
+				return bucket;
+			return (long) (4 + bucket % 4) << (bucket / 4 - 1);
+		}
+		
+		/**
+		 * Returns an estimate of the value below which the given percentage of the recorded values fall: the
+		 * middle of the bucket the percentile falls in, but never more than the maximum.
+		 * 
+		 * @param percent : Percentage, from 0 to 100
+		 */
+		public long percentile(double percent){
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for(int i = 0; i < BUCKETS; i++)
+				total += counts[i] = buckets.get(i);
+			if(total == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+			for(int i = 0; i < BUCKETS; i++){
+				rank -= counts[i];
+				if(rank <= 0){
+					long low = lowerBound(i), high = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+					return Math.min(max.get(), low + (high - low) / 2);
+				}
+			}
+			return max.get();
+		}
+		
+		@Override
+		public String toString(){
+			long recorded = count.sum();
+			double mean = recorded == 0 ? 0 : sum.sum() / (double) recorded;
+			return String.format("%-28s count=%d mean=%s p50=%s p90=%s p99=%s max=%s", name, recorded, format(mean),
+					format(percentile(50)), format(percentile(90)), format(percentile(99)), format(max.get()));
+		}
+		
+		private String format(double value){
+			if(!timed)
+				return String.format("%.0f", value);
+			if(value >= 1e9)
+				return String.format("%.2fs", value / 1e9);
+			if(value >= 1e6)
+				return String.format("%.2fms", value / 1e6);
+			return String.format("%.1fus", value / 1e3);
+		}
+		
+		private double inUnit(double value){
+			return timed ? value / 1e3 : value;
+		}
+		
+		// GETTERS
+		
+		public String getName(){
+			return name;
+		}
+		
+		public long getCount(){
+			return count.sum();
+		}
+		
+		public double getMean(){
+			long recorded = count.sum();
+			return recorded == 0 ? 0 : inUnit(sum.sum() / (double) recorded);
+		}
+		
+		public double getMax(){
+			return inUnit(max.get());
+		}
+		
+		public double getP50(){
+			return inUnit(percentile(50));
+		}
+		
+		public double getP90(){
+			return inUnit(percentile(90));
+		}
+		
+		public double getP99(){
+			return inUnit(percentile(99));
+		}
+		
+		public String getUnit(){
+			return timed ? "us" : "";
+		}
+		
+		/**
+		 * Forgets every recorded value. Values recorded while the histogram is being reset may be partly kept.
+		 */
+		public void reset(){
+			for(int i = 0; i < BUCKETS; i++)
+				buckets.set(i, 0);
+			count.reset();
+			sum.reset();
+			max.set(0);
+		}
+	}
+}
@@ -0,0 +1,594 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that keeps the books in the BOOKSTORE.BOOKS table of a MySQL server (see BookRepository).
+ * 
+ * Every statement is parameterized, and is prepared once per pooled connection and then reused from that
+ * connection's statement cache. Statements that read many rows (scans) stream them from the server one at
+ * a time, and every statement can be cancelled through QueryExecutor when it runs on one of its threads.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class MySqlBookRepository implements BookRepository {
+	
+	static final String SEARCH_BY_ISBN = "SELECT * FROM BOOKSTORE.BOOKS WHERE ISBN = ?";
+	static final String COUNT_ROWS = "SELECT COUNT(*) FROM BOOKSTORE.BOOKS";
+	static final String FIRST_PAGE = "SELECT * FROM BOOKSTORE.BOOKS ORDER BY ISBN LIMIT ?";
+	// Keyset pagination, which lets the server seek straight to the start of the page through the primary key
+	static final String NEXT_PAGE = "SELECT * FROM BOOKSTORE.BOOKS WHERE ISBN > ? ORDER BY ISBN LIMIT ?";
+	// Walks the primary key index only
+	static final String ISBN_AT_OFFSET = "SELECT ISBN FROM BOOKSTORE.BOOKS ORDER BY ISBN LIMIT 1 OFFSET ?";
+	static final String SCAN_ALL = "SELECT * FROM BOOKSTORE.BOOKS ORDER BY ISBN";
+	static final String INSERT_ROW = BulkLoader.insertStatement(1);
+	static final String SELECT_FOR_DELETE = "SELECT * FROM BOOKSTORE.BOOKS WHERE ISBN = ? FOR UPDATE";
+	static final String DELETE_ROW = "DELETE FROM BOOKSTORE.BOOKS WHERE ISBN = ?";
+	// The server's clock in microseconds since the epoch, and the session's time zone so it can be put back
+	static final String CHANGE_TOKEN = "SELECT UNIX_TIMESTAMP(NOW(6)), @@session.time_zone";
+	static final String CHANGED_SINCE = "SELECT * FROM BOOKSTORE.BOOKS WHERE UPDATED_AT >= FROM_UNIXTIME(?)";
+	static final String DELETED_SINCE = "SELECT ISBN FROM BOOKSTORE.BOOKS_DELETED WHERE DELETED_AT >= FROM_UNIXTIME(?)";
+	// When the oldest transaction still open started (whole seconds), or null if there is none
+	static final String OLDEST_TRANSACTION = "SELECT UNIX_TIMESTAMP(MIN(trx_started)) FROM information_schema.INNODB_TRX";
+	static final String PRUNE_DELETED = "DELETE FROM BOOKSTORE.BOOKS_DELETED WHERE DELETED_AT < FROM_UNIXTIME(?)";
+	static final String SET_TIME_ZONE = "SET time_zone = ?";
+	// Columns replaced when an upserted book is already in the table, which is every column but the ISBN
+	private static final String UPDATE_COLUMNS = " on duplicate key update BOOK_NAME = values(BOOK_NAME), "
+			+ "YEAR_PUBLISHED = values(YEAR_PUBLISHED), AUTHOR = values(AUTHOR), PAGES = values(PAGES), "
+			+ "CUR_STOCK = values(CUR_STOCK), PRICE = values(PRICE), AMOUNT_SOLD = values(AMOUNT_SOLD), "
+			+ "LAST_SHIP_RECEIVED = values(LAST_SHIP_RECEIVED)";
+	// How far before the token changesSince looks. Tokens already go back to the start of the oldest transaction
+	// still open, so this covers the whole seconds that start is given in, or, when the transactions can't be read,
+	// the longest write transaction of any client
+	private static final long CHANGE_OVERLAP_MICROS = Long.getLong("bookstore.refresh.overlapSeconds", 10) * 1000000;
+	// How long the ISBNs of deleted books are kept in BOOKS_DELETED, and so how old a token can be
+	private static final long TOMBSTONE_RETENTION_MICROS = Long.getLong("bookstore.refresh.tombstoneHours", 24) * 3600000000L;
+	// Tombstones are only deleted this long after they expire, so that a refresh running at the same time in
+	// another client still finds the ones it reads
+	private static final long PRUNE_MARGIN_MICROS = 3600000000L;
+	// MySQL's error for a missing privilege, here the PROCESS privilege needed to read INNODB_TRX
+	private static final int SPECIFIC_ACCESS_DENIED = 1227;
+	// Books are read by their ISBNs in batches of one of these sizes, so that only a few different statements
+	// end up in the statement caches
+	private static final int[] ISBN_BATCH_SIZES = {1, 10, 100, 1000};
+	
+	private static MySqlBookRepository sharedRepository;
+	
+	private final ConnectionPool pool;
+	// Whether the open transactions can be read through INNODB_TRX, see takeToken
+	private volatile boolean transactionsReadable = true;
+	
+	/**
+	 * Constructor for MySqlBookRepository.
+	 * 
+	 * @param nPool : Connection pool from which the statements borrow their connections
+	 */
+	public MySqlBookRepository(ConnectionPool nPool){
+		pool = nPool;
+	}
+	
+	/**
+	 * Returns the repository of the given pool, creating it the first time.
+	 * 
+	 * @param nPool : Connection pool of the database
+	 * @return The repository
+	 */
+	static synchronized MySqlBookRepository forPool(ConnectionPool nPool){
+		if(sharedRepository == null || sharedRepository.pool != nPool)
+			sharedRepository = new MySqlBookRepository(nPool);
+		return sharedRepository;
+	}
+	
+	public BookRecord find(String isbn) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, SEARCH_BY_ISBN,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setString(1, isbn);
+			try(ResultSet rs = statement.executeQuery()){
+				return rs.next() ? BookRecord.fromResultSet(rs) : null;
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Reads the books with "ISBN IN (...)" searches of 1, 10, 100 or 1000 ISBNs, the last batch being padded
+	 * by repeating its last ISBN.
+	 */
+	public BookColumns find(List<String> isbns) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			return find(conn, isbns);
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	private BookColumns find(Connection conn, List<String> isbns) throws SQLException {
+		Map<String, BookRecord> found = new HashMap<String, BookRecord>(isbns.size() * 2);
+		int start = 0;
+		while(start < isbns.size()){
+			int remaining = isbns.size() - start;
+			int batch = ISBN_BATCH_SIZES[ISBN_BATCH_SIZES.length - 1];
+			for(int size : ISBN_BATCH_SIZES){
+				if(size >= remaining){
+					batch = size;
+					break;
+				}
+			}
+			PreparedStatement statement = pool.prepareStatement(conn, searchByIsbns(batch),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			for(int i = 0; i < batch; i++)
+				statement.setString(i + 1, isbns.get(Math.min(start + i, isbns.size() - 1)));
+			QueryExecutor.track(statement);
+			try(ResultSet rs = statement.executeQuery()){
+				while(rs.next()){
+					BookRecord book = BookRecord.fromResultSet(rs);
+					found.put(book.getIsbn(), book);
+				}
+			}
+			start += batch;
+		}
+		
+		BookColumns books = new BookColumns(found.size());
+		for(String isbn : isbns){
+			BookRecord book = found.get(isbn);
+			if(book != null)
+				books.add(book);
+		}
+		return books;
+	}
+	
+	private static String searchByIsbns(int count){
+		StringBuilder sql = new StringBuilder("SELECT * FROM BOOKSTORE.BOOKS WHERE ISBN IN (?");
+		for(int i = 1; i < count; i++)
+			sql.append(", ?");
+		return sql.append(')').toString();
+	}
+	
+	/**
+	 * Compiles the query into one parameterized statement (see BookQuery.toSql), so the database is only asked once.
+	 */
+	public BookColumns search(BookQuery query) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, query.toSql(),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			List<Object> parameters = query.getParameters();
+			for(int i = 0; i < parameters.size(); i++)
+				statement.setObject(i + 1, parameters.get(i));
+			QueryExecutor.track(statement);
+			try(ResultSet rs = statement.executeQuery()){
+				return BookColumns.fromResultSet(rs);
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	public int count() throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, COUNT_ROWS,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try(ResultSet rs = statement.executeQuery()){
+				rs.next();
+				return rs.getInt(1);
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	public BookColumns page(String afterIsbn, int limit) throws SQLException {
+		BookColumns page = new BookColumns(limit);
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement;
+			if(afterIsbn == null){
+				statement = pool.prepareStatement(conn, FIRST_PAGE, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				statement.setInt(1, limit);
+			}
+			else{
+				statement = pool.prepareStatement(conn, NEXT_PAGE, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				statement.setString(1, afterIsbn);
+				statement.setInt(2, limit);
+			}
+			try(ResultSet rs = statement.executeQuery()){
+				while(rs.next())
+					page.add(rs);
+			}
+		} finally {
+			pool.release(conn);
+		}
+		return page;
+	}
+	
+	public String isbnAt(int offset) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, ISBN_AT_OFFSET,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setInt(1, offset);
+			try(ResultSet rs = statement.executeQuery()){
+				return rs.next() ? rs.getString(1) : null;
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Reads the rows through a forward-only ResultSet with a fetch size of Integer.MIN_VALUE, which makes the
+	 * MySQL driver stream them from the server one at a time instead of reading every row into the heap first.
+	 */
+	public void scan(Visitor visitor) throws SQLException, IOException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, SCAN_ALL,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(Integer.MIN_VALUE);
+			QueryExecutor.track(statement);
+			try(ResultSet rs = statement.executeQuery()){
+				while(rs.next())
+					visitor.visit(BookRecord.fromResultSet(rs));
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	public void insert(Object[] items) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, INSERT_ROW,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			for(int i = 0; i < items.length; i++)
+				statement.setObject(i + 1, items[i]);
+			statement.executeUpdate();
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	public void update(String isbn, int col, Object value) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, updateStatement(col),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setObject(1, value);
+			statement.setString(2, isbn);
+			statement.executeUpdate();
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	private static String updateStatement(int col){
+		// The column name comes from COLUMN_NAMES, never from the user, so it is safe to put in the statement
+		return "UPDATE BOOKSTORE.BOOKS SET " + BooksTableModel.COLUMN_NAMES[col] + " = ? WHERE ISBN = ?";
+	}
+	
+	/**
+	 * Borrows a connection with auto-commit off, which the transaction keeps until it is closed.
+	 */
+	public Transaction begin() throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			conn.setAutoCommit(false);
+		} catch (SQLException e){
+			pool.release(conn);
+			throw e;
+		}
+		return new MySqlTransaction(conn);
+	}
+	
+	public long changeToken() throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			long now;
+			String timeZone;
+			PreparedStatement statement = pool.prepareStatement(conn, CHANGE_TOKEN,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try(ResultSet rs = statement.executeQuery()){
+				rs.next();
+				now = rs.getBigDecimal(1).movePointRight(6).longValue();
+				timeZone = rs.getString(2);
+			}
+			
+			setTimeZone(conn, "+00:00");
+			try{
+				return takeToken(conn, now);
+			} finally {
+				setTimeZone(conn, timeZone);
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Reads the rows whose UPDATED_AT, and the tombstones in BOOKS_DELETED whose DELETED_AT, are at or after
+	 * the token, less "bookstore.refresh.overlapSeconds" (10 by default). Both searches go through an index.
+	 * 
+	 * UPDATED_AT and DELETED_AT are stamped when each statement runs, not when its transaction commits, so a
+	 * token never goes past the start of the oldest transaction still open (see takeToken): whatever that
+	 * transaction stamps is read by the next refresh, however long it takes to commit.
+	 * 
+	 * Tombstones are kept for "bookstore.refresh.tombstoneHours" (24 by default), and older ones are deleted
+	 * here, unless this refresh still needs them. A token older than that may have missed deletions, so null is
+	 * returned for it.
+	 * 
+	 * The timestamps are compared in UTC: in a time zone with daylight saving time, the local times of the hour
+	 * that is repeated each autumn are ambiguous, and a change made during it could be missed.
+	 */
+	public Changes changesSince(long token) throws SQLException {
+		long sinceMicros = token - CHANGE_OVERLAP_MICROS;
+		BigDecimal since = BigDecimal.valueOf(sinceMicros, 6);
+		List<BookRecord> changed = new ArrayList<BookRecord>();
+		List<String> deleted = new ArrayList<String>();
+		long newToken;
+		Connection conn = pool.getConnection();
+		try{
+			long now;
+			String timeZone;
+			PreparedStatement statement = pool.prepareStatement(conn, CHANGE_TOKEN,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try(ResultSet rs = statement.executeQuery()){
+				rs.next();
+				now = rs.getBigDecimal(1).movePointRight(6).longValue();
+				timeZone = rs.getString(2);
+			}
+			
+			setTimeZone(conn, "+00:00");
+			try{
+				//The new token is taken first, so that a change made while the rows are read is read again next time
+				newToken = takeToken(conn, now);
+				long horizon = now - TOMBSTONE_RETENTION_MICROS;
+				if(sinceMicros < horizon)
+					return null;
+				pruneTombstones(conn, horizon - PRUNE_MARGIN_MICROS);
+				
+				statement = pool.prepareStatement(conn, CHANGED_SINCE, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				statement.setBigDecimal(1, since);
+				QueryExecutor.track(statement);
+				try(ResultSet rs = statement.executeQuery()){
+					while(rs.next())
+						changed.add(BookRecord.fromResultSet(rs));
+				}
+				
+				statement = pool.prepareStatement(conn, DELETED_SINCE, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				statement.setBigDecimal(1, since);
+				QueryExecutor.track(statement);
+				try(ResultSet rs = statement.executeQuery()){
+					while(rs.next())
+						deleted.add(rs.getString(1));
+				}
+			} finally {
+				setTimeZone(conn, timeZone);
+			}
+		} finally {
+			pool.release(conn);
+		}
+		return new Changes(changed, deleted, newToken);
+	}
+	
+	/**
+	 * Returns a token for the present point in the history of changes: the server's clock, or the start of the
+	 * oldest transaction still open if that is earlier, since the rows that transaction has stamped are only
+	 * seen once it commits. Reading the open transactions needs the PROCESS privilege. Without it, the token is
+	 * the server's clock, and only "bookstore.refresh.overlapSeconds" covers the transactions that take a while
+	 * to commit.
+	 * 
+	 * @param conn : Borrowed connection, whose session is in UTC
+	 * @param now : The server's clock in microseconds since the epoch
+	 */
+	private long takeToken(Connection conn, long now) throws SQLException {
+		if(!transactionsReadable)
+			return now;
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, OLDEST_TRANSACTION,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try(ResultSet rs = statement.executeQuery()){
+				rs.next();
+				BigDecimal oldest = rs.getBigDecimal(1);
+				return oldest == null ? now : Math.min(now, oldest.movePointRight(6).longValue());
+			}
+		} catch (SQLException e){
+			if(e.getErrorCode() != SPECIFIC_ACCESS_DENIED)
+				throw e;
+			transactionsReadable = false;
+			System.out.println("Without the PROCESS privilege, refreshes only read again the changes made up to "
+					+ CHANGE_OVERLAP_MICROS / 1000000 + " seconds before the last one (-Dbookstore.refresh.overlapSeconds)");
+			return now;
+		}
+	}
+	
+	/**
+	 * Deletes the tombstones in BOOKS_DELETED from before the given time. Failing to do so (for instance without
+	 * the DELETE privilege) only leaves them for a later refresh.
+	 */
+	private void pruneTombstones(Connection conn, long beforeMicros){
+		try{
+			PreparedStatement statement = pool.prepareStatement(conn, PRUNE_DELETED,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setBigDecimal(1, BigDecimal.valueOf(beforeMicros, 6));
+			statement.executeUpdate();
+		} catch (SQLException e){
+			e.printStackTrace();
+		}
+	}
+	
+	private void setTimeZone(Connection conn, String timeZone) throws SQLException {
+		PreparedStatement statement = pool.prepareStatement(conn, SET_TIME_ZONE,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setString(1, timeZone);
+		statement.executeUpdate();
+	}
+	
+	/**
+	 * Transaction on a borrowed connection. Handing the connection back to the pool rolls back whatever
+	 * wasn't committed.
+	 */
+	private class MySqlTransaction implements Transaction {
+		
+		private Connection conn;
+		
+		MySqlTransaction(Connection nConn){
+			conn = nConn;
+		}
+		
+		public BookColumns find(List<String> isbns) throws SQLException {
+			return MySqlBookRepository.this.find(conn, isbns);
+		}
+		
+		/**
+		 * Sends the edits of each column as one JDBC batch of "UPDATE ... WHERE ISBN = ?" statements, so
+		 * hundreds of edits cost a few round trips.
+		 */
+		public void update(List<EditBuffer.Edit> edits) throws SQLException {
+			//Edits are grouped by column, so that each column's edits share one statement
+			List<List<EditBuffer.Edit>> byColumn = new ArrayList<List<EditBuffer.Edit>>();
+			for(int col = 0; col < BooksTableModel.COLUMN_NAMES.length; col++)
+				byColumn.add(new ArrayList<EditBuffer.Edit>());
+			for(EditBuffer.Edit edit : edits)
+				byColumn.get(edit.getColumn()).add(edit);
+			
+			for(int col = 0; col < byColumn.size(); col++){
+				List<EditBuffer.Edit> columnEdits = byColumn.get(col);
+				if(columnEdits.isEmpty())
+					continue;
+				PreparedStatement statement = pool.prepareStatement(conn, updateStatement(col),
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				for(EditBuffer.Edit edit : columnEdits){
+					statement.setObject(1, edit.getNewValue());
+					statement.setString(2, edit.getIsbn());
+					statement.addBatch();
+				}
+				try{
+					statement.executeBatch();
+				} catch (BatchUpdateException e){
+					statement.clearBatch();
+					throw EditBuffer.rejected(columnEdits.get(failedIndex(e, columnEdits.size())), e);
+				}
+			}
+		}
+		
+		/**
+		 * Reads and locks the book, then deletes it, so that the book returned is the one deleted.
+		 */
+		public BookRecord delete(String isbn) throws SQLException {
+			PreparedStatement select = pool.prepareStatement(conn, SELECT_FOR_DELETE,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			select.setString(1, isbn);
+			BookRecord book;
+			try(ResultSet rs = select.executeQuery()){
+				if(!rs.next())
+					return null;
+				book = BookRecord.fromResultSet(rs);
+			}
+			
+			PreparedStatement delete = pool.prepareStatement(conn, DELETE_ROW,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			delete.setString(1, isbn);
+			delete.executeUpdate();
+			return book;
+		}
+		
+		/**
+		 * Sends the deletes as batches of "bookstore.delete.batchSize" (500 by default) keyed DELETE statements.
+		 */
+		public List<String> delete(List<String> isbns) throws SQLException {
+			PreparedStatement delete = pool.prepareStatement(conn, DELETE_ROW,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			List<String> deleted = new ArrayList<String>();
+			for(int start = 0; start < isbns.size(); start += Utilities.DELETE_BATCH_SIZE){
+				List<String> batch = isbns.subList(start, Math.min(isbns.size(), start + Utilities.DELETE_BATCH_SIZE));
+				for(String isbn : batch){
+					delete.setString(1, isbn);
+					delete.addBatch();
+				}
+				int[] counts = delete.executeBatch();
+				
+				//Only the ISBNs that matched a row were deleted
+				for(int i = 0; i < counts.length; i++){
+					if(counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO)
+						deleted.add(batch.get(i));
+				}
+			}
+			return deleted;
+		}
+		
+		/**
+		 * Sends the books as one multi-row "INSERT ... ON DUPLICATE KEY UPDATE" statement. If the server rejects
+		 * it, the transaction is rolled back to a savepoint taken just before.
+		 */
+		public void upsert(List<BookRecord> books) throws SQLException {
+			if(books.isEmpty())
+				return;
+			Savepoint savepoint = conn.setSavepoint();
+			try{
+				//The statement has room for a power of two rows, so that only a few statements are cached. The unused
+				//rows repeat the last book, which writes the same values again
+				int rows = Math.min(BulkLoader.MAX_BATCH_SIZE, books.size() == 1 ? 1 : Integer.highestOneBit(books.size() - 1) << 1);
+				if(rows < books.size())
+					rows = books.size();
+				PreparedStatement statement = pool.prepareStatement(conn, upsertStatement(rows),
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				int parameter = 1;
+				for(int i = 0; i < rows; i++)
+					parameter = BulkLoader.bind(statement, parameter, books.get(Math.min(i, books.size() - 1)));
+				statement.executeUpdate();
+			} catch (SQLException e){
+				conn.rollback(savepoint);
+				throw e;
+			} finally {
+				conn.releaseSavepoint(savepoint);
+			}
+		}
+		
+		public void commit() throws SQLException {
+			conn.commit();
+		}
+		
+		public void close(){
+			pool.release(conn);
+			conn = null;
+		}
+	}
+	
+	/**
+	 * Returns the position of the first rejected statement of a batch. The driver either stops at the rejected
+	 * statement or marks it as failed, depending on its settings.
+	 */
+	private static int failedIndex(BatchUpdateException e, int batchSize){
+		int[] counts = e.getUpdateCounts();
+		if(counts == null)
+			return 0;
+		for(int i = 0; i < counts.length; i++){
+			if(counts[i] == Statement.EXECUTE_FAILED)
+				return i;
+		}
+		return Math.min(counts.length, batchSize - 1);
+	}
+	
+	/**
+	 * Builds a multi-row INSERT ... ON DUPLICATE KEY UPDATE statement with placeholders for the given number of rows.
+	 */
+	static String upsertStatement(int rows){
+		return BulkLoader.insertStatement(rows) + UPDATE_COLUMNS;
+	}
+}
@@ -0,0 +1,373 @@
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Table model that displays every book without loading all of them into memory.
+ * 
+ * Rather than holding a ResultSet with every row, the books are counted through the BookRepository, and the
+ * rows themselves are fetched in fixed-size windows as the JTable asks for them. The windows are fetched in
+ * ISBN order using keyset pagination ("the books after the last ISBN of the previous window"), which lets
+ * MySQL seek straight to the start of the window through the primary key instead of skipping rows.
+ * 
+ * Only a limited number of windows are kept, and the least recently used window is dropped once that limit
+ * is reached. When the user scrolls into a new window, the window after it is fetched in the background so
+ * that it is usually ready by the time it is needed.
+ * 
+ * The JTable never waits for a window: the rows of a window that isn't in memory yet are displayed as "...",
+ * and are repainted once the window is fetched. Windows the user has already scrolled away from (for example
+ * while dragging the scroll bar) are skipped rather than fetched.
+ * 
+ * The window size and number of windows kept can be changed with the "bookstore.page.size" and
+ * "bookstore.page.maxWindows" system properties.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class PagedBooksTableModel extends BooksTableModel {
+	
+	private static final long serialVersionUID = 1L;
+	
+	// Windows are fetched one at a time on a background thread shared by every paged model
+	private static final ExecutorService FETCHER = Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "table-window-fetcher");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	// Displayed in the cells of a window that is still being fetched
+	static final String LOADING = "...";
+	
+	// Time taken to fetch a window of rows from the database
+	private static final Metrics.Histogram FETCH_TIME = Metrics.timer("tableModel.fetchWindow");
+	
+	private final int windowSize, rowCount;
+	// Each window keeps its rows column by column, like the rows of a BooksTableModel
+	private final LinkedHashMap<Integer, BookColumns> windows;
+	private final Map<Integer, Future<BookColumns>> pending = new HashMap<Integer, Future<BookColumns>>();
+	// Windows that could not be fetched, whose cells display the error until the table is refreshed
+	private final Map<Integer, SQLException> failures = new HashMap<Integer, SQLException>();
+	// seekKeys[w] is the last ISBN of window w - 1, once it is known
+	private final String[] seekKeys;
+	
+	// Window used by the previous getValueAt call. Only touched on the event dispatch thread.
+	private int lastWindowIndex = -1;
+	private BookColumns lastWindow;
+	// Window the JTable last asked for, near which windows are still worth fetching
+	private volatile int wantedIndex = -1;
+	
+	/**
+	 * Constructor for PagedBooksTableModel. Counts the rows in the table, but doesn't fetch any of them yet.
+	 * 
+	 * @param nPool : Connection pool used to fetch the windows
+	 * @param outputPath : outputFile, to which modifications of the table are recorded
+	 * @throws SQLException : if the rows could not be counted
+	 */
+	public PagedBooksTableModel(ConnectionPool nPool, Path outputPath) throws SQLException {
+		this(nPool, outputPath, Integer.getInteger("bookstore.page.size", 500),
+				Integer.getInteger("bookstore.page.maxWindows", 20));
+	}
+	
+	/**
+	 * Constructor for PagedBooksTableModel.
+	 * 
+	 * @param nPool : Connection pool used to fetch the windows
+	 * @param outputPath : outputFile, to which modifications of the table are recorded
+	 * @param nWindowSize : Number of rows fetched at a time
+	 * @param maxWindows : Number of windows kept in memory
+	 * @throws SQLException : if the rows could not be counted
+	 */
+	public PagedBooksTableModel(ConnectionPool nPool, Path outputPath, int nWindowSize, final int maxWindows) throws SQLException {
+		super(outputPath, nPool);
+		windowSize = Math.max(1, nWindowSize);
+		
+		// Access ordered, so that the eldest window is always the least recently used one
+		windows = new LinkedHashMap<Integer, BookColumns>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BookColumns> eldest) {
+				return size() > Math.max(2, maxWindows);
+			}
+		};
+		
+		rowCount = BookRepository.getRepository(pool).count();
+		seekKeys = new String[rowCount / windowSize + 2];
+	}
+	
+	/**
+	 * Returns the number of rows, counted in the constructor
+	 */
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+	
+	/**
+	 * Returns the value in the given row/column coordinate, or LOADING if the window that contains the row
+	 * isn't in memory yet, in which case the window is fetched in the background.
+	 */
+	@Override
+	public Object getValueAt(int row, int col) {
+		BookColumns window = getLoadedWindowFor(row);
+		if(window == null){
+			SQLException failure;
+			synchronized(this){
+				failure = failures.get(row / windowSize);
+			}
+			return failure != null ? failure.toString() : LOADING;
+		}
+		int offset = row % windowSize;
+		if(offset >= window.size())
+			return null;
+		String pending = getPendingValue(window.getIsbn(offset), col);
+		return pending != null ? pending : window.getText(offset, col);
+	}
+	
+	/**
+	 * Returns the ISBN of the book at the given row, or null if its window isn't in memory yet.
+	 */
+	@Override
+	protected String getIsbnAt(int row){
+		BookColumns window = getLoadedWindowFor(row);
+		int offset = row % windowSize;
+		return window != null && offset < window.size() ? window.getIsbn(offset) : null;
+	}
+	
+	/**
+	 * Returns the value of the given cell, as it is stored in the database, or null if its window isn't in memory
+	 * (in which case it is fetched in the background) or the row is past the end of its window. Only called on the
+	 * event dispatch thread, which never waits for the database.
+	 */
+	@Override
+	protected String getStoredValue(int row, int col){
+		BookColumns window = getLoadedWindowFor(row);
+		int offset = row % windowSize;
+		return window != null && offset < window.size() ? window.getText(offset, col) : null;
+	}
+	
+	/**
+	 * Replaces the rows of the committed books in the windows that are in memory. The windows that aren't
+	 * will fetch the books as they are now stored.
+	 */
+	@Override
+	public void booksStored(List<BookRecord> books){
+		Map<String, BookRecord> byIsbn = new HashMap<String, BookRecord>();
+		for(BookRecord book : books)
+			byIsbn.put(book.getIsbn(), book);
+		synchronized(this){
+			//The last window used may already have been dropped from memory, but is still displayed
+			List<BookColumns> inMemory = new ArrayList<BookColumns>(windows.values());
+			if(lastWindow != null && !inMemory.contains(lastWindow))
+				inMemory.add(lastWindow);
+			for(BookColumns window : inMemory){
+				for(int offset = 0; offset < window.size(); offset++){
+					BookRecord book = byIsbn.get(window.getIsbn(offset));
+					if(book != null)
+						window.set(offset, book);
+				}
+			}
+		}
+		fireTableDataChanged();
+	}
+	
+	/**
+	 * Does nothing, since the rows of a deleted book can't be removed from the windows without shifting every
+	 * window after it. BooksGUI displays the entire table again instead.
+	 */
+	@Override
+	public void removeBook(String isbn){
+	}
+	
+	/**
+	 * Fetches the window that contains the given row, unless it is already in memory, and waits for it. Lets a
+	 * new model be filled in the background before it is displayed, so that the JTable doesn't wait for its
+	 * first rows on the event dispatch thread.
+	 * 
+	 * @param row : Row whose window is fetched
+	 * @throws SQLException : if the window could not be fetched
+	 */
+	void prefetch(int row) throws SQLException {
+		if(row < rowCount)
+			getWindow(row / windowSize);
+	}
+	
+	/**
+	 * Returns the window that contains the given row if it is in memory, and otherwise queues it to be fetched
+	 * and returns null. Only called on the event dispatch thread.
+	 */
+	private BookColumns getLoadedWindowFor(int row){
+		int index = row / windowSize;
+		if(index == lastWindowIndex && lastWindow != null)
+			return lastWindow;
+		
+		wantedIndex = index;
+		BookColumns window;
+		synchronized(this){
+			window = windows.get(index);
+			if(window == null){
+				if(!failures.containsKey(index))
+					requestWindow(index, true);
+				return null;
+			}
+		}
+		lastWindowIndex = index;
+		lastWindow = window;
+		
+		// Fetches the next window ahead of time, as the user is likely scrolling towards it
+		if((index + 1) * windowSize < rowCount)
+			requestWindow(index + 1, true);
+		return window;
+	}
+	
+	/**
+	 * Returns the given window, waiting for it to be fetched if it isn't already in memory.
+	 */
+	private BookColumns getWindow(int index) throws SQLException {
+		Future<BookColumns> future;
+		synchronized(this){
+			BookColumns window = windows.get(index);
+			if(window != null)
+				return window;
+			future = requestWindow(index, false);
+		}
+		
+		try{
+			BookColumns window = future.get();
+			//The fetch that was already queued was skipped, as the user had scrolled away from the window
+			return window != null ? window : fetchWindow(index, false);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while fetching rows", e);
+		} catch (ExecutionException e){
+			if(e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Queues the given window to be fetched, unless it is already in memory or queued. Once it is fetched, its
+	 * rows are repainted.
+	 * 
+	 * @param index : Index of the window
+	 * @param skippable : Whether the fetch is skipped if the user scrolls away from the window before it starts
+	 * @return The pending fetch of the window, or null if the window is already in memory
+	 */
+	private synchronized Future<BookColumns> requestWindow(final int index, final boolean skippable){
+		if(windows.containsKey(index))
+			return null;
+		Future<BookColumns> future = pending.get(index);
+		if(future == null){
+			FutureTask<BookColumns> task = new FutureTask<BookColumns>(new Callable<BookColumns>(){
+				public BookColumns call() throws SQLException {
+					return fetchWindow(index, skippable);
+				}
+			}){
+				@Override
+				protected void done(){
+					windowFetched(index, this);
+				}
+			};
+			pending.put(index, task);
+			FETCHER.execute(task);
+			future = task;
+		}
+		return future;
+	}
+	
+	/**
+	 * Records the outcome of a window's fetch, and repaints the window's rows on the event dispatch thread.
+	 * Runs on the fetcher thread.
+	 */
+	private void windowFetched(int index, Future<BookColumns> fetch){
+		try{
+			if(fetch.get() == null)
+				return;
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e){
+			synchronized(this){
+				failures.put(index, e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause()));
+			}
+		}
+		
+		final int first = index * windowSize, last = Math.min(rowCount, first + windowSize) - 1;
+		if(last >= first){
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run() {
+					fireTableRowsUpdated(first, last);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Fetches the rows of a window from the BookRepository. Runs on the fetcher thread, or on the thread of a
+	 * caller that can't wait for it.
+	 * 
+	 * @return The window, or null if it was skipped
+	 */
+	private BookColumns fetchWindow(int index, boolean skippable) throws SQLException {
+		long start = System.nanoTime();
+		try{
+			int wanted = wantedIndex;
+			if(skippable && wanted >= 0 && Math.abs(index - wanted) > 1)
+				return null;
+			
+			BookColumns window;
+			String seekKey = index == 0 ? null : getSeekKey(index);
+			//With no book before it, the window is past the end of a table that lost rows since they were counted
+			if(index > 0 && seekKey == null)
+				window = new BookColumns(0);
+			else
+				window = BookRepository.getRepository(pool).page(seekKey, windowSize);
+			
+			synchronized(this){
+				windows.put(index, window);
+				// Remembers where the following window starts, so that it can be fetched with a keyset seek
+				if(window.size() == windowSize && index + 1 < seekKeys.length)
+					seekKeys[index + 1] = window.getIsbn(window.size() - 1);
+			}
+			FETCH_TIME.recordSince(start);
+			return window;
+		} finally {
+			synchronized(this){
+				pending.remove(index);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the last ISBN before the given window. If the window before it was never fetched (for example
+	 * when the user drags the scroll bar), the ISBN is looked up by its position.
+	 */
+	private String getSeekKey(int index) throws SQLException {
+		synchronized(this){
+			if(seekKeys[index] != null)
+				return seekKeys[index];
+		}
+		
+		String key = BookRepository.getRepository(pool).isbnAt(index * windowSize - 1);
+		synchronized(this){
+			seekKeys[index] = key;
+		}
+		return key;
+	}
+}
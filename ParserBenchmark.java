@@ -0,0 +1,132 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.StringTokenizer;
+
+/**
+ * Stand-alone benchmark that compares the parallel BookFileParser against the single threaded
+ * StringTokenizer loop that Initialization.readFile used to parse input files with.
+ * 
+ * The benchmark writes a synthetic input file with the requested number of lines (unless an existing file
+ * is given), then parses it with both approaches and prints the lines per second of each. No database is
+ * needed, only the parsing is measured.
+ * 
+ * Usage: "java ParserBenchmark [lines] [inputFile]"
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class ParserBenchmark {
+	
+	private static final int ROUNDS = 3;
+	
+	/**
+	 * Runs the benchmark.
+	 * @param args : optionally, the number of lines to generate (default 2000000), and an existing input file to use instead
+	 */
+	public static void main(String[] args) throws IOException, SQLException {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		Path file;
+		boolean generated = args.length < 2;
+		
+		if(generated){
+			file = Files.createTempFile("books", ".txt");
+			System.out.println("Writing " + lines + " lines to " + file);
+			writeSyntheticFile(file, lines);
+		}
+		else{
+			file = Paths.get(args[1]);
+		}
+		
+		try{
+			System.out.println(String.format("File size: %.1f MB", Files.size(file) / 1048576.0));
+			for(int round = 1; round <= ROUNDS; round++){
+				long start = System.nanoTime();
+				long tokenized = parseWithTokenizer(file);
+				double tokenizerSeconds = (System.nanoTime() - start) / 1e9;
+				
+				start = System.nanoTime();
+				CountingHandler handler = new CountingHandler();
+				new BookFileParser().parse(file, handler);
+				double parallelSeconds = (System.nanoTime() - start) / 1e9;
+				
+				System.out.println(String.format("Round %d: StringTokenizer %d lines in %.2f s (%.0f lines/sec), "
+						+ "BookFileParser %d books + %d rejects in %.2f s (%.0f lines/sec)",
+						round, tokenized, tokenizerSeconds, tokenized / tokenizerSeconds,
+						handler.records, handler.rejects, parallelSeconds, (handler.records + handler.rejects) / parallelSeconds));
+			}
+		} finally {
+			if(generated)
+				Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Writes an input file of synthetic books with unique ISBNs.
+	 */
+	static void writeSyntheticFile(Path file, int lines) throws IOException {
+		try(BufferedWriter writer = Files.newBufferedWriter(file)){
+			for(int i = 0; i < lines; i++){
+				writer.write(String.valueOf(1000000000000L + i));
+				writer.write("::Synthetic Title ");
+				writer.write(String.valueOf(i % 50000));
+				writer.write("::");
+				writer.write(String.valueOf(1950 + i % 70));
+				writer.write("::Author ");
+				writer.write(String.valueOf(i % 5000));
+				writer.write("::");
+				writer.write(String.valueOf(100 + i % 900));
+				writer.write("::");
+				writer.write(String.valueOf(i % 20));
+				writer.write("::");
+				writer.write(String.valueOf(5 + i % 60));
+				writer.write(".99::");
+				writer.write(String.valueOf(i % 1000));
+				writer.write("::2015/");
+				writer.write(String.valueOf(1 + i % 12));
+				writer.write("/");
+				writer.write(String.valueOf(1 + i % 28));
+				writer.newLine();
+			}
+		}
+	}
+	
+	/**
+	 * Parses the file the way Initialization.readFile used to, into a String[9] per line.
+	 * @return the number of lines parsed
+	 */
+	static long parseWithTokenizer(Path file) throws IOException {
+		long count = 0;
+		String[] items = new String[9];
+		try(BufferedReader br = Files.newBufferedReader(file)){
+			String line;
+			while((line = br.readLine()) != null){
+				StringTokenizer tokenizer = new StringTokenizer(line, "::");
+				int i = 0;
+				while(tokenizer.hasMoreTokens() && i < items.length)
+					items[i++] = tokenizer.nextToken();
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Handler that only counts what it is given.
+	 */
+	private static class CountingHandler implements BookFileParser.Handler {
+		long records, rejects;
+		
+		public void record(BookRecord record, int lineNumber) {
+			records++;
+		}
+		
+		public void reject(int lineNumber, String isbn, String reason) {
+			rejects++;
+		}
+	}
+}
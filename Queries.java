@@ -1,10 +1,12 @@
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
+import java.awt.Component;
+import java.awt.GridLayout;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.List;
 
 import javax.swing.ButtonGroup;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -18,7 +20,7 @@ import javax.swing.JTextField;
  * For nearly all of the queries the user can select, a custom panel window will open upon
  * selection requesting relevant information for the query. These custom panels will then return
  * information needed to actually query the database, which is done by corresponding methods in this
- * class. These corresponding methods return ResultSets with the requested query that will be later used 
+ * class. These corresponding methods return the books found by the requested query, which are later used 
  * to update the JTable to display the requested information.
  * 
  * @author Steven Wojsnis
@@ -26,8 +28,21 @@ import javax.swing.JTextField;
  */
 public class Queries {
 	
+	// Maximum number of books displayed by a title or author search that goes through the TextSearchIndex
+	private static final int MAX_TEXT_RESULTS = Integer.getInteger("bookstore.search.maxResults", 1000);
+	
+	// Time taken by each kind of search that succeeded, and the number of books found by the searches
+	private static final Metrics.Histogram ISBN_LOOKUPS = Metrics.timer("queries.isbnLookup"),
+			TITLE_SEARCHES = Metrics.timer("queries.title"),
+			AUTHOR_SEARCHES = Metrics.timer("queries.author"),
+			YEAR_SEARCHES = Metrics.timer("queries.year"),
+			PAGE_SEARCHES = Metrics.timer("queries.pages"),
+			STOCK_SEARCHES = Metrics.timer("queries.stock"),
+			PRICE_SEARCHES = Metrics.timer("queries.price"),
+			COMBINED_SEARCHES = Metrics.timer("queries.combined");
+	private static final Metrics.Histogram ROWS_RETURNED = Metrics.histogram("queries.rows");
+	
 	private String url, username, password;
-	ResultSet oldRs =  null;
 	
 	/**
 	 * Constructor for Queries. Instantiates the information needed to make a connection
@@ -36,15 +51,12 @@ public class Queries {
 	 * @param nURL : URL needed for connection to Database
 	 * @param nUsername : Username needed for connection to Database 
 	 * @param nPassword : Password needed for connection to Database
-	 * @param oRS : Old ResultSet - used to instantiate ResultSets before they are updated with query
 	 */
-	public Queries(String nURL, String nUsername, String nPassword, ResultSet oRS){
+	public Queries(String nURL, String nUsername, String nPassword){
 		//Instantiates the relevant variables
 		setURL(nURL);
 		setUsername(nUsername);
 		setPassword(nPassword);
-		
-		oldRs = oRS;
 	}
 	
 	/**
@@ -57,105 +69,132 @@ public class Queries {
 	}
 	
 	/**
-	 * Takes a String parameter, and searches for all books in the Database whose ISBNs match that
-	 * String parameter.
+	 * Looks up the book with the given ISBN through the shared IsbnCache, which only goes to the database
+	 * if the book isn't already cached.
 	 * 
-	 * Returns the ResultSet containing only books with the specified ISBN
 	 * @param isbn : ISBN to be searched for
-	 * @return : ResultSet with only the books with matching ISBNs
+	 * @return The book with the given ISBN, or null if there is none
+	 * @throws SQLException : if the book had to be read from the database, and could not be
 	 */
-	public ResultSet searchForDesiredISBN(String isbn){
-		
-		ResultSet rs = oldRs;
-		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_UPDATABLE);
-			//Searches for books with the given ISBN
-			rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE ISBN = '" + isbn+"'");
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
-		}
-		return rs;
-		
+	public BookRecord lookupISBN(String isbn) throws SQLException {
+		long start = System.nanoTime();
+		BookRecord book = getIsbnCache().get(isbn);
+		ISBN_LOOKUPS.recordSince(start);
+		return book;
 	}
 	
 	/**
-	 * Requests a book title that the user would like to search for from the user.
+	 * Requests a book title that the user would like to search for from the user, and how it should be
+	 * matched (see textQueryPanel).
 	 * 
-	 * @return The Title that the user wishes to search for
+	 * @return A String Array with the Title that the user wishes to search for, and the kind of search
 	 */
-	public String titleQueryPanel(){
-		String title = JOptionPane.showInputDialog(null, "Title of the book to be searched for");
-		return title;
+	public String[] titleQueryPanel(){
+		return textQueryPanel("Type all or part of a title, and then choose how it should be matched.");
 	}
 	
 	/**
-	 * Takes a String parameter and searches all the books in the Database whose title matches that
-	 * String parameter
+	 * Requests an author of a book from the user that the user would like to search for, and how it
+	 * should be matched (see textQueryPanel).
 	 * 
-	 * @param title : The title of the book that will be searched for
-	 * @return : The ResultSet containing books with the title the user queried for.
+	 * @return : A String Array with the author that is to be searched for, and the kind of search
 	 */
-	public ResultSet searchForDesiredTitle(String title){
-		
-		ResultSet rs = oldRs;
-		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_UPDATABLE);
-			//Queries the database for books whose name matches that which the user is searching for.
-			rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE BOOK_NAME = '" + title+"'");
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
-		}
-		return rs;
-		
+	public String[] authorQueryPanel(){
+		return textQueryPanel("Type all or part of an author's name, and then choose how it should be matched.");
 	}
 	
 	/**
-	 * Requests an author of a book from the user that the user would like to search for
+	 * Displays a custom panel that asks the user to enter a title or author, and select a radio button
+	 * indicating how it should be matched:
+	 * "Exact" finds books whose value is exactly the entered text,
+	 * "Contains" finds books whose value contains the entered text (the default),
+	 * "Starts with" finds books whose value starts with the entered text, and
+	 * "Similar" finds books whose value is close to the entered text, even with a few typos.
+	 * 
+	 * Except for "Exact", case and punctuation are ignored.
 	 * 
-	 * @return : The author of a title that is to be searched for
+	 * @param instructions : Instructions displayed to the user
+	 * @return A String Array with the entered text in the first slot, and "exact", "contains", "prefix"
+	 * or "similar" in the second slot
 	 */
-	public String authorQueryPanel(){
-		String author = JOptionPane.showInputDialog(null, "Author of the book to be searched for");
-		return author;
+	private String[] textQueryPanel(String instructions){
+		
+		//Creates a custom panel with four radio buttons, and a label containing instructions to the user
+		JPanel panel = new JPanel();
+		JRadioButton exactButton = new JRadioButton("Exact", false);
+		JRadioButton containsButton = new JRadioButton("Contains", true);
+		JRadioButton prefixButton = new JRadioButton("Starts with", false);
+		JRadioButton similarButton = new JRadioButton("Similar", false);
+		JLabel instructionsLabel = new JLabel(instructions);
+		
+		//Button group with the four buttons, such that only one can be selected at a time
+		ButtonGroup buttonGroup = new ButtonGroup();
+		buttonGroup.add(exactButton);
+		buttonGroup.add(containsButton);
+		buttonGroup.add(prefixButton);
+		buttonGroup.add(similarButton);
+		
+		panel.add(instructionsLabel);
+		panel.add(exactButton);
+		panel.add(containsButton);
+		panel.add(prefixButton);
+		panel.add(similarButton);
+		
+		String[] textSpecs = new String[2];
+		textSpecs[0] = JOptionPane.showInputDialog(null,panel);
+		
+		if(exactButton.isSelected())
+			textSpecs[1] = "exact";
+		else if(prefixButton.isSelected())
+			textSpecs[1] = "prefix";
+		else if(similarButton.isSelected())
+			textSpecs[1] = "similar";
+		else
+			textSpecs[1] = "contains";
+		
+		return textSpecs;
 	}
 	
 	/**
-	 * Searches for books that have the same AUTHOR value as the String parameter "author"
-	 * Returns the results of the search in a ResultSet.
+	 * Searches the titles or authors of the books, as requested through titleQueryPanel or authorQueryPanel.
 	 * 
-	 * @param author : The author to be searched for
-	 * @return A ResultSet containing all the books that have matching author values with the author parameter
+	 * An "exact" search is run by the BookRepository. The other searches go through the shared TextSearchIndex,
+	 * and the books it finds are then read by their ISBNs, best matches first. At most
+	 * "bookstore.search.maxResults" (1000 by default) books are returned by those searches.
+	 * 
+	 * @param field : Whether titles or authors are searched
+	 * @param textSpecs : Array containing the text to be searched for, and the kind of search
+	 * @return The books found, or null if the user didn't enter anything
+	 * @throws SQLException : if the search could not be run
 	 */
-	public ResultSet searchForDesiredAuthor(String author){
-		
-		ResultSet rs = oldRs;
-		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_UPDATABLE);
-			//Queries the database for books whose author matches that which the user is searching for.
-			rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE AUTHOR = '" + author+"'");
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
+	public BookColumns searchByText(TextSearchIndex.Field field, String[] textSpecs) throws SQLException {
+		if(textSpecs[0] == null)
+			return null;
+		long start = System.nanoTime();
+		Metrics.Histogram timer = field == TextSearchIndex.Field.TITLE ? TITLE_SEARCHES : AUTHOR_SEARCHES;
+		
+		if(textSpecs[1].equalsIgnoreCase("exact")){
+			BookQuery query = field == TextSearchIndex.Field.TITLE ? new BookQuery().title(textSpecs[0])
+					: new BookQuery().author(textSpecs[0]);
+			return found(timer, start, getRepository().search(query));
 		}
-		return rs;
 		
+		TextSearchIndex.Mode mode = textSpecs[1].equalsIgnoreCase("prefix") ? TextSearchIndex.Mode.PREFIX
+				: textSpecs[1].equalsIgnoreCase("similar") ? TextSearchIndex.Mode.SIMILAR : TextSearchIndex.Mode.CONTAINS;
+		List<String> isbns = getTextSearchIndex().search(field, textSpecs[0], mode, MAX_TEXT_RESULTS);
+		return found(timer, start, fetchBooks(isbns));
+	}
+	
+	/**
+	 * Reads the books with the given ISBNs through the BookRepository, and returns them in the same order.
+	 * ISBNs of books that no longer exist are skipped.
+	 * 
+	 * @param isbns : ISBNs of the books to be read
+	 * @return The books that were found
+	 * @throws SQLException : if the books could not be read
+	 */
+	BookColumns fetchBooks(List<String> isbns) throws SQLException {
+		return getRepository().find(isbns);
 	}
 	
 	/**
@@ -217,35 +256,32 @@ public class Queries {
 	 * It should be noted that both "before" and "after" are inclusive, and so they will also search
 	 * for books published ON the given year.
 	 * 
+	 * The search is answered by the shared RangeIndex, rather than by the database.
+	 * 
 	 * @param yearSpecs : Array containing information needed to perform the query
-	 * @return The ResultSet containing the results of the query
+	 * @return The books found, in order of the year they were published, or null if no year was entered
+	 * @throws SQLException : if the RangeIndex had to be read from the database, and could not be
 	 */
-	public ResultSet searchForDesiredYear(String[] yearSpecs){
+	public BookColumns searchForDesiredYear(String[] yearSpecs) throws SQLException {
 		
-		ResultSet rs = oldRs;
 		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_UPDATABLE);
+			if(yearSpecs[0] == null)
+				return null;
+			long start = System.nanoTime();
+			int year = Integer.parseInt(yearSpecs[0].trim());
 			
 			//Depending on the value of yearSpecs[1], books are searched for depending on if they were
 			//published before, during, or after the given year.
 			//Note that before and after searches are inclusive of the given year.
-			if(yearSpecs[1].equalsIgnoreCase("before"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE YEAR_PUBLISHED <= '" + yearSpecs[0]+"'");
-			else if(yearSpecs[1].equalsIgnoreCase("during"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE YEAR_PUBLISHED = '" + yearSpecs[0]+"'");
-			else if(yearSpecs[1].equalsIgnoreCase("after"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE YEAR_PUBLISHED >= '" + yearSpecs[0]+"'");
-			
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
+			String comparison = yearSpecs[1].equalsIgnoreCase("before") ? "lesser"
+					: yearSpecs[1].equalsIgnoreCase("after") ? "greater" : "during";
+			return found(YEAR_SEARCHES, start, getRangeIndex().search(BookColumns.YEAR_PUBLISHED, comparison, year));
+		} catch (NumberFormatException e){
+			//Searches run off the event dispatch thread, so the dialog is shown through the QueryExecutor
+			QueryExecutor.showErrorDialog("Incorrect format. The year must be a number.",
+				    "Input error");
 		}
-		return rs;
+		return null;
 		
 	}
 	
@@ -299,32 +335,28 @@ public class Queries {
 	 * It should be noted that regardless of the RadioButton chosen, any book that has the exact number
 	 * of pages as the entered value will be displayed.
 	 * 
+	 * The search is answered by the shared RangeIndex, rather than by the database.
+	 * 
 	 * @param pageSpecs : String Array that contains information needed to perform the query
-	 * @return : A ResultSet containing the results of the query
+	 * @return : The books found, in order of their number of pages, or null if no number was entered
+	 * @throws SQLException : if the RangeIndex had to be read from the database, and could not be
 	 */
-	public ResultSet searchForDesiredPage(String[] pageSpecs){
+	public BookColumns searchForDesiredPage(String[] pageSpecs) throws SQLException {
 	
-		ResultSet rs = oldRs;
 		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-				ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_UPDATABLE);
+			if(pageSpecs[0] == null)
+				return null;
+			long start = System.nanoTime();
+			int pages = Integer.parseInt(pageSpecs[0].trim());
 			
 			//Depending on whether the second slot of the pageSpecs array, books with less pages or more pages
 			//than the given page number will be searched for.
-			if(pageSpecs[1].equalsIgnoreCase("lesser"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE PAGES <= '" + pageSpecs[0]+"'");
-			else if(pageSpecs[1].equalsIgnoreCase("greater"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE PAGES >= '" + pageSpecs[0]+"'");
-		
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
+			return found(PAGE_SEARCHES, start, getRangeIndex().search(BookColumns.PAGES, pageSpecs[1], pages));
+		} catch (NumberFormatException e){
+			QueryExecutor.showErrorDialog("Incorrect format. The number of pages must be a number.",
+				    "Input error");
 		}
-		return rs;
+		return null;
 		
 	}
 
@@ -340,31 +372,15 @@ public class Queries {
 	 * method, detailing what the user wishes to search for
 	 * 
 	 * @param stockChoice : Indicates whether the user wishes to find books that are currently in or out of stock
-	 * @return : A ResultSet that contains the results of the query
+	 * @return : The books found
+	 * @throws SQLException : if the search could not be run
 	 */
-	public ResultSet searchByStock(String stockChoice){
+	public BookColumns searchByStock(String stockChoice) throws SQLException {
 		
-		ResultSet rs = oldRs;
-		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-				ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_UPDATABLE);
-		
-			//Depending on the input string, either books that have a current stock greater than 0, or a
-			//current stock equal to 0 will be searched for.
-			if(stockChoice.equalsIgnoreCase("in"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE CUR_STOCK > 0");
-			else if(stockChoice.equalsIgnoreCase("out"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE CUR_STOCK = 0");
-		
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
-		}
-		return rs;
+		//Depending on the input string, either books that have a current stock greater than 0, or a
+		//current stock equal to 0 will be searched for.
+		long start = System.nanoTime();
+		return found(STOCK_SEARCHES, start, getRepository().search(new BookQuery().stock(stockChoice)));
 		
 	}
 	
@@ -417,36 +433,182 @@ public class Queries {
 	 * It should be noted that regardless of the button choice, if a book has the exact same price as
 	 * provided, then it will be displayed.
 	 * 
+	 * The search is answered by the shared RangeIndex, which keeps prices in whole cents. A price with a
+	 * fraction of a cent is rounded down for "lesser" and up for "greater", which finds the same books.
+	 * 
 	 * @param priceSpecs : String Array containing information needed to perform the query
-	 * @return : ResultSet containing the results of the query
+	 * @return : The books found, in order of their price, or null if no price was entered
+	 * @throws SQLException : if the RangeIndex had to be read from the database, and could not be
 	 */
-	public ResultSet searchForDesiredPrice(String[] priceSpecs){
+	public BookColumns searchForDesiredPrice(String[] priceSpecs) throws SQLException {
 	
-		ResultSet rs = oldRs;
 		try{
-			Connection conn = DriverManager.getConnection(url, username, password);
-			Statement statement = conn.createStatement(
-				ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_UPDATABLE);
+			if(priceSpecs[0] == null)
+				return null;
+			long start = System.nanoTime();
+			BigDecimal price = new BigDecimal(priceSpecs[0].trim());
 			
 			//Depending on the value of priceSpecs[1], will search for books with a lesser or greater price
 			//than that indicated in priceSpecs[0]. It should be noted that lesser and greater are inclusive,
 			//and thus include books whose price exactly match that in priceSpecs[0].
-			if(priceSpecs[1].equalsIgnoreCase("lesser"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE PRICE <= '" + priceSpecs[0]+"'");
-			else if(priceSpecs[1].equalsIgnoreCase("greater"))
-				rs = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS WHERE PRICE >= '" + priceSpecs[0]+"'");
-		
-			return rs;
-		} catch (NullPointerException e){
-			System.out.println("URL, Username, and Password must first be initialized");
-		} catch (SQLException e1){
-			e1.printStackTrace();
+			boolean lesser = priceSpecs[1].equalsIgnoreCase("lesser");
+			long cents = price.setScale(2, lesser ? RoundingMode.FLOOR : RoundingMode.CEILING).unscaledValue().longValue();
+			return found(PRICE_SEARCHES, start, getRangeIndex().search(BookColumns.PRICE, priceSpecs[1], cents));
+		} catch (NumberFormatException e){
+			QueryExecutor.showErrorDialog("Incorrect format. The price must be a number.",
+				    "Input error");
 		}
-		return rs;
+		return null;
 		
 	}
 	
+	/**
+	 * Displays a custom panel in which the user can combine any of the other searches: an ISBN, an exact
+	 * title, an exact author, a year, a number of pages and a price (each with a choice of "at most", "exactly"
+	 * or "at least"), and whether the book is in stock. Fields left empty aren't part of the search.
+	 * 
+	 * @return The combined search, or null if the user cancelled or a number couldn't be read
+	 */
+	public BookQuery combinedQueryPanel(){
+		
+		//Creates a panel with a row per criterion: a label, a text field and, for numbers, a comparison
+		JPanel panel = new JPanel(new GridLayout(0, 3, 5, 5));
+		String[] comparisons = {"At most", "Exactly", "At least"};
+		JTextField isbnField = new JTextField(15), titleField = new JTextField(15), authorField = new JTextField(15);
+		JTextField yearField = new JTextField(6), pagesField = new JTextField(6), priceField = new JTextField(6);
+		JComboBox<String> yearBox = new JComboBox<String>(comparisons), pagesBox = new JComboBox<String>(comparisons);
+		JComboBox<String> priceBox = new JComboBox<String>(comparisons);
+		JComboBox<String> stockBox = new JComboBox<String>(new String[]{"Any", "In stock", "Out of stock"});
+		yearBox.setSelectedIndex(1);
+		
+		addQueryRow(panel, "ISBN", isbnField, null);
+		addQueryRow(panel, "Title", titleField, null);
+		addQueryRow(panel, "Author", authorField, null);
+		addQueryRow(panel, "Year published", yearField, yearBox);
+		addQueryRow(panel, "Pages", pagesField, pagesBox);
+		addQueryRow(panel, "Price", priceField, priceBox);
+		addQueryRow(panel, "Stock", stockBox, null);
+		
+		int choice = JOptionPane.showConfirmDialog(null, panel, "Combined Search", JOptionPane.OK_CANCEL_OPTION,
+				JOptionPane.PLAIN_MESSAGE);
+		if(choice != JOptionPane.OK_OPTION)
+			return null;
+		
+		//Only the criteria the user filled in are added to the query
+		BookQuery query = new BookQuery();
+		try{
+			if(!isbnField.getText().trim().isEmpty())
+				query.isbn(isbnField.getText().trim());
+			if(!titleField.getText().trim().isEmpty())
+				query.title(titleField.getText().trim());
+			if(!authorField.getText().trim().isEmpty())
+				query.author(authorField.getText().trim());
+			if(!yearField.getText().trim().isEmpty())
+				query.year(comparisonOf(yearBox), Integer.parseInt(yearField.getText().trim()));
+			if(!pagesField.getText().trim().isEmpty())
+				query.pages(comparisonOf(pagesBox), Integer.parseInt(pagesField.getText().trim()));
+			if(!priceField.getText().trim().isEmpty())
+				query.price(comparisonOf(priceBox), new BigDecimal(priceField.getText().trim()));
+		} catch (NumberFormatException e){
+			JOptionPane.showMessageDialog(null,
+				    "Incorrect format. The year, pages and price must be numbers.",
+				    "Input error",
+				    JOptionPane.ERROR_MESSAGE);
+			return null;
+		}
+		if(stockBox.getSelectedIndex() == 1)
+			query.stock("in");
+		else if(stockBox.getSelectedIndex() == 2)
+			query.stock("out");
+		
+		return query;
+	}
+	
+	private static void addQueryRow(JPanel panel, String label, Component field, JComboBox<String> comparison){
+		panel.add(new JLabel(label));
+		panel.add(field);
+		if(comparison != null)
+			panel.add(comparison);
+		else
+			panel.add(new JLabel());
+	}
+	
+	private static String comparisonOf(JComboBox<String> comparison){
+		switch(comparison.getSelectedIndex()){
+		case 0: return "lesser";
+		case 2: return "greater";
+		default: return "during";
+		}
+	}
+	
+	/**
+	 * Runs a combined search in a single step.
+	 * 
+	 * A search with a year, pages or price criterion and no ISBN is answered by the shared RangeIndex, by
+	 * checking the other criteria against the smallest of the slices given by those criteria. Any other search
+	 * is run by the BookRepository, which MySQL answers with one parameterized statement (see BookQuery.toSql).
+	 * 
+	 * @param query : The combined search, as returned by combinedQueryPanel
+	 * @return The books found, or null if there was no search to run (no criteria were entered)
+	 * @throws SQLException : if the search could not be run
+	 */
+	public BookColumns search(BookQuery query) throws SQLException {
+		if(query == null || query.isEmpty())
+			return null;
+		long start = System.nanoTime();
+		if(query.hasRange() && !query.hasIsbn())
+			return found(COMBINED_SEARCHES, start, getRangeIndex().search(query));
+		return found(COMBINED_SEARCHES, start, getRepository().search(query));
+	}
+	
+	/**
+	 * Records how long a search took and how many books it found, and returns the books.
+	 */
+	private static BookColumns found(Metrics.Histogram timer, long start, BookColumns books){
+		timer.recordSince(start);
+		ROWS_RETURNED.record(books.size());
+		return books;
+	}
+	
+	/**
+	 * Returns the shared connection pool that the queries borrow their connections from.
+	 * 
+	 * @return The shared ConnectionPool
+	 */
+	private ConnectionPool getPool(){
+		return ConnectionPool.getPool(url, username, password);
+	}
+	
+	/**
+	 * Returns the BookRepository that the searches not answered by an index go through, the one shared by the
+	 * whole application.
+	 */
+	BookRepository getRepository(){
+		return BookRepository.getRepository(getPool());
+	}
+	
+	/**
+	 * Returns the IsbnCache that ISBN lookups go through, the one shared by the whole application. Overridden by
+	 * CatalogBenchmark, which searches books kept in memory instead of a database.
+	 */
+	IsbnCache getIsbnCache(){
+		return IsbnCache.getCache(getPool());
+	}
+	
+	/**
+	 * Returns the TextSearchIndex that title and author searches go through, the one shared by the whole application.
+	 */
+	TextSearchIndex getTextSearchIndex(){
+		return TextSearchIndex.getIndex(getPool());
+	}
+	
+	/**
+	 * Returns the RangeIndex that year, pages and price searches go through, the one shared by the whole application.
+	 */
+	RangeIndex getRangeIndex(){
+		return RangeIndex.getIndex(getPool());
+	}
+	
 	// SETTERS
 	public void setURL(String nURL){
 		url = nURL;
@@ -459,4 +621,5 @@ public class Queries {
 	public void setPassword(String nPassword){
 		password = nPassword;
 	}
+	
 }
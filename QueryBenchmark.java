@@ -0,0 +1,143 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stand-alone benchmark that compares the searches of the Queries class run as concatenated SQL strings
+ * (the way they used to be built) against the same searches compiled by BookQuery and run as cached
+ * PreparedStatements.
+ * 
+ * The benchmark runs against the BOOKSTORE.BOOKS table of the configured MySQL server, and picks its search
+ * values from the first book in the table. Both variants run on the same pooled connection, so the numbers
+ * only reflect the cost of parsing, planning and running each query.
+ * 
+ * Usage: "java -cp .;mysql-connector-java-5.1.39-bin.jar QueryBenchmark [iterations]"
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class QueryBenchmark {
+	
+	private static final int WARMUP_ITERATIONS = 200;
+	
+	/**
+	 * Runs the benchmark and prints the average time per query for both variants.
+	 * @param args : optionally, the number of measured iterations per query (default 2000)
+	 */
+	public static void main(String[] args) throws SQLException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		
+		Connection nullConn = null;
+		Initialization init = new Initialization(nullConn);
+		ConnectionPool pool = init.getPool();
+		Connection conn = pool.getConnection();
+		
+		try{
+			// Picks search values that exist in the table
+			String isbn, title, author;
+			int year, pages;
+			BigDecimal price;
+			try(Statement statement = conn.createStatement();
+					ResultSet first = statement.executeQuery("SELECT * FROM BOOKSTORE.BOOKS LIMIT 1")){
+				if(!first.next()){
+					System.out.println("BOOKSTORE.BOOKS is empty, load some books before running the benchmark.");
+					return;
+				}
+				isbn = first.getString("ISBN");
+				title = first.getString("BOOK_NAME");
+				author = first.getString("AUTHOR");
+				year = first.getInt("YEAR_PUBLISHED");
+				pages = first.getInt("PAGES");
+				price = first.getBigDecimal("PRICE");
+			}
+			
+			System.out.println("Iterations per query: " + iterations);
+			System.out.println(String.format("%-16s %14s %14s %10s", "Search", "Concat (us)", "Prepared (us)", "Saved"));
+			
+			report("ISBN", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE ISBN = '" + isbn + "'", new BookQuery().isbn(isbn));
+			report("Title", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE BOOK_NAME = '" + title + "'", new BookQuery().title(title));
+			report("Author", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE AUTHOR = '" + author + "'", new BookQuery().author(author));
+			report("Year (during)", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE YEAR_PUBLISHED = '" + year + "'", new BookQuery().year("during", year));
+			report("Pages (lesser)", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE PAGES <= '" + pages + "'", new BookQuery().pages("lesser", pages));
+			report("In stock", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE CUR_STOCK > 0", new BookQuery().stock("in"));
+			report("Price (lesser)", conn, pool, iterations,
+					"SELECT * FROM BOOKSTORE.BOOKS WHERE PRICE <= '" + price + "'", new BookQuery().price("lesser", price));
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Times one search in both variants and prints a line with the results. The prepared variant runs the
+	 * statement compiled by the BookQuery, as the BookRepository does.
+	 */
+	private static void report(String name, Connection conn, ConnectionPool pool, int iterations,
+			String concatenatedSql, BookQuery query) throws SQLException {
+		String preparedSql = query.toSql();
+		Object[] parameters = query.getParameters().toArray();
+		
+		// Warms up both paths so that the JIT and the server caches are in a steady state
+		timeConcatenated(conn, concatenatedSql, WARMUP_ITERATIONS);
+		timePrepared(conn, pool, preparedSql, parameters, WARMUP_ITERATIONS);
+		
+		double concatenated = timeConcatenated(conn, concatenatedSql, iterations);
+		double prepared = timePrepared(conn, pool, preparedSql, parameters, iterations);
+		double saved = concatenated == 0 ? 0 : (concatenated - prepared) * 100 / concatenated;
+		
+		System.out.println(String.format("%-16s %14.1f %14.1f %9.1f%%", name, concatenated, prepared, saved));
+	}
+	
+	/**
+	 * Runs a concatenated query the old way, with a new Statement each time.
+	 * @return the average time per query in microseconds
+	 */
+	private static double timeConcatenated(Connection conn, String sql, int iterations) throws SQLException {
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++){
+			try(Statement statement = conn.createStatement(
+					ResultSet.TYPE_SCROLL_INSENSITIVE,
+					ResultSet.CONCUR_UPDATABLE);
+					ResultSet rs = statement.executeQuery(sql)){
+				drain(rs);
+			}
+		}
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+	
+	/**
+	 * Runs a parameterized query through the connection's statement cache.
+	 * @return the average time per query in microseconds
+	 */
+	private static double timePrepared(Connection conn, ConnectionPool pool, String sql, Object[] parameters,
+			int iterations) throws SQLException {
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++){
+			PreparedStatement statement = pool.prepareStatement(conn, sql,
+					ResultSet.TYPE_SCROLL_INSENSITIVE,
+					ResultSet.CONCUR_UPDATABLE);
+			for(int p = 0; p < parameters.length; p++)
+				statement.setObject(p + 1, parameters[p]);
+			try(ResultSet rs = statement.executeQuery()){
+				drain(rs);
+			}
+		}
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+	
+	/**
+	 * Reads every row of a ResultSet, so that both variants do the same amount of work on the results.
+	 */
+	private static void drain(ResultSet rs) throws SQLException {
+		while(rs.next())
+			rs.getString(1);
+	}
+}
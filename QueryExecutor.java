@@ -0,0 +1,305 @@
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Class that runs the database work of BooksGUI (searches, refreshes and deletions) on a small pool of
+ * background threads, so that the event dispatch thread is never blocked by JDBC and the window stays
+ * responsive while a slow query runs.
+ * 
+ * Searches and refreshes only read, so only one of them is current at a time. Submitting a new one cancels
+ * the one before it, and the result of a search that was replaced or cancelled is thrown away instead of
+ * being displayed. A search that is running a query is cancelled through Statement.cancel(), which asks the
+ * server to stop the query.
+ * 
+ * Work that changes the books, or whose outcome must be reported (commits, deletions, imports and exports),
+ * is queued instead. Queued tasks run one at a time in the order they were queued, on a thread of their own,
+ * are never cancelled, and always have their callback called.
+ * 
+ * The number of threads and the number of tasks that can wait for a thread are set with the
+ * "bookstore.query.threads" and "bookstore.query.queueSize" system properties.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class QueryExecutor {
+	
+	/**
+	 * Receives the result of a task on the event dispatch thread: always for a queued task, and for a search
+	 * only if it is still current when it finishes.
+	 */
+	public interface Callback<T> {
+		void done(T result);
+	}
+	
+	/**
+	 * Is told, on the event dispatch thread, when the current task starts and finishes, so that its progress
+	 * can be displayed.
+	 */
+	public interface ProgressListener {
+		void started(String description);
+		void finished(String message);
+	}
+	
+	// Task that the current thread is running, so that the statements it executes can be cancelled
+	private static final ThreadLocal<Task<?>> RUNNING = new ThreadLocal<Task<?>>();
+	
+	private final ThreadPoolExecutor executor, queue;
+	private final ProgressListener listener;
+	private final AtomicLong generation = new AtomicLong();
+	private volatile Task<?> current;
+	
+	/**
+	 * Constructor for QueryExecutor, which uses the configured number of threads and queue size.
+	 * 
+	 * @param nListener : Listener told about the progress of the current task
+	 */
+	public QueryExecutor(ProgressListener nListener){
+		this(nListener, Integer.getInteger("bookstore.query.threads", 2),
+				Integer.getInteger("bookstore.query.queueSize", 16));
+	}
+	
+	/**
+	 * Constructor for QueryExecutor.
+	 * 
+	 * @param nListener : Listener told about the progress of the current task
+	 * @param threads : Number of background threads
+	 * @param queueSize : Number of tasks that can wait for a thread before new tasks are refused
+	 */
+	public QueryExecutor(ProgressListener nListener, int threads, int queueSize){
+		listener = nListener;
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "query-executor-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		
+		queue = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "query-executor-queue");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		queue.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Runs the given work on a background thread, and hands its result to the callback on the event dispatch
+	 * thread. Any task that is still running is cancelled first.
+	 * 
+	 * If the work throws an exception, the exception is printed and the listener is told that the task failed.
+	 * 
+	 * @param description : Description of the task, displayed while it runs (for example "Searching by title")
+	 * @param work : The work to be done off the event dispatch thread
+	 * @param callback : Receives the result, only if this task is still the current one once it finishes
+	 */
+	public <T> void submit(String description, Callable<T> work, Callback<T> callback){
+		Task<T> task = new Task<T>(generation.incrementAndGet(), description, work, callback, false);
+		Task<?> previous = current;
+		current = task;
+		if(previous != null)
+			previous.cancel();
+		
+		listener.started(description);
+		try{
+			task.future = executor.submit(task);
+		} catch (RejectedExecutionException e){
+			current = null;
+			listener.finished("Too many requests are waiting, please try again.");
+		}
+	}
+	
+	/**
+	 * Queues the given work, which runs on a background thread once the work queued before it is done, and
+	 * hands its result to the callback on the event dispatch thread. The work is never cancelled, and doesn't
+	 * cancel the current search.
+	 * 
+	 * If the work throws an exception, the exception is printed and the listener is told that the task failed.
+	 * 
+	 * @param description : Description of the task, displayed while it runs (for example "Committing 3 edits")
+	 * @param work : The work to be done off the event dispatch thread
+	 * @param callback : Receives the result
+	 */
+	public <T> void enqueue(String description, Callable<T> work, Callback<T> callback){
+		Task<T> task = new Task<T>(0, description, work, callback, true);
+		listener.started(description);
+		task.future = queue.submit(task);
+	}
+	
+	/**
+	 * Cancels the current search, if there is one. Its result is never displayed. Queued tasks are not cancelled.
+	 */
+	public void cancel(){
+		Task<?> task = current;
+		if(task != null){
+			generation.incrementAndGet();
+			current = null;
+			task.cancel();
+			listener.finished(task.description + " cancelled.");
+		}
+	}
+	
+	/**
+	 * Records that the calling thread is about to execute the given statement, so that cancelling the task
+	 * running on this thread also cancels the statement. Does nothing when called outside of a task.
+	 * 
+	 * @param statement : Statement about to be executed
+	 */
+	static void track(Statement statement){
+		Task<?> task = RUNNING.get();
+		if(task != null)
+			task.statement = statement;
+	}
+	
+	/**
+	 * Displays an error dialog on the event dispatch thread, so that code running on the background threads
+	 * can report errors to the user.
+	 * 
+	 * @param message : Message of the dialog
+	 * @param title : Title of the dialog
+	 */
+	static void showErrorDialog(final String message, final String title){
+		Runnable show = new Runnable(){
+			public void run() {
+				JOptionPane.showMessageDialog(null, message, title, JOptionPane.ERROR_MESSAGE);
+			}
+		};
+		if(SwingUtilities.isEventDispatchThread())
+			show.run();
+		else
+			SwingUtilities.invokeLater(show);
+	}
+	
+	/**
+	 * Stops the background threads, cancelling the current search. The queued tasks are still run.
+	 */
+	public void shutdown(){
+		cancel();
+		executor.shutdownNow();
+		queue.shutdown();
+	}
+	
+	/**
+	 * Tells the listener about the current search again, once a queued task that finished alongside it has
+	 * reported its outcome.
+	 */
+	private void showCurrent(){
+		Task<?> task = current;
+		if(task != null)
+			listener.started(task.description);
+	}
+	
+	/**
+	 * One submitted piece of work, along with the statement it is currently executing.
+	 */
+	private class Task<T> implements Runnable {
+		private final long taskGeneration;
+		private final String description;
+		private final Callable<T> work;
+		private final Callback<T> callback;
+		// Whether the task was queued, rather than submitted as a search
+		private final boolean queued;
+		private volatile Statement statement;
+		private volatile boolean cancelled;
+		private volatile Future<?> future;
+		
+		Task(long nGeneration, String nDescription, Callable<T> nWork, Callback<T> nCallback, boolean nQueued){
+			taskGeneration = nGeneration;
+			description = nDescription;
+			work = nWork;
+			callback = nCallback;
+			queued = nQueued;
+		}
+		
+		public void run() {
+			if(cancelled)
+				return;
+			
+			long start = System.nanoTime();
+			RUNNING.set(this);
+			try{
+				final T result = work.call();
+				final long millis = (System.nanoTime() - start) / 1000000;
+				SwingUtilities.invokeLater(new Runnable(){
+					public void run() {
+						if(queued){
+							listener.finished(description + " finished in " + millis + " ms.");
+							showCurrent();
+							callback.done(result);
+							return;
+						}
+						//A newer task replaced this one while it ran, so the result is out of date
+						if(!isCurrent())
+							return;
+						current = null;
+						//Reported first, as the callback may start another task
+						listener.finished(description + " finished in " + millis + " ms.");
+						callback.done(result);
+					}
+				});
+			} catch (final Exception e){
+				if(cancelled)
+					return;
+				e.printStackTrace();
+				SwingUtilities.invokeLater(new Runnable(){
+					public void run() {
+						if(queued){
+							listener.finished(description + " failed: " + e.getMessage());
+							showCurrent();
+							return;
+						}
+						if(!isCurrent())
+							return;
+						current = null;
+						listener.finished(description + " failed: " + e.getMessage());
+					}
+				});
+			} finally {
+				RUNNING.remove();
+				statement = null;
+			}
+		}
+		
+		private boolean isCurrent(){
+			return !cancelled && current == this && generation.get() == taskGeneration;
+		}
+		
+		/**
+		 * Cancels the task. A task still waiting for a thread is removed from the queue, and a running query
+		 * is stopped on the server.
+		 */
+		void cancel(){
+			cancelled = true;
+			Future<?> f = future;
+			if(f != null)
+				f.cancel(false);
+			
+			Statement s = statement;
+			if(s != null){
+				try{
+					s.cancel();
+				} catch (SQLException e){
+					// The statement already finished, or the server couldn't be reached to cancel it
+				}
+			}
+		}
+	}
+}
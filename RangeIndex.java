@@ -0,0 +1,504 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that keeps every book in memory, with sorted indexes of the YEAR_PUBLISHED, PAGES and PRICE columns,
+ * so that the year, pages and price searches are answered without going to the database.
+ * 
+ * The books are kept in a BookColumns, where each book has a fixed row. For each indexed column, the index
+ * keeps the values of the column in ascending order in a long[] (prices in cents), with the row of each value
+ * in an int[] beside it. Books with the same value are ordered by row. A "less than", "equal to" or "greater
+ * than" search is a binary search for where the value starts and ends, which gives a slice of the row array,
+ * and the rows of the slice are copied straight from the kept columns into the BookColumns that is displayed.
+ * 
+ * A changed book keeps its row, and its value is moved to its new place in each sorted array. An added book
+ * gets a new row. A deleted book's values are removed from the sorted arrays, and its row is left unused until
+ * a quarter of the rows are unused, at which point the books are copied into new, compact arrays.
+ * 
+ * The shared index is read from the database the first time it is searched, and is then kept up to date by the
+ * add, delete and modify paths of Utilities and BooksTableModel.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class RangeIndex {
+	
+	// Columns that are indexed, in table column order
+	static final int[] INDEXED_COLUMNS = {BookColumns.YEAR_PUBLISHED, BookColumns.PAGES, BookColumns.PRICE};
+	
+	private static RangeIndex sharedIndex;
+	
+	private final ConnectionPool pool;
+	private boolean built, building;
+	// Changes made while the index was being built, applied once it is done: a BookRecord for a book that was
+	// added or changed, the ISBN of a book that was deleted, or null when the entire index was invalidated
+	private final List<Object> pendingChanges = new ArrayList<Object>();
+	
+	private BookColumns books = new BookColumns(1024);
+	private BitSet deleted = new BitSet();
+	private int deletedCount;
+	private Map<String, Integer> rowOf = new HashMap<String, Integer>();
+	private SortedColumn[] sorted = new SortedColumn[INDEXED_COLUMNS.length];
+	
+	/**
+	 * Constructor for RangeIndex. The index is empty until it is built or books are added to it.
+	 * 
+	 * @param nPool : Connection pool used to read the books from the database, or null if they are added by hand
+	 */
+	public RangeIndex(ConnectionPool nPool){
+		pool = nPool;
+		built = nPool == null;
+		for(int i = 0; i < sorted.length; i++)
+			sorted[i] = new SortedColumn(16);
+	}
+	
+	/**
+	 * Returns the index shared by the whole application, which reads the books through the given pool the first
+	 * time it is searched.
+	 * 
+	 * @param nPool : Connection pool used to read the books
+	 * @return The shared RangeIndex
+	 */
+	public static synchronized RangeIndex getIndex(ConnectionPool nPool){
+		if(sharedIndex == null)
+			sharedIndex = new RangeIndex(nPool);
+		return sharedIndex;
+	}
+	
+	/**
+	 * Searches for the books whose value in one of the indexed columns is less than or equal to, equal to, or
+	 * greater than or equal to the given value.
+	 * 
+	 * @param column : One of INDEXED_COLUMNS
+	 * @param comparison : "lesser", "during" (equal to) or "greater"
+	 * @param value : Value to compare to, in cents for the PRICE column
+	 * @return The books found, in ascending order of the column
+	 * @throws SQLException : if the index had to be built, and could not be
+	 */
+	public BookColumns search(int column, String comparison, long value) throws SQLException {
+		ensureBuilt();
+		synchronized(this){
+			SortedColumn index = sorted[indexOf(column)];
+			int from = comparison.equalsIgnoreCase("lesser") ? 0 : index.lowerBound(value);
+			int to = comparison.equalsIgnoreCase("greater") ? index.size : index.upperBound(value);
+			
+			BookColumns found = new BookColumns(to - from);
+			for(int i = from; i < to; i++)
+				found.add(books, index.rows[i]);
+			return found;
+		}
+	}
+	
+	/**
+	 * Searches for the books matching every criterion of a BookQuery.
+	 * 
+	 * Each year, pages or price criterion gives a slice of its sorted column, and only the rows of the smallest
+	 * slice are checked against the other criteria. A query without such a criterion checks every book.
+	 * 
+	 * @param query : The criteria
+	 * @return The books found, in ascending order of the column whose slice was the smallest
+	 * @throws SQLException : if the index had to be built, and could not be
+	 */
+	public BookColumns search(BookQuery query) throws SQLException {
+		ensureBuilt();
+		synchronized(this){
+			SortedColumn smallest = null;
+			int smallestFrom = 0, smallestTo = 0;
+			for(int i = 0; i < INDEXED_COLUMNS.length; i++){
+				String comparison;
+				long value;
+				switch(INDEXED_COLUMNS[i]){
+				case BookColumns.YEAR_PUBLISHED: comparison = query.getYearComparison(); value = query.getYear(); break;
+				case BookColumns.PAGES: comparison = query.getPagesComparison(); value = query.getPages(); break;
+				default: comparison = query.getPriceComparison(); value = comparison == null ? 0 : query.getPriceBound();
+				}
+				if(comparison == null)
+					continue;
+				SortedColumn index = sorted[i];
+				int from = comparison.equals("lesser") ? 0 : index.lowerBound(value);
+				int to = comparison.equals("greater") ? index.size : index.upperBound(value);
+				if(smallest == null || to - from < smallestTo - smallestFrom){
+					smallest = index;
+					smallestFrom = from;
+					smallestTo = to;
+				}
+			}
+			
+			BookColumns found = new BookColumns(64);
+			if(smallest != null){
+				for(int i = smallestFrom; i < smallestTo; i++){
+					if(query.matches(books, smallest.rows[i]))
+						found.add(books, smallest.rows[i]);
+				}
+			}
+			else{
+				for(int row = 0; row < books.size(); row++){
+					if(!deleted.get(row) && query.matches(books, row))
+						found.add(books, row);
+				}
+			}
+			return found;
+		}
+	}
+	
+	/**
+	 * Adds a book to the index, or updates it if its ISBN is already indexed.
+	 * 
+	 * @param book : The book, with its current values
+	 */
+	public synchronized void put(BookRecord book){
+		if(building)
+			pendingChanges.add(book);
+		else if(built)
+			putBook(book);
+	}
+	
+	/**
+	 * Removes a book from the index.
+	 * 
+	 * @param isbn : ISBN of the book
+	 */
+	public synchronized void remove(String isbn){
+		if(building)
+			pendingChanges.add(isbn);
+		else if(built)
+			removeBook(isbn);
+	}
+	
+	/**
+	 * Replaces the books of an index that isn't read from the database with the given books, sorting each
+	 * indexed column once rather than inserting the books one at a time with put.
+	 * 
+	 * @param nBooks : The books, which are kept by the index and must not be changed afterwards
+	 */
+	public synchronized void load(BookColumns nBooks){
+		clear();
+		books = nBooks;
+		sorted = sort(nBooks);
+		for(int row = 0; row < nBooks.size(); row++)
+			rowOf.put(nBooks.getIsbn(row), row);
+	}
+	
+	/**
+	 * Reads the books and sorts the indexes now, unless it is already built, so that the first search doesn't wait for it.
+	 * Used when the application starts (see BooksGUI).
+	 * 
+	 * @throws SQLException : if the books could not be read
+	 */
+	public void prepare() throws SQLException {
+		ensureBuilt();
+	}
+	
+	/**
+	 * Discards the index, so that it is read again from the database the next time it is searched. Used when
+	 * many books change at once, such as when an input file is loaded.
+	 */
+	public synchronized void invalidate(){
+		if(pool == null)
+			return;
+		if(building){
+			// The build in progress may have missed some of the changes, so it is thrown away when it is done
+			pendingChanges.add(null);
+			return;
+		}
+		built = false;
+		clear();
+	}
+	
+	/**
+	 * Reads every book from the database and sorts the indexes, unless the index is already built. Searches
+	 * wait for the build to finish.
+	 */
+	private void ensureBuilt() throws SQLException {
+		while(true){
+			synchronized(this){
+				while(building){
+					try{
+						wait();
+					} catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while the range index was being built", e);
+					}
+				}
+				if(built)
+					return;
+				building = true;
+				clear();
+			}
+			
+			// The books are read and sorted without holding the lock, so that changes can be queued meanwhile
+			BookColumns read = null;
+			SortedColumn[] readSorted = null;
+			try{
+				final BookColumns scanned = new BookColumns(1024);
+				BookRepository.getRepository(pool).scan(new BookRepository.Visitor(){
+					public void visit(BookRecord book){
+						scanned.add(book);
+					}
+				});
+				read = scanned;
+				readSorted = sort(read);
+			} catch (IOException e){
+				throw new SQLException(e);
+			} finally {
+				synchronized(this){
+					building = false;
+					// A change that invalidated the index while it was being built means it is built again
+					built = readSorted != null && !pendingChanges.contains(null);
+					if(built){
+						books = read;
+						sorted = readSorted;
+						for(int row = 0; row < read.size(); row++)
+							rowOf.put(read.getIsbn(row), row);
+						for(Object change : pendingChanges){
+							if(change instanceof BookRecord)
+								putBook((BookRecord) change);
+							else
+								removeBook((String) change);
+						}
+					}
+					pendingChanges.clear();
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates the sorted indexes of the given books.
+	 */
+	private static SortedColumn[] sort(BookColumns books){
+		SortedColumn[] columns = new SortedColumn[INDEXED_COLUMNS.length];
+		for(int i = 0; i < columns.length; i++){
+			SortedColumn column = new SortedColumn(books.size());
+			for(int row = 0; row < books.size(); row++){
+				column.values[row] = valueOf(books, row, INDEXED_COLUMNS[i]);
+				column.rows[row] = row;
+			}
+			column.size = books.size();
+			column.sort(0, column.size - 1);
+			columns[i] = column;
+		}
+		return columns;
+	}
+	
+	private void putBook(BookRecord book){
+		Integer existing = rowOf.get(book.getIsbn());
+		int row;
+		if(existing != null){
+			row = existing;
+			for(int i = 0; i < sorted.length; i++)
+				sorted[i].remove(valueOf(books, row, INDEXED_COLUMNS[i]), row);
+			books.set(row, book);
+		}
+		else{
+			row = books.size();
+			books.add(book);
+			rowOf.put(book.getIsbn(), row);
+		}
+		for(int i = 0; i < sorted.length; i++)
+			sorted[i].insert(valueOf(books, row, INDEXED_COLUMNS[i]), row);
+	}
+	
+	private void removeBook(String isbn){
+		Integer row = rowOf.remove(isbn);
+		if(row == null)
+			return;
+		for(int i = 0; i < sorted.length; i++)
+			sorted[i].remove(valueOf(books, row, INDEXED_COLUMNS[i]), row);
+		deleted.set(row);
+		deletedCount++;
+		if(deletedCount > 1000 && deletedCount > books.size() / 4)
+			compact();
+	}
+	
+	/**
+	 * Copies the books that weren't deleted into new arrays, and sorts the indexes again.
+	 */
+	private void compact(){
+		BookColumns remaining = new BookColumns(books.size() - deletedCount);
+		for(int row = 0; row < books.size(); row++){
+			if(!deleted.get(row))
+				remaining.add(books, row);
+		}
+		clear();
+		books = remaining;
+		sorted = sort(remaining);
+		for(int row = 0; row < remaining.size(); row++)
+			rowOf.put(remaining.getIsbn(row), row);
+	}
+	
+	private void clear(){
+		books = new BookColumns(1024);
+		deleted = new BitSet();
+		deletedCount = 0;
+		rowOf = new HashMap<String, Integer>();
+		for(int i = 0; i < sorted.length; i++)
+			sorted[i] = new SortedColumn(16);
+	}
+	
+	private static int indexOf(int column){
+		for(int i = 0; i < INDEXED_COLUMNS.length; i++){
+			if(INDEXED_COLUMNS[i] == column)
+				return i;
+		}
+		throw new IllegalArgumentException("Column " + column + " isn't indexed");
+	}
+	
+	private static long valueOf(BookColumns books, int row, int column){
+		switch(column){
+		case BookColumns.YEAR_PUBLISHED: return books.getYearPublished(row);
+		case BookColumns.PAGES: return books.getPages(row);
+		case BookColumns.PRICE: return books.getPriceCents(row);
+		default: throw new IllegalArgumentException("Column " + column + " isn't indexed");
+		}
+	}
+	
+	// GETTERS
+	
+	public synchronized int size(){
+		return rowOf.size();
+	}
+	
+	/**
+	 * The values of one column in ascending order, with the row of each value, ordered by row among equal values.
+	 */
+	static class SortedColumn {
+		private long[] values;
+		private int[] rows;
+		private int size;
+		
+		SortedColumn(int capacity){
+			values = new long[Math.max(capacity, 16)];
+			rows = new int[values.length];
+		}
+		
+		/**
+		 * Returns the position of the first value that is greater than or equal to the given value.
+		 */
+		int lowerBound(long value){
+			int low = 0, high = size;
+			while(low < high){
+				int middle = (low + high) >>> 1;
+				if(values[middle] < value)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+		
+		/**
+		 * Returns the position of the first value that is greater than the given value.
+		 */
+		int upperBound(long value){
+			int low = 0, high = size;
+			while(low < high){
+				int middle = (low + high) >>> 1;
+				if(values[middle] <= value)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+		
+		/**
+		 * Returns the position of the given value and row, or where they would be inserted.
+		 */
+		private int positionOf(long value, int row){
+			int low = 0, high = size;
+			while(low < high){
+				int middle = (low + high) >>> 1;
+				if(values[middle] < value || (values[middle] == value && rows[middle] < row))
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+		
+		void insert(long value, int row){
+			if(size == values.length){
+				values = Arrays.copyOf(values, size * 2);
+				rows = Arrays.copyOf(rows, size * 2);
+			}
+			int position = positionOf(value, row);
+			System.arraycopy(values, position, values, position + 1, size - position);
+			System.arraycopy(rows, position, rows, position + 1, size - position);
+			values[position] = value;
+			rows[position] = row;
+			size++;
+		}
+		
+		void remove(long value, int row){
+			int position = positionOf(value, row);
+			if(position == size || values[position] != value || rows[position] != row)
+				return;
+			size--;
+			System.arraycopy(values, position + 1, values, position, size - position);
+			System.arraycopy(rows, position + 1, rows, position, size - position);
+		}
+		
+		/**
+		 * Sorts the values between the two positions (inclusive) by value, then by row, with a quicksort that
+		 * moves the rows along with their values.
+		 */
+		void sort(int low, int high){
+			while(high - low > 16){
+				int middle = (low + high) >>> 1;
+				// Median of three, so that already sorted columns (such as a table in year order) sort quickly
+				if(isLess(middle, low))
+					swap(middle, low);
+				if(isLess(high, low))
+					swap(high, low);
+				if(isLess(high, middle))
+					swap(high, middle);
+				long pivotValue = values[middle];
+				int pivotRow = rows[middle];
+				
+				int i = low, j = high;
+				while(i <= j){
+					while(values[i] < pivotValue || (values[i] == pivotValue && rows[i] < pivotRow))
+						i++;
+					while(values[j] > pivotValue || (values[j] == pivotValue && rows[j] > pivotRow))
+						j--;
+					if(i <= j)
+						swap(i++, j--);
+				}
+				// Recurses into the smaller part, and loops on the larger one
+				if(j - low < high - i){
+					sort(low, j);
+					low = i;
+				}
+				else{
+					sort(i, high);
+					high = j;
+				}
+			}
+			for(int i = low + 1; i <= high; i++){
+				for(int j = i; j > low && isLess(j, j - 1); j--)
+					swap(j, j - 1);
+			}
+		}
+		
+		private boolean isLess(int a, int b){
+			return values[a] < values[b] || (values[a] == values[b] && rows[a] < rows[b]);
+		}
+		
+		private void swap(int a, int b){
+			long value = values[a];
+			values[a] = values[b];
+			values[b] = value;
+			int row = rows[a];
+			rows[a] = rows[b];
+			rows[b] = row;
+		}
+	}
+}
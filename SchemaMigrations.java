@@ -0,0 +1,238 @@
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Class that brings the BOOKSTORE schema up to date, whether it was just created or was created by an older
+ * version of the program.
+ * 
+ * Every change to the schema is a numbered migration, listed in MIGRATIONS in the order it must be applied.
+ * The number of the last migration applied is recorded in BOOKSTORE.SCHEMA_VERSION, and migrate() applies the
+ * ones after it. A schema created before migrations were recorded is at version 0, and its first migration
+ * ("create table if not exists") leaves its BOOKS table as it is.
+ * 
+ * MySQL commits each CREATE and ALTER statement on its own, so a migration can't be rolled back as a whole.
+ * Instead, each statement may be run again: an index, column or trigger that already exists is skipped. A
+ * migration that fails part way through is simply applied again from its first statement the next time.
+ * 
+ * New migrations are added at the end of MIGRATIONS, and existing ones are never changed.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class SchemaMigrations {
+	
+	// MySQL error codes for an index, column or trigger that already exists
+	private static final int DUPLICATE_KEY_NAME = 1061, DUPLICATE_COLUMN_NAME = 1060, TRIGGER_EXISTS = 1359;
+	
+	static final String CREATE_VERSION_TABLE = "create table if not exists BOOKSTORE.SCHEMA_VERSION " +
+			"(VERSION integer NOT NULL, " +
+			"DESCRIPTION varchar(255) NOT NULL, " +
+			"APPLIED_AT timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+			"PRIMARY KEY (VERSION))";
+	static final String CURRENT_VERSION = "SELECT MAX(VERSION) FROM BOOKSTORE.SCHEMA_VERSION";
+	static final String RECORD_VERSION = "insert into BOOKSTORE.SCHEMA_VERSION (VERSION, DESCRIPTION) values (?, ?)";
+	
+	/**
+	 * The migrations, in the order they are applied. A migration's version is its position in the list, from 1.
+	 */
+	static final Migration[] MIGRATIONS = {
+		new Migration("Create the BOOKS table",
+				"create table if not exists BOOKSTORE.BOOKS " +
+				"(ISBN varchar(13) NOT NULL, " +
+				"BOOK_NAME varchar(255) NOT NULL, " +
+				"YEAR_PUBLISHED integer NOT NULL, " +
+				"AUTHOR varchar(40) NOT NULL, " +
+				"PAGES integer NOT NULL, " +
+				"CUR_STOCK integer NOT NULL, " +
+				"PRICE decimal(10,2) NOT NULL, " +
+				"AMOUNT_SOLD integer NOT NULL, " +
+				"LAST_SHIP_RECEIVED date NOT NULL, " +
+				"PRIMARY KEY (ISBN))"),
+		
+		//One index per search of Queries. Titles are only indexed by their first characters, which is enough
+		//to find a title (and any title starting with a prefix) without indexing up to 255 characters per book.
+		new Migration("Add indexes for the author, title, year, pages, price and stock searches",
+				"create index BOOKS_AUTHOR on BOOKSTORE.BOOKS (AUTHOR)",
+				"create index BOOKS_BOOK_NAME on BOOKSTORE.BOOKS (BOOK_NAME(32))",
+				"create index BOOKS_YEAR_PUBLISHED on BOOKSTORE.BOOKS (YEAR_PUBLISHED)",
+				"create index BOOKS_PAGES on BOOKSTORE.BOOKS (PAGES)",
+				"create index BOOKS_PRICE on BOOKSTORE.BOOKS (PRICE)",
+				"create index BOOKS_CUR_STOCK on BOOKSTORE.BOOKS (CUR_STOCK)"),
+		
+		//Lets a refresh read only what changed since the last one (see BookRepository.changesSince). The server
+		//stamps each row whenever it is added or changed, and a trigger keeps the ISBN of each deleted row, so
+		//the changes made by every client are seen, not only those made through this program. Deleted rows are
+		//kept for a limited time, see MySqlBookRepository.changesSince.
+		new Migration("Track when books are changed or deleted",
+				"alter table BOOKSTORE.BOOKS add column UPDATED_AT timestamp(6) NOT NULL " +
+				"DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6)",
+				"create index BOOKS_UPDATED_AT on BOOKSTORE.BOOKS (UPDATED_AT)",
+				"create table if not exists BOOKSTORE.BOOKS_DELETED " +
+				"(ISBN varchar(13) NOT NULL, " +
+				"DELETED_AT timestamp(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6), " +
+				"PRIMARY KEY (ISBN), " +
+				"INDEX BOOKS_DELETED_AT (DELETED_AT))",
+				"create trigger BOOKSTORE.BOOKS_TRACK_DELETES after delete on BOOKSTORE.BOOKS for each row " +
+				"replace into BOOKSTORE.BOOKS_DELETED (ISBN) values (OLD.ISBN)")
+	};
+	
+	/**
+	 * Returns the version of the schema once every migration is applied.
+	 */
+	public static int latestVersion(){
+		return MIGRATIONS.length;
+	}
+	
+	/**
+	 * Applies every migration that hasn't been applied yet.
+	 * 
+	 * @param conn : Connection to the MySql server, with auto-commit on
+	 * @return The version of the schema before the migrations were applied
+	 * @throws SQLException : if a migration fails, in which case the migrations before it stay applied
+	 */
+	public static int migrate(Connection conn) throws SQLException {
+		return migrate(conn, latestVersion());
+	}
+	
+	/**
+	 * Applies the migrations that haven't been applied yet, up to and including the given version.
+	 * 
+	 * @param conn : Connection to the MySql server, with auto-commit on
+	 * @param targetVersion : Last migration to apply
+	 * @return The version of the schema before the migrations were applied
+	 * @throws SQLException : if a migration fails, in which case the migrations before it stay applied
+	 */
+	public static int migrate(Connection conn, int targetVersion) throws SQLException {
+		try(Statement statement = conn.createStatement()){
+			statement.executeUpdate(CREATE_VERSION_TABLE);
+		}
+		int startVersion = currentVersion(conn);
+		
+		for(int version = startVersion + 1; version <= Math.min(targetVersion, MIGRATIONS.length); version++){
+			Migration migration = MIGRATIONS[version - 1];
+			System.out.println("Applying schema migration " + version + ": " + migration.getDescription());
+			long start = System.nanoTime();
+			
+			try(Statement statement = conn.createStatement()){
+				for(String sql : migration.getStatements()){
+					try{
+						statement.executeUpdate(sql);
+					} catch (SQLException e){
+						//Left over from an earlier attempt at the same migration
+						if(e.getErrorCode() != DUPLICATE_KEY_NAME && e.getErrorCode() != DUPLICATE_COLUMN_NAME
+								&& e.getErrorCode() != TRIGGER_EXISTS)
+							throw e;
+					}
+				}
+			}
+			try(PreparedStatement record = conn.prepareStatement(RECORD_VERSION)){
+				record.setInt(1, version);
+				record.setString(2, migration.getDescription());
+				record.executeUpdate();
+			}
+			System.out.println("Schema migration " + version + " applied in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		return startVersion;
+	}
+	
+	/**
+	 * Creates the BOOKSTORE schema if it doesn't exist and brings it up to date, as the GUI does when it starts
+	 * (see Initialization.createTable), without loading an input file. Used by the modes that run without the GUI.
+	 * 
+	 * @param pool : Connection pool to borrow a connection from
+	 * @throws SQLException : if the schema could not be created, or a migration failed
+	 */
+	public static void prepareSchema(ConnectionPool pool) throws SQLException {
+		Connection conn = pool.getConnection();
+		try{
+			createSchema(conn);
+			migrate(conn);
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Returns the number of the last migration applied to the schema, or 0 if none have been recorded.
+	 * 
+	 * @param conn : Connection to the MySql server
+	 * @throws SQLException : if the version table doesn't exist
+	 */
+	public static int currentVersion(Connection conn) throws SQLException {
+		try(Statement statement = conn.createStatement();
+				ResultSet rs = statement.executeQuery(CURRENT_VERSION)){
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+	
+	/**
+	 * Creates the BOOKSTORE schema, unless the server's metadata shows that it already exists.
+	 * 
+	 * @param conn : Connection to the MySql server
+	 * @return Whether the schema was created
+	 * @throws SQLException : if the schema could not be created
+	 */
+	public static boolean createSchema(Connection conn) throws SQLException {
+		if(schemaExists(conn))
+			return false;
+		try(Statement statement = conn.createStatement()){
+			statement.executeUpdate("create schema if not exists BOOKSTORE");
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns whether the BOOKSTORE schema exists. MySQL lists its schemas as catalogs.
+	 * 
+	 * @param conn : Connection to the MySql server
+	 */
+	public static boolean schemaExists(Connection conn) throws SQLException {
+		try(ResultSet rs = conn.getMetaData().getCatalogs()){
+			while(rs.next()){
+				if(rs.getString(1).equalsIgnoreCase("BOOKSTORE"))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns whether BOOKSTORE.BOOKS exists.
+	 * 
+	 * @param conn : Connection to the MySql server
+	 */
+	public static boolean booksTableExists(Connection conn) throws SQLException {
+		DatabaseMetaData metaData = conn.getMetaData();
+		try(ResultSet rs = metaData.getTables("BOOKSTORE", null, "BOOKS", new String[]{"TABLE"})){
+			return rs.next();
+		}
+	}
+	
+	/**
+	 * Class that holds one migration: a description, recorded with its version, and the statements that apply it.
+	 */
+	static class Migration {
+		
+		private final String description;
+		private final String[] statements;
+		
+		Migration(String nDescription, String... nStatements){
+			description = nDescription;
+			statements = nStatements;
+		}
+		
+		// GETTERS
+		
+		String getDescription(){
+			return description;
+		}
+		
+		String[] getStatements(){
+			return statements;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Class that measures how long the application takes to start, from the moment the JVM was launched. Each
+ * step of the startup is recorded once, in the "startup.schema", "startup.frameVisible", "startup.firstRows"
+ * and "startup.indexesWarm" histograms of Metrics, and printed.
+ * 
+ * The startup is done once the first rows are displayed, and it is expected to take no longer than
+ * "bookstore.startup.targetMillis" milliseconds (default 2000). A slower startup is reported as such, so that
+ * it stands out in the output of a test run.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class StartupTimer {
+	
+	private static final long TARGET_MILLIS = Long.getLong("bookstore.startup.targetMillis", 2000);
+	
+	/**
+	 * Records that a step of the startup is done.
+	 * 
+	 * @param step : Name of the step, such as "frameVisible"
+	 * @return The number of milliseconds since the JVM was launched
+	 */
+	public static long mark(String step){
+		long millis = ManagementFactory.getRuntimeMXBean().getUptime();
+		Metrics.timer("startup." + step).record(millis * 1000000);
+		System.out.println("Startup: " + step + " after " + millis + " ms");
+		return millis;
+	}
+	
+	/**
+	 * Records that the first rows are displayed, which ends the startup, and reports whether the startup met
+	 * its target.
+	 */
+	public static void firstRowsDisplayed(){
+		long millis = mark("firstRows");
+		if(millis > TARGET_MILLIS)
+			System.out.println("Startup took " + millis + " ms, over its target of " + TARGET_MILLIS + " ms");
+	}
+}
@@ -0,0 +1,117 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class that keeps the PreparedStatements of a single connection open between uses, so that a query that
+ * is run again on the same connection reuses the statement the server already parsed and planned.
+ * 
+ * The cache holds a limited number of statements. Once it is full, the least recently used statement is
+ * closed to make room for a new one.
+ * 
+ * A StatementCache belongs to one pooled connection and is only ever used by whoever currently has that
+ * connection borrowed, so it is not synchronized.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class StatementCache {
+	
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits, misses;
+	
+	/**
+	 * Constructor for StatementCache.
+	 * 
+	 * @param nConn : Connection that the cached statements are prepared on
+	 * @param maxSize : Maximum number of statements kept open at once
+	 */
+	public StatementCache(Connection nConn, final int maxSize){
+		conn = nConn;
+		// Access ordered, so that the eldest entry is always the least recently used statement
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if(size() > maxSize){
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Returns an open PreparedStatement for the given SQL, preparing it only if it isn't already cached.
+	 * Parameters left over from the statement's previous use are cleared.
+	 * 
+	 * @param sql : SQL with "?" placeholders for the parameters
+	 * @param resultSetType : One of the ResultSet.TYPE_* constants
+	 * @param resultSetConcurrency : One of the ResultSet.CONCUR_* constants
+	 * @return The cached PreparedStatement
+	 * @throws SQLException : if the statement could not be prepared
+	 */
+	public PreparedStatement prepare(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		String key = resultSetType + ":" + resultSetConcurrency + ":" + sql;
+		PreparedStatement statement = statements.get(key);
+		
+		if(statement != null && !statement.isClosed()){
+			hits++;
+			statement.clearParameters();
+			return statement;
+		}
+		
+		misses++;
+		statement = conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+		statements.put(key, statement);
+		return statement;
+	}
+	
+	/**
+	 * Returns whether the given statement is one of the statements held by this cache. Cached statements
+	 * must not be closed by whoever uses them.
+	 * 
+	 * @param statement : Statement to look for
+	 * @return True if the statement is cached
+	 */
+	public boolean contains(Statement statement){
+		return statement != null && statements.containsValue(statement);
+	}
+	
+	/**
+	 * Closes every cached statement.
+	 */
+	public void close(){
+		for(PreparedStatement statement : statements.values())
+			closeQuietly(statement);
+		statements.clear();
+	}
+	
+	private static void closeQuietly(Statement statement){
+		try{
+			statement.close();
+		} catch (SQLException e){
+			// The statement is being thrown away anyway
+		}
+	}
+	
+	// GETTERS
+	
+	public int size(){
+		return statements.size();
+	}
+	
+	public long getHits(){
+		return hits;
+	}
+	
+	public long getMisses(){
+		return misses;
+	}
+}
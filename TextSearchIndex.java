@@ -0,0 +1,567 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that keeps an in-memory inverted index of the BOOK_NAME and AUTHOR columns, so that titles and authors
+ * can be searched by part of a word, by their beginning, or with typos, without scanning the table.
+ * 
+ * Each title and author is lowercased, with everything other than letters and digits turned into single
+ * spaces, and split into trigrams (every run of three characters, with a marker at the start so that
+ * beginnings can be searched). For each trigram, the index keeps the sorted numbers of the books containing
+ * it as a posting list, compressed as variable-length differences between consecutive numbers.
+ * 
+ * - A "contains" search intersects the posting lists of the trigrams of the searched text, then checks the
+ * remaining books actually contain it.
+ * - A "starts with" search does the same, with the start marker in front of the searched text.
+ * - A "similar" search counts, for every book, how many of the searched trigrams it contains, and keeps the
+ * books that miss no more trigrams than a couple of typos would explain, best matches first.
+ * 
+ * Books are numbered in the order they are added, so new books are always appended to the end of a posting
+ * list. A deleted book is only marked as deleted, and the index is rebuilt from memory once a quarter of the
+ * books are deleted. A book whose title or author changes is deleted and added again.
+ * 
+ * The shared index is built from the database the first time it is used, and is then kept up to date by the
+ * add, delete and modify paths of Utilities and BooksTableModel.
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class TextSearchIndex {
+	
+	/**
+	 * Columns that are indexed.
+	 */
+	public enum Field { TITLE, AUTHOR }
+	
+	/**
+	 * Kinds of search.
+	 */
+	public enum Mode { CONTAINS, PREFIX, SIMILAR }
+	
+	// Marks the start of a title or author, so that trigrams at the start can be told apart
+	private static final char START = '\u0001';
+	
+	private static TextSearchIndex sharedIndex;
+	
+	private final ConnectionPool pool;
+	private boolean built, building;
+	// Changes made while the index was being built, applied once it is done
+	private final List<Object[]> pendingChanges = new ArrayList<Object[]>();
+	
+	// Books, by book number
+	private String[] isbns = new String[1024];
+	private String[][] texts = {new String[1024], new String[1024]};
+	private final BitSet deleted = new BitSet();
+	private int bookCount, deletedCount;
+	private final Map<String, Integer> bookNumbers = new HashMap<String, Integer>();
+	// Posting lists of each field, by trigram
+	private final List<Map<Long, Postings>> postings = Arrays.<Map<Long, Postings>>asList(
+			new HashMap<Long, Postings>(), new HashMap<Long, Postings>());
+	
+	// Counts of matched trigrams per book, reused by "similar" searches
+	private int[] matchCounts = new int[0];
+	
+	/**
+	 * Constructor for TextSearchIndex. The index is empty until it is built or books are added to it.
+	 * 
+	 * @param nPool : Connection pool used to build the index from the database, or null if it is filled by hand
+	 */
+	public TextSearchIndex(ConnectionPool nPool){
+		pool = nPool;
+		built = nPool == null;
+	}
+	
+	/**
+	 * Returns the index shared by the whole application, which is built from the database through the given
+	 * pool the first time it is searched.
+	 * 
+	 * @param nPool : Connection pool used to build the index
+	 * @return The shared TextSearchIndex
+	 */
+	public static synchronized TextSearchIndex getIndex(ConnectionPool nPool){
+		if(sharedIndex == null)
+			sharedIndex = new TextSearchIndex(nPool);
+		return sharedIndex;
+	}
+	
+	/**
+	 * Searches the titles or authors of the indexed books.
+	 * 
+	 * @param field : Whether titles or authors are searched
+	 * @param query : The text to be searched for
+	 * @param mode : The kind of search
+	 * @param limit : Maximum number of ISBNs returned
+	 * @return The ISBNs of the matching books, best matches first
+	 * @throws SQLException : if the index had to be built, and could not be
+	 */
+	public List<String> search(Field field, String query, Mode mode, int limit) throws SQLException {
+		ensureBuilt();
+		String text = normalize(query);
+		if(text.isEmpty())
+			return Collections.emptyList();
+		
+		synchronized(this){
+			final int f = field.ordinal();
+			List<Match> matches = new ArrayList<Match>();
+			String searched = mode == Mode.PREFIX ? START + text : text;
+			
+			if(searched.length() < 3){
+				// Too short for a trigram, so the books are checked one by one
+				for(int book = 0; book < bookCount; book++){
+					if(!deleted.get(book) && texts[f][book].contains(searched))
+						matches.add(new Match(book, 0));
+				}
+			}
+			else if(mode == Mode.SIMILAR)
+				findSimilar(f, searched, matches);
+			else
+				findContaining(f, searched, matches);
+			
+			// Best score first, then books where the text appears earliest, then shorter texts
+			for(Match match : matches)
+				match.rank(texts[f][match.book], text);
+			Collections.sort(matches, new Comparator<Match>(){
+				public int compare(Match a, Match b) {
+					if(a.score != b.score)
+						return a.score > b.score ? -1 : 1;
+					if(a.position != b.position)
+						return a.position < b.position ? -1 : 1;
+					return a.length - b.length;
+				}
+			});
+			
+			List<String> found = new ArrayList<String>(Math.min(limit, matches.size()));
+			for(int i = 0; i < matches.size() && i < limit; i++)
+				found.add(isbns[matches.get(i).book]);
+			return found;
+		}
+	}
+	
+	/**
+	 * Finds the books containing the text, by intersecting the posting lists of its trigrams, shortest first.
+	 */
+	private void findContaining(int field, String text, List<Match> matches){
+		long[] grams = trigrams(text);
+		Postings[] lists = new Postings[grams.length];
+		for(int i = 0; i < grams.length; i++){
+			lists[i] = postings.get(field).get(grams[i]);
+			if(lists[i] == null)
+				return;
+		}
+		Arrays.sort(lists, new Comparator<Postings>(){
+			public int compare(Postings a, Postings b) {
+				return a.count - b.count;
+			}
+		});
+		
+		int[] candidates = lists[0].decode();
+		int remaining = candidates.length;
+		for(int i = 1; i < lists.length && remaining > 0; i++)
+			remaining = lists[i].intersect(candidates, remaining);
+		
+		for(int i = 0; i < remaining; i++){
+			int book = candidates[i];
+			// The trigrams can all be present without being next to each other, so the text is checked
+			if(!deleted.get(book) && texts[field][book].contains(text))
+				matches.add(new Match(book, 1));
+		}
+	}
+	
+	/**
+	 * Finds the books sharing most of the trigrams of the text. A typo changes up to three trigrams, so a
+	 * book may miss three trigrams per allowed typo (one typo for short texts, two otherwise).
+	 */
+	private void findSimilar(int field, String text, List<Match> matches){
+		long[] grams = trigrams(text);
+		int typos = text.length() <= 5 ? 1 : 2;
+		int required = Math.max(1, grams.length - 3 * typos);
+		
+		if(matchCounts.length < bookCount)
+			matchCounts = new int[Math.max(bookCount, matchCounts.length * 2)];
+		int[] counts = matchCounts;
+		int[] touched = new int[64];
+		int touchedCount = 0;
+		
+		for(long gram : grams){
+			Postings list = postings.get(field).get(gram);
+			if(list == null)
+				continue;
+			PostingsIterator books = list.iterator();
+			while(books.hasNext()){
+				int book = books.next();
+				if(counts[book]++ == 0){
+					if(touchedCount == touched.length)
+						touched = Arrays.copyOf(touched, touchedCount * 2);
+					touched[touchedCount++] = book;
+				}
+			}
+		}
+		
+		for(int i = 0; i < touchedCount; i++){
+			int book = touched[i];
+			int matched = counts[book];
+			counts[book] = 0;
+			if(matched >= required && !deleted.get(book)){
+				// Dice coefficient of the two sets of trigrams, so that long texts sharing a few trigrams rank lower
+				int bookGrams = Math.max(1, texts[field][book].length() - 2);
+				matches.add(new Match(book, 2.0 * matched / (grams.length + bookGrams)));
+			}
+		}
+	}
+	
+	/**
+	 * Adds a book to the index, or replaces it if its ISBN is already indexed.
+	 * 
+	 * @param isbn : ISBN of the book
+	 * @param title : BOOK_NAME of the book
+	 * @param author : AUTHOR of the book
+	 */
+	public synchronized void add(String isbn, String title, String author){
+		if(building){
+			pendingChanges.add(new Object[]{isbn, title, author});
+			return;
+		}
+		if(!built)
+			return;
+		addBook(isbn, title, author);
+	}
+	
+	/**
+	 * Removes a book from the index.
+	 * 
+	 * @param isbn : ISBN of the book
+	 */
+	public synchronized void remove(String isbn){
+		if(building){
+			pendingChanges.add(new Object[]{isbn});
+			return;
+		}
+		if(!built)
+			return;
+		removeBook(isbn);
+	}
+	
+	/**
+	 * Indexes the new title or author of a book once it is stored, if the given column is one that is indexed.
+	 * A book that isn't indexed yet is simply added (see add).
+	 * 
+	 * @param book : The book, as it was stored
+	 * @param column : Name of the column that changed
+	 */
+	public void update(BookRecord book, String column){
+		if(column.equals("BOOK_NAME") || column.equals("AUTHOR"))
+			add(book.getIsbn(), book.getBookName(), book.getAuthor());
+	}
+	
+	/**
+	 * Builds the index now, unless it is already built, so that the first search doesn't wait for it.
+	 * Used when the application starts (see BooksGUI).
+	 * 
+	 * @throws SQLException : if the books could not be read
+	 */
+	public void prepare() throws SQLException {
+		ensureBuilt();
+	}
+	
+	/**
+	 * Discards the index, so that it is built again from the database the next time it is searched. Used when
+	 * many books change at once, such as when an input file is loaded.
+	 */
+	public synchronized void invalidate(){
+		if(pool == null)
+			return;
+		if(building){
+			// The build in progress may have missed some of the changes, so it is thrown away when it is done
+			pendingChanges.add(null);
+			return;
+		}
+		built = false;
+		clear();
+	}
+	
+	/**
+	 * Builds the index from the database, unless it is already built. Searches wait for the build to finish.
+	 */
+	private void ensureBuilt() throws SQLException {
+		while(true){
+			synchronized(this){
+				while(building){
+					try{
+						wait();
+					} catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while the search index was being built", e);
+					}
+				}
+				if(built)
+					return;
+				building = true;
+				clear();
+			}
+			
+			boolean succeeded = false;
+			try{
+				// Reads the rows without holding the lock, so that changes can be queued while the build runs
+				BookRepository.getRepository(pool).scan(new BookRepository.Visitor(){
+					public void visit(BookRecord book){
+						synchronized(TextSearchIndex.this){
+							addBook(book.getIsbn(), book.getBookName(), book.getAuthor());
+						}
+					}
+				});
+				succeeded = true;
+			} catch (IOException e){
+				throw new SQLException(e);
+			} finally {
+				synchronized(this){
+					building = false;
+					// A change that invalidated the index while it was being built means it is built again
+					built = succeeded && !pendingChanges.contains(null);
+					if(built){
+						for(Object[] change : pendingChanges){
+							if(change.length == 1)
+								removeBook((String) change[0]);
+							else
+								addBook((String) change[0], (String) change[1], (String) change[2]);
+						}
+					}
+					else
+						clear();
+					pendingChanges.clear();
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	private void addBook(String isbn, String title, String author){
+		removeBook(isbn);
+		
+		if(bookCount == isbns.length){
+			isbns = Arrays.copyOf(isbns, bookCount * 2);
+			texts[0] = Arrays.copyOf(texts[0], bookCount * 2);
+			texts[1] = Arrays.copyOf(texts[1], bookCount * 2);
+		}
+		int book = bookCount++;
+		isbns[book] = isbn;
+		texts[0][book] = START + normalize(title);
+		texts[1][book] = START + normalize(author);
+		bookNumbers.put(isbn, book);
+		
+		for(int f = 0; f < 2; f++){
+			Map<Long, Postings> fieldPostings = postings.get(f);
+			for(long gram : trigrams(texts[f][book])){
+				Postings list = fieldPostings.get(gram);
+				if(list == null){
+					list = new Postings();
+					fieldPostings.put(gram, list);
+				}
+				list.append(book);
+			}
+		}
+	}
+	
+	private void removeBook(String isbn){
+		Integer book = bookNumbers.remove(isbn);
+		if(book == null)
+			return;
+		deleted.set(book);
+		deletedCount++;
+		if(deletedCount > 1000 && deletedCount > bookCount / 4)
+			compact();
+	}
+	
+	/**
+	 * Rebuilds the posting lists from the books still in the index, renumbering the books.
+	 */
+	private void compact(){
+		String[] oldIsbns = isbns;
+		String[][] oldTexts = texts;
+		int oldCount = bookCount;
+		BitSet oldDeleted = (BitSet) deleted.clone();
+		clear();
+		for(int book = 0; book < oldCount; book++){
+			if(!oldDeleted.get(book))
+				addBook(oldIsbns[book], oldTexts[0][book].substring(1), oldTexts[1][book].substring(1));
+		}
+	}
+	
+	private void clear(){
+		isbns = new String[1024];
+		texts = new String[][]{new String[1024], new String[1024]};
+		deleted.clear();
+		bookCount = deletedCount = 0;
+		bookNumbers.clear();
+		postings.get(0).clear();
+		postings.get(1).clear();
+	}
+	
+	/**
+	 * Lowercases the text and turns every run of characters other than letters and digits into a single space.
+	 */
+	static String normalize(String text){
+		if(text == null)
+			return "";
+		StringBuilder normalized = new StringBuilder(text.length());
+		boolean space = false;
+		for(int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if(Character.isLetterOrDigit(c)){
+				if(space && normalized.length() > 0)
+					normalized.append(' ');
+				normalized.append(Character.toLowerCase(c));
+				space = false;
+			}
+			else
+				space = true;
+		}
+		return normalized.toString();
+	}
+	
+	/**
+	 * Returns the distinct trigrams of a text, each packed into a long, sorted.
+	 */
+	static long[] trigrams(String text){
+		if(text.length() < 3)
+			return new long[0];
+		long[] grams = new long[text.length() - 2];
+		for(int i = 0; i < grams.length; i++)
+			grams[i] = (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+		Arrays.sort(grams);
+		int distinct = 0;
+		for(int i = 0; i < grams.length; i++){
+			if(i == 0 || grams[i] != grams[i - 1])
+				grams[distinct++] = grams[i];
+		}
+		return Arrays.copyOf(grams, distinct);
+	}
+	
+	// GETTERS
+	
+	public synchronized int size(){
+		return bookCount - deletedCount;
+	}
+	
+	public synchronized long getPostingsBytes(){
+		long bytes = 0;
+		for(Map<Long, Postings> fieldPostings : postings){
+			for(Postings list : fieldPostings.values())
+				bytes += list.length;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * A book found by a search, with its score.
+	 */
+	private static class Match {
+		final int book;
+		final double score;
+		int position, length;
+		
+		Match(int nBook, double nScore){
+			book = nBook;
+			score = nScore;
+		}
+		
+		/**
+		 * Records where the searched text appears in the book's text, and how long that text is.
+		 */
+		void rank(String text, String searched){
+			int found = text.indexOf(searched);
+			position = found < 0 ? Integer.MAX_VALUE : found;
+			length = text.length();
+		}
+	}
+	
+	/**
+	 * Sorted list of book numbers, stored as variable-length differences between consecutive numbers (7 bits
+	 * per byte, the high bit set on every byte but the last of a number).
+	 */
+	static class Postings {
+		private byte[] data = new byte[4];
+		private int length, count, last = -1;
+		
+		/**
+		 * Appends a book number, which must be greater than every number already in the list.
+		 */
+		void append(int book){
+			if(length + 5 > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+			int delta = book - last;
+			last = book;
+			count++;
+			while(delta >= 0x80){
+				data[length++] = (byte) (delta | 0x80);
+				delta >>>= 7;
+			}
+			data[length++] = (byte) delta;
+		}
+		
+		int[] decode(){
+			int[] books = new int[count];
+			PostingsIterator iterator = iterator();
+			for(int i = 0; i < count; i++)
+				books[i] = iterator.next();
+			return books;
+		}
+		
+		/**
+		 * Keeps the first "size" numbers of "books" (which are sorted) that are also in this list.
+		 * @return The number of numbers kept
+		 */
+		int intersect(int[] books, int size){
+			PostingsIterator iterator = iterator();
+			int kept = 0, current = iterator.hasNext() ? iterator.next() : Integer.MAX_VALUE;
+			for(int i = 0; i < size; i++){
+				while(current < books[i])
+					current = iterator.hasNext() ? iterator.next() : Integer.MAX_VALUE;
+				if(current == books[i])
+					books[kept++] = books[i];
+			}
+			return kept;
+		}
+		
+		PostingsIterator iterator(){
+			return new PostingsIterator(data, length);
+		}
+	}
+	
+	/**
+	 * Decodes the numbers of a posting list in order.
+	 */
+	static class PostingsIterator {
+		private final byte[] data;
+		private final int length;
+		private int position, value = -1;
+		
+		PostingsIterator(byte[] nData, int nLength){
+			data = nData;
+			length = nLength;
+		}
+		
+		boolean hasNext(){
+			return position < length;
+		}
+		
+		int next(){
+			int delta = 0, shift = 0;
+			byte b;
+			do{
+				b = data[position++];
+				delta |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+			value += delta;
+			return value;
+		}
+	}
+}
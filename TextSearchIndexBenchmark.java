@@ -0,0 +1,95 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Stand-alone benchmark that builds a TextSearchIndex of made-up titles and authors, and measures how long
+ * each kind of search takes.
+ * 
+ * No database is needed. The books are added to the index directly, as the database would add them when the
+ * index is built. The "contains" searches are also checked against a scan of every title.
+ * 
+ * Usage: "java TextSearchIndexBenchmark [books] [searches]"
+ * 
+ * @author Steven Wojsnis
+ *
+ */
+public class TextSearchIndexBenchmark {
+	
+	private static final String[] WORDS = {"the", "history", "of", "java", "programming", "databases", "guide",
+			"complete", "night", "garden", "river", "shadow", "winter", "empire", "secret", "modern", "art",
+			"science", "kingdom", "journey", "silent", "storm", "city", "lost", "children", "mountain", "ocean",
+			"letters", "introduction", "advanced", "practical", "stories", "war", "peace", "light", "stone"};
+	private static final String[] NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Miller", "Davis",
+			"Garcia", "Rodriguez", "Wilson", "Martinez", "Anderson", "Taylor", "Thomas", "Hernandez", "Moore"};
+	
+	/**
+	 * Runs the benchmark.
+	 * @param args : optionally, the number of books (default 1000000) and the number of searches of each kind (default 200)
+	 */
+	public static void main(String[] args) throws SQLException {
+		int books = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int searches = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		
+		Random random = new Random(42);
+		String[] titles = new String[books];
+		TextSearchIndex index = new TextSearchIndex(null);
+		long start = System.nanoTime();
+		for(int i = 0; i < books; i++){
+			StringBuilder title = new StringBuilder();
+			for(int w = 2 + random.nextInt(4); w > 0; w--)
+				title.append(WORDS[random.nextInt(WORDS.length)]).append(w > 1 ? " " : "");
+			// A number makes most titles rare, as real titles are
+			title.append(' ').append(random.nextInt(books));
+			titles[i] = title.toString();
+			String author = NAMES[random.nextInt(NAMES.length)] + ", " + NAMES[random.nextInt(NAMES.length)];
+			index.add(String.valueOf(9780000000000L + i), titles[i], author);
+		}
+		double buildSeconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Indexed %d books in %.1f s, %d MB of posting lists", index.size(),
+				buildSeconds, index.getPostingsBytes() >> 20));
+		
+		// Searches for parts of existing titles, and for the same parts with one letter changed
+		String[] queries = new String[searches], typos = new String[searches];
+		for(int i = 0; i < searches; i++){
+			String title = titles[random.nextInt(books)];
+			int from = random.nextInt(title.length() / 2);
+			queries[i] = title.substring(from, Math.min(title.length(), from + 6 + random.nextInt(10))).trim();
+			char[] typo = queries[i].toCharArray();
+			typo[random.nextInt(typo.length)] = 'q';
+			typos[i] = new String(typo);
+		}
+		
+		int checked = Math.min(searches, 5);
+		for(int i = 0; i < checked; i++){
+			String text = TextSearchIndex.normalize(queries[i]);
+			int scanned = 0;
+			for(String title : titles){
+				if(TextSearchIndex.normalize(title).contains(text))
+					scanned++;
+			}
+			int found = index.search(TextSearchIndex.Field.TITLE, queries[i], TextSearchIndex.Mode.CONTAINS, Integer.MAX_VALUE).size();
+			if(found != scanned)
+				throw new IllegalStateException("\"" + queries[i] + "\": found " + found + " books, scan found " + scanned);
+		}
+		
+		measure(index, "contains", queries, TextSearchIndex.Mode.CONTAINS);
+		measure(index, "starts with", queries, TextSearchIndex.Mode.PREFIX);
+		measure(index, "similar (one typo)", typos, TextSearchIndex.Mode.SIMILAR);
+	}
+	
+	private static void measure(TextSearchIndex index, String name, String[] queries, TextSearchIndex.Mode mode) throws SQLException {
+		// Once to warm up, then measured
+		for(String query : queries)
+			index.search(TextSearchIndex.Field.TITLE, query, mode, 1000);
+		long start = System.nanoTime(), worst = 0, results = 0;
+		for(String query : queries){
+			long searchStart = System.nanoTime();
+			List<String> found = index.search(TextSearchIndex.Field.TITLE, query, mode, 1000);
+			worst = Math.max(worst, System.nanoTime() - searchStart);
+			results += found.size();
+		}
+		System.out.println(String.format("%s: %.2f ms per search, worst %.2f ms, %.0f results on average", name,
+				(System.nanoTime() - start) / 1e6 / queries.length, worst / 1e6, results / (double) queries.length));
+	}
+}
@@ -1,9 +1,9 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 import javax.swing.JOptionPane;
 
@@ -11,34 +11,45 @@ import javax.swing.JOptionPane;
  * Class that contains the Add Row and Delete row options of the "Utilities" options 
  * that can be selected by the user via the "Utilities" menu in the BooksGUI class.
  * 
- * All methods in this class will return a ResultSet, as the goal of this class is to
- * designate an area where BooksGUI can pull a new ResultSet from given a requested command,
- * and then use it to make appropriate changes to the JTable.
+ * Adding and deleting rows change the database straight away (the full table is displayed a window
+ * at a time, so there is no ResultSet holding every row to change), and BooksGUI then updates the
+ * JTable to reflect the change. Rows are deleted through their primary key (ISBN), either one at a
+ * time or as a batch of ISBNs in one transaction. A file of new and changed books can also be imported.
  * 
  * @author Steven Wojsnis
  *
  */
 public class Utilities {
 	
+	static final int DELETE_BATCH_SIZE = Integer.getInteger("bookstore.delete.batchSize", 500);
+	private static final int IMPORT_BATCH_SIZE = Integer.getInteger("bookstore.import.batchSize", 1000);
+	private static final int IMPORT_TRANSACTION_SIZE = Integer.getInteger("bookstore.import.transactionSize", 10000);
+	// Time taken by each kind of change that succeeded
+	private static final Metrics.Histogram ADD_TIME = Metrics.timer("utilities.add"),
+			DELETE_TIME = Metrics.timer("utilities.delete"), DELETE_BATCH_TIME = Metrics.timer("utilities.deleteBatch"),
+			IMPORT_TIME = Metrics.timer("utilities.import");
+	
 	private Path outputFilePath;
+	private ConnectionPool pool;
 	
 	/**
 	 * Contructor for Utilities. 
 	 * Instantiates outputFilePath, which will be written to with details of any changes made to the data
 	 * @param outputFile
+	 * @param nPool : Connection pool used to make changes to the database
 	 */
-	public Utilities(Path outputFile){
+	public Utilities(Path outputFile, ConnectionPool nPool){
 		outputFilePath = outputFile;
+		pool = nPool;
 	}
 	
 	 /**
 	  * Method that obtains various new book details via the User to be inserted into the database
-	  * via the addRow method (which is called at the end of the this method).
+	  * via the addRow method, which BooksGUI then calls in the background.
 	  * 
-	  * @param rs : The original ResultSet, that doesn't yet contain the added row
-	  * @return The new ResultSet that will contain the added row
+	  * @return The details of the row to be added, in table column order, or null if the user didn't enter them
 	  */
-	 public ResultSet retrieveNewRowItems(ResultSet rs){
+	 public Object[] retrieveNewRowItems(){
 		 try{
 			 //Requests the required information about the soon-to-be inserted book via user input.
 			 Object isbn = JOptionPane.showInputDialog(null, "Please enter an ISBN");
@@ -60,134 +71,216 @@ public class Utilities {
 		
 			 Object[] items = {isbn, bookName, yearPub, author, pages, stock, 
 					 price, amtSold, lastShip};
-		
-			 //Calls addRow to actually add the new row with the recently obtained items to the ResultSet
-			 return addRow(rs, items);
+			 return items;
 		 }catch(NullPointerException e){
 				JOptionPane.showMessageDialog(null,
 						"Unable to add new row, user didn't input value for each column.",
 					    "Error During Add Row.",
 					    JOptionPane.ERROR_MESSAGE);
 		 }
-		 return rs;
+		 return null;
 		
 	}
 	
 	 /**
-	  * Adds a new row to a ResultSet containing information from an Objects Array as well as the Database
+	  * Adds a new row to the Database containing information from an Objects Array. Runs off the event dispatch
+	  * thread, so errors are shown through QueryExecutor.showErrorDialog.
 	  * 
-	  * @param rs : The ResultSet to have a row added to
-	  * @param items : The array containing the details of the row to be added
-	  * @return The ResultSet containing the added row.
+	  * @param items : The array containing the details of the row to be added, in table column order
+	  * @return Whether the row was added.
 	  */
-	public ResultSet addRow(ResultSet rs, Object[] items){
+	public boolean addRow(Object[] items){
 		
 		try{
-			//Moves to an insertRow, fills data into said insertRow, and the inserts the insertRow
-			//into the ResultSet and Database
-			rs.moveToInsertRow();
-			rs.updateObject("ISBN", items[0]);
-			rs.updateObject("BOOK_NAME", items[1]);
-			rs.updateObject("YEAR_PUBLISHED", items[2]);
-			rs.updateObject("AUTHOR", items[3]);
-			rs.updateObject("PAGES", items[4]);
-			rs.updateObject("CUR_STOCK", items[5]);
-			rs.updateObject("PRICE", items[6]);
-			rs.updateObject("AMOUNT_SOLD", items[7]);
-			rs.updateObject("LAST_SHIP_RECEIVED", items[8]);
-			rs.insertRow();
-			rs.moveToCurrentRow();
-			
-			//Writes the details of the change made to the Database to the designated output file.
-			try (BufferedWriter writer = new BufferedWriter( new FileWriter(outputFilePath.toString(), true))) {
-			    writer.write("ADD ROW - New row was added with the following values: ISBN: "
-			    		+ items[0] + ", BOOK_NAME: " + items[1] + ", YEAR_PUBLISHED: " + items[2] +
-			    		", AUTHOR: " + items[3] + ", PAGES: " + items[4] + ", CUR_STOCK: " + items[5] +
-			    		", PRICE: " + items[6] + ", AMOUNT_SOLD: " + items[7] + ", LAST_SHIP_RECEIVED: "
-			    		+ items[8]); 
-			    writer.write(System.getProperty( "line.separator" ));
-			} catch (IOException x) {
-				x.printStackTrace();
-			} 
-			
-			return rs;
+			insertRow(items);
+			return true;
 			
 		}catch(SQLException e){
-			JOptionPane.showMessageDialog(null,
-					"Unable to add new row, incorrect input value(s)",
-				    "Error During Add Row.",
-				    JOptionPane.ERROR_MESSAGE);
+			QueryExecutor.showErrorDialog("Unable to add new row, incorrect input value(s)", "Error During Add Row.");
 		}catch(NullPointerException e){
-			JOptionPane.showMessageDialog(null,
-					"Unable to add new row, user didn't input value for each column.",
-				    "Error During Add Row.",
-				    JOptionPane.ERROR_MESSAGE);
+			QueryExecutor.showErrorDialog("Unable to add new row, user didn't input value for each column.",
+					"Error During Add Row.");
 		}
 		
-		return rs;
+		return false;
 	}
 	
 	/**
-	 * Deletes a row from the ResultSet given a primary key (ISBN), as well as the Database.
+	 * Inserts a new row into the Database, without showing any dialogs (addRow shows them for the GUI).
 	 * 
+	 * @param items : The details of the row to be added, in table column order
+	 * @return The added book, as the database stored it
+	 * @throws SQLException : if the database rejected the row (DataTruncation for an incorrect format)
+	 * @throws NullPointerException : if a column has no value
+	 */
+	public BookRecord insertRow(Object[] items) throws SQLException {
+		for(Object item : items){
+			if(item == null)
+				throw new NullPointerException("Missing column value");
+		}
+		
+		//Inserts the new row into the Database
+		long start = System.nanoTime();
+		BookRepository.getRepository(pool).insert(items);
+		IsbnCache.getCache(pool).invalidate(String.valueOf(items[0]));
+		TextSearchIndex.getIndex(pool).add(String.valueOf(items[0]), String.valueOf(items[1]), String.valueOf(items[3]));
+		//The row is read back, as the database decides how its values are stored (such as the rounding of the price)
+		BookRecord added = IsbnCache.getCache(pool).get(String.valueOf(items[0]));
+		if(added != null)
+			RangeIndex.getIndex(pool).put(added);
+		
+		//Writes the details of the change made to the Database to the designated output file.
+		try {
+			AuditLog.forPath(outputFilePath).append(AuditEntry.add(items));
+		} catch (IOException x) {
+			x.printStackTrace();
+		} 
+		
+		ADD_TIME.recordSince(start);
+		return added;
+	}
+	
+	/**
+	 * Deletes the book with the given ISBN (the primary key) from the Database.
+	 * 
+	 * The book is read and locked, then deleted, in one transaction, so that the values written to the
+	 * output file are the values that were deleted. Dialogs are shown through QueryExecutor, as deletes run
+	 * off the event dispatch thread.
 	 * 
-	 * @param rs : ResultSet that will have row deleted from
 	 * @param isbn : primary key used to identify the row to be deleted
-	 * @return The ResultSet that will no longer contain the deleted row.
+	 * @return Whether the book was deleted.
 	 */
-	public ResultSet deleteRow(ResultSet rs, String isbn){
-		try{
-			
-			if(isbn == null)
-				return rs;
-			//Ensures that the ResultSet is not empty
-			else if(rs.first()){
-				
-				//Finds the row with the given ISBN
-				while(!rs.getString("ISBN").equals(isbn)){
-					if(!rs.next()){
-						 
-						//If the row isn't found, an error message is reported to the user, informing
-						//them that the row doesn't exist in the table.
-						JOptionPane.showMessageDialog(null,
-								"Book with ISBN: "+isbn+" doesn't exist in table.",
-								"Not in Table",
-								JOptionPane.ERROR_MESSAGE);
-					
-						return rs;
-					}
-				}
-				
-				//Takes pertinent information to be used in the documentation of the change
-				String deletedRowISBN = rs.getString(1);
-				String deletedRowTitle = rs.getString(2);
-				String deletedRowAuthor = rs.getString(4);
-				//removes the row from the ResultSet and database
-				rs.deleteRow();
-				
-				//Writes the changes made to the Database to the designated Output File, with relevant information
-				//such as the book's ISBN, Title, and Author.
-				try (BufferedWriter writer = new BufferedWriter( new FileWriter(outputFilePath.toString(), true))) {
-				    writer.write("DELETED ROW - Book with ISBN: " + deletedRowISBN + 
-				    		" and Title: " + deletedRowTitle + " by: " + deletedRowAuthor +
-				    		" was removed from the table."); 
-				    writer.write(System.getProperty( "line.separator" ));
-				} catch (IOException x) {
-				    x.printStackTrace();;
-				}
-				return rs;
+	public boolean deleteRow(String isbn){
+		if(isbn == null)
+			return false;
+		
+		long start = System.nanoTime();
+		try(BookRepository.Transaction transaction = BookRepository.getRepository(pool).begin()){
+			//Takes the values of the row to be used in the documentation of the change
+			BookRecord deleted = transaction.delete(isbn);
+			if(deleted == null){
+				//If the row isn't found, an error message is reported to the user, informing
+				//them that the row doesn't exist in the table.
+				QueryExecutor.showErrorDialog("Book with ISBN: "+isbn+" doesn't exist in table.",
+						"Not in Table");
+				return false;
 			}
-			//Informs the user that the table was empty
-			else{
-				JOptionPane.showMessageDialog(null,
-						"Table currently empty.",
-						"Empty Table",
-						JOptionPane.ERROR_MESSAGE);
+			transaction.commit();
+			forgetBook(isbn);
+			
+			//Writes the changes made to the Database to the designated Output File, with the deleted row's values.
+			Object[] deletedRow = new Object[BookColumns.COLUMN_COUNT];
+			for(int i = 0; i < deletedRow.length; i++)
+				deletedRow[i] = deleted.getColumnText(i);
+			try {
+				AuditLog.forPath(outputFilePath).append(AuditEntry.delete(deletedRow));
+			} catch (IOException x) {
+			    x.printStackTrace();
 			}
+			DELETE_TIME.recordSince(start);
+			return true;
 		}catch(SQLException e){
 			e.printStackTrace();
+			QueryExecutor.showErrorDialog("Unable to delete book with ISBN: "+isbn+". "+e.getMessage(),
+					"Error During Delete Row.");
+		}
+		return false;
+	}
+	
+	/**
+	 * Deletes every book with one of the given ISBNs from the Database, in one transaction.
+	 * 
+	 * In MySQL, the deletes are sent to the server as batches of "bookstore.delete.batchSize" (500 by default)
+	 * keyed DELETE statements. ISBNs that aren't in the table are skipped. If any batch fails, nothing is deleted.
+	 * Once the transaction is committed, one summarized entry is written to the output file per batch of
+	 * deleted ISBNs.
+	 * 
+	 * @param isbns : ISBNs of the books to be deleted, duplicates are only deleted once
+	 * @return The number of books that were deleted
+	 * @throws SQLException : if the books could not be deleted, in which case none of them were
+	 */
+	public int deleteRows(List<String> isbns) throws SQLException {
+		List<String> unique = new ArrayList<String>(new LinkedHashSet<String>(isbns));
+		long deleteStart = System.nanoTime();
+		
+		List<String> deleted;
+		try(BookRepository.Transaction transaction = BookRepository.getRepository(pool).begin()){
+			deleted = transaction.delete(unique);
+			transaction.commit();
+		}
+		
+		for(String isbn : deleted)
+			forgetBook(isbn);
+		//Writes one entry per batch to the designated Output File
+		for(int start = 0; start < deleted.size(); start += DELETE_BATCH_SIZE){
+			try {
+				AuditLog.forPath(outputFilePath).append(AuditEntry.deleteBatch(
+						deleted.subList(start, Math.min(deleted.size(), start + DELETE_BATCH_SIZE))));
+			} catch (IOException x) {
+			    x.printStackTrace();
+			}
 		}
-		return rs;
+		DELETE_BATCH_TIME.recordSince(deleteStart);
+		return deleted.size();
+	}
+	
+	/**
+	 * Method that imports a file of new and changed books, in the same "::" format as the input file: books
+	 * that aren't in the table are added, and books that are have their row replaced, unless it's unchanged.
+	 * The books are written in batches (see BulkUpserter), and the changes are written to the designated Output File.
+	 * 
+	 * The batch size and the number of books per transaction can be changed with the "bookstore.import.batchSize"
+	 * and "bookstore.import.transactionSize" system properties.
+	 * 
+	 * @param inputFile : File of books to be imported
+	 * @return The upserter that imported the books, which holds the numbers of books inserted, updated, unchanged and rejected
+	 * @throws IOException : if the file could not be read
+	 * @throws SQLException : if the import failed, in which case only the transaction in progress is rolled back
+	 */
+	public BulkUpserter importBooks(Path inputFile) throws IOException, SQLException {
+		BulkUpserter upserter = new BulkUpserter(pool, AuditLog.forPath(outputFilePath), IMPORT_BATCH_SIZE, IMPORT_TRANSACTION_SIZE);
+		long start = System.nanoTime();
+		try{
+			upserter.begin();
+			new BookFileParser().parse(inputFile, upserter);
+			upserter.finish();
+			IMPORT_TIME.recordSince(start);
+		} catch (IOException | SQLException | RuntimeException e){
+			upserter.abort();
+			throw e;
+		} finally {
+			//Any book may have changed, so cached lookups are dropped and the search indexes are built again
+			//the next time they are used
+			IsbnCache.getCache(pool).invalidateAll();
+			TextSearchIndex.getIndex(pool).invalidate();
+			RangeIndex.getIndex(pool).invalidate();
+		}
+		return upserter;
+	}
+	
+	/**
+	 * Reads a list of ISBNs, separated by line breaks, spaces, commas or semicolons, such as a file of ISBNs
+	 * to be deleted.
+	 * 
+	 * @param text : The list
+	 * @return The ISBNs, in order
+	 */
+	public static List<String> parseIsbns(String text){
+		List<String> isbns = new ArrayList<String>();
+		for(String isbn : text.split("[\\s,;]+")){
+			if(!isbn.isEmpty())
+				isbns.add(isbn);
+		}
+		return isbns;
+	}
+	
+	/**
+	 * Removes a deleted book from the IsbnCache and the search indexes.
+	 */
+	private void forgetBook(String isbn){
+		IsbnCache.getCache(pool).invalidate(isbn);
+		TextSearchIndex.getIndex(pool).remove(isbn);
+		RangeIndex.getIndex(pool).remove(isbn);
 	}
 	
 }